@@ -0,0 +1,196 @@
+package me.ztiany.capturer;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the round trip of a command from the {@link FloatingCameraConnection.Commander} to the
+ * {@link FloatingCameraConnection.Capturer} and back, over the broadcasts, the in-process binder and the messenger a
+ * remote client uses. The capturer answers at once, so only the connection is measured.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CommandLatencyBenchmark {
+
+    private static final int WARMUP_ROUND_TRIPS = 200;
+
+    private static final int MEASURED_ROUND_TRIPS = 2_000;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private FloatingCameraConnection.Capturer mCapturer;
+
+    private FloatingCameraConnection.Commander mCommander;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mCapturer = FloatingCameraConnection.newCapturer(context);
+            mCapturer.init();
+            mCapturer.setCapturingActionListener(new FloatingCameraConnection.CapturingActionListener() {
+                @Override
+                public void startCapturing(String sessionId, VideoSpec videoSpec) {
+                    mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.STARTED);
+                }
+
+                @Override
+                public void stopCapturing(String sessionId) {
+                    mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.STOPPED);
+                }
+            });
+            mCommander = FloatingCameraConnection.newCommander(context);
+            mCommander.init();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mCommander.destroy();
+            mCapturer.destroy();
+        });
+    }
+
+    @Test
+    public void broadcast() throws InterruptedException {
+        measure("broadcast", null);
+    }
+
+    @Test
+    public void localBinder() throws InterruptedException {
+        measure("local binder", mCapturer.onBind());
+    }
+
+    @Test
+    public void messenger() throws InterruptedException {
+        IBinder capturerBinder = mCapturer.onBind();
+        // hides the CapturerBinder type, so the commander marshals every command as a remote client would.
+        measure("messenger", new Binder() {
+            @Override
+            protected boolean onTransact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) throws RemoteException {
+                return capturerBinder.transact(code, data, reply, flags);
+            }
+        });
+    }
+
+    /**
+     * @param service the binder to command through, null for the broadcasts.
+     */
+    private void measure(String name, @Nullable IBinder service) throws InterruptedException {
+        RoundTrips roundTrips = new RoundTrips(service != null);
+        mMainHandler.post(() -> {
+            if (service != null) {
+                mCommander.attachService(service);
+            }
+            mCommander.setCapturingStateListener(roundTrips);
+            roundTrips.next();
+        });
+        assertTrue(roundTrips.mDone.await(60, TimeUnit.SECONDS));
+        assertEquals(MEASURED_ROUND_TRIPS, roundTrips.mCount - WARMUP_ROUND_TRIPS);
+
+        long[] samples = roundTrips.mSamples;
+        Arrays.sort(samples);
+        long total = 0;
+        for (long sample : samples) {
+            total += sample;
+        }
+        System.out.printf("command round trip over %s: mean %.1f us, median %.1f us, p99 %.1f us%n",
+                name,
+                total / 1000.0 / samples.length,
+                samples[samples.length / 2] / 1000.0,
+                samples[samples.length * 99 / 100] / 1000.0);
+    }
+
+    /**
+     * Sends the next command once the previous one is answered, all on the main thread.
+     */
+    private final class RoundTrips implements FloatingCameraConnection.CommandCallback, FloatingCameraConnection.CapturingStateListener {
+
+        private final boolean mAcknowledged;
+        private final long[] mSamples = new long[MEASURED_ROUND_TRIPS];
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final VideoSpec mVideoSpec = new VideoSpec.Builder()
+                .setFrameRate(30)
+                .setVideoSize(new Size(1920, 1080))
+                .storePath("benchmark.mp4")
+                .build();
+        private int mCount;
+        private long mStart;
+
+        /**
+         * @param acknowledged waits for the command's callback, the broadcasts only have the capturing events.
+         */
+        RoundTrips(boolean acknowledged) {
+            mAcknowledged = acknowledged;
+        }
+
+        void next() {
+            if (mCount == WARMUP_ROUND_TRIPS + MEASURED_ROUND_TRIPS) {
+                mDone.countDown();
+                return;
+            }
+            String sessionId = "benchmark-" + mCount / 2;
+            FloatingCameraConnection.CommandCallback callback = mAcknowledged ? this : null;
+            mStart = System.nanoTime();
+            if (mCount % 2 == 0) {
+                mCommander.startCapturing(sessionId, mVideoSpec, callback);
+            } else {
+                mCommander.stopCapturing(sessionId, callback);
+            }
+        }
+
+        private void complete() {
+            long elapsed = System.nanoTime() - mStart;
+            if (mCount >= WARMUP_ROUND_TRIPS) {
+                mSamples[mCount - WARMUP_ROUND_TRIPS] = elapsed;
+            }
+            mCount++;
+            // the in-process binder answers before the command returns.
+            mMainHandler.post(this::next);
+        }
+
+        @Override
+        public void onCommandResult(String sessionId, int result) {
+            complete();
+        }
+
+        @Override
+        public void onCapturingStarted(String sessionId) {
+            if (!mAcknowledged) {
+                complete();
+            }
+        }
+
+        @Override
+        public void onCapturingFinished(String sessionId, boolean succeeded) {
+            if (!mAcknowledged) {
+                complete();
+            }
+        }
+
+    }
+
+}
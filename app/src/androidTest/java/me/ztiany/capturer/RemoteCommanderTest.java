@@ -0,0 +1,92 @@
+package me.ztiany.capturer;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Size;
+
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commands a {@link FloatingCameraConnection.Capturer} in another process, {@link RemoteCapturerService}, the way
+ * another app commands {@link FloatingCameraService}: bound by its component, through the messenger.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RemoteCommanderTest {
+
+    private Context mContext;
+
+    private FloatingCameraConnection.Commander mCommander;
+
+    private final CountDownLatch mSynced = new CountDownLatch(1);
+
+    private final BlockingQueue<Integer> mResults = new ArrayBlockingQueue<>(4);
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ComponentName service = new ComponentName(mContext, RemoteCapturerService.class);
+        // the commander doesn't create the service.
+        assertNotNull(mContext.startService(new Intent().setComponent(service)));
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mCommander = FloatingCameraConnection.newCommander(mContext);
+            mCommander.init();
+            mCommander.setCapturingStateListener(new FloatingCameraConnection.CapturingStateListener() {
+                @Override
+                public void onCapturingStarted(String sessionId) {
+                }
+
+                @Override
+                public void onCapturingFinished(String sessionId, boolean succeeded) {
+                }
+
+                @Override
+                public void onCapturingStateSynced(int state, @Nullable String sessionId) {
+                    mSynced.countDown();
+                }
+            });
+            mCommander.bind(service);
+        });
+        assertTrue(mSynced.await(10, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> mCommander.destroy());
+        mContext.stopService(new Intent(mContext, RemoteCapturerService.class));
+    }
+
+    @Test
+    public void answersTheCommandsOfAnotherProcess() throws InterruptedException {
+        VideoSpec videoSpec = new VideoSpec.Builder()
+                .setFrameRate(30)
+                .setVideoSize(new Size(1920, 1080))
+                .storePath("remote.mp4")
+                .build();
+        FloatingCameraConnection.CommandCallback callback = (sessionId, result) -> mResults.add(result);
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> mCommander.startCapturing("remote-1", videoSpec, callback));
+        // the spec is parceled over, the capturer rejects a start without one.
+        assertEquals(Integer.valueOf(CapturerEvent.STARTED), mResults.poll(10, TimeUnit.SECONDS));
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> mCommander.stopCapturing("remote-1", callback));
+        assertEquals(Integer.valueOf(CapturerEvent.STOPPED), mResults.poll(10, TimeUnit.SECONDS));
+    }
+
+}
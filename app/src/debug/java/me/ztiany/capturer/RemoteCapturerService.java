@@ -0,0 +1,48 @@
+package me.ztiany.capturer;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Hosts a {@link FloatingCameraConnection.Capturer} in a process of its own, so the instrumentation tests reach it the
+ * way another app reaches {@link FloatingCameraService}: through the messenger, with every argument parceled. It
+ * answers at once, the capturer rejects a start whose {@link VideoSpec} didn't come through.
+ */
+public class RemoteCapturerService extends Service {
+
+    private FloatingCameraConnection.Capturer mCapturer;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mCapturer = FloatingCameraConnection.newCapturer(this);
+        mCapturer.init();
+        mCapturer.setCapturingActionListener(new FloatingCameraConnection.CapturingActionListener() {
+            @Override
+            public void startCapturing(String sessionId, VideoSpec videoSpec) {
+                mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.STARTED);
+            }
+
+            @Override
+            public void stopCapturing(String sessionId) {
+                mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.STOPPED);
+            }
+        });
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mCapturer.onBind();
+    }
+
+    @Override
+    public void onDestroy() {
+        mCapturer.destroy();
+        super.onDestroy();
+    }
+
+}
@@ -1,14 +1,101 @@
 package me.ztiany.capturer;
 
 import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 
 import timber.log.Timber;
 
 public class AppContext extends Application {
 
+    /**
+     * Budget of the recordings in the app's external files directory.
+     */
+    private static final long MAX_RECORDING_BYTES = 4L * 1024 * 1024 * 1024;
+    private static final int MAX_RECORDING_COUNT = 500;
+    private static final long MIN_FREE_BYTES = 512L * 1024 * 1024;
+
+    private RecordingStorage mRecordingStorage;
+
+    private RecordingFinisher mRecordingFinisher;
+
+    private FrameExporter mFrameExporter;
+
     @Override
     public void onCreate() {
         super.onCreate();
         Timber.plant(new Timber.DebugTree());
+        CompactionJobService.schedule(this);
+    }
+
+    @NonNull
+    public static AppContext get(@NonNull Context context) {
+        return (AppContext) context.getApplicationContext();
     }
+
+    /**
+     * Shared by everything that records or rewrites the recordings, so they all see one index.
+     */
+    @NonNull
+    public synchronized RecordingStorage getRecordingStorage() {
+        if (mRecordingStorage == null) {
+            mRecordingStorage = RecordingStorage.newBuilder()
+                    .directory(getExternalFilesDir(null))
+                    .maxBytes(MAX_RECORDING_BYTES)
+                    .maxCount(MAX_RECORDING_COUNT)
+                    .minFreeBytes(MIN_FREE_BYTES)
+                    .build();
+        }
+        return mRecordingStorage;
+    }
+
+    /**
+     * Shared by everything that records or rewrites the recordings, so they are all finished the same way. The first
+     * call may make the signing key.
+     */
+    @NonNull
+    public synchronized RecordingFinisher getRecordingFinisher() {
+        if (mRecordingFinisher == null) {
+            mRecordingFinisher = RecordingFinisher.newBuilder()
+                    .signingKey(getSigningKey())
+                    .keyWrapper(new KeystoreKeyWrapper())
+                    .build();
+        }
+        return mRecordingFinisher;
+    }
+
+    /**
+     * Shared by {@link FloatingCameraService}, which feeds it the frames, and {@link FrameExportService}, which hands
+     * it to the clients, so a client stays registered across the capture sessions.
+     */
+    @RequiresApi(Build.VERSION_CODES.O_MR1)
+    @NonNull
+    public synchronized FrameExporter getFrameExporter() {
+        if (mFrameExporter == null) {
+            mFrameExporter = new FrameExporter();
+        }
+        return mFrameExporter;
+    }
+
+    /**
+     * @return null if the key store fails, the recordings then go without a manifest.
+     */
+    @Nullable
+    private static PrivateKey getSigningKey() {
+        try {
+            return IntegrityKeys.getOrCreate().getPrivate();
+        } catch (GeneralSecurityException | IOException exception) {
+            Timber.e(exception, "no key to sign the manifests.");
+            return null;
+        }
+    }
+
 }
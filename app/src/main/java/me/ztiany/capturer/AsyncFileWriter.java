@@ -0,0 +1,553 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Writes a stream, e.g. the output of an encoder, to a file on a dedicated I/O thread. The data is gathered into a
+ * few large buffers, whole multiples of {@link #BLOCK_SIZE}, so the disk sees big writes at block-aligned offsets and
+ * the producer only copies memory. The producer waits only if all the buffers are waiting for the disk, and that wait
+ * is counted, see {@link Metrics}.
+ *
+ * <p>
+ * A {@link Transformer} and an {@link Observer} run on a stage thread of their own between the producer and the I/O
+ * thread, so the work on a buffer, e.g. encrypting it, overlaps the write of the one before.
+ * </p>
+ */
+public final class AsyncFileWriter implements Closeable {
+
+    /**
+     * The size of a flash page or file system block the writes are aligned to.
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    public static final int FSYNC_NEVER = 0;
+    /**
+     * Once, when the file is closed.
+     */
+    public static final int FSYNC_ON_CLOSE = 1;
+    /**
+     * Every {@link Builder#fsyncIntervalBytes} and when the file is closed, bounding what a power loss can take.
+     */
+    public static final int FSYNC_PERIODIC = 2;
+
+    @IntDef({FSYNC_NEVER, FSYNC_ON_CLOSE, FSYNC_PERIODIC})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface FsyncPolicy {
+    }
+
+    /**
+     * Sees the data on the stage thread as it is written, so it can be processed without reading the file again.
+     */
+    public interface Observer {
+
+        /**
+         * Called before the buffer is written.
+         *
+         * @param buffer   the data from its position to its limit, which must be left as they are.
+         * @param position where the data goes in the file.
+         */
+        void onWrite(@NonNull ByteBuffer buffer, long position) throws IOException;
+
+        /**
+         * Called on the I/O thread once all the data is written and synced as the policy says, not if a write failed.
+         *
+         * @param length the length of the file.
+         */
+        void onClose(long length) throws IOException;
+
+    }
+
+    /**
+     * Changes the data in place on the stage thread before it is written, e.g. encrypts it. It runs before the
+     * {@link Observer}, which sees the data as it is on disk.
+     */
+    public interface Transformer {
+
+        /**
+         * @param buffer   the data from its position to its limit, to be replaced with as many bytes, its position and
+         *                 limit must be left as they are.
+         * @param position where the data goes in the file.
+         */
+        void transform(@NonNull ByteBuffer buffer, long position) throws IOException;
+
+    }
+
+    /**
+     * Handed to the I/O thread to end it.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel mChannel;
+
+    @FsyncPolicy
+    private final int mFsyncPolicy;
+
+    private final long mFsyncIntervalBytes;
+
+    private final long mStallThresholdNs;
+
+    @Nullable
+    private final Transformer mTransformer;
+
+    @Nullable
+    private final Observer mObserver;
+
+    private final BlockingQueue<ByteBuffer> mFree;
+
+    /**
+     * Filled by the producer, taken by the stage thread if there is one, else by the I/O thread.
+     */
+    private final BlockingQueue<ByteBuffer> mFull;
+
+    /**
+     * Filled by the stage thread and taken by the I/O thread, null without a stage.
+     */
+    @Nullable
+    private final BlockingQueue<ByteBuffer> mStaged;
+
+    private final Thread mThread;
+
+    @Nullable
+    private final Thread mStageThread;
+
+    /**
+     * Only touched by the producer.
+     */
+    @Nullable
+    private ByteBuffer mCurrent;
+
+    private boolean mClosed;
+
+    @Nullable
+    private volatile IOException mFailure;
+
+    /**
+     * Written by the I/O thread, the producer's wait by the producer.
+     */
+    private volatile long mBytesWritten;
+    private volatile long mWrites;
+    private volatile long mWriteNs;
+    private volatile long mMaxWriteNs;
+    private volatile long mTransformNs;
+    private volatile long mStalls;
+    private volatile long mFsyncs;
+    private volatile long mProducerWaitNs;
+
+    private AsyncFileWriter(Builder builder) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(builder.file, "rw");
+        randomAccessFile.setLength(0);
+        mChannel = randomAccessFile.getChannel();
+        mFsyncPolicy = builder.fsyncPolicy;
+        mFsyncIntervalBytes = builder.fsyncIntervalBytes;
+        mStallThresholdNs = TimeUnit.MILLISECONDS.toNanos(builder.stallThresholdMs);
+        mTransformer = builder.transformer;
+        mObserver = builder.observer;
+        int bufferSize = (builder.bufferSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        mFree = new ArrayBlockingQueue<>(builder.bufferCount);
+        // one more for END.
+        mFull = new ArrayBlockingQueue<>(builder.bufferCount + 1);
+        for (int i = 0; i < builder.bufferCount; i++) {
+            mFree.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        if (mTransformer != null || mObserver != null) {
+            mStaged = new ArrayBlockingQueue<>(builder.bufferCount + 1);
+            mStageThread = new Thread(this::stage, "AsyncFileWriter-stage");
+            mStageThread.start();
+        } else {
+            mStaged = null;
+            mStageThread = null;
+        }
+        mThread = new Thread(this::loop, "AsyncFileWriter");
+        mThread.start();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Copies the data, called by one producer thread.
+     *
+     * @param src from its position to its limit, consumed.
+     * @throws IOException if an earlier write failed.
+     */
+    public void write(@NonNull ByteBuffer src) throws IOException {
+        checkFailure();
+        if (mClosed) {
+            throw new IOException("closed");
+        }
+        while (src.hasRemaining()) {
+            ByteBuffer current = mCurrent;
+            if (current == null) {
+                current = mCurrent = takeFree();
+            }
+            int length = Math.min(current.remaining(), src.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            current.put(slice);
+            src.position(src.position() + length);
+            if (!current.hasRemaining()) {
+                submit(current);
+                mCurrent = null;
+            }
+        }
+    }
+
+    /**
+     * Reads a range of a file straight into the buffers, so a copy doesn't go through a buffer of its own, called by
+     * the producer thread like {@link #write}.
+     *
+     * @return the bytes read, fewer than {@code count} if the file ends before.
+     * @throws IOException if an earlier write failed.
+     */
+    public long transferFrom(@NonNull FileChannel src, long position, long count) throws IOException {
+        checkFailure();
+        if (mClosed) {
+            throw new IOException("closed");
+        }
+        long done = 0;
+        while (done < count) {
+            ByteBuffer current = mCurrent;
+            if (current == null) {
+                current = mCurrent = takeFree();
+            }
+            ByteBuffer slice = current.duplicate();
+            slice.limit(slice.position() + (int) Math.min(current.remaining(), count - done));
+            int read = src.read(slice, position + done);
+            if (read < 0) {
+                break;
+            }
+            current.position(slice.position());
+            done += read;
+            if (!current.hasRemaining()) {
+                submit(current);
+                mCurrent = null;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Writes what is buffered, syncs it as the policy says and closes the file, waiting for the I/O thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mCurrent != null && mCurrent.position() > 0) {
+            submit(mCurrent);
+        }
+        mCurrent = null;
+        submit(END);
+        try {
+            mThread.join();
+            if (mStageThread != null) {
+                mStageThread.join();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        mChannel.close();
+        checkFailure();
+    }
+
+    @NonNull
+    public Metrics getMetrics() {
+        return new Metrics(mBytesWritten, mWrites, mWriteNs, mMaxWriteNs, mTransformNs, mStalls, mFsyncs, mProducerWaitNs);
+    }
+
+    private ByteBuffer takeFree() throws IOException {
+        ByteBuffer buffer = mFree.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        long start = System.nanoTime();
+        try {
+            // all the buffers are queued: the disk is behind.
+            while (buffer == null) {
+                checkFailure();
+                buffer = mFree.poll(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", exception);
+        } finally {
+            mProducerWaitNs += System.nanoTime() - start;
+        }
+        return buffer;
+    }
+
+    private void submit(@NonNull ByteBuffer buffer) {
+        buffer.flip();
+        // never blocks, there is room for every buffer and END.
+        mFull.add(buffer);
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = mFailure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs the transformer and the observer, hands every buffer and END on to the I/O thread.
+     */
+    private void stage() {
+        long position = 0;
+        try {
+            while (true) {
+                ByteBuffer buffer = mFull.take();
+                if (buffer != END && mFailure == null) {
+                    int length = buffer.remaining();
+                    long start = System.nanoTime();
+                    try {
+                        if (mTransformer != null) {
+                            mTransformer.transform(buffer, position);
+                        }
+                        if (mObserver != null) {
+                            mObserver.onWrite(buffer, position);
+                        }
+                    } catch (IOException exception) {
+                        Timber.e(exception, "AsyncFileWriter.stage()");
+                        mFailure = exception;
+                    }
+                    mTransformNs += System.nanoTime() - start;
+                    position += length;
+                }
+                // never blocks, there is room for every buffer and END.
+                mStaged.add(buffer);
+                if (buffer == END) {
+                    break;
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        BlockingQueue<ByteBuffer> queue = mStaged != null ? mStaged : mFull;
+        long position = 0;
+        long unsyncedBytes = 0;
+        try {
+            while (true) {
+                ByteBuffer buffer = queue.take();
+                if (buffer == END) {
+                    break;
+                }
+                if (mFailure == null) {
+                    int length = buffer.remaining();
+                    long start = System.nanoTime();
+                    try {
+                        while (buffer.hasRemaining()) {
+                            position += mChannel.write(buffer, position);
+                        }
+                        unsyncedBytes += length;
+                        if (mFsyncPolicy == FSYNC_PERIODIC && unsyncedBytes >= mFsyncIntervalBytes) {
+                            mChannel.force(false);
+                            mFsyncs++;
+                            unsyncedBytes = 0;
+                        }
+                    } catch (IOException exception) {
+                        Timber.e(exception, "AsyncFileWriter.write()");
+                        mFailure = exception;
+                    }
+                    recordWrite(length, System.nanoTime() - start);
+                }
+                buffer.clear();
+                mFree.add(buffer);
+            }
+            if (mFailure == null && mFsyncPolicy != FSYNC_NEVER && unsyncedBytes > 0) {
+                mChannel.force(false);
+                mFsyncs++;
+            }
+            if (mFailure == null && mObserver != null) {
+                mObserver.onClose(position);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (IOException exception) {
+            Timber.e(exception, "AsyncFileWriter.loop()");
+            mFailure = exception;
+        }
+    }
+
+    private void recordWrite(int length, long elapsedNs) {
+        mBytesWritten += length;
+        mWrites++;
+        mWriteNs += elapsedNs;
+        if (elapsedNs > mMaxWriteNs) {
+            mMaxWriteNs = elapsedNs;
+        }
+        if (elapsedNs >= mStallThresholdNs) {
+            mStalls++;
+        }
+    }
+
+    /**
+     * A snapshot of the writer's work so far.
+     */
+    public static final class Metrics {
+
+        public final long bytesWritten;
+        public final long writes;
+        /**
+         * The time spent in writes and syncs on the I/O thread.
+         */
+        public final long writeNs;
+        public final long maxWriteNs;
+        /**
+         * The time spent in the {@link Transformer} and the {@link Observer} on the stage thread, it overlaps
+         * {@link #writeNs}.
+         */
+        public final long transformNs;
+        /**
+         * The writes that took at least {@link Builder#stallThresholdMs}.
+         */
+        public final long stalls;
+        public final long fsyncs;
+        /**
+         * The time the producer waited for a buffer, anything above 0 means the disk can't keep up.
+         */
+        public final long producerWaitNs;
+
+        Metrics(long bytesWritten, long writes, long writeNs, long maxWriteNs, long transformNs, long stalls, long fsyncs, long producerWaitNs) {
+            this.bytesWritten = bytesWritten;
+            this.writes = writes;
+            this.writeNs = writeNs;
+            this.maxWriteNs = maxWriteNs;
+            this.transformNs = transformNs;
+            this.stalls = stalls;
+            this.fsyncs = fsyncs;
+            this.producerWaitNs = producerWaitNs;
+        }
+
+        /**
+         * @return the bytes written per second of writing, what the disk sustains.
+         */
+        public double getThroughput() {
+            return writeNs == 0 ? 0 : bytesWritten * 1e9 / writeNs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Metrics{" +
+                    "bytesWritten=" + bytesWritten +
+                    ", writes=" + writes +
+                    ", throughput=" + (long) getThroughput() + "B/s" +
+                    ", maxWriteMs=" + TimeUnit.NANOSECONDS.toMillis(maxWriteNs) +
+                    ", transformMs=" + TimeUnit.NANOSECONDS.toMillis(transformNs) +
+                    ", stalls=" + stalls +
+                    ", fsyncs=" + fsyncs +
+                    ", producerWaitMs=" + TimeUnit.NANOSECONDS.toMillis(producerWaitNs) +
+                    '}';
+        }
+
+    }
+
+    public static class Builder {
+
+        private File file;
+
+        /**
+         * 单个缓冲区的大小，向上取整为 {@link #BLOCK_SIZE} 的整数倍。
+         */
+        private int bufferSize = 1024 * 1024;
+
+        /**
+         * 缓冲区个数，全部等待写盘时生产者才会阻塞。
+         */
+        private int bufferCount = 4;
+
+        @FsyncPolicy
+        private int fsyncPolicy = FSYNC_ON_CLOSE;
+
+        /**
+         * {@link #FSYNC_PERIODIC} 时，每写入这么多字节同步一次。
+         */
+        private long fsyncIntervalBytes = 8 * 1024 * 1024;
+
+        /**
+         * 单次写入超过该时长即记为一次卡顿。
+         */
+        private long stallThresholdMs = 100;
+
+        @Nullable
+        private Transformer transformer;
+
+        @Nullable
+        private Observer observer;
+
+        public Builder file(@NonNull File file) {
+            this.file = file;
+            return this;
+        }
+
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        public Builder bufferCount(int bufferCount) {
+            this.bufferCount = bufferCount;
+            return this;
+        }
+
+        public Builder fsyncPolicy(@FsyncPolicy int fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        public Builder fsyncIntervalBytes(long fsyncIntervalBytes) {
+            this.fsyncIntervalBytes = fsyncIntervalBytes;
+            return this;
+        }
+
+        public Builder stallThresholdMs(long stallThresholdMs) {
+            this.stallThresholdMs = stallThresholdMs;
+            return this;
+        }
+
+        public Builder transformer(@Nullable Transformer transformer) {
+            this.transformer = transformer;
+            return this;
+        }
+
+        public Builder observer(@Nullable Observer observer) {
+            this.observer = observer;
+            return this;
+        }
+
+        public AsyncFileWriter build() throws IOException {
+            if (file == null) {
+                throw new IllegalArgumentException("file is required");
+            }
+            if (bufferSize <= 0 || bufferCount <= 0) {
+                throw new IllegalArgumentException("bufferSize and bufferCount must be positive");
+            }
+            return new AsyncFileWriter(this);
+        }
+
+    }
+
+}
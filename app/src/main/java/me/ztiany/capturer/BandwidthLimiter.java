@@ -0,0 +1,76 @@
+package me.ztiany.capturer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket shared by everything that uploads, so together they stay under one rate. A grant that the bucket
+ * can't cover is still given, and the caller sleeps off the debt, so the average is exact and no caller starves.
+ */
+public final class BandwidthLimiter {
+
+    private long mBytesPerSecond;
+
+    private double mTokens;
+
+    private long mRefilledAt = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond 0 for no limit.
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Takes effect for the next grant, e.g. when the network changes.
+     *
+     * @param bytesPerSecond 0 for no limit.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("negative rate");
+        }
+        refill(System.nanoTime());
+        mBytesPerSecond = bytesPerSecond;
+        mTokens = Math.min(mTokens, getBurstBytes());
+    }
+
+    public synchronized long getRate() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Waits until some bytes may be sent.
+     *
+     * @return the bytes granted, at most {@code wanted} and a tenth of a second's worth.
+     */
+    public long acquire(long wanted) throws InterruptedException {
+        long waitNs;
+        long granted;
+        synchronized (this) {
+            if (mBytesPerSecond == 0) {
+                return wanted;
+            }
+            refill(System.nanoTime());
+            granted = Math.min(wanted, getBurstBytes());
+            mTokens -= granted;
+            waitNs = mTokens >= 0 ? 0 : (long) (-mTokens * 1e9 / mBytesPerSecond);
+        }
+        if (waitNs > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNs);
+        }
+        return granted;
+    }
+
+    private long getBurstBytes() {
+        return Math.max(1, mBytesPerSecond / 10);
+    }
+
+    private void refill(long now) {
+        if (mBytesPerSecond > 0) {
+            mTokens = Math.min(getBurstBytes(), mTokens + (now - mRefilledAt) * mBytesPerSecond / 1e9);
+        }
+        mRefilledAt = now;
+    }
+
+}
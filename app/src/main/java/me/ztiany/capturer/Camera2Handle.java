@@ -8,11 +8,53 @@ import androidx.annotation.Nullable;
 
 public interface Camera2Handle {
 
+    /**
+     * Recreates the session with the surface as an extra output.
+     *
+     * @param stateCallback gets exactly one of {@code onConfigured} once the surface streams, or
+     *                      {@code onConfigureFailed} if it never will: the session can't be created, the camera is
+     *                      closed, or another call replaces the output first. The session is null when there is none.
+     */
     void startCapturingCameraSession(
             @NonNull Surface surface,
             @Nullable CameraCaptureSession.StateCallback stateCallback
     );
 
+    /**
+     * Like {@link #startCapturingCameraSession}, but recreates the session as a constrained high-speed session, the
+     * preview and the surface both use the size of the config. The capture profile does not apply to high-speed
+     * sessions.
+     */
+    void startHighSpeedCapturingCameraSession(
+            @NonNull Surface surface,
+            @NonNull HighSpeedConfig config,
+            @Nullable CameraCaptureSession.StateCallback stateCallback
+    );
+
     void stopCapturingCameraSession();
 
+    /**
+     * Like {@link #stopCapturingCameraSession()}, and with {@code restoreRequestSettings} also restores the default
+     * capture profile and the full field of view in the same reconfigure. Set separately, they would re-issue the
+     * repeating request while it still targets the surface being removed.
+     */
+    void stopCapturingCameraSession(boolean restoreRequestSettings);
+
+    /**
+     * Replaces the settings of the repeating request without recreating the session.
+     *
+     * @param profile null to restore the default profile.
+     */
+    void setCaptureProfile(@Nullable CaptureProfile profile);
+
+    /**
+     * Crops the requests to the region, null for the full field of view.
+     */
+    void setRegionOfInterest(@Nullable RegionOfInterest regionOfInterest);
+
+    /**
+     * Appends the metadata of every frame to the writer from now on, null to stop.
+     */
+    void setFrameMetadataWriter(@Nullable FrameMetadataWriter writer);
+
 }
@@ -4,18 +4,27 @@ import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
@@ -25,32 +34,48 @@ import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import timber.log.Timber;
 
 public class Camera2Helper {
 
+    /**
+     * How long AE may run to meter the exposure of a manual frame duration before giving up.
+     */
+    private static final long METERING_TIMEOUT_MS = 2_000;
+
+    /**
+     * How often the exposure of a manual frame duration is metered again, the light changes over a long timelapse.
+     */
+    private static final long METERING_INTERVAL_MS = 60_000;
+
     private final int mRotation;
 
     private final boolean mIsMirror;
 
-    private Size mPreviewSize;
+    private volatile Size mPreviewSize;
 
     @NonNull
     private final SizeSelector mSizeSelector;
 
+    /**
+     * Attached whenever a camera is opened and detached when it is closed, kept across camera switches.
+     */
     @Nullable
-    private OutputProvider mOutputProvider;
+    private final OutputProvider mOutputProvider;
 
     @CameraId
-    private String mCameraId;
+    private volatile String mCameraId;
 
     @CameraId
-    private String mSpecifiedCameraId;
+    private volatile String mSpecifiedCameraId;
 
     private Camera2Listener mCamera2Listener;
 
@@ -68,6 +93,133 @@ public class Camera2Helper {
      */
     private CameraDevice mCameraDevice;
 
+    /**
+     * The extra output of the capture session, set by {@link #mCamera2Handle}.
+     */
+    @Nullable
+    private Surface mOutputSurface;
+
+    /**
+     * Not null if the session with {@link #mOutputSurface} is a constrained high-speed session.
+     */
+    @Nullable
+    private HighSpeedConfig mHighSpeedConfig;
+
+    /**
+     * The buffer size of the preview surface of the current session, differs from {@link #mPreviewSize} in a
+     * high-speed session.
+     */
+    @Nullable
+    private volatile Size mBufferSize;
+
+    /**
+     * Notified once the session with {@link #mOutputSurface} starts streaming, or that it never will, see
+     * {@link #discardOutputSessionCallback(CameraCaptureSession)}.
+     */
+    @Nullable
+    private CameraCaptureSession.StateCallback mOutputSessionCallback;
+
+    /**
+     * An additional thread for running tasks that shouldn't block the UI.
+     */
+    private final HandlerThread mBackgroundThread;
+
+    /**
+     * A {@link Handler} for running tasks in the background.
+     */
+    private final Handler mBackgroundHandler;
+
+    /**
+     * Drives the camera lifecycle on {@link #mBackgroundThread}.
+     */
+    private final CameraStateMachine mStateMachine;
+
+    /**
+     * Completes when the camera is opened after the surface texture becomes available.
+     */
+    @Nullable
+    private CompletableFuture<Void> mPendingStart;
+
+    /**
+     * Completes with the switch-to-first-frame time when the first frame of the switched camera arrives.
+     */
+    @Nullable
+    private CompletableFuture<Long> mPendingFirstFrame;
+
+    private long mSwitchStartTime;
+
+    private String mSwitchCameraId;
+
+    /**
+     * The cameras that are closing after {@link CameraStateMachine.Device#releaseDevice()}, while the camera switched
+     * to may already be open. Their callbacks are reported neither to {@link #mStateMachine} nor to the listener, only
+     * accessed on {@link #mBackgroundThread}.
+     */
+    private final Set<CameraDevice> mReleasedDevices = new HashSet<>();
+
+    /**
+     * Used when no other profile is set through {@link #setCaptureProfile(CaptureProfile)}.
+     */
+    @NonNull
+    private final CaptureProfile mDefaultCaptureProfile;
+
+    /**
+     * The profile of the repeating request, only accessed on {@link #mBackgroundThread}.
+     */
+    @NonNull
+    private CaptureProfile mCaptureProfile;
+
+    /**
+     * The targets of the current session, kept to rebuild the repeating request when the profile changes.
+     */
+    private final List<Surface> mRequestTargets = new ArrayList<>();
+
+    /**
+     * True while AE runs to meter the exposure for {@link CaptureProfile#frameDuration}, only accessed on
+     * {@link #mBackgroundThread}.
+     */
+    private boolean mMetering;
+
+    /**
+     * The exposure of the last frame that AE converged on, 0 if not metered yet.
+     */
+    private long mMeteredExposureTime;
+
+    private int mMeteredSensitivity;
+
+    /**
+     * Applied to every request as {@code SCALER_CROP_REGION}, only accessed on {@link #mBackgroundThread}.
+     */
+    @Nullable
+    private RegionOfInterest mRegionOfInterest;
+
+    private final CaptureMetrics mCaptureMetrics = new CaptureMetrics();
+
+    @Nullable
+    private volatile FrameMetadataWriter mFrameMetadataWriter;
+
+    /**
+     * Writes the snapshots, null if the sessions have no snapshot output.
+     */
+    @Nullable
+    private final SnapshotWriter mSnapshotWriter;
+
+    /**
+     * The JPEG output of the current session, not a target of the repeating request, only accessed on
+     * {@link #mBackgroundThread}.
+     */
+    @Nullable
+    private ImageReader mSnapshotReader;
+
+    /**
+     * The snapshots that are started, by sensor timestamp, which is also the timestamp of their image.
+     */
+    private final Map<Long, Shot> mStartedShots = new HashMap<>();
+
+    private final Runnable mStartMetering = this::startMetering;
+
+    private final Runnable mStopMetering = this::stopMetering;
+
     private Camera2Helper(Builder builder) {
         mTextureView = builder.previewDisplayView;
         mSpecifiedCameraId = builder.specifiedCameraId;
@@ -78,9 +230,17 @@ public class Camera2Helper {
         mOutputProvider = builder.outputProvider;
         mCamera2Listener = builder.camera2Listener;
         mSizeSelector = builder.sizeSelector;
+        mDefaultCaptureProfile = builder.captureProfile;
+        mCaptureProfile = mDefaultCaptureProfile;
+        mSnapshotWriter = builder.snapshotWriter;
 
         mContext = builder.context;
 
+        mBackgroundThread = new HandlerThread("CameraBackground");
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        mStateMachine = new CameraStateMachine(mBackgroundHandler::post, mDevice);
+
         if (mIsMirror) {
             mTextureView.setScaleX(-1);
         }
@@ -88,14 +248,51 @@ public class Camera2Helper {
         Timber.d("camera builder %s", builder.toString());
     }
 
-    public void switchCamera() {
-        if (CameraId.BACK.equals(mCameraId)) {
+    /**
+     * Switches between the front and the back camera. The worker thread and the output provider are kept, the provider
+     * is attached again with the characteristics of the new camera. If the HAL can open both cameras at the same time,
+     * the old camera is closed while the new one is opening.
+     *
+     * @return completes with the time in milliseconds from the switch to the first frame of the new camera. If that
+     * camera can't be configured, of the camera opened instead, and fails if that is the old one again.
+     */
+    @NonNull
+    public CompletableFuture<Long> switchCamera() {
+        CameraCapabilityIndex index = mCapabilityIndex;
+        CameraCapabilities current = mCapabilities;
+        CameraCapabilities other = null;
+        if (index != null && current != null) {
+            other = index.findByFacing(current.facing == CameraCharacteristics.LENS_FACING_FRONT
+                    ? CameraCharacteristics.LENS_FACING_BACK
+                    : CameraCharacteristics.LENS_FACING_FRONT);
+        }
+        if (other != null) {
+            mSpecifiedCameraId = other.cameraId;
+        } else if (CameraId.BACK.equals(mCameraId)) {
             mSpecifiedCameraId = CameraId.FRONT;
         } else if (CameraId.FRONT.equals(mCameraId)) {
             mSpecifiedCameraId = CameraId.BACK;
         }
-        stop();
-        start();
+
+        String cameraId = getTargetCameraId();
+        long switchStartTime = SystemClock.elapsedRealtime();
+        CompletableFuture<Long> firstFrame = new CompletableFuture<>();
+        // posted before the open command, so the first frame of the new camera is always observed.
+        mBackgroundHandler.post(() -> {
+            if (mPendingFirstFrame != null) {
+                mPendingFirstFrame.cancel(false);
+            }
+            mPendingFirstFrame = firstFrame;
+            mSwitchStartTime = switchStartTime;
+            mSwitchCameraId = cameraId;
+        });
+
+        mStateMachine.open(cameraId).whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                firstFrame.completeExceptionally(throwable);
+            }
+        });
+        return firstFrame;
     }
 
     private int getCameraOrientation(int rotation, String cameraId) {
@@ -119,7 +316,11 @@ public class Camera2Helper {
         }
         int result;
 
-        if (CameraId.FRONT.equals(cameraId)) {
+        CameraCapabilities capabilities = mCapabilities;
+        boolean isFront = capabilities != null
+                ? capabilities.facing == CameraCharacteristics.LENS_FACING_FRONT
+                : CameraId.FRONT.equals(cameraId);
+        if (isFront) {
             result = (mSensorOrientation + degrees) % 360;
             result = (360 - result) % 360;
         } else {
@@ -135,7 +336,18 @@ public class Camera2Helper {
         @Override
         public void onSurfaceTextureAvailable(@NonNull SurfaceTexture texture, int width, int height) {
             Timber.d("onSurfaceTextureAvailable: %d, %d", width, height);
-            openCamera();
+            CompletableFuture<Void> pendingStart = mPendingStart;
+            mPendingStart = null;
+            CompletableFuture<Void> opening = openCamera();
+            if (pendingStart != null) {
+                opening.whenComplete((unused, throwable) -> {
+                    if (throwable != null) {
+                        pendingStart.completeExceptionally(throwable);
+                    } else {
+                        pendingStart.complete(null);
+                    }
+                });
+            }
         }
 
         @Override
@@ -162,42 +374,100 @@ public class Camera2Helper {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             Timber.d("StateCallback.onOpened()");
 
-            mCameraOpenCloseLock.release();
-
-            // This method is called when the camera is opened. We start camera preview here.
             mCameraDevice = cameraDevice;
-            createPreviewSession(null, null);
             if (mCamera2Listener != null) {
                 mCamera2Listener.onCameraOpened(cameraDevice, mCameraId, mPreviewSize, getCameraOrientation(mRotation, mCameraId), mIsMirror);
             }
+            // The state machine creates the preview session next.
+            mStateMachine.onDeviceOpened();
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
             Timber.d("StateCallback.onDisconnected()");
+            if (mReleasedDevices.contains(cameraDevice)) {
+                // the camera that is closing after a switch, the current one is not affected.
+                return;
+            }
 
-            mCameraOpenCloseLock.release();
+            mCameraDevice = cameraDevice;
+            mStateMachine.onDeviceError(new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED));
+        }
 
-            closeCameraSession();
-            closeCameraDevice();
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            Timber.d("StateCallback.onError(): error = %d", error);
+            if (mReleasedDevices.contains(cameraDevice)) {
+                return;
+            }
 
+            mCameraDevice = cameraDevice;
+            Exception exception = new Exception("error occurred, code is " + error);
+            if (mCamera2Listener != null) {
+                mCamera2Listener.onCameraError(exception);
+            }
+            mStateMachine.onDeviceError(exception);
+        }
+
+        @Override
+        public void onClosed(@NonNull CameraDevice camera) {
+            Timber.d("StateCallback.onClosed()");
+
+            if (mReleasedDevices.remove(camera)) {
+                // closed after the camera it was switched to has opened, the listener would tear down the new one.
+                return;
+            }
             if (mCamera2Listener != null) {
                 mCamera2Listener.onCameraClosed();
             }
+            mStateMachine.onDeviceClosed();
         }
 
+    };
+
+    private final CameraStateMachine.Device mDevice = new CameraStateMachine.Device() {
+
         @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            Timber.d("StateCallback.onError(): error = %d", error);
+        public void openDevice(@NonNull String cameraId) {
+            openCameraDevice(cameraId);
+        }
+
+        @Override
+        public void createSession() {
+            createPreviewSession();
+        }
 
-            mCameraOpenCloseLock.release();
+        @Override
+        public void startStreaming() {
+            startPreview();
+        }
 
-            closeCameraSession();
-            closeCameraDevice();
+        @Override
+        public void closeDevice() {
+            closeCamera(false);
+        }
 
-            if (mCamera2Listener != null) {
-                mCamera2Listener.onCameraError(new Exception("error occurred, code is " + error));
+        @Override
+        public void releaseDevice() {
+            closeCamera(true);
+        }
+
+        @Override
+        public boolean canOpenConcurrently(@NonNull String openedCameraId, @NonNull String cameraId) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || mContext == null) {
+                return false;
+            }
+            CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+            try {
+                for (Set<String> cameraIds : cameraManager.getConcurrentCameraIds()) {
+                    if (cameraIds.contains(openedCameraId) && cameraIds.contains(cameraId)) {
+                        return true;
+                    }
+                }
+            } catch (CameraAccessException exception) {
+                Timber.e(exception, "getConcurrentCameraIds");
             }
+            return false;
         }
 
     };
@@ -209,254 +479,643 @@ public class Camera2Helper {
                 @NonNull Surface surface,
                 CameraCaptureSession.StateCallback stateCallback
         ) {
-            createPreviewSession(surface, stateCallback);
+            CameraCaptureSession.StateCallback callback = SingleResultCallback.wrap(stateCallback);
+            mStateMachine.reconfigure(() -> {
+                replaceOutputSessionCallback(callback);
+                mOutputSurface = surface;
+                mHighSpeedConfig = null;
+            }).whenComplete((unused, throwable) -> failIfDropped(callback, throwable));
+        }
+
+        @Override
+        public void startHighSpeedCapturingCameraSession(
+                @NonNull Surface surface,
+                @NonNull HighSpeedConfig config,
+                @Nullable CameraCaptureSession.StateCallback stateCallback
+        ) {
+            CameraCaptureSession.StateCallback callback = SingleResultCallback.wrap(stateCallback);
+            mStateMachine.reconfigure(() -> {
+                replaceOutputSessionCallback(callback);
+                mOutputSurface = surface;
+                mHighSpeedConfig = config;
+            }).whenComplete((unused, throwable) -> failIfDropped(callback, throwable));
         }
 
         @Override
         public void stopCapturingCameraSession() {
-            createPreviewSession(null, null);
+            stopCapturingCameraSession(false);
+        }
+
+        @Override
+        public void stopCapturingCameraSession(boolean restoreRequestSettings) {
+            AtomicBoolean mutated = new AtomicBoolean();
+            mStateMachine.reconfigure(() -> {
+                mutated.set(true);
+                replaceOutputSessionCallback(null);
+                mOutputSurface = null;
+                mHighSpeedConfig = null;
+                if (restoreRequestSettings) {
+                    // picked up by the repeating request of the new session, which no longer targets the output.
+                    mCaptureProfile = mDefaultCaptureProfile;
+                    mRegionOfInterest = null;
+                    cancelMetering();
+                }
+            }).whenComplete((unused, throwable) -> {
+                if (restoreRequestSettings && !mutated.get()) {
+                    // the camera is closed, there is no repeating request to race with.
+                    Camera2Helper.this.setCaptureProfile(null);
+                    Camera2Helper.this.setRegionOfInterest(null);
+                }
+            });
+        }
+
+        @Override
+        public void setCaptureProfile(@Nullable CaptureProfile profile) {
+            Camera2Helper.this.setCaptureProfile(profile);
+        }
+
+        @Override
+        public void setRegionOfInterest(@Nullable RegionOfInterest regionOfInterest) {
+            Camera2Helper.this.setRegionOfInterest(regionOfInterest);
+        }
+
+        @Override
+        public void setFrameMetadataWriter(@Nullable FrameMetadataWriter writer) {
+            mFrameMetadataWriter = writer;
         }
     };
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * Delivers only the first result, so every path that drops an output can fail its callback without checking
+     * whether another path has already reported it.
+     */
+    private static final class SingleResultCallback extends CameraCaptureSession.StateCallback {
+
+        private final CameraCaptureSession.StateCallback mCallback;
+
+        private final AtomicBoolean mReported = new AtomicBoolean();
+
+        private SingleResultCallback(CameraCaptureSession.StateCallback callback) {
+            mCallback = callback;
+        }
+
+        @Nullable
+        static CameraCaptureSession.StateCallback wrap(@Nullable CameraCaptureSession.StateCallback callback) {
+            return callback == null ? null : new SingleResultCallback(callback);
+        }
+
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession session) {
+            if (mReported.compareAndSet(false, true)) {
+                mCallback.onConfigured(session);
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            if (mReported.compareAndSet(false, true)) {
+                mCallback.onConfigureFailed(session);
+            }
+        }
+
+    }
+
+    /**
+     * Runs on {@link #mBackgroundThread} in a reconfigure, the output the pending callback was waiting for is
+     * replaced before its session is configured.
      */
-    private HandlerThread mBackgroundThread;
+    private void replaceOutputSessionCallback(@Nullable CameraCaptureSession.StateCallback callback) {
+        discardOutputSessionCallback(mCaptureSession);
+        mOutputSessionCallback = callback;
+    }
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * Fails the pending output callback, whose output will never stream: the camera is closed, the session can't be
+     * created, or another output replaces it. The session is null if there is none.
      */
-    private Handler mBackgroundHandler;
+    @SuppressWarnings("ConstantConditions")
+    private void discardOutputSessionCallback(@Nullable CameraCaptureSession session) {
+        CameraCaptureSession.StateCallback callback = mOutputSessionCallback;
+        mOutputSessionCallback = null;
+        if (callback != null) {
+            callback.onConfigureFailed(session);
+        }
+    }
 
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
+     * A reconfigure that is cancelled or fails before its session streams drops the output, including when its
+     * mutation never ran because the camera was closed meanwhile.
      */
-    private CaptureRequest.Builder mPreviewRequestBuilder;
+    @SuppressWarnings("ConstantConditions")
+    private static void failIfDropped(@Nullable CameraCaptureSession.StateCallback callback, @Nullable Throwable throwable) {
+        if (callback != null && throwable != null) {
+            callback.onConfigureFailed(null);
+        }
+    }
+
+    private final CameraCaptureSession.CaptureCallback mRepeatingCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+            mCaptureMetrics.onCaptureStarted(timestamp);
+            if (mPendingFirstFrame != null && session.getDevice().getId().equals(mSwitchCameraId)) {
+                long elapsed = SystemClock.elapsedRealtime() - mSwitchStartTime;
+                Timber.d("switch to first frame: %d ms", elapsed);
+                mPendingFirstFrame.complete(elapsed);
+                mPendingFirstFrame = null;
+            }
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            mCaptureMetrics.onCaptureCompleted();
+            FrameMetadataWriter writer = mFrameMetadataWriter;
+            if (writer != null) {
+                writer.append(
+                        valueOf(result.get(CaptureResult.SENSOR_TIMESTAMP)),
+                        System.currentTimeMillis(),
+                        valueOf(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)),
+                        valueOf(result.get(CaptureResult.SENSOR_SENSITIVITY)),
+                        valueOf(result.get(CaptureResult.LENS_FOCUS_DISTANCE))
+                );
+            }
+            if (!mMetering) {
+                return;
+            }
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_CONVERGED && aeState != CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED) {
+                return;
+            }
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (exposureTime != null && sensitivity != null) {
+                mMeteredExposureTime = exposureTime;
+                mMeteredSensitivity = sensitivity;
+                Timber.d("metered exposure: %d ns, ISO %d", exposureTime, sensitivity);
+                stopMetering();
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            mCaptureMetrics.onCaptureFailed(failure.getReason(), failure.wasImageCaptured());
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
+            mCaptureMetrics.onCaptureBufferLost(mRequestTargets.indexOf(target));
+        }
+
+    };
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * A snapshot from {@link #takeSnapshot} to its image.
      */
-    private final Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private static final class Shot {
+
+        final String name;
+
+        /**
+         * {@code System.nanoTime()} when the snapshot was asked for.
+         */
+        final long shotNanos;
+
+        final CompletableFuture<SnapshotWriter.Snapshot> future = new CompletableFuture<>();
+
+        Shot(String name, long shotNanos) {
+            this.name = name;
+            this.shotNanos = shotNanos;
+        }
+
+    }
 
     /**
-     * Orientation of the camera sensor
+     * The snapshot frame is also a frame of the recording, so it is counted like the repeating ones.
      */
-    private int mSensorOrientation;
+    private final CameraCaptureSession.CaptureCallback mSnapshotCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+            mRepeatingCaptureCallback.onCaptureStarted(session, request, timestamp, frameNumber);
+            mStartedShots.put(timestamp, (Shot) request.getTag());
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            mRepeatingCaptureCallback.onCaptureCompleted(session, request, result);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            mRepeatingCaptureCallback.onCaptureFailed(session, request, failure);
+            Shot shot = (Shot) request.getTag();
+            mStartedShots.values().remove(shot);
+            shot.future.completeExceptionally(new IllegalStateException("snapshot failed: " + failure.getReason()));
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
+            mRepeatingCaptureCallback.onCaptureBufferLost(session, request, target, frameNumber);
+            if (mSnapshotReader != null && target == mSnapshotReader.getSurface()) {
+                Shot shot = (Shot) request.getTag();
+                mStartedShots.values().remove(shot);
+                shot.future.completeExceptionally(new IllegalStateException("the JPEG of the snapshot is lost."));
+            }
+        }
 
-    public synchronized void start() {
-        if (mCameraDevice != null) {
+    };
+
+    private final ImageReader.OnImageAvailableListener mSnapshotListener = this::onSnapshotAvailable;
+
+    private void onSnapshotAvailable(@NonNull ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
             return;
         }
-        startBackgroundThread();
+        try {
+            Shot shot = mStartedShots.remove(image.getTimestamp());
+            if (shot == null) {
+                Timber.w("a JPEG of %d without a snapshot.", image.getTimestamp());
+                return;
+            }
+            SnapshotWriter writer = mSnapshotWriter;
+            if (writer == null) {
+                shot.future.completeExceptionally(new IllegalStateException("no snapshot writer."));
+                return;
+            }
+            // the bytes are copied, the image goes back to the camera right after.
+            writer.write(image.getPlanes()[0].getBuffer(), shot.shotNanos, shot.name).whenComplete((snapshot, throwable) -> {
+                if (throwable != null) {
+                    shot.future.completeExceptionally(throwable);
+                } else {
+                    shot.future.complete(snapshot);
+                }
+            });
+        } finally {
+            image.close();
+        }
+    }
+
+    private static long valueOf(@Nullable Long value) {
+        return value == null ? 0 : value;
+    }
+
+    private static int valueOf(@Nullable Integer value) {
+        return value == null ? 0 : value;
+    }
 
+    private static float valueOf(@Nullable Float value) {
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Orientation of the camera sensor
+     */
+    private volatile int mSensorOrientation;
+
+    @Nullable
+    private volatile CameraCapabilityIndex mCapabilityIndex;
+
+    /**
+     * Capabilities of the opened camera.
+     */
+    @Nullable
+    private volatile CameraCapabilities mCapabilities;
+
+    /**
+     * Opens the camera and starts preview, never blocks the calling thread.
+     *
+     * @return completes when the preview is streaming.
+     */
+    @NonNull
+    public CompletableFuture<Void> start() {
         // When the screen is turned off and turned back on, the SurfaceTexture is already
         // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
         // a camera and start preview from here (otherwise, we wait until the surface is ready in
         // the SurfaceTextureListener).
         if (mTextureView.isAvailable()) {
-            openCamera();
-        } else {
-            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            return openCamera();
+        }
+        if (mPendingStart == null) {
+            mPendingStart = new CompletableFuture<>();
         }
+        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        return mPendingStart;
     }
 
-    public synchronized void stop() {
-        if (mCameraDevice == null) {
-            return;
-        }
-        closeCamera();
-        stopBackgroundThread();
+    /**
+     * Closes the camera, never blocks the calling thread.
+     *
+     * @return completes when the camera is closed.
+     */
+    @NonNull
+    public CompletableFuture<Void> stop() {
+        return mStateMachine.close();
     }
 
     public void release() {
-        stop();
-        mTextureView = null;
-        mCamera2Listener = null;
-        mContext = null;
+        stop().whenComplete((unused, throwable) -> {
+            mBackgroundThread.quitSafely();
+            mTextureView = null;
+            mCamera2Listener = null;
+            mContext = null;
+        });
     }
 
-    private boolean setUpCameraOutputs(CameraManager cameraManager) {
-        try {
-            if (configCameraParams(cameraManager, mSpecifiedCameraId)) {
-                return true;
+    @CameraState
+    public int getState() {
+        return mStateMachine.getState();
+    }
+
+    /**
+     * The health of the repeating request of the current session.
+     */
+    @NonNull
+    public CaptureMetrics getCaptureMetrics() {
+        return mCaptureMetrics;
+    }
+
+    /**
+     * Switches the settings of the repeating request, the session is not recreated.
+     *
+     * @param profile null to restore the profile given to the {@link Builder}.
+     */
+    public void setCaptureProfile(@Nullable CaptureProfile profile) {
+        mBackgroundHandler.post(() -> {
+            mCaptureProfile = profile == null ? mDefaultCaptureProfile : profile;
+            Timber.d("setCaptureProfile: %s", mCaptureProfile);
+            cancelMetering();
+            if (mStateMachine.getState() != CameraState.STREAMING) {
+                // picked up by startPreview().
+                return;
             }
-            for (String cameraId : cameraManager.getCameraIdList()) {
-                if (configCameraParams(cameraManager, cameraId)) {
-                    return true;
-                }
+            CameraCapabilities capabilities = mCapabilities;
+            if (capabilities != null && mCaptureProfile.isManualFrameDuration(capabilities)) {
+                startMetering();
+            } else {
+                setRepeatingRequest();
             }
-        } catch (CameraAccessException | IllegalArgumentException exception) {
-            Timber.e(exception, "setUpCameraOutputs");
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the
-            // device this code runs.
-            if (mCamera2Listener != null) {
-                mCamera2Listener.onCameraError(exception);
+        });
+    }
+
+    /**
+     * Crops the preview and the outputs to the region through {@code SCALER_CROP_REGION}, so the ISP crops before
+     * scaling. The session is not recreated.
+     *
+     * @param regionOfInterest null for the full field of view.
+     */
+    public void setRegionOfInterest(@Nullable RegionOfInterest regionOfInterest) {
+        mBackgroundHandler.post(() -> {
+            mRegionOfInterest = regionOfInterest;
+            Timber.d("setRegionOfInterest: %s", regionOfInterest);
+            if (mStateMachine.getState() == CameraState.STREAMING) {
+                setRepeatingRequest();
             }
+        });
+    }
+
+    /**
+     * Takes a JPEG with a single {@code capture()} in the current session, the repeating request goes on as it is. The
+     * snapshot frame also goes to the outputs of the repeating request, so a recording doesn't lose it.
+     *
+     * @param name the file name in the directory of the {@link SnapshotWriter}, without the suffix.
+     * @return completes once the snapshot is on disk, with its shot-to-disk latency.
+     */
+    @NonNull
+    public CompletableFuture<SnapshotWriter.Snapshot> takeSnapshot(@NonNull String name) {
+        Shot shot = new Shot(name, System.nanoTime());
+        if (!mBackgroundHandler.post(() -> capture(shot))) {
+            shot.future.completeExceptionally(new IllegalStateException("Camera2Helper is released."));
         }
-        return false;
+        return shot.future;
     }
 
-    private boolean configCameraParams(CameraManager manager, @CameraId String cameraId) throws CameraAccessException {
-        CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+    private void capture(@NonNull Shot shot) {
+        CameraCapabilities capabilities = mCapabilities;
+        if (mCameraDevice == null || mCaptureSession == null || mSnapshotReader == null || capabilities == null) {
+            shot.future.completeExceptionally(new IllegalStateException("the session has no snapshot output."));
+            return;
+        }
+        try {
+            // VIDEO_SNAPSHOT keeps the settings of the recording, so the video doesn't glitch on that frame.
+            int template = mOutputSurface != null ? CameraDevice.TEMPLATE_VIDEO_SNAPSHOT : CameraDevice.TEMPLATE_STILL_CAPTURE;
+            CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(template);
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getCameraOrientation(mRotation, mCameraId));
+            // the frame also goes to the recording, it must not change the frame rate or turn AE back on.
+            applyCaptureProfile(builder, capabilities);
+            applyRegionOfInterest(builder, capabilities);
+            for (Surface target : mRequestTargets) {
+                builder.addTarget(target);
+            }
+            builder.addTarget(mSnapshotReader.getSurface());
+            builder.setTag(shot);
+            mCaptureSession.capture(builder.build(), mSnapshotCaptureCallback, mBackgroundHandler);
+        } catch (Exception exception) {
+            Timber.e(exception, "capture");
+            shot.future.completeExceptionally(exception);
+        }
+    }
 
-        StreamConfigurationMap configurationMap = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        if (configurationMap == null) {
-            return false;
+    /**
+     * A manual frame duration needs AE off, so AE runs for a moment first to meter the exposure that is then kept.
+     */
+    private void startMetering() {
+        mBackgroundHandler.removeCallbacks(mStartMetering);
+        mMetering = true;
+        setRepeatingRequest();
+        mBackgroundHandler.postDelayed(mStopMetering, METERING_TIMEOUT_MS);
+    }
+
+    private void stopMetering() {
+        mBackgroundHandler.removeCallbacks(mStopMetering);
+        mMetering = false;
+        setRepeatingRequest();
+        mBackgroundHandler.postDelayed(mStartMetering, METERING_INTERVAL_MS);
+    }
+
+    private void cancelMetering() {
+        mBackgroundHandler.removeCallbacks(mStartMetering);
+        mBackgroundHandler.removeCallbacks(mStopMetering);
+        mMetering = false;
+    }
+
+    private boolean setUpCameraOutputs(@NonNull CameraCapabilityIndex index, @CameraId String specifiedCameraId) {
+        if (index.contains(specifiedCameraId) && configCameraParams(index.get(specifiedCameraId))) {
+            return true;
         }
+        for (String cameraId : index.getOpenableCameraIds()) {
+            if (configCameraParams(index.get(cameraId))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-        if (sensorOrientation != null) {
-            mSensorOrientation = sensorOrientation;
+    private boolean configCameraParams(@NonNull CameraCapabilities capabilities) {
+        List<Size> previewSizes = capabilities.getOutputSizes(CameraCapabilities.OUTPUT_PREVIEW);
+        if (previewSizes.isEmpty()) {
+            return false;
         }
-        this.mCameraId = cameraId;
 
-        mPreviewSize = mSizeSelector.getBestSupportedSize(new ArrayList<>(Arrays.asList(configurationMap.getOutputSizes(SurfaceTexture.class))));
+        mCapabilities = capabilities;
+        mSensorOrientation = capabilities.sensorOrientation;
+        this.mCameraId = capabilities.cameraId;
+
+        mPreviewSize = mSizeSelector.getBestSupportedSize(capabilities, CameraCapabilities.OUTPUT_PREVIEW);
+        mBufferSize = mPreviewSize;
 
         if (mOutputProvider != null) {
             mOutputProvider.onAttach(mCamera2Handle, new OutputProvider.Components() {
                 {
-                    put(OutputProvider.ORIENTATION, getCameraOrientation(mRotation, cameraId));
+                    put(OutputProvider.ORIENTATION, getCameraOrientation(mRotation, capabilities.cameraId));
                     put(OutputProvider.PREVIEW_SIZE, mPreviewSize);
                     put(OutputProvider.WORKER, mBackgroundHandler);
-                    put(OutputProvider.STREAM_CONFIGURATION, configurationMap);
+                    put(OutputProvider.CAMERA_CAPABILITIES, capabilities);
                 }
             });
         }
         return true;
     }
 
-    private void openCamera() {
+    @NonNull
+    private CompletableFuture<Void> openCamera() {
+        return mStateMachine.open(getTargetCameraId());
+    }
+
+    @NonNull
+    @CameraId
+    private String getTargetCameraId() {
+        return mSpecifiedCameraId == null ? CameraId.BACK : mSpecifiedCameraId;
+    }
+
+    /**
+     * Runs on the background thread, the result is reported to {@link #mStateMachine}.
+     */
+    private void openCameraDevice(@CameraId String cameraId) {
+        if (mContext == null) {
+            mStateMachine.onDeviceError(new IllegalStateException("Camera2Helper is released."));
+            return;
+        }
         if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
             Timber.e("openCamera failed, no camera permission!");
+            mStateMachine.onDeviceError(new SecurityException("no camera permission"));
             return;
         }
 
         CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
         try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                Timber.e("Time out waiting to lock camera opening.");
+            CameraCapabilityIndex index = CameraCapabilityIndex.getInstance(mContext);
+            mCapabilityIndex = index;
+            String previousCameraId = mCameraId;
+            if (!setUpCameraOutputs(index, cameraId)) {
+                mStateMachine.onDeviceError(new IllegalStateException("no available camera."));
                 return;
             }
-            if (setUpCameraOutputs(cameraManager)) {
-                configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
-                cameraManager.openCamera(mCameraId, mDeviceStateCallback, mBackgroundHandler);
+            if (mPendingFirstFrame != null && !mCameraId.equals(mSwitchCameraId)) {
+                // the switched camera can't be configured, another one is opened instead.
+                if (mCameraId.equals(previousCameraId)) {
+                    mPendingFirstFrame.completeExceptionally(new IllegalStateException(
+                            "camera " + mSwitchCameraId + " can't be configured, " + mCameraId + " is opened again."));
+                    mPendingFirstFrame = null;
+                } else {
+                    Timber.w("camera %s can't be configured, switched to %s.", mSwitchCameraId, mCameraId);
+                    mSwitchCameraId = mCameraId;
+                }
             }
-        } catch (CameraAccessException exception) {
-            Timber.e(exception, "openCamera");
-            mCameraOpenCloseLock.release();
-            if (mCamera2Listener != null) {
-                mCamera2Listener.onCameraError(exception);
+            TextureView textureView = mTextureView;
+            if (textureView != null) {
+                textureView.post(() -> configureTransform(textureView.getWidth(), textureView.getHeight()));
             }
-        } catch (InterruptedException exception) {
+            cameraManager.openCamera(mCameraId, mDeviceStateCallback, mBackgroundHandler);
+        } catch (CameraAccessException | SecurityException exception) {
             Timber.e(exception, "openCamera");
             if (mCamera2Listener != null) {
                 mCamera2Listener.onCameraError(exception);
             }
+            mStateMachine.onDeviceError(exception);
         }
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Closes the current {@link CameraDevice}, {@link #mStateMachine} is notified in
+     * {@link CameraDevice.StateCallback#onClosed(CameraDevice)}.
+     *
+     * @param released true if the state machine does not wait for the camera to be closed.
      */
-    private void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-
-            closeCameraSession();
-
-            if (null != mOutputProvider) {
-                mOutputProvider.onDetach();
-                mOutputProvider = null;
-            }
-
-            closeCameraDevice();
+    private void closeCamera(boolean released) {
+        closeCameraSession();
 
-            if (mCamera2Listener != null) {
-                mCamera2Listener.onCameraClosed();
-            }
-        } catch (InterruptedException e) {
-            if (mCamera2Listener != null) {
-                mCamera2Listener.onCameraError(e);
-            }
-        } finally {
-            mCameraOpenCloseLock.release();
+        if (null != mOutputProvider) {
+            mOutputProvider.onDetach();
         }
-    }
-
-    /**
-     * Starts a background thread and its {@link Handler}.
-     */
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
-    }
+        discardOutputSessionCallback(null);
+        mOutputSurface = null;
+        mHighSpeedConfig = null;
+        // the snapshot size belongs to this camera.
+        closeSnapshotReader();
+        // the metered exposure belongs to this camera.
+        cancelMetering();
+        mMeteredExposureTime = 0;
 
-    /**
-     * Stops the background thread and its {@link Handler}.
-     */
-    private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException interruptedException) {
-            Timber.e(interruptedException, "stopBackgroundThread");
+        if (null != mCameraDevice) {
+            if (released) {
+                mReleasedDevices.add(mCameraDevice);
+            }
+            mCameraDevice.close();
+            mCameraDevice = null;
+        } else if (!released) {
+            mStateMachine.onDeviceClosed();
         }
     }
 
     /**
-     * Creates a new {@link CameraCaptureSession} for camera preview.
+     * Creates a new {@link CameraCaptureSession} for camera preview, the result is reported to
+     * {@link #mStateMachine}.
      */
-    private void createPreviewSession(
-            @Nullable Surface outputSurface,
-            @Nullable CameraCaptureSession.StateCallback callback
-    ) {
+    private void createPreviewSession() {
         closeCameraSession();
 
-        SurfaceTexture texture = mTextureView.getSurfaceTexture();
-        if (texture == null) {
+        TextureView textureView = mTextureView;
+        SurfaceTexture texture = textureView == null ? null : textureView.getSurfaceTexture();
+        if (texture == null || mCameraDevice == null) {
+            discardOutputSessionCallback(null);
+            mStateMachine.onSessionConfigureFailed(new IllegalStateException("surface texture is not available."));
             return;
         }
 
         try {
+            // All outputs of a high-speed session must have the same size.
+            HighSpeedConfig highSpeedConfig = mOutputSurface == null ? null : mHighSpeedConfig;
+            Size bufferSize = highSpeedConfig == null ? mPreviewSize : highSpeedConfig.getSize();
             // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            texture.setDefaultBufferSize(bufferSize.getWidth(), bufferSize.getHeight());
+            if (!bufferSize.equals(mBufferSize)) {
+                mBufferSize = bufferSize;
+                textureView.post(() -> configureTransform(textureView.getWidth(), textureView.getHeight()));
+            }
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
 
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-
-            mPreviewRequestBuilder.set(
-                    CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE
-            );
-
-            List<Surface> targets = new ArrayList<>();
+            // The repeating request is built from the capture profile once the session is configured.
+            List<Surface> targets = mRequestTargets;
+            targets.clear();
             targets.add(surface);
-            if (outputSurface != null) {
-                targets.add(outputSurface);
+            if (mOutputSurface != null) {
+                targets.add(mOutputSurface);
             }
-
-            for (Surface target : targets) {
-                mPreviewRequestBuilder.addTarget(target);
+            List<Surface> outputs = new ArrayList<>(targets);
+            ImageReader snapshotReader = highSpeedConfig == null ? prepareSnapshotReader() : null;
+            if (snapshotReader != null) {
+                outputs.add(snapshotReader.getSurface());
             }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            CameraCaptureSession.StateCallback configureFailed = new CameraCaptureSession.StateCallback() {
+            CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession session) {
                     Timber.d("StateCallback.onConfigured()");
-                    // The camera is already closed
-                    if (null == mCameraDevice) {
-                        return;
-                    }
-                    startPreview(session);
-                    if (callback != null) {
-                        callback.onConfigured(session);
-                    }
+                    mCaptureSession = session;
+                    mStateMachine.onSessionConfigured();
                 }
 
                 @Override
@@ -467,43 +1126,137 @@ public class Camera2Helper {
                         mCamera2Listener.onCameraError(new Exception("configureFailed"));
                     }
 
-                    if (callback != null) {
-                        callback.onConfigureFailed(session);
-                    }
+                    discardOutputSessionCallback(session);
+
+                    mStateMachine.onSessionConfigureFailed(new Exception("configureFailed"));
                 }
             };
 
-            mCameraDevice.createCaptureSession(targets, configureFailed, mBackgroundHandler);
-        } catch (CameraAccessException cameraAccessException) {
-            Timber.e(cameraAccessException, "createCameraPreviewSession");
+            if (highSpeedConfig != null) {
+                Timber.d("creating a high-speed session: %s", highSpeedConfig);
+                mCameraDevice.createConstrainedHighSpeedCaptureSession(outputs, sessionCallback, mBackgroundHandler);
+            } else {
+                mCameraDevice.createCaptureSession(outputs, sessionCallback, mBackgroundHandler);
+            }
+        } catch (CameraAccessException | IllegalStateException exception) {
+            Timber.e(exception, "createCameraPreviewSession");
+            discardOutputSessionCallback(null);
+            mStateMachine.onSessionConfigureFailed(exception);
         }
     }
 
-    private void startPreview(@NonNull CameraCaptureSession cameraCaptureSession) {
-        if (mCameraDevice == null) {
+    private void startPreview() {
+        if (mCameraDevice == null || mCaptureSession == null) {
             Timber.w("startPreview is called but camera is closed.");
             return;
         }
 
+        mCaptureMetrics.reset();
         // When the session is ready, we start displaying the preview.
-        mCaptureSession = cameraCaptureSession;
+        CameraCapabilities capabilities = mCapabilities;
+        if (capabilities != null && mCaptureProfile.isManualFrameDuration(capabilities) && !mMetering) {
+            startMetering();
+        } else {
+            setRepeatingRequest();
+        }
+
+        CameraCaptureSession.StateCallback callback = mOutputSessionCallback;
+        mOutputSessionCallback = null;
+        if (callback != null) {
+            callback.onConfigured(mCaptureSession);
+        }
+    }
 
+    /**
+     * Builds the repeating request from {@link #mCaptureProfile} and {@link #mRequestTargets}, or the repeating burst
+     * of a high-speed session.
+     */
+    private void setRepeatingRequest() {
+        CameraCapabilities capabilities = mCapabilities;
+        if (mCameraDevice == null || mCaptureSession == null || capabilities == null) {
+            return;
+        }
+        if (mCaptureSession instanceof CameraConstrainedHighSpeedCaptureSession && mHighSpeedConfig != null) {
+            setRepeatingBurst((CameraConstrainedHighSpeedCaptureSession) mCaptureSession, mHighSpeedConfig, capabilities);
+            return;
+        }
         try {
-            mCaptureSession.setRepeatingRequest(
-                    mPreviewRequestBuilder.build(),
-                    new CameraCaptureSession.CaptureCallback() {
-                        @Override
-                        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
-                            Timber.d("onCaptureFailed");
-                        }
-                    },
-                    mBackgroundHandler
-            );
+            CaptureProfile profile = mCaptureProfile;
+            CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(profile.template);
+            if (applyCaptureProfile(builder, capabilities)) {
+                long frameDuration = Math.min(profile.frameDuration, capabilities.maxFrameDuration);
+                mCaptureMetrics.setExpectation(frameDuration, 1e9f / frameDuration);
+            } else {
+                int fpsRange = profile.selectFpsRange(capabilities);
+                if (fpsRange >= 0) {
+                    // AE may slow down to the lower bound, but not below it, so only longer gaps are drops.
+                    mCaptureMetrics.setExpectation(
+                            1_000_000_000L / capabilities.getFpsRangeUpper(fpsRange),
+                            1_000_000_000L / capabilities.getFpsRangeLower(fpsRange),
+                            capabilities.getFpsRangeLower(fpsRange));
+                } else {
+                    mCaptureMetrics.setExpectation(0, 0);
+                }
+            }
+            applyRegionOfInterest(builder, capabilities);
+            for (Surface target : mRequestTargets) {
+                builder.addTarget(target);
+            }
+            mCaptureSession.setRepeatingRequest(builder.build(), mRepeatingCaptureCallback, mBackgroundHandler);
         } catch (Exception exception) {
             Timber.e(exception, "setRepeatingRequest");
         }
     }
 
+    /**
+     * A high-speed session only accepts the request lists built by the session itself, each list covers one preview
+     * frame, so the HAL gets enough requests in flight to keep up with 120/240 fps.
+     */
+    private void setRepeatingBurst(
+            @NonNull CameraConstrainedHighSpeedCaptureSession session,
+            @NonNull HighSpeedConfig config,
+            @NonNull CameraCapabilities capabilities
+    ) {
+        try {
+            CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(config.fpsLower, config.fpsUpper));
+            applyRegionOfInterest(builder, capabilities);
+            for (Surface target : mRequestTargets) {
+                builder.addTarget(target);
+            }
+            List<CaptureRequest> requests = session.createHighSpeedRequestList(builder.build());
+            mCaptureMetrics.setExpectation(
+                    1_000_000_000L / config.fpsUpper, 1_000_000_000L / config.fpsLower, config.fpsLower);
+            session.setRepeatingBurst(requests, mRepeatingCaptureCallback, mBackgroundHandler);
+        } catch (Exception exception) {
+            Timber.e(exception, "setRepeatingBurst");
+        }
+    }
+
+    /**
+     * Applies {@link #mCaptureProfile}, with the metered exposure while its frame duration is manual and AE is not
+     * metering.
+     *
+     * @return whether the exposure is manual.
+     */
+    private boolean applyCaptureProfile(@NonNull CaptureRequest.Builder builder, @NonNull CameraCapabilities capabilities) {
+        CaptureProfile profile = mCaptureProfile;
+        if (profile.isManualFrameDuration(capabilities) && !mMetering && mMeteredExposureTime > 0) {
+            profile.applyManualExposureTo(builder, capabilities, mMeteredExposureTime, mMeteredSensitivity);
+            return true;
+        }
+        profile.applyTo(builder, capabilities);
+        return false;
+    }
+
+    private void applyRegionOfInterest(@NonNull CaptureRequest.Builder builder, @NonNull CameraCapabilities capabilities) {
+        if (mRegionOfInterest == null) {
+            return;
+        }
+        int[] crop = mRegionOfInterest.toCropRegion(capabilities);
+        builder.set(CaptureRequest.SCALER_CROP_REGION, new Rect(crop[0], crop[1], crop[2], crop[3]));
+    }
+
     /**
      * close camera session.
      */
@@ -512,12 +1265,73 @@ public class Camera2Helper {
             mCaptureSession.close();
             mCaptureSession = null;
         }
+        // their images never come from a closed session.
+        for (Shot shot : mStartedShots.values()) {
+            shot.future.completeExceptionally(new IllegalStateException("the session is closed."));
+        }
+        mStartedShots.clear();
     }
 
-    private void closeCameraDevice() {
-        if (null != mCameraDevice) {
-            mCameraDevice.close();
-            mCameraDevice = null;
+    /**
+     * The JPEG output for the next session, kept across sessions of the same camera. A high-speed session has no room
+     * for it, and a LEGACY camera only guarantees a JPEG stream next to the preview alone.
+     */
+    @Nullable
+    private ImageReader prepareSnapshotReader() {
+        CameraCapabilities capabilities = mCapabilities;
+        if (mSnapshotWriter == null || capabilities == null) {
+            return null;
+        }
+        if (mOutputSurface != null && capabilities.hardwareLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+            closeSnapshotReader();
+            return null;
+        }
+        if (mSnapshotReader == null) {
+            Size size = selectSnapshotSize(capabilities);
+            if (size == null) {
+                return null;
+            }
+            // one image being copied, one being captured.
+            mSnapshotReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.JPEG, 2);
+            mSnapshotReader.setOnImageAvailableListener(mSnapshotListener, mBackgroundHandler);
+            Timber.d("snapshot size: %s", size);
+        }
+        return mSnapshotReader;
+    }
+
+    /**
+     * The largest JPEG size with the aspect ratio of the preview that is not larger than the largest recorder size,
+     * the RECORD size up to which a JPEG next to the preview and the recorder is guaranteed from LIMITED up.
+     */
+    @Nullable
+    private Size selectSnapshotSize(@NonNull CameraCapabilities capabilities) {
+        long maxArea = 0;
+        for (Size size : capabilities.getOutputSizes(CameraCapabilities.OUTPUT_RECORDER)) {
+            maxArea = Math.max(maxArea, (long) size.getWidth() * size.getHeight());
+        }
+        Size preview = mPreviewSize;
+        Size best = null;
+        Size bestAnyRatio = null;
+        for (Size size : capabilities.getOutputSizes(CameraCapabilities.OUTPUT_JPEG)) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (maxArea > 0 && area > maxArea) {
+                continue;
+            }
+            if (bestAnyRatio == null || area > (long) bestAnyRatio.getWidth() * bestAnyRatio.getHeight()) {
+                bestAnyRatio = size;
+            }
+            boolean sameRatio = preview != null && (long) size.getWidth() * preview.getHeight() == (long) size.getHeight() * preview.getWidth();
+            if (sameRatio && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+        }
+        return best != null ? best : bestAnyRatio;
+    }
+
+    private void closeSnapshotReader() {
+        if (mSnapshotReader != null) {
+            mSnapshotReader.close();
+            mSnapshotReader = null;
         }
     }
 
@@ -549,19 +1363,20 @@ public class Camera2Helper {
      * @param viewHeight The height of `mTextureView`
      */
     private void configureTransform(int viewWidth, int viewHeight) {
-        if (null == mTextureView || null == mPreviewSize) {
+        Size previewSize = mBufferSize != null ? mBufferSize : mPreviewSize;
+        if (null == mTextureView || null == previewSize) {
             return;
         }
 
         Matrix matrix = new Matrix();
         RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
-        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        RectF bufferRect = new RectF(0, 0, previewSize.getHeight(), previewSize.getWidth());
 
         float centerX = viewRect.centerX();
         float centerY = viewRect.centerY();
         bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
         matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
-        float scale = Math.max((float) viewHeight / mPreviewSize.getHeight(), (float) viewWidth / mPreviewSize.getWidth());
+        float scale = Math.max((float) viewHeight / previewSize.getHeight(), (float) viewWidth / previewSize.getWidth());
 
         if (Surface.ROTATION_90 == mRotation || Surface.ROTATION_270 == mRotation) {
             matrix.postScale(scale, scale, centerX, centerY);
@@ -617,6 +1432,16 @@ public class Camera2Helper {
 
         private SizeSelector sizeSelector;
 
+        /**
+         * 预览时使用的请求参数，默认为 {@link CaptureProfile#preview(int)}。
+         */
+        private CaptureProfile captureProfile;
+
+        /**
+         * 设置后，会话中会多一路 JPEG 输出，用于 {@link #takeSnapshot(String)}。
+         */
+        private SnapshotWriter snapshotWriter;
+
         public Builder() {
         }
 
@@ -655,6 +1480,16 @@ public class Camera2Helper {
             return this;
         }
 
+        public Builder captureProfile(CaptureProfile captureProfile) {
+            this.captureProfile = captureProfile;
+            return this;
+        }
+
+        public Builder snapshotWriter(SnapshotWriter snapshotWriter) {
+            this.snapshotWriter = snapshotWriter;
+            return this;
+        }
+
         public Builder context(Context val) {
             this.context = val;
             return this;
@@ -670,6 +1505,9 @@ public class Camera2Helper {
             if (previewDisplayView == null) {
                 throw new NullPointerException("you must preview on a textureView or a surfaceView!");
             }
+            if (captureProfile == null) {
+                captureProfile = CaptureProfile.preview(0);
+            }
             return new Camera2Helper(this);
         }
 
@@ -681,6 +1519,7 @@ public class Camera2Helper {
                     ", isMirror=" + isMirror +
                     ", specificCameraId='" + specifiedCameraId + '\'' +
                     ", rotation=" + rotation +
+                    ", captureProfile=" + captureProfile +
                     ", context=" + context +
                     '}';
         }
@@ -0,0 +1,584 @@
+package me.ztiany.capturer;
+
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The immutable capabilities of one camera, built from its {@code CameraCharacteristics} once and then read without
+ * any Binder call. Sizes, durations and fps ranges are kept in primitive arrays so the whole index is small enough to
+ * be persisted, see {@link CameraCapabilityIndex}.
+ */
+public final class CameraCapabilities {
+
+    /**
+     * Outputs of {@code SurfaceTexture}.
+     */
+    public static final int OUTPUT_PREVIEW = 0;
+
+    /**
+     * Outputs of {@code MediaRecorder}.
+     */
+    public static final int OUTPUT_RECORDER = 1;
+
+    /**
+     * Outputs of {@code ImageFormat.YUV_420_888}.
+     */
+    public static final int OUTPUT_YUV = 2;
+
+    /**
+     * Outputs of {@code ImageFormat.JPEG}.
+     */
+    public static final int OUTPUT_JPEG = 3;
+
+    static final int OUTPUT_COUNT = 4;
+
+    public final String cameraId;
+
+    /**
+     * One of {@code CameraCharacteristics.LENS_FACING_XXX}.
+     */
+    public final int facing;
+
+    public final int sensorOrientation;
+
+    /**
+     * One of {@code CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_XXX}.
+     */
+    public final int hardwareLevel;
+
+    /**
+     * The shortest focal length in millimeters, used to tell the ultra-wide camera.
+     */
+    public final float minFocalLength;
+
+    /**
+     * {@code SENSOR_INFO_MAX_FRAME_DURATION} in nanoseconds, 0 if unknown.
+     */
+    public final long maxFrameDuration;
+
+    /**
+     * True if the camera supports {@code REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR}, so the frame duration, the
+     * exposure time and the sensitivity can be set directly.
+     */
+    public final boolean manualSensorSupported;
+
+    /**
+     * The size of {@code SENSOR_INFO_ACTIVE_ARRAY_SIZE}, the coordinate space of {@code SCALER_CROP_REGION}.
+     */
+    public final int activeArrayWidth;
+
+    public final int activeArrayHeight;
+
+    /**
+     * {@code SCALER_AVAILABLE_MAX_DIGITAL_ZOOM}, 1 if the camera can't crop.
+     */
+    public final float maxDigitalZoom;
+
+    /**
+     * True if {@code SCALER_CROPPING_TYPE} is {@code CENTER_ONLY}, the crop region is then always centered.
+     */
+    public final boolean centerOnlyCropping;
+
+    /**
+     * The ID of the logical camera that this physical camera belongs to, null if it can be opened directly.
+     */
+    @Nullable
+    public final String logicalCameraId;
+
+    /**
+     * The physical cameras of a logical multi-camera, empty for other cameras.
+     */
+    public final List<String> physicalCameraIds;
+
+    /**
+     * {@code CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES} as pairs of lower and upper.
+     */
+    private final int[] mFpsRanges;
+
+    private final int[] mAfModes;
+
+    private final int[] mNoiseReductionModes;
+
+    private final int[] mEdgeModes;
+
+    /**
+     * The constrained high-speed video configurations as quadruples of width, height, fps lower and fps upper, one for
+     * every fps range of every size.
+     */
+    private final int[] mHighSpeedConfigurations;
+
+    private final StreamConfigurations[] mStreamConfigurations;
+
+    /**
+     * The sizes of {@link #mStreamConfigurations} by output, null until asked for.
+     */
+    private final List<List<Size>> mOutputSizes = new ArrayList<>(Collections.nCopies(OUTPUT_COUNT, null));
+
+    private CameraCapabilities(Builder builder) {
+        cameraId = builder.cameraId;
+        facing = builder.facing;
+        sensorOrientation = builder.sensorOrientation;
+        hardwareLevel = builder.hardwareLevel;
+        minFocalLength = builder.minFocalLength;
+        maxFrameDuration = builder.maxFrameDuration;
+        manualSensorSupported = builder.manualSensorSupported;
+        activeArrayWidth = builder.activeArrayWidth;
+        activeArrayHeight = builder.activeArrayHeight;
+        maxDigitalZoom = builder.maxDigitalZoom;
+        centerOnlyCropping = builder.centerOnlyCropping;
+        logicalCameraId = builder.logicalCameraId;
+        physicalCameraIds = Collections.unmodifiableList(new ArrayList<>(builder.physicalCameraIds));
+        mFpsRanges = builder.fpsRanges;
+        mAfModes = builder.afModes;
+        mNoiseReductionModes = builder.noiseReductionModes;
+        mEdgeModes = builder.edgeModes;
+        mHighSpeedConfigurations = builder.highSpeedConfigurations;
+        mStreamConfigurations = builder.streamConfigurations.clone();
+    }
+
+    public boolean isLogicalMultiCamera() {
+        return !physicalCameraIds.isEmpty();
+    }
+
+    public boolean isPhysicalCamera() {
+        return logicalCameraId != null;
+    }
+
+    @NonNull
+    public StreamConfigurations getStreamConfigurations(int output) {
+        return mStreamConfigurations[output];
+    }
+
+    /**
+     * @return the output sizes sorted by area in descending order. The same list instance is returned for every call.
+     */
+    @NonNull
+    public synchronized List<Size> getOutputSizes(int output) {
+        List<Size> sizes = mOutputSizes.get(output);
+        if (sizes == null) {
+            StreamConfigurations configurations = mStreamConfigurations[output];
+            List<Size> list = new ArrayList<>(configurations.size());
+            for (int i = 0; i < configurations.size(); i++) {
+                list.add(new Size(configurations.getWidth(i), configurations.getHeight(i)));
+            }
+            sizes = Collections.unmodifiableList(list);
+            mOutputSizes.set(output, sizes);
+        }
+        return sizes;
+    }
+
+    public int getFpsRangeCount() {
+        return mFpsRanges.length / 2;
+    }
+
+    public int getFpsRangeLower(int index) {
+        return mFpsRanges[index * 2];
+    }
+
+    public int getFpsRangeUpper(int index) {
+        return mFpsRanges[index * 2 + 1];
+    }
+
+    /**
+     * @param mode one of {@code CameraMetadata.CONTROL_AF_MODE_XXX}.
+     */
+    public boolean isAfModeSupported(int mode) {
+        return contains(mAfModes, mode);
+    }
+
+    /**
+     * @param mode one of {@code CameraMetadata.NOISE_REDUCTION_MODE_XXX}.
+     */
+    public boolean isNoiseReductionModeSupported(int mode) {
+        return contains(mNoiseReductionModes, mode);
+    }
+
+    /**
+     * @param mode one of {@code CameraMetadata.EDGE_MODE_XXX}.
+     */
+    public boolean isEdgeModeSupported(int mode) {
+        return contains(mEdgeModes, mode);
+    }
+
+    /**
+     * @return true if the camera supports {@code REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO}.
+     */
+    public boolean isHighSpeedVideoSupported() {
+        return mHighSpeedConfigurations.length > 0;
+    }
+
+    public int getHighSpeedConfigurationCount() {
+        return mHighSpeedConfigurations.length / 4;
+    }
+
+    public int getHighSpeedWidth(int index) {
+        return mHighSpeedConfigurations[index * 4];
+    }
+
+    public int getHighSpeedHeight(int index) {
+        return mHighSpeedConfigurations[index * 4 + 1];
+    }
+
+    public int getHighSpeedFpsLower(int index) {
+        return mHighSpeedConfigurations[index * 4 + 2];
+    }
+
+    public int getHighSpeedFpsUpper(int index) {
+        return mHighSpeedConfigurations[index * 4 + 3];
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int candidate : values) {
+            if (candidate == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void write(@NonNull DataOutput output) throws IOException {
+        output.writeUTF(cameraId);
+        output.writeInt(facing);
+        output.writeInt(sensorOrientation);
+        output.writeInt(hardwareLevel);
+        output.writeFloat(minFocalLength);
+        output.writeLong(maxFrameDuration);
+        output.writeBoolean(manualSensorSupported);
+        output.writeInt(activeArrayWidth);
+        output.writeInt(activeArrayHeight);
+        output.writeFloat(maxDigitalZoom);
+        output.writeBoolean(centerOnlyCropping);
+        output.writeBoolean(logicalCameraId != null);
+        if (logicalCameraId != null) {
+            output.writeUTF(logicalCameraId);
+        }
+        output.writeInt(physicalCameraIds.size());
+        for (String physicalCameraId : physicalCameraIds) {
+            output.writeUTF(physicalCameraId);
+        }
+        writeInts(output, mFpsRanges);
+        writeInts(output, mAfModes);
+        writeInts(output, mNoiseReductionModes);
+        writeInts(output, mEdgeModes);
+        writeInts(output, mHighSpeedConfigurations);
+        for (StreamConfigurations configurations : mStreamConfigurations) {
+            configurations.write(output);
+        }
+    }
+
+    @NonNull
+    static CameraCapabilities read(@NonNull DataInput input) throws IOException {
+        Builder builder = new Builder(input.readUTF())
+                .facing(input.readInt())
+                .sensorOrientation(input.readInt())
+                .hardwareLevel(input.readInt())
+                .minFocalLength(input.readFloat())
+                .maxFrameDuration(input.readLong())
+                .manualSensorSupported(input.readBoolean())
+                .activeArraySize(input.readInt(), input.readInt())
+                .maxDigitalZoom(input.readFloat())
+                .centerOnlyCropping(input.readBoolean());
+        if (input.readBoolean()) {
+            builder.logicalCameraId(input.readUTF());
+        }
+        int physicalCount = input.readInt();
+        for (int i = 0; i < physicalCount; i++) {
+            builder.addPhysicalCameraId(input.readUTF());
+        }
+        builder.fpsRanges(readInts(input));
+        builder.afModes(readInts(input));
+        builder.noiseReductionModes(readInts(input));
+        builder.edgeModes(readInts(input));
+        builder.highSpeedConfigurations(readInts(input));
+        for (int output = 0; output < OUTPUT_COUNT; output++) {
+            builder.streamConfigurations(output, StreamConfigurations.read(input));
+        }
+        return builder.build();
+    }
+
+    private static void writeInts(DataOutput output, int[] values) throws IOException {
+        output.writeInt(values.length);
+        for (int value : values) {
+            output.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInput input) throws IOException {
+        int[] values = new int[input.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readInt();
+        }
+        return values;
+    }
+
+    private static void writeLongs(DataOutput output, long[] values) throws IOException {
+        output.writeInt(values.length);
+        for (long value : values) {
+            output.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(DataInput input) throws IOException {
+        long[] values = new long[input.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readLong();
+        }
+        return values;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CameraCapabilities{" +
+                "cameraId='" + cameraId + '\'' +
+                ", facing=" + facing +
+                ", sensorOrientation=" + sensorOrientation +
+                ", hardwareLevel=" + hardwareLevel +
+                ", minFocalLength=" + minFocalLength +
+                ", maxFrameDuration=" + maxFrameDuration +
+                ", manualSensorSupported=" + manualSensorSupported +
+                ", activeArraySize=" + activeArrayWidth + "x" + activeArrayHeight +
+                ", maxDigitalZoom=" + maxDigitalZoom +
+                ", centerOnlyCropping=" + centerOnlyCropping +
+                ", logicalCameraId=" + logicalCameraId +
+                ", physicalCameraIds=" + physicalCameraIds +
+                ", fpsRanges=" + Arrays.toString(mFpsRanges) +
+                ", afModes=" + Arrays.toString(mAfModes) +
+                ", noiseReductionModes=" + Arrays.toString(mNoiseReductionModes) +
+                ", edgeModes=" + Arrays.toString(mEdgeModes) +
+                ", highSpeedConfigurations=" + Arrays.toString(mHighSpeedConfigurations) +
+                '}';
+    }
+
+    /**
+     * The sizes of one output with their minimum frame durations and stall durations in nanoseconds, sorted by area in
+     * descending order.
+     */
+    public static final class StreamConfigurations {
+
+        static final StreamConfigurations EMPTY = new StreamConfigurations(new int[0], new long[0], new long[0]);
+
+        /**
+         * Pairs of width and height.
+         */
+        private final int[] mSizes;
+
+        private final long[] mMinFrameDurations;
+
+        private final long[] mStallDurations;
+
+        /**
+         * @param sizes pairs of width and height, does not need to be sorted.
+         */
+        public StreamConfigurations(@NonNull int[] sizes, @NonNull long[] minFrameDurations, @NonNull long[] stallDurations) {
+            if (sizes.length != minFrameDurations.length * 2 || minFrameDurations.length != stallDurations.length) {
+                throw new IllegalArgumentException("sizes and durations do not match.");
+            }
+            int count = minFrameDurations.length;
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (o1, o2) -> {
+                long area1 = (long) sizes[o1 * 2] * sizes[o1 * 2 + 1];
+                long area2 = (long) sizes[o2 * 2] * sizes[o2 * 2 + 1];
+                if (area1 != area2) {
+                    return Long.compare(area2, area1);
+                }
+                return Integer.compare(sizes[o2 * 2], sizes[o1 * 2]);
+            });
+            mSizes = new int[count * 2];
+            mMinFrameDurations = new long[count];
+            mStallDurations = new long[count];
+            for (int i = 0; i < count; i++) {
+                mSizes[i * 2] = sizes[order[i] * 2];
+                mSizes[i * 2 + 1] = sizes[order[i] * 2 + 1];
+                mMinFrameDurations[i] = minFrameDurations[order[i]];
+                mStallDurations[i] = stallDurations[order[i]];
+            }
+        }
+
+        public int size() {
+            return mMinFrameDurations.length;
+        }
+
+        public int getWidth(int index) {
+            return mSizes[index * 2];
+        }
+
+        public int getHeight(int index) {
+            return mSizes[index * 2 + 1];
+        }
+
+        public long getMinFrameDuration(int index) {
+            return mMinFrameDurations[index];
+        }
+
+        public long getStallDuration(int index) {
+            return mStallDurations[index];
+        }
+
+        /**
+         * @return the index of the size, -1 if it is not supported.
+         */
+        public int indexOf(int width, int height) {
+            for (int i = 0; i < size(); i++) {
+                if (mSizes[i * 2] == width && mSizes[i * 2 + 1] == height) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void write(@NonNull DataOutput output) throws IOException {
+            writeInts(output, mSizes);
+            writeLongs(output, mMinFrameDurations);
+            writeLongs(output, mStallDurations);
+        }
+
+        @NonNull
+        static StreamConfigurations read(@NonNull DataInput input) throws IOException {
+            return new StreamConfigurations(readInts(input), readLongs(input), readLongs(input));
+        }
+
+    }
+
+    public static class Builder {
+
+        private final String cameraId;
+        private int facing;
+        private int sensorOrientation;
+        private int hardwareLevel;
+        private float minFocalLength;
+        private long maxFrameDuration;
+        private boolean manualSensorSupported;
+        private int activeArrayWidth;
+        private int activeArrayHeight;
+        private float maxDigitalZoom = 1;
+        private boolean centerOnlyCropping;
+        private String logicalCameraId;
+        private final List<String> physicalCameraIds = new ArrayList<>();
+        private int[] fpsRanges = new int[0];
+        private int[] afModes = new int[0];
+        private int[] noiseReductionModes = new int[0];
+        private int[] edgeModes = new int[0];
+        private int[] highSpeedConfigurations = new int[0];
+        private final StreamConfigurations[] streamConfigurations = new StreamConfigurations[OUTPUT_COUNT];
+
+        public Builder(@NonNull String cameraId) {
+            this.cameraId = cameraId;
+            Arrays.fill(streamConfigurations, StreamConfigurations.EMPTY);
+        }
+
+        public Builder facing(int facing) {
+            this.facing = facing;
+            return this;
+        }
+
+        public Builder sensorOrientation(int sensorOrientation) {
+            this.sensorOrientation = sensorOrientation;
+            return this;
+        }
+
+        public Builder hardwareLevel(int hardwareLevel) {
+            this.hardwareLevel = hardwareLevel;
+            return this;
+        }
+
+        public Builder minFocalLength(float minFocalLength) {
+            this.minFocalLength = minFocalLength;
+            return this;
+        }
+
+        public Builder maxFrameDuration(long maxFrameDuration) {
+            this.maxFrameDuration = maxFrameDuration;
+            return this;
+        }
+
+        public Builder manualSensorSupported(boolean manualSensorSupported) {
+            this.manualSensorSupported = manualSensorSupported;
+            return this;
+        }
+
+        public Builder activeArraySize(int width, int height) {
+            this.activeArrayWidth = width;
+            this.activeArrayHeight = height;
+            return this;
+        }
+
+        public Builder maxDigitalZoom(float maxDigitalZoom) {
+            this.maxDigitalZoom = maxDigitalZoom;
+            return this;
+        }
+
+        public Builder centerOnlyCropping(boolean centerOnlyCropping) {
+            this.centerOnlyCropping = centerOnlyCropping;
+            return this;
+        }
+
+        public Builder logicalCameraId(String logicalCameraId) {
+            this.logicalCameraId = logicalCameraId;
+            return this;
+        }
+
+        public Builder addPhysicalCameraId(String physicalCameraId) {
+            this.physicalCameraIds.add(physicalCameraId);
+            return this;
+        }
+
+        /**
+         * @param fpsRanges pairs of lower and upper.
+         */
+        public Builder fpsRanges(int[] fpsRanges) {
+            this.fpsRanges = fpsRanges.clone();
+            return this;
+        }
+
+        public Builder afModes(int[] afModes) {
+            this.afModes = afModes.clone();
+            return this;
+        }
+
+        public Builder noiseReductionModes(int[] noiseReductionModes) {
+            this.noiseReductionModes = noiseReductionModes.clone();
+            return this;
+        }
+
+        public Builder edgeModes(int[] edgeModes) {
+            this.edgeModes = edgeModes.clone();
+            return this;
+        }
+
+        /**
+         * @param highSpeedConfigurations quadruples of width, height, fps lower and fps upper.
+         */
+        public Builder highSpeedConfigurations(int[] highSpeedConfigurations) {
+            if (highSpeedConfigurations.length % 4 != 0) {
+                throw new IllegalArgumentException("highSpeedConfigurations must be quadruples.");
+            }
+            this.highSpeedConfigurations = highSpeedConfigurations.clone();
+            return this;
+        }
+
+        public Builder streamConfigurations(int output, StreamConfigurations configurations) {
+            this.streamConfigurations[output] = configurations;
+            return this;
+        }
+
+        public CameraCapabilities build() {
+            return new CameraCapabilities(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,392 @@
+package me.ztiany.capturer;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * The capabilities of every camera on the device, including the physical cameras of logical multi-cameras. The index
+ * is built once per process and persisted, keyed by the build fingerprint, so opening and switching cameras and
+ * selecting sizes don't query the camera service again.
+ */
+public final class CameraCapabilityIndex {
+
+    private static final int MAGIC = 0x43435849;
+
+    private static final int VERSION = 5;
+
+    private static final String FILE_NAME = "camera_capabilities";
+
+    @Nullable
+    private static volatile CameraCapabilityIndex sInstance;
+
+    /**
+     * All cameras in the order of {@code CameraManager.getCameraIdList()}, each logical camera is followed by its
+     * physical cameras.
+     */
+    private final Map<String, CameraCapabilities> mCameras;
+
+    private final String mFingerprint;
+
+    CameraCapabilityIndex(@NonNull String fingerprint, @NonNull List<CameraCapabilities> cameras) {
+        mFingerprint = fingerprint;
+        Map<String, CameraCapabilities> map = new LinkedHashMap<>();
+        for (CameraCapabilities camera : cameras) {
+            map.put(camera.cameraId, camera);
+        }
+        mCameras = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Loads the persisted index or builds it from the camera service. Should be called off the main thread for the
+     * first time.
+     */
+    @NonNull
+    public static CameraCapabilityIndex getInstance(@NonNull Context context) throws CameraAccessException {
+        CameraCapabilityIndex instance = sInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (CameraCapabilityIndex.class) {
+            if (sInstance == null) {
+                sInstance = loadOrQuery(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    @NonNull
+    public CameraCapabilities get(@NonNull String cameraId) {
+        CameraCapabilities capabilities = mCameras.get(cameraId);
+        if (capabilities == null) {
+            throw new IllegalArgumentException("unknown camera " + cameraId);
+        }
+        return capabilities;
+    }
+
+    public boolean contains(@NonNull String cameraId) {
+        return mCameras.containsKey(cameraId);
+    }
+
+    /**
+     * @return all cameras, including the physical ones.
+     */
+    @NonNull
+    public List<CameraCapabilities> getAllCameras() {
+        return new ArrayList<>(mCameras.values());
+    }
+
+    /**
+     * @return the IDs of the cameras that can be opened directly, in the order of {@code getCameraIdList()}.
+     */
+    @NonNull
+    public List<String> getOpenableCameraIds() {
+        List<String> cameraIds = new ArrayList<>();
+        for (CameraCapabilities camera : mCameras.values()) {
+            if (!camera.isPhysicalCamera()) {
+                cameraIds.add(camera.cameraId);
+            }
+        }
+        return cameraIds;
+    }
+
+    /**
+     * @param facing one of {@code CameraCharacteristics.LENS_FACING_XXX}.
+     * @return the first openable camera with the facing.
+     */
+    @Nullable
+    public CameraCapabilities findByFacing(int facing) {
+        for (CameraCapabilities camera : mCameras.values()) {
+            if (!camera.isPhysicalCamera() && camera.facing == facing) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the camera with the shortest focal length of the facing, null if the facing has only one lens.
+     */
+    @Nullable
+    public CameraCapabilities findUltraWide(int facing) {
+        CameraCapabilities widest = null;
+        int count = 0;
+        for (CameraCapabilities camera : mCameras.values()) {
+            if (camera.facing != facing || camera.isLogicalMultiCamera()) {
+                continue;
+            }
+            count++;
+            if (widest == null || camera.minFocalLength < widest.minFocalLength) {
+                widest = camera;
+            }
+        }
+        return count > 1 ? widest : null;
+    }
+
+    void write(@NonNull DataOutput output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeUTF(mFingerprint);
+        output.writeInt(mCameras.size());
+        for (CameraCapabilities camera : mCameras.values()) {
+            camera.write(output);
+        }
+    }
+
+    /**
+     * @return null if the data is written by another version or on another build.
+     */
+    @Nullable
+    static CameraCapabilityIndex read(@NonNull DataInput input, @NonNull String fingerprint) throws IOException {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            return null;
+        }
+        if (!fingerprint.equals(input.readUTF())) {
+            return null;
+        }
+        int count = input.readInt();
+        List<CameraCapabilities> cameras = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            cameras.add(CameraCapabilities.read(input));
+        }
+        return new CameraCapabilityIndex(fingerprint, cameras);
+    }
+
+    @NonNull
+    private static CameraCapabilityIndex loadOrQuery(@NonNull Context context) throws CameraAccessException {
+        File file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        if (file.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                CameraCapabilityIndex index = read(input, Build.FINGERPRINT);
+                if (index != null) {
+                    Timber.d("camera capability index is loaded from %s", file);
+                    return index;
+                }
+            } catch (IOException exception) {
+                Timber.w(exception, "failed to load camera capability index.");
+            }
+        }
+
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        CameraCapabilityIndex index = query(cameraManager, Build.FINGERPRINT);
+        Timber.d("camera capability index is built: %s", index.mCameras.values());
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            index.write(output);
+        } catch (IOException exception) {
+            Timber.w(exception, "failed to save camera capability index.");
+        }
+        return index;
+    }
+
+    @NonNull
+    private static CameraCapabilityIndex query(@NonNull CameraManager cameraManager, @NonNull String fingerprint) throws CameraAccessException {
+        List<CameraCapabilities> cameras = new ArrayList<>();
+        for (String cameraId : cameraManager.getCameraIdList()) {
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            CameraCapabilities.Builder builder = newBuilder(cameraId, characteristics);
+
+            List<String> physicalCameraIds = new ArrayList<>();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && isLogicalMultiCamera(characteristics)) {
+                physicalCameraIds.addAll(characteristics.getPhysicalCameraIds());
+            }
+            for (String physicalCameraId : physicalCameraIds) {
+                builder.addPhysicalCameraId(physicalCameraId);
+            }
+            cameras.add(builder.build());
+
+            for (String physicalCameraId : physicalCameraIds) {
+                try {
+                    cameras.add(newBuilder(physicalCameraId, cameraManager.getCameraCharacteristics(physicalCameraId))
+                            .logicalCameraId(cameraId)
+                            .build());
+                } catch (IllegalArgumentException exception) {
+                    Timber.w(exception, "physical camera %s is not accessible.", physicalCameraId);
+                }
+            }
+        }
+        return new CameraCapabilityIndex(fingerprint, cameras);
+    }
+
+    private static boolean isLogicalMultiCamera(@NonNull CameraCharacteristics characteristics) {
+        return hasCapability(characteristics, CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_LOGICAL_MULTI_CAMERA);
+    }
+
+    private static boolean hasCapability(@NonNull CameraCharacteristics characteristics, int capability) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities == null) {
+            return false;
+        }
+        for (int candidate : capabilities) {
+            if (candidate == capability) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private static CameraCapabilities.Builder newBuilder(@NonNull String cameraId, @NonNull CameraCharacteristics characteristics) {
+        CameraCapabilities.Builder builder = new CameraCapabilities.Builder(cameraId)
+                .facing(valueOrDefault(characteristics.get(CameraCharacteristics.LENS_FACING), CameraMetadata.LENS_FACING_EXTERNAL))
+                .sensorOrientation(valueOrDefault(characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION), 0))
+                .hardwareLevel(valueOrDefault(
+                        characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL),
+                        CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY
+                ))
+                .manualSensorSupported(hasCapability(characteristics, CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR));
+
+        Long maxFrameDuration = characteristics.get(CameraCharacteristics.SENSOR_INFO_MAX_FRAME_DURATION);
+        if (maxFrameDuration != null) {
+            builder.maxFrameDuration(maxFrameDuration);
+        }
+
+        Rect activeArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (activeArray != null) {
+            builder.activeArraySize(activeArray.width(), activeArray.height());
+        }
+        Float maxDigitalZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        if (maxDigitalZoom != null) {
+            builder.maxDigitalZoom(maxDigitalZoom);
+        }
+        builder.centerOnlyCropping(valueOrDefault(
+                characteristics.get(CameraCharacteristics.SCALER_CROPPING_TYPE),
+                CameraMetadata.SCALER_CROPPING_TYPE_CENTER_ONLY
+        ) == CameraMetadata.SCALER_CROPPING_TYPE_CENTER_ONLY);
+
+        float[] focalLengths = characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        if (focalLengths != null && focalLengths.length > 0) {
+            float min = focalLengths[0];
+            for (float focalLength : focalLengths) {
+                min = Math.min(min, focalLength);
+            }
+            builder.minFocalLength(min);
+        }
+
+        Range<Integer>[] fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (fpsRanges != null) {
+            int[] packed = new int[fpsRanges.length * 2];
+            for (int i = 0; i < fpsRanges.length; i++) {
+                packed[i * 2] = fpsRanges[i].getLower();
+                packed[i * 2 + 1] = fpsRanges[i].getUpper();
+            }
+            builder.fpsRanges(packed);
+        }
+
+        int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            builder.afModes(afModes);
+        }
+        int[] noiseReductionModes = characteristics.get(CameraCharacteristics.NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES);
+        if (noiseReductionModes != null) {
+            builder.noiseReductionModes(noiseReductionModes);
+        }
+        int[] edgeModes = characteristics.get(CameraCharacteristics.EDGE_AVAILABLE_EDGE_MODES);
+        if (edgeModes != null) {
+            builder.edgeModes(edgeModes);
+        }
+
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            builder.streamConfigurations(CameraCapabilities.OUTPUT_PREVIEW, configurationsOf(map, SurfaceTexture.class));
+            builder.streamConfigurations(CameraCapabilities.OUTPUT_RECORDER, configurationsOf(map, MediaRecorder.class));
+            builder.streamConfigurations(CameraCapabilities.OUTPUT_YUV, configurationsOf(map, ImageFormat.YUV_420_888));
+            builder.streamConfigurations(CameraCapabilities.OUTPUT_JPEG, configurationsOf(map, ImageFormat.JPEG));
+            if (hasCapability(characteristics, CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO)) {
+                builder.highSpeedConfigurations(highSpeedConfigurationsOf(map));
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * @return quadruples of width, height, fps lower and fps upper.
+     */
+    @NonNull
+    private static int[] highSpeedConfigurationsOf(@NonNull StreamConfigurationMap map) {
+        List<int[]> configurations = new ArrayList<>();
+        for (Size size : map.getHighSpeedVideoSizes()) {
+            for (Range<Integer> fpsRange : map.getHighSpeedVideoFpsRangesFor(size)) {
+                configurations.add(new int[]{size.getWidth(), size.getHeight(), fpsRange.getLower(), fpsRange.getUpper()});
+            }
+        }
+        int[] packed = new int[configurations.size() * 4];
+        for (int i = 0; i < configurations.size(); i++) {
+            System.arraycopy(configurations.get(i), 0, packed, i * 4, 4);
+        }
+        return packed;
+    }
+
+    @NonNull
+    private static CameraCapabilities.StreamConfigurations configurationsOf(@NonNull StreamConfigurationMap map, @NonNull Class<?> klass) {
+        Size[] sizes = map.getOutputSizes(klass);
+        if (sizes == null) {
+            return CameraCapabilities.StreamConfigurations.EMPTY;
+        }
+        int[] packed = new int[sizes.length * 2];
+        long[] minFrameDurations = new long[sizes.length];
+        long[] stallDurations = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            packed[i * 2] = sizes[i].getWidth();
+            packed[i * 2 + 1] = sizes[i].getHeight();
+            minFrameDurations[i] = map.getOutputMinFrameDuration(klass, sizes[i]);
+            // stall durations are only defined for formats, the class outputs are all private formats without stall.
+            stallDurations[i] = 0;
+        }
+        return new CameraCapabilities.StreamConfigurations(packed, minFrameDurations, stallDurations);
+    }
+
+    @NonNull
+    private static CameraCapabilities.StreamConfigurations configurationsOf(@NonNull StreamConfigurationMap map, int format) {
+        Size[] sizes = map.getOutputSizes(format);
+        if (sizes == null) {
+            return CameraCapabilities.StreamConfigurations.EMPTY;
+        }
+        int[] packed = new int[sizes.length * 2];
+        long[] minFrameDurations = new long[sizes.length];
+        long[] stallDurations = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            packed[i * 2] = sizes[i].getWidth();
+            packed[i * 2 + 1] = sizes[i].getHeight();
+            minFrameDurations[i] = map.getOutputMinFrameDuration(format, sizes[i]);
+            stallDurations[i] = map.getOutputStallDuration(format, sizes[i]);
+        }
+        return new CameraCapabilities.StreamConfigurations(packed, minFrameDurations, stallDurations);
+    }
+
+    private static int valueOrDefault(@Nullable Integer value, int defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+
+}
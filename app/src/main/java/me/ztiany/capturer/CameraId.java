@@ -2,10 +2,14 @@ package me.ztiany.capturer;
 
 import androidx.annotation.StringDef;
 
-@StringDef({
+/**
+ * The default back and front camera IDs. Other IDs, such as ultra-wide or external cameras, come from
+ * {@link CameraCapabilityIndex}.
+ */
+@StringDef(value = {
         CameraId.BACK,
         CameraId.FRONT
-})
+}, open = true)
 public @interface CameraId {
 
     String FRONT = "1";
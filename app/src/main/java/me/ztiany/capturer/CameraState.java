@@ -0,0 +1,30 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.IntDef;
+
+/**
+ * 相机生命周期状态，由 {@link CameraStateMachine} 维护。
+ */
+@IntDef({
+        CameraState.CLOSED,
+        CameraState.OPENING,
+        CameraState.OPENED,
+        CameraState.CONFIGURING,
+        CameraState.STREAMING,
+        CameraState.CLOSING,
+})
+public @interface CameraState {
+
+    int CLOSED = 0;
+
+    int OPENING = 1;
+
+    int OPENED = 2;
+
+    int CONFIGURING = 3;
+
+    int STREAMING = 4;
+
+    int CLOSING = 5;
+
+}
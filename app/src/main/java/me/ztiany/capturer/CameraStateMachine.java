@@ -0,0 +1,374 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+/**
+ * A single-threaded camera lifecycle state machine:
+ *
+ * <pre>
+ * CLOSED → OPENING → OPENED → CONFIGURING → STREAMING → CLOSING → CLOSED
+ * </pre>
+ *
+ * <p>
+ * Every command is enqueued to the executor and returns a {@link CompletableFuture} immediately, so the caller's
+ * thread never blocks. Commands only change the target (which camera should be streaming, or none), the machine then
+ * drives the {@link Device} towards that target one step at a time. Because of this, duplicate commands share the same
+ * future and contradicting ones (open → close → open) are coalesced: a superseded future completes with a
+ * {@link CancellationException}.
+ * </p>
+ *
+ * <p>
+ * Opening another camera while one is opened switches to it. If the HAL can open both cameras at the same time, closing
+ * the old camera overlaps with opening the new one, otherwise the new camera is opened after the old one is closed.
+ * </p>
+ *
+ * <p>
+ * All state is confined to the executor thread, which must be the thread that the {@link Device} reports its events
+ * on. Futures are completed on that thread too.
+ * </p>
+ */
+public class CameraStateMachine {
+
+    /**
+     * The camera operations driven by the state machine. Each operation is asynchronous and must report its outcome
+     * through the corresponding {@code onXxx} method of the state machine.
+     */
+    public interface Device {
+
+        /**
+         * Opens the camera, reports {@link #onDeviceOpened()} or {@link #onDeviceError(Exception)}.
+         */
+        void openDevice(@NonNull String cameraId);
+
+        /**
+         * Creates a capture session with the current outputs, reports {@link #onSessionConfigured()} or
+         * {@link #onSessionConfigureFailed(Exception)}.
+         */
+        void createSession();
+
+        /**
+         * Starts the repeating request on the session that was just configured.
+         */
+        void startStreaming();
+
+        /**
+         * Closes the session and the camera, reports {@link #onDeviceClosed()}.
+         */
+        void closeDevice();
+
+        /**
+         * Starts closing the session and the camera without waiting for it, must not report
+         * {@link #onDeviceClosed()}. Only called when {@link #canOpenConcurrently(String, String)} returns true.
+         */
+        void releaseDevice();
+
+        /**
+         * @return true if the camera can be opened while the opened one is still closing.
+         */
+        boolean canOpenConcurrently(@NonNull String openedCameraId, @NonNull String cameraId);
+
+    }
+
+    private final Executor mExecutor;
+
+    private final Device mDevice;
+
+    @CameraState
+    private volatile int mState = CameraState.CLOSED;
+
+    /**
+     * The camera that is opening, opened or closing.
+     */
+    @Nullable
+    private String mCameraId;
+
+    /**
+     * The camera that should be streaming, null means the camera should be closed.
+     */
+    @Nullable
+    private String mTargetCameraId;
+
+    /**
+     * A new session has been requested and not yet been created.
+     */
+    private boolean mSessionDirty;
+
+    @Nullable
+    private CompletableFuture<Void> mOpenFuture;
+
+    @Nullable
+    private CompletableFuture<Void> mConfigureFuture;
+
+    @Nullable
+    private CompletableFuture<Void> mCloseFuture;
+
+    public CameraStateMachine(@NonNull Executor executor, @NonNull Device device) {
+        mExecutor = executor;
+        mDevice = device;
+    }
+
+    @CameraState
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Opens the specified camera and starts streaming. The returned future completes once the state reaches
+     * {@link CameraState#STREAMING}.
+     */
+    @NonNull
+    public CompletableFuture<Void> open(@NonNull String cameraId) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        mExecutor.execute(() -> doOpen(cameraId, result));
+        return result;
+    }
+
+    /**
+     * Closes the camera. The returned future completes once the state reaches {@link CameraState#CLOSED}.
+     */
+    @NonNull
+    public CompletableFuture<Void> close() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        mExecutor.execute(() -> doClose(result));
+        return result;
+    }
+
+    /**
+     * Recreates the capture session of the opened camera.
+     *
+     * @param mutation runs on the state machine thread before the session is recreated, used to change the outputs.
+     */
+    @NonNull
+    public CompletableFuture<Void> reconfigure(@Nullable Runnable mutation) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        mExecutor.execute(() -> doReconfigure(mutation, result));
+        return result;
+    }
+
+    public void onDeviceOpened() {
+        mExecutor.execute(() -> {
+            if (mState != CameraState.OPENING) {
+                Timber.w("onDeviceOpened is ignored in state %d", mState);
+                return;
+            }
+            moveTo(CameraState.OPENED);
+            advance();
+        });
+    }
+
+    public void onSessionConfigured() {
+        mExecutor.execute(() -> {
+            if (mState != CameraState.CONFIGURING) {
+                Timber.w("onSessionConfigured is ignored in state %d", mState);
+                return;
+            }
+            moveTo(CameraState.OPENED);
+            if (!shouldClose() && !mSessionDirty) {
+                mDevice.startStreaming();
+                moveTo(CameraState.STREAMING);
+            }
+            advance();
+        });
+    }
+
+    public void onSessionConfigureFailed(@NonNull Exception exception) {
+        onDeviceError(exception);
+    }
+
+    public void onDeviceError(@NonNull Exception exception) {
+        mExecutor.execute(() -> {
+            Timber.e(exception, "onDeviceError in state %d", mState);
+            mTargetCameraId = null;
+            mSessionDirty = false;
+            mOpenFuture = fail(mOpenFuture, exception);
+            mConfigureFuture = fail(mConfigureFuture, exception);
+            if (mState == CameraState.CLOSED || mState == CameraState.CLOSING) {
+                return;
+            }
+            startClosing();
+        });
+    }
+
+    public void onDeviceClosed() {
+        mExecutor.execute(() -> {
+            if (mState == CameraState.CLOSED) {
+                return;
+            }
+            mCameraId = null;
+            moveTo(CameraState.CLOSED);
+            advance();
+        });
+    }
+
+    private void doOpen(@NonNull String cameraId, @NonNull CompletableFuture<Void> result) {
+        if (cameraId.equals(mTargetCameraId)) {
+            Timber.d("open %s is coalesced with the pending one.", cameraId);
+            if (isSettled()) {
+                result.complete(null);
+            } else {
+                relay(mOpenFuture, result);
+            }
+            return;
+        }
+
+        mOpenFuture = cancel(mOpenFuture, "superseded by open " + cameraId);
+        mConfigureFuture = cancel(mConfigureFuture, "superseded by open " + cameraId);
+        // the camera will not pass through CLOSED, so the pending close is cancelled out by this open.
+        if (cameraId.equals(mCameraId) && mState != CameraState.CLOSING) {
+            mCloseFuture = cancel(mCloseFuture, "cancelled out by open " + cameraId);
+        }
+
+        mTargetCameraId = cameraId;
+        mOpenFuture = new CompletableFuture<>();
+        relay(mOpenFuture, result);
+        advance();
+    }
+
+    private void doClose(@NonNull CompletableFuture<Void> result) {
+        if (mTargetCameraId == null && mState == CameraState.CLOSED) {
+            result.complete(null);
+            return;
+        }
+
+        mOpenFuture = cancel(mOpenFuture, "superseded by close");
+        mConfigureFuture = cancel(mConfigureFuture, "superseded by close");
+        mTargetCameraId = null;
+        mSessionDirty = false;
+
+        if (mCloseFuture == null) {
+            mCloseFuture = new CompletableFuture<>();
+        }
+        relay(mCloseFuture, result);
+        advance();
+    }
+
+    private void doReconfigure(@Nullable Runnable mutation, @NonNull CompletableFuture<Void> result) {
+        if (mTargetCameraId == null) {
+            result.completeExceptionally(new IllegalStateException("camera is closed"));
+            return;
+        }
+        if (mutation != null) {
+            mutation.run();
+        }
+        mSessionDirty = true;
+        if (mConfigureFuture == null) {
+            mConfigureFuture = new CompletableFuture<>();
+        }
+        relay(mConfigureFuture, result);
+        advance();
+    }
+
+    /**
+     * Issues the next device operation towards the target. Does nothing in the transient states, the device event
+     * that ends the transient state calls this again.
+     */
+    private void advance() {
+        switch (mState) {
+            case CameraState.CLOSED:
+                mCloseFuture = succeed(mCloseFuture);
+                if (mTargetCameraId != null) {
+                    mCameraId = mTargetCameraId;
+                    moveTo(CameraState.OPENING);
+                    mDevice.openDevice(mCameraId);
+                }
+                break;
+            case CameraState.OPENED:
+                if (shouldClose()) {
+                    startClosing();
+                } else {
+                    createSession();
+                }
+                break;
+            case CameraState.STREAMING:
+                if (shouldClose()) {
+                    startClosing();
+                } else if (mSessionDirty) {
+                    createSession();
+                } else {
+                    mOpenFuture = succeed(mOpenFuture);
+                    mConfigureFuture = succeed(mConfigureFuture);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void createSession() {
+        mSessionDirty = false;
+        moveTo(CameraState.CONFIGURING);
+        mDevice.createSession();
+    }
+
+    private void startClosing() {
+        if (mTargetCameraId != null && mCameraId != null && mDevice.canOpenConcurrently(mCameraId, mTargetCameraId)) {
+            Timber.d("switching camera %s -> %s without waiting for the close.", mCameraId, mTargetCameraId);
+            mDevice.releaseDevice();
+            mCameraId = null;
+            moveTo(CameraState.CLOSED);
+            advance();
+            return;
+        }
+        moveTo(CameraState.CLOSING);
+        mDevice.closeDevice();
+    }
+
+    private boolean shouldClose() {
+        return mTargetCameraId == null || !mTargetCameraId.equals(mCameraId);
+    }
+
+    private boolean isSettled() {
+        return mState == CameraState.STREAMING && !mSessionDirty && mTargetCameraId != null && mTargetCameraId.equals(mCameraId);
+    }
+
+    private void moveTo(@CameraState int state) {
+        Timber.d("camera state %d -> %d", mState, state);
+        mState = state;
+    }
+
+    private static void relay(@Nullable CompletableFuture<Void> source, @NonNull CompletableFuture<Void> target) {
+        if (source == null) {
+            target.complete(null);
+            return;
+        }
+        source.whenComplete((unused, throwable) -> {
+            if (throwable != null) {
+                target.completeExceptionally(throwable);
+            } else {
+                target.complete(null);
+            }
+        });
+    }
+
+    @Nullable
+    private static CompletableFuture<Void> succeed(@Nullable CompletableFuture<Void> future) {
+        if (future != null) {
+            future.complete(null);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static CompletableFuture<Void> fail(@Nullable CompletableFuture<Void> future, @NonNull Exception exception) {
+        if (future != null) {
+            future.completeExceptionally(exception);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static CompletableFuture<Void> cancel(@Nullable CompletableFuture<Void> future, @NonNull String reason) {
+        if (future != null) {
+            future.completeExceptionally(new CancellationException(reason));
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,334 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Collects the health of the repeating request: frame gaps and jitter of the sensor timestamps against the expected
+ * frame duration, capture failures by reason and lost buffers by surface. The recording side is called on the camera
+ * thread for every frame, so it only updates primitive counters and fixed-size histograms and never allocates.
+ * {@link #snapshot()} may be called from any thread.
+ *
+ * <p>
+ * How the last recording was written to disk is kept too, see {@link #onRecordingWritten}. It outlives the session,
+ * the recording is written once it is finished.
+ * </p>
+ */
+public final class CaptureMetrics {
+
+    /**
+     * Gaps are counted in quarters of the expected frame duration, the last bucket holds every gap from
+     * {@code (GAP_BUCKETS - 1) / 4} frames on.
+     */
+    public static final int GAP_BUCKETS = 32;
+
+    private static final int GAP_BUCKETS_PER_FRAME = 4;
+
+    /**
+     * Jitter is counted in log2 buckets of microseconds: bucket 0 is below 1us, bucket n is [2^(n-1), 2^n) us.
+     */
+    public static final int JITTER_BUCKETS = 24;
+
+    /**
+     * The buffer loss of the surfaces beyond this is counted in the last slot.
+     */
+    public static final int MAX_SURFACES = 4;
+
+    /**
+     * {@code CaptureFailure.REASON_ERROR} and {@code CaptureFailure.REASON_FLUSHED}, unknown reasons count as errors.
+     */
+    public static final int FAILURE_REASONS = 2;
+
+    /**
+     * The effective fps is measured over windows of this length.
+     */
+    private static final long FPS_WINDOW_NS = 1_000_000_000L;
+
+    /**
+     * At most one low fps alert is raised in this period.
+     */
+    private static final long ALERT_INTERVAL_NS = 10_000_000_000L;
+
+    /**
+     * A window below this share of the minimum fps raises an alert.
+     */
+    private static final float ALERT_THRESHOLD = 0.9f;
+
+    public interface AlertListener {
+
+        /**
+         * Called on the camera thread, at most once every {@code ALERT_INTERVAL_NS}.
+         */
+        void onLowFrameRate(float effectiveFps, float minFps);
+
+    }
+
+    @Nullable
+    private volatile AlertListener mAlertListener;
+
+    private long mExpectedFrameDuration;
+    private long mMaxFrameDuration;
+    private float mMinFps;
+
+    private long mStartedFrames;
+    private long mCompletedFrames;
+    private long mDroppedFrames;
+    private long mLastTimestamp;
+    private long mMaxJitter;
+    private final int[] mGapHistogram = new int[GAP_BUCKETS];
+    private final int[] mJitterHistogram = new int[JITTER_BUCKETS];
+    private final long[] mFailures = new long[FAILURE_REASONS];
+    private long mFailuresWithoutImage;
+    private final long[] mBufferLost = new long[MAX_SURFACES];
+
+    private long mWindowStart;
+    private int mWindowFrames;
+    private float mEffectiveFps;
+    private long mLastAlertTimestamp = Long.MIN_VALUE;
+    private long mAlerts;
+
+    @Nullable
+    private AsyncFileWriter.Metrics mRecordingWrites;
+
+    public void setAlertListener(@Nullable AlertListener alertListener) {
+        mAlertListener = alertListener;
+    }
+
+    /**
+     * Sets what the current repeating request asks for, the counters are kept.
+     *
+     * @param expectedFrameDuration the frame duration in nanoseconds, 0 if unknown, then gaps, jitter and alerts are not
+     *                              tracked.
+     * @param minFps                the frame rate that should never be undercut, 0 for no alerts.
+     */
+    public void setExpectation(long expectedFrameDuration, float minFps) {
+        setExpectation(expectedFrameDuration, expectedFrameDuration, minFps);
+    }
+
+    /**
+     * Like {@link #setExpectation(long, float)}, for a request whose frame duration AE may vary, e.g. an AE target fps
+     * range that is not fixed. The gaps and the jitter are measured against the shortest duration, but only the gaps
+     * beyond the longest one count as dropped frames, AE slowing down is not a drop.
+     *
+     * @param maxFrameDuration the longest frame duration AE may choose, in nanoseconds.
+     */
+    public synchronized void setExpectation(long expectedFrameDuration, long maxFrameDuration, float minFps) {
+        mExpectedFrameDuration = expectedFrameDuration;
+        mMaxFrameDuration = Math.max(expectedFrameDuration, maxFrameDuration);
+        mMinFps = minFps;
+        // the gap to the frames of the previous request says nothing about this one.
+        mLastTimestamp = 0;
+        mWindowStart = 0;
+        mWindowFrames = 0;
+    }
+
+    /**
+     * Starts over for a new session.
+     */
+    public synchronized void reset() {
+        mStartedFrames = 0;
+        mCompletedFrames = 0;
+        mDroppedFrames = 0;
+        mLastTimestamp = 0;
+        mMaxJitter = 0;
+        Arrays.fill(mGapHistogram, 0);
+        Arrays.fill(mJitterHistogram, 0);
+        Arrays.fill(mFailures, 0);
+        mFailuresWithoutImage = 0;
+        Arrays.fill(mBufferLost, 0);
+        mWindowStart = 0;
+        mWindowFrames = 0;
+        mEffectiveFps = 0;
+        mAlerts = 0;
+    }
+
+    /**
+     * Records the sensor timestamp of a frame, from {@code onCaptureStarted}, which gets it as a primitive while
+     * reading {@code SENSOR_TIMESTAMP} from the result would box it.
+     */
+    public void onCaptureStarted(long timestamp) {
+        AlertListener alertListener = null;
+        float effectiveFps = 0;
+        float minFps = 0;
+        synchronized (this) {
+            mStartedFrames++;
+            long expected = mExpectedFrameDuration;
+            if (mLastTimestamp != 0 && timestamp > mLastTimestamp && expected > 0) {
+                long delta = timestamp - mLastTimestamp;
+                mGapHistogram[(int) Math.min(GAP_BUCKETS - 1, delta * GAP_BUCKETS_PER_FRAME / expected)]++;
+                // a gap of n frame durations means n - 1 frames are missing.
+                long longest = mMaxFrameDuration;
+                long missing = (delta + longest / 2) / longest - 1;
+                if (missing > 0) {
+                    mDroppedFrames += missing;
+                }
+                long jitter = Math.abs(delta - expected);
+                mMaxJitter = Math.max(mMaxJitter, jitter);
+                mJitterHistogram[Math.min(JITTER_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(jitter / 1_000))]++;
+            }
+            mLastTimestamp = timestamp;
+
+            if (mWindowStart == 0 || timestamp < mWindowStart) {
+                mWindowStart = timestamp;
+                mWindowFrames = 0;
+            } else if (timestamp - mWindowStart >= FPS_WINDOW_NS) {
+                mEffectiveFps = mWindowFrames * 1e9f / (timestamp - mWindowStart);
+                mWindowStart = timestamp;
+                mWindowFrames = 0;
+                if (mMinFps > 0 && mEffectiveFps < mMinFps * ALERT_THRESHOLD
+                        && (mLastAlertTimestamp == Long.MIN_VALUE || timestamp - mLastAlertTimestamp >= ALERT_INTERVAL_NS)) {
+                    mLastAlertTimestamp = timestamp;
+                    mAlerts++;
+                    alertListener = mAlertListener;
+                    effectiveFps = mEffectiveFps;
+                    minFps = mMinFps;
+                }
+            }
+            mWindowFrames++;
+        }
+        if (alertListener != null) {
+            alertListener.onLowFrameRate(effectiveFps, minFps);
+        }
+    }
+
+    public synchronized void onCaptureCompleted() {
+        mCompletedFrames++;
+    }
+
+    /**
+     * @param reason        {@code CaptureFailure.getReason()}.
+     * @param imageCaptured {@code CaptureFailure.wasImageCaptured()}.
+     */
+    public synchronized void onCaptureFailed(int reason, boolean imageCaptured) {
+        mFailures[reason >= 0 && reason < FAILURE_REASONS ? reason : 0]++;
+        if (!imageCaptured) {
+            mFailuresWithoutImage++;
+        }
+    }
+
+    /**
+     * @param surfaceIndex the index of the surface in the request's targets, -1 if unknown.
+     */
+    public synchronized void onCaptureBufferLost(int surfaceIndex) {
+        mBufferLost[surfaceIndex >= 0 && surfaceIndex < MAX_SURFACES ? surfaceIndex : MAX_SURFACES - 1]++;
+    }
+
+    /**
+     * The frame rate of the last complete window, without taking a {@link #snapshot()}.
+     */
+    public synchronized float getEffectiveFps() {
+        return mEffectiveFps;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Records how the last recording was written to disk, called from any thread once it is, not cleared by
+     * {@link #reset()}.
+     */
+    public synchronized void onRecordingWritten(@NonNull AsyncFileWriter.Metrics metrics) {
+        mRecordingWrites = metrics;
+    }
+
+    @NonNull
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * An immutable copy of the metrics.
+     */
+    public static final class Snapshot {
+
+        public final long expectedFrameDuration;
+        public final float minFps;
+        public final long startedFrames;
+        public final long completedFrames;
+        /**
+         * Estimated from the gaps between the sensor timestamps.
+         */
+        public final long droppedFrames;
+        public final long maxJitter;
+        /**
+         * The frame rate of the last complete window.
+         */
+        public final float effectiveFps;
+        public final long alerts;
+        public final long failuresWithoutImage;
+        /**
+         * How the last recording was written, null if none has been.
+         */
+        @Nullable
+        public final AsyncFileWriter.Metrics recordingWrites;
+        private final int[] mGapHistogram;
+        private final int[] mJitterHistogram;
+        private final long[] mFailures;
+        private final long[] mBufferLost;
+
+        private Snapshot(CaptureMetrics metrics) {
+            expectedFrameDuration = metrics.mExpectedFrameDuration;
+            minFps = metrics.mMinFps;
+            startedFrames = metrics.mStartedFrames;
+            completedFrames = metrics.mCompletedFrames;
+            droppedFrames = metrics.mDroppedFrames;
+            maxJitter = metrics.mMaxJitter;
+            effectiveFps = metrics.mEffectiveFps;
+            alerts = metrics.mAlerts;
+            failuresWithoutImage = metrics.mFailuresWithoutImage;
+            recordingWrites = metrics.mRecordingWrites;
+            mGapHistogram = metrics.mGapHistogram.clone();
+            mJitterHistogram = metrics.mJitterHistogram.clone();
+            mFailures = metrics.mFailures.clone();
+            mBufferLost = metrics.mBufferLost.clone();
+        }
+
+        /**
+         * @param bucket gaps of [bucket / 4, (bucket + 1) / 4) expected frame durations.
+         */
+        public int getGapCount(int bucket) {
+            return mGapHistogram[bucket];
+        }
+
+        /**
+         * @param bucket jitter of [2^(bucket - 1), 2^bucket) microseconds.
+         */
+        public int getJitterCount(int bucket) {
+            return mJitterHistogram[bucket];
+        }
+
+        public long getFailures(int reason) {
+            return mFailures[reason];
+        }
+
+        public long getBufferLost(int surfaceIndex) {
+            return mBufferLost[surfaceIndex];
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "expectedFrameDuration=" + expectedFrameDuration +
+                    ", minFps=" + minFps +
+                    ", startedFrames=" + startedFrames +
+                    ", completedFrames=" + completedFrames +
+                    ", droppedFrames=" + droppedFrames +
+                    ", maxJitter=" + maxJitter +
+                    ", effectiveFps=" + effectiveFps +
+                    ", alerts=" + alerts +
+                    ", failures=" + Arrays.toString(mFailures) +
+                    ", failuresWithoutImage=" + failuresWithoutImage +
+                    ", bufferLost=" + Arrays.toString(mBufferLost) +
+                    ", gapHistogram=" + Arrays.toString(mGapHistogram) +
+                    ", jitterHistogram=" + Arrays.toString(mJitterHistogram) +
+                    ", recordingWrites=" + recordingWrites +
+                    '}';
+        }
+
+    }
+
+}
@@ -0,0 +1,332 @@
+package me.ztiany.capturer;
+
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.util.Range;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * A named set of capture request settings: the template, the AF mode, a fixed AE fps range and the ISP processing
+ * modes. Switching profiles only replaces the repeating request, the session is kept.
+ */
+public final class CaptureProfile {
+
+    public static final String PREVIEW = "preview";
+
+    public static final String RECORD = "record";
+
+    public static final String LOW_POWER_BACKGROUND = "low-power-background";
+
+    public static final String ANALYTICS = "analytics";
+
+    public static final String TIMELAPSE = "timelapse";
+
+    /**
+     * The frame rate of {@link #lowPowerBackground(int)} never goes above this.
+     */
+    private static final int LOW_POWER_MAX_FRAME_RATE = 15;
+
+    /**
+     * Means the key is left to the template.
+     */
+    public static final int UNSET = -1;
+
+    public final String name;
+
+    /**
+     * One of {@code CameraDevice.TEMPLATE_XXX}.
+     */
+    public final int template;
+
+    /**
+     * One of {@code CameraMetadata.CONTROL_AF_MODE_XXX}.
+     */
+    public final int afMode;
+
+    /**
+     * The fps of the fixed AE target fps range, 0 means the range is left to the template.
+     */
+    public final int frameRate;
+
+    /**
+     * The sensor frame duration in nanoseconds, 0 means the frame rate is driven by AE. Only honored with manual
+     * exposure, see {@link #isManualFrameDuration(CameraCapabilities)}, otherwise the slowest AE fps range is used.
+     */
+    public final long frameDuration;
+
+    /**
+     * One of {@code CameraMetadata.NOISE_REDUCTION_MODE_XXX}.
+     */
+    public final int noiseReductionMode;
+
+    /**
+     * One of {@code CameraMetadata.EDGE_MODE_XXX}.
+     */
+    public final int edgeMode;
+
+    private CaptureProfile(Builder builder) {
+        name = builder.name;
+        template = builder.template;
+        afMode = builder.afMode;
+        frameRate = builder.frameRate;
+        frameDuration = builder.frameDuration;
+        noiseReductionMode = builder.noiseReductionMode;
+        edgeMode = builder.edgeMode;
+    }
+
+    /**
+     * For the preview without recording.
+     */
+    @NonNull
+    public static CaptureProfile preview(int frameRate) {
+        return new Builder(PREVIEW)
+                .template(CameraDevice.TEMPLATE_PREVIEW)
+                .afMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE)
+                .frameRate(frameRate)
+                .noiseReductionMode(CameraMetadata.NOISE_REDUCTION_MODE_FAST)
+                .edgeMode(CameraMetadata.EDGE_MODE_FAST)
+                .build();
+    }
+
+    /**
+     * For recording: a constant frame rate, smooth video focusing and the processing that keeps up with the fps.
+     */
+    @NonNull
+    public static CaptureProfile record(int frameRate) {
+        return new Builder(RECORD)
+                .template(CameraDevice.TEMPLATE_RECORD)
+                .afMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)
+                .frameRate(frameRate)
+                .noiseReductionMode(CameraMetadata.NOISE_REDUCTION_MODE_FAST)
+                .edgeMode(CameraMetadata.EDGE_MODE_FAST)
+                .build();
+    }
+
+    /**
+     * For unattended background capturing: at most {@value #LOW_POWER_MAX_FRAME_RATE} fps and no optional
+     * processing.
+     */
+    @NonNull
+    public static CaptureProfile lowPowerBackground(int frameRate) {
+        return new Builder(LOW_POWER_BACKGROUND)
+                .template(CameraDevice.TEMPLATE_RECORD)
+                .afMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)
+                .frameRate(frameRate <= 0 ? LOW_POWER_MAX_FRAME_RATE : Math.min(frameRate, LOW_POWER_MAX_FRAME_RATE))
+                .noiseReductionMode(CameraMetadata.NOISE_REDUCTION_MODE_OFF)
+                .edgeMode(CameraMetadata.EDGE_MODE_OFF)
+                .build();
+    }
+
+    /**
+     * For frame analysis: the raw-est frames at a constant rate, sharpening and denoising would only get in the way.
+     */
+    @NonNull
+    public static CaptureProfile analytics(int frameRate) {
+        return new Builder(ANALYTICS)
+                .template(CameraDevice.TEMPLATE_PREVIEW)
+                .afMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)
+                .frameRate(frameRate)
+                .noiseReductionMode(CameraMetadata.NOISE_REDUCTION_MODE_OFF)
+                .edgeMode(CameraMetadata.EDGE_MODE_OFF)
+                .build();
+    }
+
+    /**
+     * For timelapse: the sensor runs one frame per interval where manual exposure is supported, at the slowest AE fps
+     * range elsewhere. There is plenty of time per frame, so the processing is high quality.
+     */
+    @NonNull
+    public static CaptureProfile timelapse(long intervalMs) {
+        return new Builder(TIMELAPSE)
+                .template(CameraDevice.TEMPLATE_RECORD)
+                .afMode(CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO)
+                .frameDuration(TimeUnit.MILLISECONDS.toNanos(intervalMs))
+                .noiseReductionMode(CameraMetadata.NOISE_REDUCTION_MODE_HIGH_QUALITY)
+                .edgeMode(CameraMetadata.EDGE_MODE_HIGH_QUALITY)
+                .build();
+    }
+
+    /**
+     * @return true if {@link #frameDuration} can be programmed, which needs AE to be off.
+     */
+    public boolean isManualFrameDuration(@NonNull CameraCapabilities capabilities) {
+        return frameDuration > 0 && capabilities.manualSensorSupported && capabilities.maxFrameDuration > 0;
+    }
+
+    /**
+     * Sets the profile to the request, the modes that the camera doesn't support are left to the template.
+     */
+    public void applyTo(@NonNull CaptureRequest.Builder builder, @NonNull CameraCapabilities capabilities) {
+        if (afMode != UNSET && capabilities.isAfModeSupported(afMode)) {
+            builder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+        }
+        int fpsRange = selectFpsRange(capabilities);
+        if (fpsRange >= 0) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(
+                    capabilities.getFpsRangeLower(fpsRange),
+                    capabilities.getFpsRangeUpper(fpsRange)
+            ));
+        } else if (frameRate > 0) {
+            Timber.w("camera %s has no fps range for %d fps.", capabilities.cameraId, frameRate);
+        }
+        if (noiseReductionMode != UNSET && capabilities.isNoiseReductionModeSupported(noiseReductionMode)) {
+            builder.set(CaptureRequest.NOISE_REDUCTION_MODE, noiseReductionMode);
+        }
+        if (edgeMode != UNSET && capabilities.isEdgeModeSupported(edgeMode)) {
+            builder.set(CaptureRequest.EDGE_MODE, edgeMode);
+        }
+    }
+
+    /**
+     * @return the index of the AE target fps range that {@link #applyTo} sets, -1 if it is left to the template.
+     */
+    public int selectFpsRange(@NonNull CameraCapabilities capabilities) {
+        return frameDuration > 0 ? selectSlowestFpsRange(capabilities) : selectFpsRange(capabilities, frameRate);
+    }
+
+    /**
+     * Applies the profile with AE turned off, keeping the exposure that AE metered last and stretching the frame
+     * duration to {@link #frameDuration}, capped by the sensor's maximum.
+     *
+     * @param exposureTime the metered {@code SENSOR_EXPOSURE_TIME} in nanoseconds.
+     * @param sensitivity  the metered {@code SENSOR_SENSITIVITY}.
+     */
+    public void applyManualExposureTo(
+            @NonNull CaptureRequest.Builder builder,
+            @NonNull CameraCapabilities capabilities,
+            long exposureTime,
+            int sensitivity
+    ) {
+        applyTo(builder, capabilities);
+        long duration = Math.min(frameDuration, capabilities.maxFrameDuration);
+        builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
+        builder.set(CaptureRequest.SENSOR_FRAME_DURATION, duration);
+        builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, Math.min(exposureTime, duration));
+        builder.set(CaptureRequest.SENSOR_SENSITIVITY, sensitivity);
+    }
+
+    /**
+     * @return the index of the range with the lowest upper bound, preferring the higher lower bound on a tie so the
+     * rate is steady, -1 if there is no range.
+     */
+    static int selectSlowestFpsRange(@NonNull CameraCapabilities capabilities) {
+        int best = -1;
+        for (int i = 0; i < capabilities.getFpsRangeCount(); i++) {
+            if (best < 0
+                    || capabilities.getFpsRangeUpper(i) < capabilities.getFpsRangeUpper(best)
+                    || (capabilities.getFpsRangeUpper(i) == capabilities.getFpsRangeUpper(best)
+                    && capabilities.getFpsRangeLower(i) > capabilities.getFpsRangeLower(best))) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Prefers the fixed range [fps, fps], then the range ending at fps with the highest lower bound, then the
+     * narrowest range that contains fps.
+     *
+     * @return the index of the range in the capabilities, -1 if frameRate is 0 or no range contains it.
+     */
+    static int selectFpsRange(@NonNull CameraCapabilities capabilities, int frameRate) {
+        if (frameRate <= 0) {
+            return -1;
+        }
+        int best = -1;
+        int bestRank = Integer.MAX_VALUE;
+        for (int i = 0; i < capabilities.getFpsRangeCount(); i++) {
+            int lower = capabilities.getFpsRangeLower(i);
+            int upper = capabilities.getFpsRangeUpper(i);
+            if (lower > frameRate || upper < frameRate) {
+                continue;
+            }
+            // ranges ending at fps rank before the others, and narrower ranges rank before wider ones.
+            int rank = (upper == frameRate ? 0 : 1_000) + (upper - lower);
+            if (rank < bestRank) {
+                bestRank = rank;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CaptureProfile{" +
+                "name='" + name + '\'' +
+                ", template=" + template +
+                ", afMode=" + afMode +
+                ", frameRate=" + frameRate +
+                ", frameDuration=" + frameDuration +
+                ", noiseReductionMode=" + noiseReductionMode +
+                ", edgeMode=" + edgeMode +
+                '}';
+    }
+
+    public static class Builder {
+
+        private final String name;
+        private int template = CameraDevice.TEMPLATE_PREVIEW;
+        private int afMode = UNSET;
+        private int frameRate;
+        private long frameDuration;
+        private int noiseReductionMode = UNSET;
+        private int edgeMode = UNSET;
+
+        public Builder(@NonNull String name) {
+            this.name = name;
+        }
+
+        public Builder template(int template) {
+            this.template = template;
+            return this;
+        }
+
+        public Builder afMode(int afMode) {
+            this.afMode = afMode;
+            return this;
+        }
+
+        public Builder frameRate(int frameRate) {
+            this.frameRate = frameRate;
+            return this;
+        }
+
+        public Builder frameDuration(long frameDuration) {
+            this.frameDuration = frameDuration;
+            return this;
+        }
+
+        public Builder noiseReductionMode(int noiseReductionMode) {
+            this.noiseReductionMode = noiseReductionMode;
+            return this;
+        }
+
+        public Builder edgeMode(int edgeMode) {
+            this.edgeMode = edgeMode;
+            return this;
+        }
+
+        public CaptureProfile build() {
+            if (frameRate < 0) {
+                throw new IllegalArgumentException("frameRate must not be negative.");
+            }
+            if (frameDuration < 0) {
+                throw new IllegalArgumentException("frameDuration must not be negative.");
+            }
+            if (frameRate > 0 && frameDuration > 0) {
+                throw new IllegalArgumentException("frameRate and frameDuration are exclusive.");
+            }
+            return new CaptureProfile(this);
+        }
+
+    }
+
+}
@@ -6,6 +6,7 @@ import androidx.annotation.IntDef;
         CapturerEvent.STARTED,
         CapturerEvent.STOPPED,
         CapturerEvent.ERROR,
+        CapturerEvent.REJECTED,
 })
 public @interface CapturerEvent {
 
@@ -15,4 +16,9 @@ public @interface CapturerEvent {
 
     int ERROR = 3;
 
+    /**
+     * Only answers a command that is not carried out, never broadcast.
+     */
+    int REJECTED = 4;
+
 }
@@ -0,0 +1,387 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Orders the capturing commands of the {@link FloatingCameraConnection.Capturer}, one of them is carried out at a time.
+ *
+ * <p>
+ * Every command gets the next sequence number. A command that would not change anything is answered without being
+ * carried out: a repeated start or stop of a session shares the answer of the first one, a start and a stop of the same
+ * session that are both still waiting cancel each other out, and a stop followed by a start of the session that keeps
+ * capturing is dropped. A session is captured once, its id can't be started again after it is over, and only one
+ * session captures at a time, a start of another session is rejected until the current one is stopped.
+ * </p>
+ */
+@MainThread
+final class CapturingCommandQueue {
+
+    /**
+     * How many finished sessions are remembered to answer their repeated commands.
+     */
+    static final int FINISHED_SESSIONS = 16;
+
+    /**
+     * How long a start may wait for its answer, after that the start is given up and the session fails.
+     */
+    static final long START_TIMEOUT_MS = 10_000;
+
+    /**
+     * Carries out the commands.
+     */
+    interface Executor {
+
+        /**
+         * Answered later through {@link #onEvent} with {@link CapturerEvent#STARTED} or {@link CapturerEvent#ERROR}.
+         */
+        void executeStart(String sessionId, VideoSpec videoSpec);
+
+        /**
+         * Answered through {@link #onEvent} before it returns if the session was capturing or starting, with
+         * {@link CapturerEvent#STOPPED}, or {@link CapturerEvent#ERROR} if it failed to stop.
+         */
+        void executeStop(String sessionId);
+
+    }
+
+    /**
+     * Runs the timeouts on the thread of the queue.
+     */
+    interface Timer {
+
+        void schedule(@NonNull Runnable runnable, long delayMs);
+
+        void cancel(@NonNull Runnable runnable);
+
+    }
+
+    private final Executor mExecutor;
+
+    @Nullable
+    private final Timer mTimer;
+
+    private final Runnable mStartTimeout = this::onStartTimeout;
+
+    private final ArrayDeque<Command> mPending = new ArrayDeque<>();
+
+    @Nullable
+    private Command mInFlight;
+
+    private boolean mDispatching;
+
+    @CapturingState
+    private int mState = CapturingState.IDLE;
+
+    @Nullable
+    private String mSessionId;
+
+    private long mNextSequence = 1;
+
+    private long mLastSequence;
+
+    /**
+     * The outcome of the finished sessions, {@link CapturerEvent#STOPPED} or {@link CapturerEvent#ERROR}.
+     */
+    private final Map<String, Integer> mFinishedSessions = new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > FINISHED_SESSIONS;
+        }
+    };
+
+    CapturingCommandQueue(@NonNull Executor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * @param timer gives up the starts that are not answered in {@link #START_TIMEOUT_MS}, they wait forever without
+     *              it.
+     */
+    CapturingCommandQueue(@NonNull Executor executor, @Nullable Timer timer) {
+        mExecutor = executor;
+        mTimer = timer;
+    }
+
+    /**
+     * @return the sequence number of the command.
+     */
+    long start(@NonNull String sessionId, @NonNull VideoSpec videoSpec, @Nullable FloatingCameraConnection.CommandCallback callback) {
+        long sequence = mNextSequence++;
+
+        if (mFinishedSessions.containsKey(sessionId)) {
+            Timber.w("command #%d: session %s is over.", sequence, sessionId);
+            answer(sequence, sessionId, callback, CapturerEvent.REJECTED);
+            return sequence;
+        }
+
+        Command last = mPending.peekLast();
+        if (last != null && !last.mStart && last.mSessionId.equals(sessionId)) {
+            // the stop is still waiting, the session just keeps capturing.
+            mPending.pollLast();
+            answer(last, CapturerEvent.REJECTED);
+        }
+
+        String tailSession = tailSession();
+        if (sessionId.equals(tailSession)) {
+            Command original = find(true, sessionId);
+            if (original != null) {
+                original.add(callback);
+            } else {
+                answer(sequence, sessionId, callback, CapturerEvent.STARTED);
+            }
+            return sequence;
+        }
+        if (tailSession != null) {
+            Timber.w("command #%d: session %s is still capturing.", sequence, tailSession);
+            answer(sequence, sessionId, callback, CapturerEvent.REJECTED);
+            return sequence;
+        }
+
+        mPending.addLast(new Command(sequence, true, sessionId, videoSpec, callback));
+        dispatch();
+        return sequence;
+    }
+
+    /**
+     * @return the sequence number of the command.
+     */
+    long stop(@NonNull String sessionId, @Nullable FloatingCameraConnection.CommandCallback callback) {
+        long sequence = mNextSequence++;
+
+        if (!sessionId.equals(tailSession())) {
+            Command original = find(false, sessionId);
+            if (original != null) {
+                original.add(callback);
+                return sequence;
+            }
+            Integer outcome = mFinishedSessions.get(sessionId);
+            answer(sequence, sessionId, callback, outcome != null && outcome == CapturerEvent.STOPPED ? CapturerEvent.STOPPED : CapturerEvent.REJECTED);
+            return sequence;
+        }
+
+        Command last = mPending.peekLast();
+        if (last != null && last.mStart && last.mSessionId.equals(sessionId)) {
+            // the start is still waiting, neither of them is needed.
+            mPending.pollLast();
+            mFinishedSessions.put(sessionId, CapturerEvent.STOPPED);
+            answer(last, CapturerEvent.REJECTED);
+            answer(sequence, sessionId, callback, CapturerEvent.STOPPED);
+            return sequence;
+        }
+
+        mPending.addLast(new Command(sequence, false, sessionId, null, callback));
+        dispatch();
+        return sequence;
+    }
+
+    /**
+     * Takes every event of the capturer, the answers to the commands as well as the ones it raises by itself.
+     */
+    void onEvent(@NonNull String sessionId, @CapturerEvent int event) {
+        if (event == CapturerEvent.STARTED && mFinishedSessions.containsKey(sessionId)) {
+            // the start has been given up meanwhile.
+            Timber.w("session %s is over, its start is late.", sessionId);
+            return;
+        }
+        Command inFlight = mInFlight;
+        boolean answers = inFlight != null && inFlight.mSessionId.equals(sessionId)
+                && (event == CapturerEvent.ERROR || event == (inFlight.mStart ? CapturerEvent.STARTED : CapturerEvent.STOPPED));
+
+        if (event == CapturerEvent.STARTED) {
+            mState = CapturingState.CAPTURING;
+            mSessionId = sessionId;
+        } else if ((event == CapturerEvent.STOPPED || event == CapturerEvent.ERROR)
+                && (answers || sessionId.equals(mSessionId))) {
+            mState = CapturingState.IDLE;
+            mSessionId = null;
+            mFinishedSessions.put(sessionId, event);
+        }
+
+        if (answers) {
+            mInFlight = null;
+            if (inFlight.mStart && mTimer != null) {
+                mTimer.cancel(mStartTimeout);
+            }
+            answer(inFlight, event);
+            dispatch();
+        }
+    }
+
+    /**
+     * Answers everything that is waiting, for the capturer is going away.
+     */
+    void clear() {
+        Command inFlight = mInFlight;
+        mInFlight = null;
+        if (inFlight != null) {
+            answer(inFlight, CapturerEvent.REJECTED);
+        }
+        if (mTimer != null) {
+            mTimer.cancel(mStartTimeout);
+        }
+        while (!mPending.isEmpty()) {
+            answer(mPending.pollFirst(), CapturerEvent.REJECTED);
+        }
+    }
+
+    @CapturingState
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * The session that is starting, capturing or stopping.
+     */
+    @Nullable
+    String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * The highest sequence number that has been answered.
+     */
+    long getLastSequence() {
+        return mLastSequence;
+    }
+
+    int getPendingCount() {
+        return mPending.size() + (mInFlight == null ? 0 : 1);
+    }
+
+    /**
+     * The session that is capturing once all the commands are carried out.
+     */
+    @Nullable
+    private String tailSession() {
+        String session = mState == CapturingState.STOPPING ? null : mSessionId;
+        if (mInFlight != null) {
+            session = mInFlight.mStart ? mInFlight.mSessionId : null;
+        }
+        for (Command command : mPending) {
+            if (command.mStart) {
+                session = command.mSessionId;
+            } else if (command.mSessionId.equals(session)) {
+                session = null;
+            }
+        }
+        return session;
+    }
+
+    @Nullable
+    private Command find(boolean start, String sessionId) {
+        if (mInFlight != null && mInFlight.mStart == start && mInFlight.mSessionId.equals(sessionId)) {
+            return mInFlight;
+        }
+        Iterator<Command> iterator = mPending.descendingIterator();
+        while (iterator.hasNext()) {
+            Command command = iterator.next();
+            if (command.mStart == start && command.mSessionId.equals(sessionId)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private void dispatch() {
+        // the executor may answer before it returns, which comes back here.
+        if (mDispatching) {
+            return;
+        }
+        mDispatching = true;
+        try {
+            while (mInFlight == null && !mPending.isEmpty()) {
+                Command command = mPending.pollFirst();
+                mInFlight = command;
+                mSessionId = command.mSessionId;
+                Timber.d("command #%d: %s %s", command.mSequence, command.mStart ? "start" : "stop", command.mSessionId);
+                if (command.mStart) {
+                    mState = CapturingState.STARTING;
+                    if (mTimer != null) {
+                        mTimer.schedule(mStartTimeout, START_TIMEOUT_MS);
+                    }
+                    //noinspection ConstantConditions
+                    mExecutor.executeStart(command.mSessionId, command.mVideoSpec);
+                } else {
+                    mState = CapturingState.STOPPING;
+                    mExecutor.executeStop(command.mSessionId);
+                    if (mInFlight == command) {
+                        // nothing was capturing.
+                        mInFlight = null;
+                        mState = CapturingState.IDLE;
+                        mSessionId = null;
+                        answer(command, CapturerEvent.REJECTED);
+                    }
+                }
+            }
+        } finally {
+            mDispatching = false;
+        }
+    }
+
+    private void onStartTimeout() {
+        Command inFlight = mInFlight;
+        if (inFlight == null || !inFlight.mStart) {
+            return;
+        }
+        Timber.w("command #%d: start %s is not answered in %d ms.", inFlight.mSequence, inFlight.mSessionId, START_TIMEOUT_MS);
+        // whatever has been started is torn down, a late answer is about a session that is over.
+        mExecutor.executeStop(inFlight.mSessionId);
+        if (mInFlight == inFlight) {
+            onEvent(inFlight.mSessionId, CapturerEvent.ERROR);
+        }
+    }
+
+    private void answer(Command command, @CapturerEvent int result) {
+        mLastSequence = Math.max(mLastSequence, command.mSequence);
+        for (FloatingCameraConnection.CommandCallback callback : command.mCallbacks) {
+            callback.onCommandResult(command.mSessionId, result);
+        }
+    }
+
+    private void answer(long sequence, String sessionId, @Nullable FloatingCameraConnection.CommandCallback callback, @CapturerEvent int result) {
+        mLastSequence = Math.max(mLastSequence, sequence);
+        if (callback != null) {
+            callback.onCommandResult(sessionId, result);
+        }
+    }
+
+    private static final class Command {
+
+        final long mSequence;
+        final boolean mStart;
+        final String mSessionId;
+        @Nullable
+        final VideoSpec mVideoSpec;
+        /**
+         * The callbacks of this command and of its repetitions.
+         */
+        final List<FloatingCameraConnection.CommandCallback> mCallbacks = new ArrayList<>(1);
+
+        Command(long sequence, boolean start, String sessionId, @Nullable VideoSpec videoSpec, @Nullable FloatingCameraConnection.CommandCallback callback) {
+            mSequence = sequence;
+            mStart = start;
+            mSessionId = sessionId;
+            mVideoSpec = videoSpec;
+            add(callback);
+        }
+
+        void add(@Nullable FloatingCameraConnection.CommandCallback callback) {
+            if (callback != null) {
+                mCallbacks.add(callback);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,83 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One sample of a recording's progress. The samples go across processes packed back to back into a byte array,
+ * {@link #RECORD_SIZE} bytes each, instead of one extra per value.
+ */
+public final class CapturingProgress {
+
+    /**
+     * elapsed time, bytes written, effective fps and dropped frames.
+     */
+    static final int RECORD_SIZE = 8 + 8 + 4 + 8;
+
+    /**
+     * Since the recording started, in milliseconds.
+     */
+    public final long elapsedMs;
+
+    /**
+     * The size of the recording so far.
+     */
+    public final long bytesWritten;
+
+    /**
+     * Measured by {@link CaptureMetrics} over the last second.
+     */
+    public final float effectiveFps;
+
+    /**
+     * Estimated by {@link CaptureMetrics} since the recording started.
+     */
+    public final long droppedFrames;
+
+    public CapturingProgress(long elapsedMs, long bytesWritten, float effectiveFps, long droppedFrames) {
+        this.elapsedMs = elapsedMs;
+        this.bytesWritten = bytesWritten;
+        this.effectiveFps = effectiveFps;
+        this.droppedFrames = droppedFrames;
+    }
+
+    @NonNull
+    static byte[] encode(@NonNull List<CapturingProgress> batch) {
+        ByteBuffer buffer = ByteBuffer.allocate(batch.size() * RECORD_SIZE);
+        for (CapturingProgress progress : batch) {
+            buffer.putLong(progress.elapsedMs)
+                    .putLong(progress.bytesWritten)
+                    .putFloat(progress.effectiveFps)
+                    .putLong(progress.droppedFrames);
+        }
+        return buffer.array();
+    }
+
+    @NonNull
+    static List<CapturingProgress> decode(@NonNull byte[] bytes) {
+        if (bytes.length % RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("not a batch of progress: " + bytes.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<CapturingProgress> batch = new ArrayList<>(bytes.length / RECORD_SIZE);
+        while (buffer.hasRemaining()) {
+            batch.add(new CapturingProgress(buffer.getLong(), buffer.getLong(), buffer.getFloat(), buffer.getLong()));
+        }
+        return batch;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CapturingProgress{" +
+                "elapsedMs=" + elapsedMs +
+                ", bytesWritten=" + bytesWritten +
+                ", effectiveFps=" + effectiveFps +
+                ", droppedFrames=" + droppedFrames +
+                '}';
+    }
+
+}
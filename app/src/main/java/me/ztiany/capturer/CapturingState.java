@@ -0,0 +1,21 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.IntDef;
+
+@IntDef({
+        CapturingState.IDLE,
+        CapturingState.STARTING,
+        CapturingState.CAPTURING,
+        CapturingState.STOPPING,
+})
+public @interface CapturingState {
+
+    int IDLE = 0;
+
+    int STARTING = 1;
+
+    int CAPTURING = 2;
+
+    int STOPPING = 3;
+
+}
@@ -0,0 +1,376 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
+/**
+ * One run of the compaction of aging recordings: the ones the {@link CompactionPolicy} picks are rewritten by a
+ * {@link Transcoder} next to themselves and moved over the originals, a few at a time.
+ *
+ * <p>
+ * The run stops as soon as {@link #cancel()} is called or the {@link Conditions} no longer hold, the transcodings in
+ * progress are dropped. Every recording that is done is appended to a checkpoint file, so the next run goes on with
+ * the others, and a recording that doesn't get smaller is not tried again.
+ * </p>
+ */
+public final class CompactionJob {
+
+    static final String TEMP_SUFFIX = ".compacting";
+
+    /**
+     * Whether the device allows the work, e.g. it is idle, charging and not recording.
+     */
+    public interface Conditions {
+
+        boolean isMet();
+
+    }
+
+    public static final class Result {
+
+        public final int compacted;
+
+        /**
+         * Not smaller once rewritten, they are kept as they are.
+         */
+        public final int unchanged;
+
+        public final int failed;
+
+        public final long savedBytes;
+
+        /**
+         * Stopped before all the picked recordings were done, the job should run again.
+         */
+        public final boolean interrupted;
+
+        Result(int compacted, int unchanged, int failed, long savedBytes, boolean interrupted) {
+            this.compacted = compacted;
+            this.unchanged = unchanged;
+            this.failed = failed;
+            this.savedBytes = savedBytes;
+            this.interrupted = interrupted;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "compacted=" + compacted +
+                    ", unchanged=" + unchanged +
+                    ", failed=" + failed +
+                    ", savedBytes=" + savedBytes +
+                    ", interrupted=" + interrupted +
+                    '}';
+        }
+
+    }
+
+    private final RecordingStorage mStorage;
+
+    private final CompactionPolicy mPolicy;
+
+    private final Transcoder mTranscoder;
+
+    private final Conditions mConditions;
+
+    private final File mCheckpointFile;
+
+    private final int mParallelism;
+
+    private final RecordingFinisher mFinisher;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * Guarded by this.
+     */
+    private int mCompacted;
+    private int mUnchanged;
+    private int mFailed;
+    private long mSavedBytes;
+    private boolean mInterrupted;
+
+    private CompactionJob(Builder builder) {
+        mStorage = builder.storage;
+        mPolicy = builder.policy;
+        mTranscoder = builder.transcoder;
+        mConditions = builder.conditions;
+        mCheckpointFile = builder.checkpointFile;
+        mParallelism = builder.parallelism;
+        mFinisher = builder.finisher;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Stops the run, the transcodings in progress notice it within a frame.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Runs once, blocking until the picked recordings are done or the run is stopped.
+     */
+    @WorkerThread
+    @NonNull
+    public Result run() {
+        deleteLeftovers();
+        Set<String> compacted = loadCheckpoint();
+        if (isStopped()) {
+            return new Result(0, 0, 0, 0, true);
+        }
+        List<RecordingStorage.Recording> selected = mPolicy.select(mStorage.getRecordings(), System.currentTimeMillis(), compacted);
+        if (selected.isEmpty()) {
+            return new Result(0, 0, 0, 0, false);
+        }
+        Timber.d("compacting %d recordings.", selected.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mParallelism, selected.size()), runnable -> {
+            Thread thread = new Thread(runnable, "CompactionJob");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(selected.size());
+            for (RecordingStorage.Recording recording : selected) {
+                futures.add(executor.submit(() -> compact(recording)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException exception) {
+            mCancelled = true;
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exception) {
+            throw new IllegalStateException(exception.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        synchronized (this) {
+            return new Result(mCompacted, mUnchanged, mFailed, mSavedBytes, mInterrupted || mCancelled);
+        }
+    }
+
+    private boolean isStopped() {
+        return mCancelled || !mConditions.isMet();
+    }
+
+    private void compact(RecordingStorage.Recording recording) {
+        if (isStopped()) {
+            synchronized (this) {
+                mInterrupted = true;
+            }
+            return;
+        }
+        File file = recording.file;
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            if (!mTranscoder.transcode(file, temp, this::isStopped)) {
+                deleteIfExists(temp);
+                synchronized (this) {
+                    mInterrupted = true;
+                }
+                return;
+            }
+            long before = file.length();
+            long after = temp.length();
+            if (after <= 0 || after >= before) {
+                deleteIfExists(temp);
+                Timber.d("%s is %d bytes, %d once compacted, it is kept.", file.getName(), before, after);
+                checkpoint(file);
+                synchronized (this) {
+                    mUnchanged++;
+                }
+                return;
+            }
+            // the transcoder writes moov at the end, the recording had it in front.
+            RecordingFinisher.Staged staged = mFinisher.finish(temp);
+            deleteIfExists(temp);
+            if (!file.exists() || recording.isPinned()) {
+                // evicted, or pinned e.g. for an upload, meanwhile.
+                staged.discard();
+                return;
+            }
+            if (!staged.replace(file)) {
+                return;
+            }
+            mStorage.onRecordingFinished(file);
+            checkpoint(file);
+            Timber.d("%s is compacted from %d to %d bytes.", file.getName(), before, after);
+            synchronized (this) {
+                mCompacted++;
+                mSavedBytes += before - after;
+            }
+        } catch (IOException | RuntimeException exception) {
+            // tried again by the next run.
+            Timber.e(exception, "%s can't be compacted.", file);
+            deleteIfExists(temp);
+            synchronized (this) {
+                mFailed++;
+            }
+        }
+    }
+
+    /**
+     * The transcodings cut short by the death of the process.
+     */
+    private void deleteLeftovers() {
+        File[] leftovers = mStorage.getDirectory().listFiles((dir, name) -> name.contains(TEMP_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                deleteIfExists(leftover);
+            }
+        }
+    }
+
+    /**
+     * @return the names in the checkpoint of the recordings that are still there, the others are dropped from it.
+     */
+    @NonNull
+    private synchronized Set<String> loadCheckpoint() {
+        Set<String> names = new HashSet<>();
+        if (!mCheckpointFile.exists()) {
+            return names;
+        }
+        boolean stale = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mCheckpointFile), StandardCharsets.UTF_8))) {
+            String name;
+            while ((name = reader.readLine()) != null) {
+                if (new File(mStorage.getDirectory(), name).exists()) {
+                    names.add(name);
+                } else {
+                    stale = true;
+                }
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "CompactionJob.loadCheckpoint()");
+        }
+        if (stale) {
+            File temp = new File(mCheckpointFile.getPath() + ".tmp");
+            try {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                    for (String name : names) {
+                        writer.write(name);
+                        writer.write('\n');
+                    }
+                }
+                if (!temp.renameTo(mCheckpointFile)) {
+                    throw new IOException(temp + " can't replace " + mCheckpointFile);
+                }
+            } catch (IOException exception) {
+                Timber.e(exception, "CompactionJob.loadCheckpoint()");
+            }
+        }
+        return names;
+    }
+
+    private synchronized void checkpoint(File file) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(mCheckpointFile, true)) {
+            stream.write((file.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+            stream.getFD().sync();
+        }
+    }
+
+    private static void deleteIfExists(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("%s can't be deleted.", file);
+        }
+    }
+
+    public static class Builder {
+
+        private RecordingStorage storage;
+
+        private CompactionPolicy policy = CompactionPolicy.newBuilder().build();
+
+        private Transcoder transcoder;
+
+        private Conditions conditions = () -> true;
+
+        /**
+         * 记录已压缩录像的文件，任务中断后据此继续。
+         */
+        private File checkpointFile;
+
+        /**
+         * 同时转码的录像个数，硬件编解码器的实例有限。
+         */
+        private int parallelism = 1;
+
+        /**
+         * 写出压缩后的录像，建立关键帧索引并重新签署清单，与录制服务共用同一种收尾方式。
+         */
+        private RecordingFinisher finisher = RecordingFinisher.newBuilder().build();
+
+        public Builder storage(@NonNull RecordingStorage storage) {
+            this.storage = storage;
+            return this;
+        }
+
+        public Builder policy(@NonNull CompactionPolicy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        public Builder transcoder(@NonNull Transcoder transcoder) {
+            this.transcoder = transcoder;
+            return this;
+        }
+
+        public Builder conditions(@NonNull Conditions conditions) {
+            this.conditions = conditions;
+            return this;
+        }
+
+        public Builder checkpointFile(@NonNull File checkpointFile) {
+            this.checkpointFile = checkpointFile;
+            return this;
+        }
+
+        public Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public Builder finisher(@NonNull RecordingFinisher finisher) {
+            this.finisher = finisher;
+            return this;
+        }
+
+        public CompactionJob build() {
+            if (storage == null || transcoder == null || checkpointFile == null) {
+                throw new IllegalArgumentException("storage, transcoder and checkpointFile are required");
+            }
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("parallelism must be positive");
+            }
+            return new CompactionJob(this);
+        }
+
+    }
+
+}
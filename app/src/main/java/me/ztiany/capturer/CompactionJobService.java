@@ -0,0 +1,93 @@
+package me.ztiany.capturer;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Runs the {@link CompactionJob} while the device is idle and charging. The system stops the job when either ends, and
+ * the job checks that nothing is being recorded before every frame.
+ */
+public class CompactionJobService extends JobService {
+
+    private static final int JOB_ID = 0x434A; // "CJ"
+
+    private static final long PERIOD_MS = TimeUnit.HOURS.toMillis(12);
+
+    /**
+     * The hardware encoders have few instances, and the camera may need one.
+     */
+    private static final int PARALLELISM = 2;
+
+    /**
+     * A third of what the recorder is assumed to write, see {@link RecordingStorage}.
+     */
+    private static final double BITS_PER_PIXEL = 0.05;
+
+    @Nullable
+    private volatile CompactionJob mJob;
+
+    /**
+     * Schedules the job if it is not, called at every start of the app.
+     */
+    public static void schedule(@NonNull Context context) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null || jobScheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID, new ComponentName(context, CompactionJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIOD_MS)
+                .setPersisted(true)
+                .build();
+        jobScheduler.schedule(jobInfo);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        RecordingStorage storage = AppContext.get(this).getRecordingStorage();
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        BatteryManager batteryManager = getSystemService(BatteryManager.class);
+        CompactionJob job = CompactionJob.newBuilder()
+                .storage(storage)
+                .transcoder(new MediaCodecTranscoder(BITS_PER_PIXEL, new KeystoreKeyWrapper()))
+                .conditions(() -> !storage.isRecording() && !powerManager.isInteractive() && batteryManager.isCharging())
+                .checkpointFile(new File(getFilesDir(), "compaction"))
+                .parallelism(PARALLELISM)
+                .finisher(AppContext.get(this).getRecordingFinisher())
+                .build();
+        mJob = job;
+        new Thread(() -> {
+            CompactionJob.Result result = job.run();
+            Timber.d("compaction: %s", result);
+            mJob = null;
+            // an interrupted run goes on at the next idle window rather than after the whole period.
+            jobFinished(params, result.interrupted);
+        }, "CompactionJobService").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        CompactionJob job = mJob;
+        if (job != null) {
+            job.cancel();
+        }
+        return true;
+    }
+
+}
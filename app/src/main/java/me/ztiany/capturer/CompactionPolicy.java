@@ -0,0 +1,80 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which recordings {@link CompactionJob} rewrites at a lower bit rate: the ones older than a threshold, oldest first,
+ * except the pinned ones, the one being recorded and the ones already compacted.
+ */
+public final class CompactionPolicy {
+
+    private final long mMinAgeMs;
+
+    private final int mMaxPerRun;
+
+    private CompactionPolicy(Builder builder) {
+        mMinAgeMs = builder.minAgeMs;
+        mMaxPerRun = builder.maxPerRun;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @param recordings what {@link RecordingStorage#getRecordings()} returns.
+     * @param now        {@code System.currentTimeMillis()}.
+     * @param compacted  the names of the recordings already compacted.
+     */
+    @NonNull
+    public List<RecordingStorage.Recording> select(@NonNull List<RecordingStorage.Recording> recordings, long now, @NonNull Set<String> compacted) {
+        List<RecordingStorage.Recording> selected = new ArrayList<>();
+        for (RecordingStorage.Recording recording : recordings) {
+            if (recording.mPinned || recording.mActive || now - recording.startTime < mMinAgeMs
+                    || compacted.contains(recording.file.getName())) {
+                continue;
+            }
+            selected.add(recording);
+        }
+        selected.sort(Comparator.comparingLong(recording -> recording.startTime));
+        return selected.size() > mMaxPerRun ? new ArrayList<>(selected.subList(0, mMaxPerRun)) : selected;
+    }
+
+    public static class Builder {
+
+        /**
+         * 录像至少要保存这么久才会被压缩，此前保持原画质。
+         */
+        private long minAgeMs = TimeUnit.HOURS.toMillis(48);
+
+        /**
+         * 每次最多压缩的录像个数，使一次任务的时长有上限。
+         */
+        private int maxPerRun = 20;
+
+        public Builder minAgeMs(long minAgeMs) {
+            this.minAgeMs = minAgeMs;
+            return this;
+        }
+
+        public Builder maxPerRun(int maxPerRun) {
+            this.maxPerRun = maxPerRun;
+            return this;
+        }
+
+        public CompactionPolicy build() {
+            if (minAgeMs < 0 || maxPerRun <= 0) {
+                throw new IllegalArgumentException("bad minAgeMs or maxPerRun");
+            }
+            return new CompactionPolicy(this);
+        }
+
+    }
+
+}
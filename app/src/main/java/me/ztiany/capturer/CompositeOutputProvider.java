@@ -0,0 +1,31 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Attaches several providers to one camera. The camera has a single extra output, so only one of them can stream at a
+ * time: the one that called {@link Camera2Handle#startCapturingCameraSession} last.
+ */
+public class CompositeOutputProvider implements OutputProvider {
+
+    private final OutputProvider[] mProviders;
+
+    public CompositeOutputProvider(@NonNull OutputProvider... providers) {
+        mProviders = providers;
+    }
+
+    @Override
+    public void onAttach(@NonNull Camera2Handle camera2Handle, @NonNull Components components) {
+        for (OutputProvider provider : mProviders) {
+            provider.onAttach(camera2Handle, components);
+        }
+    }
+
+    @Override
+    public void onDetach() {
+        for (OutputProvider provider : mProviders) {
+            provider.onDetach();
+        }
+    }
+
+}
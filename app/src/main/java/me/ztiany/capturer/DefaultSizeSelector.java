@@ -20,6 +20,14 @@ public class DefaultSizeSelector implements SizeSelector {
 
     private final Size specifiedPreviewSize;
 
+    /**
+     * The sizes from {@link CameraCapabilities#getOutputSizes(int)} are the same instance every time, so the result of
+     * the last selection is reused for them.
+     */
+    private List<Size> lastSizes;
+
+    private Size lastBestSize;
+
     private DefaultSizeSelector(Builder builder) {
         Timber.d("DefaultSizeSelector is constructed with: %s", builder);
         maxPreviewSize = builder.maxPreviewSize;
@@ -34,7 +42,18 @@ public class DefaultSizeSelector implements SizeSelector {
 
     @NonNull
     @Override
-    public Size getBestSupportedSize(@NonNull List<Size> sizes) {
+    public synchronized Size getBestSupportedSize(@NonNull List<Size> sizes) {
+        if (sizes == lastSizes) {
+            return lastBestSize;
+        }
+        Size bestSize = selectBestSupportedSize(sizes);
+        lastSizes = sizes;
+        lastBestSize = bestSize;
+        return bestSize;
+    }
+
+    @NonNull
+    private Size selectBestSupportedSize(@NonNull List<Size> sizes) {
         Size defaultSize = sizes.get(0);
         sizes = sortSizes(sizes.toArray(new Size[0]));
 
@@ -0,0 +1,121 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Reads the plaintext of a recording encrypted by {@link RecordingCipher}, from anywhere in it. The data is read
+ * straight into the caller's buffer and decrypted there, a seek costs one cipher init.
+ */
+public final class EncryptedRecordingReader implements SeekableByteChannel {
+
+    private final FileChannel mChannel;
+
+    private final RecordingCipher mCipher;
+
+    private long mPosition;
+
+    private EncryptedRecordingReader(FileChannel channel, RecordingCipher cipher) {
+        mChannel = channel;
+        mCipher = cipher;
+    }
+
+    @NonNull
+    public static EncryptedRecordingReader open(@NonNull File file, @NonNull RecordingCipher.KeyWrapper wrapper) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return new EncryptedRecordingReader(channel, RecordingCipher.readHeader(channel, wrapper));
+        } catch (IOException | RuntimeException exception) {
+            channel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Reads at a position of the plaintext, without moving {@link #position()}.
+     *
+     * @return the bytes read, -1 at the end.
+     */
+    public synchronized int read(@NonNull ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        checkOpen();
+        int start = dst.position();
+        int read = mChannel.read(dst, mCipher.getHeaderSize() + position);
+        if (read > 0) {
+            ByteBuffer data = dst.duplicate();
+            data.position(start).limit(start + read);
+            mCipher.crypt(data, position);
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, mPosition);
+        if (read > 0) {
+            mPosition += read;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return mPosition;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        checkOpen();
+        mPosition = newPosition;
+        return this;
+    }
+
+    /**
+     * The size of the plaintext.
+     */
+    @Override
+    public long size() throws IOException {
+        return Math.max(0, mChannel.size() - mCipher.getHeaderSize());
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void checkOpen() throws IOException {
+        if (!mChannel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
@@ -1,18 +1,63 @@
 package me.ztiany.capturer;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.core.content.IntentCompat;
+import androidx.core.os.BundleCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import timber.log.Timber;
 
+/**
+ * Connects the UI that commands the capturing with the service that captures.
+ *
+ * <p>
+ * The {@link Commander} binds to the {@link Capturer}'s service: in the same process it gets the {@link CapturerBinder}
+ * and calls the {@link Capturer} directly, from another process it talks to the same binder through a
+ * {@link Messenger}. Either way every command is answered with a {@link CommandCallback}. Until the service is bound,
+ * and for the senders that never bind, the commands are still delivered as local broadcasts, which are not
+ * acknowledged. The commands are put in order by a {@link CapturingCommandQueue} on the capturer's side, whichever way
+ * they come.
+ * </p>
+ *
+ * <p>
+ * Another app binds the service by its explicit component, holding {@code CONTROL_CAPTURE}, a signature permission.
+ * On Android 11 and above it also needs a {@code <queries>} entry for {@link #CAPTURER_PACKAGE}.
+ * </p>
+ */
 public class FloatingCameraConnection {
 
+    /**
+     * The package of the capturer's service, the {@link Commander} may run in another app.
+     */
+    public static final String CAPTURER_PACKAGE = "me.ztiany.capturer";
+
     private static final String ACTION_FLOATING_CAPTURING_OP = "ACTION_FLOATING_CAPTURING_OP";
 
     /**
@@ -31,6 +76,34 @@ public class FloatingCameraConnection {
      */
     private static final String KEY_FOR_CAPTURING_EVENT = "KEY_FOR_CAPTURING_EVENT";
 
+    /**
+     * The messages between a remote {@link Commander} and the {@link Capturer}. A command carries its token in
+     * {@code arg1} and the client's messenger in {@code replyTo}, the result comes back with the same token in
+     * {@code arg1} and the {@link CapturerEvent} in {@code arg2}.
+     */
+    private static final int MSG_START_CAPTURING = 1;
+    private static final int MSG_STOP_CAPTURING = 2;
+    private static final int MSG_REGISTER_CLIENT = 3;
+    private static final int MSG_UNREGISTER_CLIENT = 4;
+    private static final int MSG_COMMAND_RESULT = 5;
+    private static final int MSG_CAPTURER_EVENT = 6;
+    private static final int MSG_QUERY_STATE = 7;
+    private static final int MSG_STATE = 8;
+
+    private static final String KEY_FOR_STATE = "KEY_FOR_STATE";
+
+    private static final String KEY_FOR_SEQUENCE = "KEY_FOR_SEQUENCE";
+
+    /**
+     * The subscription carries the batch interval in {@code arg1}, the progress comes as {@link CapturingProgress}
+     * records packed in one byte array.
+     */
+    private static final int MSG_SUBSCRIBE_PROGRESS = 9;
+    private static final int MSG_UNSUBSCRIBE_PROGRESS = 10;
+    private static final int MSG_PROGRESS = 11;
+
+    private static final String KEY_FOR_PROGRESS = "KEY_FOR_PROGRESS";
+
     public static Capturer newCapturer(Context context) {
         return new Capturer(context);
     }
@@ -54,6 +127,86 @@ public class FloatingCameraConnection {
         void onCapturingStarted(String sessionId);
 
         void onCapturingFinished(String sessionId, boolean succeeded);
+
+        /**
+         * Called with the capturer's state whenever the service gets bound, the events before are missed.
+         */
+        default void onCapturingStateSynced(@CapturingState int state, @Nullable String sessionId) {
+        }
+    }
+
+    /**
+     * The answer to one command, called once on the main thread.
+     */
+    public interface CommandCallback {
+
+        /**
+         * @param result {@link CapturerEvent#STARTED} or {@link CapturerEvent#ERROR} for a start,
+         *               {@link CapturerEvent#STOPPED} for a stop, {@link CapturerEvent#REJECTED} if the command is not
+         *               carried out.
+         */
+        void onCommandResult(String sessionId, @CapturerEvent int result);
+
+    }
+
+    /**
+     * The answer to a state query, called once on the main thread.
+     */
+    public interface StateCallback {
+
+        /**
+         * @param sessionId    the session that is starting, capturing or stopping, null when idle.
+         * @param lastSequence the sequence number of the latest command that has been answered.
+         */
+        void onState(@CapturingState int state, @Nullable String sessionId, long lastSequence);
+
+    }
+
+    /**
+     * Gets the progress of a session in batches, on the main thread.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param batch the samples since the last batch, oldest first, one a second.
+         */
+        void onCapturingProgress(String sessionId, List<CapturingProgress> batch);
+
+    }
+
+    /**
+     * Samples the progress of the capturing session, implemented by the service.
+     */
+    public interface ProgressSource {
+
+        @Nullable
+        CapturingProgress sampleProgress(String sessionId);
+
+    }
+
+    /**
+     * What {@link Capturer#onBind} returns. In process it hands out the {@link Capturer} itself, other processes send
+     * their {@link Message}s through it.
+     */
+    public static final class CapturerBinder extends Binder {
+
+        private final Capturer mCapturer;
+
+        private CapturerBinder(Capturer capturer) {
+            mCapturer = capturer;
+        }
+
+        @NonNull
+        public Capturer getCapturer() {
+            return mCapturer;
+        }
+
+        @Override
+        protected boolean onTransact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) throws RemoteException {
+            // a remote Messenger made on this binder calls IMessenger.send, the messenger's own binder unpacks it.
+            return mCapturer.mMessenger.getBinder().transact(code, data, reply, flags);
+        }
+
     }
 
     public static class Capturer {
@@ -72,11 +225,70 @@ public class FloatingCameraConnection {
 
         };
 
+        private final Messenger mMessenger = new Messenger(new Handler(Looper.getMainLooper(), this::dealWithRemoteCommand));
+
+        private final CapturerBinder mBinder = new CapturerBinder(this);
+
+        private final List<Messenger> mRemoteClients = new ArrayList<>();
+
+        private final CapturingCommandQueue mCommandQueue = new CapturingCommandQueue(new CapturingCommandQueue.Executor() {
+            @Override
+            public void executeStart(String sessionId, VideoSpec videoSpec) {
+                if (mCapturingActionListener != null) {
+                    mCapturingActionListener.startCapturing(sessionId, videoSpec);
+                } else {
+                    notifyCapturerEvent(sessionId, CapturerEvent.ERROR);
+                }
+            }
+
+            @Override
+            public void executeStop(String sessionId) {
+                if (mCapturingActionListener != null) {
+                    mCapturingActionListener.stopCapturing(sessionId);
+                }
+            }
+        }, new CapturingCommandQueue.Timer() {
+            @Override
+            public void schedule(@NonNull Runnable runnable, long delayMs) {
+                mHandler.postDelayed(runnable, delayMs);
+            }
+
+            @Override
+            public void cancel(@NonNull Runnable runnable) {
+                mHandler.removeCallbacks(runnable);
+            }
+        });
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private final ProgressStream mProgressStream = new ProgressStream();
+
+        @Nullable
+        private ProgressSource mProgressSource;
+
+        private boolean mSamplingProgress;
+
+        private final Runnable mSampleProgress = new Runnable() {
+            @Override
+            public void run() {
+                String sessionId = mCommandQueue.getSessionId();
+                if (mCommandQueue.getState() != CapturingState.CAPTURING || !mProgressStream.hasSubscribers(sessionId)) {
+                    mSamplingProgress = false;
+                    return;
+                }
+                sampleProgress(sessionId);
+                mHandler.postDelayed(this, ProgressStream.SAMPLE_INTERVAL_MS);
+            }
+        };
+
+        private boolean mDestroyed;
+
         public Capturer(Context context) {
             mContext = context;
         }
 
         public void init() {
+            mDestroyed = false;
             LocalBroadcastManager.getInstance(mContext).registerReceiver(
                     mReceiver,
                     new IntentFilter(ACTION_FLOATING_CAPTURING_OP)
@@ -84,13 +296,101 @@ public class FloatingCameraConnection {
         }
 
         public void destroy() {
+            mDestroyed = true;
             LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mReceiver);
+            mCommandQueue.clear();
+            mRemoteClients.clear();
+            mHandler.removeCallbacks(mSampleProgress);
+            mSamplingProgress = false;
+        }
+
+        /**
+         * Called from {@code Service.onBind}.
+         */
+        @NonNull
+        public IBinder onBind() {
+            return mBinder;
         }
 
         public void setCapturingActionListener(@Nullable CapturingActionListener capturingActionListener) {
             mCapturingActionListener = capturingActionListener;
         }
 
+        public void setProgressSource(@Nullable ProgressSource progressSource) {
+            mProgressSource = progressSource;
+        }
+
+        /**
+         * Subscribes to the progress of a session, which may not have started yet. The subscription ends with the
+         * session, after the last batch.
+         *
+         * @param batchIntervalMs how often the listener gets the samples, at least a second.
+         */
+        @MainThread
+        public void subscribeProgress(@NonNull String sessionId, long batchIntervalMs, @NonNull ProgressListener listener) {
+            mProgressStream.subscribe(sessionId, listener, batchIntervalMs);
+            updateProgressSampling();
+        }
+
+        @MainThread
+        public void unsubscribeProgress(@NonNull String sessionId, @NonNull ProgressListener listener) {
+            mProgressStream.unsubscribe(sessionId, listener);
+        }
+
+        private void updateProgressSampling() {
+            String sessionId = mCommandQueue.getSessionId();
+            if (!mSamplingProgress && mCommandQueue.getState() == CapturingState.CAPTURING && mProgressStream.hasSubscribers(sessionId)) {
+                mSamplingProgress = true;
+                mHandler.postDelayed(mSampleProgress, ProgressStream.SAMPLE_INTERVAL_MS);
+            }
+        }
+
+        private void sampleProgress(String sessionId) {
+            CapturingProgress progress = mProgressSource == null ? null : mProgressSource.sampleProgress(sessionId);
+            if (progress != null) {
+                mProgressStream.onSample(sessionId, progress, SystemClock.elapsedRealtime());
+            }
+        }
+
+        /**
+         * Starts capturing once the commands before are carried out, the callback gets the outcome once the recorder is
+         * running or has failed.
+         *
+         * @return the sequence number of the command, 0 if it is rejected right away.
+         */
+        @MainThread
+        public long startCapturing(String sessionId, VideoSpec videoSpec, @Nullable CommandCallback callback) {
+            if (mDestroyed || mCapturingActionListener == null || TextUtils.isEmpty(sessionId) || videoSpec == null) {
+                Timber.w("start of session %s is rejected.", sessionId);
+                reply(callback, sessionId, CapturerEvent.REJECTED);
+                return 0;
+            }
+            return mCommandQueue.start(sessionId, videoSpec, callback);
+        }
+
+        /**
+         * Stops capturing once the commands before are carried out.
+         *
+         * @return the sequence number of the command, 0 if it is rejected right away.
+         */
+        @MainThread
+        public long stopCapturing(String sessionId, @Nullable CommandCallback callback) {
+            if (mDestroyed || mCapturingActionListener == null || TextUtils.isEmpty(sessionId)) {
+                Timber.w("stop of session %s is rejected.", sessionId);
+                reply(callback, sessionId, CapturerEvent.REJECTED);
+                return 0;
+            }
+            return mCommandQueue.stop(sessionId, callback);
+        }
+
+        /**
+         * Answers right away, the commands that are still waiting are not taken into account.
+         */
+        @MainThread
+        public void queryState(@NonNull StateCallback callback) {
+            callback.onState(mCommandQueue.getState(), mCommandQueue.getSessionId(), mCommandQueue.getLastSequence());
+        }
+
         private void dealWithNewAction(Intent intent) {
             if (mCapturingActionListener == null) {
                 return;
@@ -113,23 +413,144 @@ public class FloatingCameraConnection {
             boolean startCapturing = intent.getBooleanExtra(KEY_FOR_CAPTURING_OP, false);
 
             if (!startCapturing) {
-                mCapturingActionListener.stopCapturing(sessionId);
+                stopCapturing(sessionId, null);
                 return;
             }
 
-            VideoSpec videoSpec = intent.getParcelableExtra(KEY_FOR_CAPTURING_SPEC);
+            VideoSpec videoSpec = IntentCompat.getParcelableExtra(intent, KEY_FOR_CAPTURING_SPEC, VideoSpec.class);
             if (videoSpec == null) {
                 Timber.w("videoSpec is null!");
                 return;
             }
-            mCapturingActionListener.startCapturing(sessionId, videoSpec);
+            startCapturing(sessionId, videoSpec, null);
+        }
+
+        private boolean dealWithRemoteCommand(Message message) {
+            Messenger client = message.replyTo;
+            if (message.what == MSG_REGISTER_CLIENT) {
+                if (client != null && !mRemoteClients.contains(client)) {
+                    mRemoteClients.add(client);
+                }
+                return true;
+            }
+            if (message.what == MSG_UNREGISTER_CLIENT) {
+                mRemoteClients.remove(client);
+                return true;
+            }
+            if (message.what == MSG_SUBSCRIBE_PROGRESS || message.what == MSG_UNSUBSCRIBE_PROGRESS) {
+                String sessionId = message.getData().getString(KEY_FOR_SESSION);
+                if (client != null && !TextUtils.isEmpty(sessionId)) {
+                    if (message.what == MSG_SUBSCRIBE_PROGRESS) {
+                        subscribeProgress(sessionId, message.arg1, new RemoteProgressListener(client));
+                    } else {
+                        unsubscribeProgress(sessionId, new RemoteProgressListener(client));
+                    }
+                }
+                return true;
+            }
+            if (message.what == MSG_QUERY_STATE) {
+                if (client != null) {
+                    int token = message.arg1;
+                    queryState((state, sessionId, lastSequence) -> {
+                        Message reply = Message.obtain(null, MSG_STATE, token, state);
+                        reply.getData().putLong(KEY_FOR_SEQUENCE, lastSequence);
+                        send(client, reply, sessionId);
+                    });
+                }
+                return true;
+            }
+
+            Bundle data = message.getData();
+            data.setClassLoader(VideoSpec.class.getClassLoader());
+            String sessionId = data.getString(KEY_FOR_SESSION);
+            int token = message.arg1;
+            CommandCallback callback = client == null ? null : (session, result) ->
+                    send(client, Message.obtain(null, MSG_COMMAND_RESULT, token, result), session);
+
+            if (message.what == MSG_START_CAPTURING) {
+                startCapturing(sessionId, BundleCompat.getParcelable(data, KEY_FOR_CAPTURING_SPEC, VideoSpec.class), callback);
+                return true;
+            }
+            if (message.what == MSG_STOP_CAPTURING) {
+                stopCapturing(sessionId, callback);
+                return true;
+            }
+            return false;
         }
 
         public void notifyCapturerEvent(String sessionId, @CapturerEvent int event) {
+            if (!TextUtils.isEmpty(sessionId)) {
+                boolean capturing = mCommandQueue.getState() == CapturingState.CAPTURING && sessionId.equals(mCommandQueue.getSessionId());
+                mCommandQueue.onEvent(sessionId, event);
+                if (event == CapturerEvent.STARTED) {
+                    updateProgressSampling();
+                } else if (event == CapturerEvent.STOPPED || event == CapturerEvent.ERROR) {
+                    if (capturing && mProgressStream.hasSubscribers(sessionId)) {
+                        sampleProgress(sessionId);
+                    }
+                    mProgressStream.endSession(sessionId);
+                }
+            }
+
             Intent intent = new Intent(ACTION_FLOATING_CAPTURING_EVENT);
             intent.putExtra(KEY_FOR_CAPTURING_EVENT, event);
             intent.putExtra(KEY_FOR_SESSION, sessionId);
             LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+
+            for (int i = mRemoteClients.size() - 1; i >= 0; i--) {
+                if (!send(mRemoteClients.get(i), Message.obtain(null, MSG_CAPTURER_EVENT, 0, event), sessionId)) {
+                    mRemoteClients.remove(i);
+                }
+            }
+        }
+
+        private static void reply(@Nullable CommandCallback callback, String sessionId, @CapturerEvent int result) {
+            if (callback != null) {
+                callback.onCommandResult(sessionId, result);
+            }
+        }
+
+        /**
+         * Sends the progress to a remote {@link Commander}, equal for the same client.
+         */
+        private final class RemoteProgressListener implements ProgressListener {
+
+            private final Messenger mClient;
+
+            RemoteProgressListener(Messenger client) {
+                mClient = client;
+            }
+
+            @Override
+            public void onCapturingProgress(String sessionId, List<CapturingProgress> batch) {
+                Message message = Message.obtain(null, MSG_PROGRESS);
+                message.getData().putByteArray(KEY_FOR_PROGRESS, CapturingProgress.encode(batch));
+                if (!send(mClient, message, sessionId)) {
+                    mProgressStream.unsubscribeAll(this);
+                }
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof RemoteProgressListener && ((RemoteProgressListener) o).mClient.equals(mClient);
+            }
+
+            @Override
+            public int hashCode() {
+                return mClient.hashCode();
+            }
+
+        }
+
+        private static boolean send(Messenger client, Message message, String sessionId) {
+            message.getData().putString(KEY_FOR_SESSION, sessionId);
+            try {
+                client.send(message);
+                return true;
+            } catch (RemoteException exception) {
+                Timber.w(exception, "client %s is gone.", client);
+                return false;
+            }
         }
 
     }
@@ -151,11 +572,79 @@ public class FloatingCameraConnection {
 
         };
 
+        private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                attachService(service);
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                detachService();
+            }
+
+        };
+
+        /**
+         * Receives the results and events of a remote {@link Capturer}.
+         */
+        private final Messenger mReplyMessenger = new Messenger(new Handler(Looper.getMainLooper(), this::dealWithRemoteReply));
+
+        /**
+         * Set when the service runs in this process.
+         */
+        @Nullable
+        private Capturer mLocalCapturer;
+
+        /**
+         * Set when the service runs in another process.
+         */
+        @Nullable
+        private Messenger mRemoteCapturer;
+
+        private final SparseArray<CommandCallback> mPendingCommands = new SparseArray<>();
+
+        private final SparseArray<StateCallback> mPendingQueries = new SparseArray<>();
+
+        private final Map<String, ProgressSubscription> mProgressSubscriptions = new HashMap<>();
+
+        /**
+         * Subscribed to the capturer on behalf of every {@link ProgressSubscription}.
+         */
+        private final ProgressListener mProgressForwarder = (sessionId, batch) -> {
+            ProgressSubscription subscription = mProgressSubscriptions.get(sessionId);
+            if (subscription != null) {
+                subscription.mListener.onCapturingProgress(sessionId, batch);
+            }
+        };
+
+        private int mNextToken;
+
+        private boolean mBound;
+
         public Commander(Context context) {
             mContext = context;
         }
 
         public void startCapturing(String sessionId, VideoSpec videoSpec) {
+            startCapturing(sessionId, videoSpec, null);
+        }
+
+        /**
+         * @param callback not called when the service is not bound, the command then goes out as a broadcast.
+         */
+        public void startCapturing(String sessionId, VideoSpec videoSpec, @Nullable CommandCallback callback) {
+            if (mLocalCapturer != null) {
+                mLocalCapturer.startCapturing(sessionId, videoSpec, callback);
+                return;
+            }
+            if (mRemoteCapturer != null) {
+                Message message = Message.obtain(null, MSG_START_CAPTURING);
+                message.getData().putParcelable(KEY_FOR_CAPTURING_SPEC, videoSpec);
+                sendToRemote(message, sessionId, callback);
+                return;
+            }
             Intent intent = new Intent(ACTION_FLOATING_CAPTURING_OP);
             intent.putExtra(KEY_FOR_CAPTURING_OP, true);
             intent.putExtra(KEY_FOR_SESSION, sessionId);
@@ -164,12 +653,75 @@ public class FloatingCameraConnection {
         }
 
         public void stopCapturing(String sessionId) {
+            stopCapturing(sessionId, null);
+        }
+
+        /**
+         * @param callback not called when the service is not bound, the command then goes out as a broadcast.
+         */
+        public void stopCapturing(String sessionId, @Nullable CommandCallback callback) {
+            if (mLocalCapturer != null) {
+                mLocalCapturer.stopCapturing(sessionId, callback);
+                return;
+            }
+            if (mRemoteCapturer != null) {
+                sendToRemote(Message.obtain(null, MSG_STOP_CAPTURING), sessionId, callback);
+                return;
+            }
             Intent intent = new Intent(ACTION_FLOATING_CAPTURING_OP);
             intent.putExtra(KEY_FOR_CAPTURING_OP, false);
             intent.putExtra(KEY_FOR_SESSION, sessionId);
             LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
         }
 
+        /**
+         * Asks for the capturer's state.
+         *
+         * @param callback not called when the service is not bound.
+         */
+        public void queryState(@NonNull StateCallback callback) {
+            if (mLocalCapturer != null) {
+                mLocalCapturer.queryState(callback);
+                return;
+            }
+            if (mRemoteCapturer != null) {
+                int token = ++mNextToken;
+                mPendingQueries.put(token, callback);
+                sendToRemote(Message.obtain(null, MSG_QUERY_STATE, token, 0), null);
+            }
+        }
+
+        /**
+         * Subscribes to the progress of a session, replacing the listener subscribed before. The subscription ends with
+         * the session and is renewed whenever the service gets bound again. No progress comes while the service is not
+         * bound.
+         *
+         * @param batchIntervalMs how often the listener gets the samples, at least a second.
+         */
+        public void subscribeProgress(@NonNull String sessionId, long batchIntervalMs, @NonNull ProgressListener listener) {
+            mProgressSubscriptions.put(sessionId, new ProgressSubscription(listener, batchIntervalMs));
+            sendProgressSubscription(sessionId, batchIntervalMs);
+        }
+
+        public void unsubscribeProgress(@NonNull String sessionId) {
+            if (mProgressSubscriptions.remove(sessionId) == null) {
+                return;
+            }
+            if (mLocalCapturer != null) {
+                mLocalCapturer.unsubscribeProgress(sessionId, mProgressForwarder);
+            } else if (mRemoteCapturer != null) {
+                sendToRemote(Message.obtain(null, MSG_UNSUBSCRIBE_PROGRESS), sessionId);
+            }
+        }
+
+        private void sendProgressSubscription(String sessionId, long batchIntervalMs) {
+            if (mLocalCapturer != null) {
+                mLocalCapturer.subscribeProgress(sessionId, batchIntervalMs, mProgressForwarder);
+            } else if (mRemoteCapturer != null) {
+                sendToRemote(Message.obtain(null, MSG_SUBSCRIBE_PROGRESS, (int) Math.min(Integer.MAX_VALUE, batchIntervalMs), 0), sessionId);
+            }
+        }
+
         public void setCapturingStateListener(@Nullable CapturingStateListener capturingStateListener) {
             mCapturingStateListener = capturingStateListener;
         }
@@ -183,24 +735,157 @@ public class FloatingCameraConnection {
 
         public void destroy() {
             LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mBroadcastReceiver);
+            unbind();
         }
 
-        private void dealWithNewAction(Intent intent) {
-            if (mCapturingStateListener == null) {
-                return;
+        /**
+         * Binds to the service without creating it, the connection comes up whenever the service is started.
+         */
+        public void bind() {
+            bind(new ComponentName(CAPTURER_PACKAGE, FloatingCameraService.class.getName()));
+        }
+
+        /**
+         * Like {@link #bind()}, to another service that hosts a {@link Capturer}.
+         */
+        public void bind(@NonNull ComponentName service) {
+            if (!mBound) {
+                mBound = mContext.bindService(new Intent().setComponent(service), mServiceConnection, 0);
+            }
+        }
+
+        public void unbind() {
+            if (mBound) {
+                mBound = false;
+                mContext.unbindService(mServiceConnection);
+                detachService();
+            }
+        }
+
+        @VisibleForTesting
+        void attachService(IBinder service) {
+            detachService();
+            if (service instanceof CapturerBinder) {
+                mLocalCapturer = ((CapturerBinder) service).getCapturer();
+            } else {
+                mRemoteCapturer = new Messenger(service);
+                Message message = Message.obtain(null, MSG_REGISTER_CLIENT);
+                message.replyTo = mReplyMessenger;
+                try {
+                    mRemoteCapturer.send(message);
+                } catch (RemoteException exception) {
+                    Timber.w(exception, "the capturer is gone.");
+                    mRemoteCapturer = null;
+                    return;
+                }
+            }
+            for (Map.Entry<String, ProgressSubscription> entry : mProgressSubscriptions.entrySet()) {
+                sendProgressSubscription(entry.getKey(), entry.getValue().mBatchIntervalMs);
+            }
+            // the events sent while unbound went nowhere.
+            queryState((state, sessionId, lastSequence) -> {
+                if (mCapturingStateListener != null) {
+                    mCapturingStateListener.onCapturingStateSynced(state, sessionId);
+                }
+            });
+        }
+
+        @VisibleForTesting
+        void detachService() {
+            if (mRemoteCapturer != null) {
+                Message message = Message.obtain(null, MSG_UNREGISTER_CLIENT);
+                message.replyTo = mReplyMessenger;
+                try {
+                    mRemoteCapturer.send(message);
+                } catch (RemoteException ignored) {
+                    // it is gone anyway.
+                }
+            }
+            mLocalCapturer = null;
+            mRemoteCapturer = null;
+            for (int i = 0; i < mPendingCommands.size(); i++) {
+                mPendingCommands.valueAt(i).onCommandResult(null, CapturerEvent.REJECTED);
             }
+            mPendingCommands.clear();
+            mPendingQueries.clear();
+        }
+
+        private void sendToRemote(Message message, String sessionId, @Nullable CommandCallback callback) {
+            int token = ++mNextToken;
+            if (callback != null) {
+                // answered with the command's own session, also when the reply never comes.
+                mPendingCommands.put(token, (session, result) -> callback.onCommandResult(sessionId, result));
+            }
+            message.arg1 = token;
+            sendToRemote(message, sessionId);
+        }
+
+        private void sendToRemote(Message message, @Nullable String sessionId) {
+            message.replyTo = mReplyMessenger;
+            message.getData().putString(KEY_FOR_SESSION, sessionId);
+            try {
+                //noinspection ConstantConditions
+                mRemoteCapturer.send(message);
+            } catch (RemoteException exception) {
+                Timber.w(exception, "the capturer is gone.");
+                detachService();
+            }
+        }
 
+        private boolean dealWithRemoteReply(Message message) {
+            String sessionId = message.getData().getString(KEY_FOR_SESSION);
+            if (message.what == MSG_COMMAND_RESULT) {
+                CommandCallback callback = mPendingCommands.get(message.arg1);
+                mPendingCommands.remove(message.arg1);
+                if (callback != null) {
+                    callback.onCommandResult(sessionId, message.arg2);
+                }
+                return true;
+            }
+            if (message.what == MSG_STATE) {
+                StateCallback callback = mPendingQueries.get(message.arg1);
+                mPendingQueries.remove(message.arg1);
+                if (callback != null) {
+                    callback.onState(message.arg2, sessionId, message.getData().getLong(KEY_FOR_SEQUENCE));
+                }
+                return true;
+            }
+            if (message.what == MSG_PROGRESS) {
+                byte[] progress = message.getData().getByteArray(KEY_FOR_PROGRESS);
+                if (progress != null) {
+                    mProgressForwarder.onCapturingProgress(sessionId, CapturingProgress.decode(progress));
+                }
+                return true;
+            }
+            if (message.what == MSG_CAPTURER_EVENT) {
+                dealWithEvent(sessionId, message.arg2);
+                return true;
+            }
+            return false;
+        }
+
+        private void dealWithNewAction(Intent intent) {
             if (!ACTION_FLOATING_CAPTURING_EVENT.equals(intent.getAction())) {
                 return;
             }
 
-            String sessionId = intent.getStringExtra(KEY_FOR_SESSION);
+            dealWithEvent(intent.getStringExtra(KEY_FOR_SESSION), intent.getIntExtra(KEY_FOR_CAPTURING_EVENT, -1));
+        }
+
+        private void dealWithEvent(String sessionId, int event) {
             if (TextUtils.isEmpty(sessionId)) {
                 Timber.w("sessionId is empty!");
                 return;
             }
 
-            int event = intent.getIntExtra(KEY_FOR_CAPTURING_EVENT, -1);
+            if (event == CapturerEvent.STOPPED || event == CapturerEvent.ERROR) {
+                // the capturer has ended them with the session.
+                mProgressSubscriptions.remove(sessionId);
+            }
+
+            if (mCapturingStateListener == null) {
+                return;
+            }
 
             if (event == CapturerEvent.STARTED) {
                 mCapturingStateListener.onCapturingStarted(sessionId);
@@ -217,6 +902,18 @@ public class FloatingCameraConnection {
             }
         }
 
+        private static final class ProgressSubscription {
+
+            final ProgressListener mListener;
+            final long mBatchIntervalMs;
+
+            ProgressSubscription(ProgressListener listener, long batchIntervalMs) {
+                mListener = listener;
+                mBatchIntervalMs = batchIntervalMs;
+            }
+
+        }
+
     }
 
-}
\ No newline at end of file
+}
@@ -9,7 +9,11 @@ import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraDevice;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Size;
@@ -21,9 +25,15 @@ import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import timber.log.Timber;
 
@@ -39,8 +49,76 @@ public class FloatingCameraService extends Service {
 
     private MediaRecorderProvider mMediaRecorderProvider;
 
+    private FrameReader mFrameReader;
+
+    /**
+     * Shares the frames with other apps, null below API 27.
+     */
+    @Nullable
+    private FrameExporter mFrameExporter;
+
+    private final StreamingServer mStreamingServer = new StreamingServer();
+
+    private LiveStreamEncoder mLiveStreamEncoder;
+
+    private static final int EXTRA_OUTPUT_NONE = 0;
+    private static final int EXTRA_OUTPUT_FRAMES = 1;
+    private static final int EXTRA_OUTPUT_LIVE_STREAM = 2;
+
+    /**
+     * Who holds the camera's extra output besides the recorder, which takes it over whenever it records.
+     */
+    private int mExtraOutput = EXTRA_OUTPUT_NONE;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private String mSessionId;
 
+    /**
+     * {@code SystemClock.elapsedRealtime()} when the recording of {@link #mSessionId} started, 0 if it has not.
+     */
+    private long mCapturingStartedAt;
+
+    @Nullable
+    private File mCapturingFile;
+
+    /**
+     * How long a recording is assumed to last when its room is checked.
+     */
+    private static final long EXPECTED_RECORDING_MS = 10 * 60 * 1000;
+
+    private RecordingStorage mRecordingStorage;
+
+    private static final int MAX_SNAPSHOTS = 500;
+
+    /**
+     * Writes the snapshots taken while recording, see {@link VideoSpec#snapshotIntervalMs}.
+     */
+    private SnapshotWriter mSnapshotWriter;
+
+    private long mSnapshotIntervalMs;
+
+    private final Runnable mTakeSnapshot = this::takeSnapshot;
+
+    /**
+     * Shared by all the uploads.
+     */
+    private static final long UPLOAD_BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+    /**
+     * Uploads the finished recordings if {@code R.string.upload_url} is set.
+     */
+    @Nullable
+    private UploadQueue mUploadQueue;
+
+    /**
+     * Post-processes the finished recordings one at a time, at background priority so the camera is not disturbed.
+     */
+    private final ExecutorService mPostProcessExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        runnable.run();
+    }, "RecordingPostProcessor"));
+
     private final FloatingCameraConnection.Capturer mCapturer = FloatingCameraConnection.newCapturer(this);
 
     private final TextureView.SurfaceTextureListener surfaceTextureListener = new TextureView.SurfaceTextureListener() {
@@ -73,6 +151,11 @@ public class FloatingCameraService extends Service {
         @Override
         public void onCameraOpened(CameraDevice cameraDevice, String cameraId, final Size previewSize, final int displayOrientation, boolean isMirror) {
             Timber.d("onCameraOpened is called(): previewSize = " + previewSize.getWidth() + "x" + previewSize.getHeight());
+            mMainHandler.post(() -> {
+                // the output of the previous camera is gone.
+                mExtraOutput = EXTRA_OUTPUT_NONE;
+                updateExtraOutput();
+            });
         }
 
         @Override
@@ -90,7 +173,7 @@ public class FloatingCameraService extends Service {
     public static boolean isRunning(Context context) {
         ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         List<ActivityManager.RunningServiceInfo> runningServices = am.getRunningServices(Integer.MAX_VALUE);
-        int myUid = android.os.Process.myUid();
+        int myUid = Process.myUid();
         String targetClassName = FloatingCameraService.class.getName();
 
         for (ActivityManager.RunningServiceInfo service : runningServices) {
@@ -121,12 +204,52 @@ public class FloatingCameraService extends Service {
                 doStopCapturing(sessionId);
             }
         });
+        mCapturer.setProgressSource(this::sampleProgress);
+
+        mRecordingStorage = AppContext.get(this).getRecordingStorage();
+        mSnapshotWriter = SnapshotWriter.newBuilder()
+                .directory(getExternalFilesDir("snapshots"))
+                .maxCount(MAX_SNAPSHOTS)
+                .build();
+        new Thread(mRecordingStorage::scan, "RecordingStorage").start();
+        long createdAt = System.currentTimeMillis();
+        mPostProcessExecutor.execute(() -> recoverRecordings(createdAt));
+        initUploadQueue();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            mFrameExporter = AppContext.get(this).getFrameExporter();
+            mFrameExporter.reopen();
+            mFrameExporter.setClientListener(count -> updateExtraOutput());
+        }
+
+        mStreamingServer.setListener(new StreamingServer.Listener() {
+            @Override
+            public void onClientCountChanged(int count) {
+                mMainHandler.post(FloatingCameraService.this::updateExtraOutput);
+            }
+
+            @Override
+            public void onKeyFrameNeeded() {
+                LiveStreamEncoder liveStreamEncoder = mLiveStreamEncoder;
+                if (liveStreamEncoder != null) {
+                    liveStreamEncoder.requestKeyFrame();
+                }
+            }
+        });
+        // opt-in, a debugging aid.
+        if (getResources().getBoolean(R.bool.live_stream_enabled)) {
+            try {
+                mStreamingServer.start();
+            } catch (IOException exception) {
+                Timber.e(exception, "the streaming server can't be started.");
+            }
+        }
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mCapturer.onBind();
     }
 
     @SuppressLint("InflateParams")
@@ -165,22 +288,30 @@ public class FloatingCameraService extends Service {
     private void startCamera() {
         if (mCamera2Helper == null) {
             mMediaRecorderProvider = new MediaRecorderProvider();
+            mFrameReader = new FrameReader();
+            mLiveStreamEncoder = new LiveStreamEncoder(mStreamingServer);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && mFrameExporter != null) {
+                mFrameReader.setImageListener(mFrameExporter);
+            }
 
             mCamera2Helper = new Camera2Helper.Builder()
                     .context(getApplicationContext())
                     .cameraListener(mCamera2Listener)
                     .specificCameraId(CameraId.BACK)
                     .previewOn(mTextureView)
-                    .outputProvider(mMediaRecorderProvider)
+                    .outputProvider(new CompositeOutputProvider(mMediaRecorderProvider, mFrameReader, mLiveStreamEncoder))
                     .sizeSelector(
-                            DefaultSizeSelector.newBuilder()
-                                    .maxPreviewSize(new Size(1920, 1080))
-                                    .minPreviewSize(new Size(0, 0))
-                                    .previewViewSize(new Size(mTextureView.getWidth(), mTextureView.getHeight()))
+                            ThroughputSizeSelector.newBuilder()
+                                    .maxSize(new Size(1920, 1080))
+                                    .aspectRatio(new Size(mTextureView.getWidth(), mTextureView.getHeight()))
+                                    .frameRate(30)
                                     .build()
                     )
                     .rotation(((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRotation())
+                    .snapshotWriter(mSnapshotWriter)
                     .build();
+            mCamera2Helper.getCaptureMetrics().setAlertListener((effectiveFps, minFps) ->
+                    Timber.w("capturing at %.1f fps, below %.1f fps: %s", effectiveFps, minFps, mCamera2Helper.getCaptureMetrics().snapshot()));
         }
         mCamera2Helper.start();
     }
@@ -197,8 +328,19 @@ public class FloatingCameraService extends Service {
         if (mMediaRecorderProvider != null) {
             mMediaRecorderProvider.release();
         }
+        // the post-processing in progress ends on its own.
+        mPostProcessExecutor.shutdown();
+        if (mUploadQueue != null) {
+            mUploadQueue.stop();
+        }
         // camera
         destroyCamera();
+        mSnapshotWriter.close();
+        mStreamingServer.close();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && mFrameExporter != null) {
+            mFrameExporter.setClientListener(null);
+            mFrameExporter.release();
+        }
         // floating window
         destroyFloatingWindow();
     }
@@ -223,27 +365,232 @@ public class FloatingCameraService extends Service {
         }
     }
 
+    /**
+     * Gives the camera's extra output to the frame exporter or else to the live stream while they have clients and
+     * nothing is recorded.
+     */
+    private void updateExtraOutput() {
+        if (mFrameReader == null || !TextUtils.isEmpty(mSessionId)) {
+            return;
+        }
+        int wanted = EXTRA_OUTPUT_NONE;
+        if (mFrameExporter != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && mFrameExporter.getClientCount() > 0) {
+            wanted = EXTRA_OUTPUT_FRAMES;
+        } else if (mStreamingServer.getClientCount() > 0) {
+            wanted = EXTRA_OUTPUT_LIVE_STREAM;
+        }
+        if (wanted == mExtraOutput) {
+            return;
+        }
+        if (mExtraOutput == EXTRA_OUTPUT_FRAMES) {
+            mFrameReader.stop();
+        } else if (mExtraOutput == EXTRA_OUTPUT_LIVE_STREAM) {
+            mLiveStreamEncoder.stop();
+        }
+        mExtraOutput = EXTRA_OUTPUT_NONE;
+        if (wanted == EXTRA_OUTPUT_FRAMES && mFrameReader.start()) {
+            mExtraOutput = EXTRA_OUTPUT_FRAMES;
+        } else if (wanted == EXTRA_OUTPUT_LIVE_STREAM && mLiveStreamEncoder.start()) {
+            mExtraOutput = EXTRA_OUTPUT_LIVE_STREAM;
+        }
+    }
+
     private void doStartCapturing(String sessionId, VideoSpec videoSpec) {
+        // the recorder takes the extra output over.
+        if (mExtraOutput == EXTRA_OUTPUT_LIVE_STREAM) {
+            mLiveStreamEncoder.stop();
+        }
+        mExtraOutput = EXTRA_OUTPUT_NONE;
         mSessionId = sessionId;
+        mCapturingFile = new File(videoSpec.storePath);
+        mCapturingStartedAt = 0;
         Timber.d("doStartCapturing is called");
 
-        mMediaRecorderProvider.start(videoSpec, succeeded -> {
+        int frameRate = videoSpec.timelapseIntervalMs > 0 ? (int) Math.max(1, 1000 / videoSpec.timelapseIntervalMs) : videoSpec.frameRate;
+        long expectedBytes = RecordingStorage.estimateBytes(videoSpec.videoWidth, videoSpec.videoHeight, frameRate, EXPECTED_RECORDING_MS);
+        if (!mRecordingStorage.prepare(mCapturingFile, expectedBytes)) {
+            mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.ERROR);
+            mSessionId = null;
+            mCapturingFile = null;
+            updateExtraOutput();
+            return;
+        }
+
+        // answered on the camera thread, the session state belongs to the main thread.
+        mMediaRecorderProvider.start(videoSpec, expectedBytes, succeeded -> mMainHandler.post(() -> {
             Timber.d("doStartCapturing result: %b", succeeded);
 
-            if (succeeded) {
+            if (succeeded && TextUtils.equals(sessionId, mSessionId)) {
+                mCapturingStartedAt = SystemClock.elapsedRealtime();
                 mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.STARTED);
-            } else {
+                mSnapshotIntervalMs = videoSpec.snapshotIntervalMs;
+                if (mSnapshotIntervalMs > 0) {
+                    mMainHandler.postDelayed(mTakeSnapshot, mSnapshotIntervalMs);
+                }
+            } else if (!succeeded) {
+                mRecordingStorage.onRecordingFinished(new File(videoSpec.storePath));
+                if (TextUtils.equals(sessionId, mSessionId)) {
+                    mSessionId = null;
+                    mCapturingFile = null;
+                    updateExtraOutput();
+                }
                 mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.ERROR);
             }
+        }));
+    }
+
+    @Nullable
+    private CapturingProgress sampleProgress(String sessionId) {
+        if (!TextUtils.equals(sessionId, mSessionId) || mCapturingStartedAt == 0 || mCapturingFile == null) {
+            return null;
+        }
+        CaptureMetrics metrics = mCamera2Helper.getCaptureMetrics();
+        return new CapturingProgress(
+                SystemClock.elapsedRealtime() - mCapturingStartedAt,
+                // the file's length is the space allocated for it.
+                mMediaRecorderProvider.getRecordedBytes(),
+                metrics.getEffectiveFps(),
+                metrics.getDroppedFrames()
+        );
+    }
+
+    /**
+     * Recovers the recordings that were in progress when the process died, the ones started since are left alone.
+     */
+    @WorkerThread
+    private void recoverRecordings(long before) {
+        RecordingFinisher.deleteLeftovers(mRecordingStorage.getDirectory(), RecordingStorage.SUFFIX);
+        for (File file : RecordingRecovery.findOrphans(mRecordingStorage.getDirectory(), before)) {
+            recoverRecording(file);
+        }
+    }
+
+    @WorkerThread
+    private void recoverRecording(File file) {
+        try {
+            if (RecordingRecovery.recover(file)) {
+                postProcess(file, null);
+                mRecordingStorage.onRecordingFinished(file);
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "%s can't be recovered.", file);
+        }
+    }
+
+    private void initUploadQueue() {
+        String uploadUrl = getString(R.string.upload_url);
+        if (TextUtils.isEmpty(uploadUrl)) {
+            return;
+        }
+        mUploadQueue = UploadQueue.newBuilder()
+                .stateFile(new File(getFilesDir(), "uploads"))
+                .transport(new HttpUploadTransport(URI.create(uploadUrl)))
+                .limiter(new BandwidthLimiter(UPLOAD_BYTES_PER_SECOND))
+                .listener(new UploadQueue.Listener() {
+                    @Override
+                    public void onUploaded(@NonNull File file, @NonNull String name) {
+                        mRecordingStorage.setPinned(file, false);
+                    }
+
+                    @Override
+                    public void onFailed(@NonNull File file, @NonNull String name, @NonNull IOException exception) {
+                        mRecordingStorage.setPinned(file, false);
+                    }
+                })
+                .build();
+        mUploadQueue.start();
+    }
+
+    /**
+     * Queues a finished recording for upload, pinned so it isn't evicted before it is sent. Only a recording
+     * {@link RecordingFinisher} has encrypted is sent, no plaintext leaves the device.
+     */
+    @WorkerThread
+    private void upload(@NonNull File file) {
+        UploadQueue uploadQueue = mUploadQueue;
+        if (uploadQueue == null || !file.exists()) {
+            return;
+        }
+        try {
+            if (!RecordingCipher.isEncrypted(file)) {
+                Timber.w("%s isn't encrypted, it isn't uploaded.", file.getName());
+                return;
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "%s can't be read, it isn't uploaded.", file.getName());
+            return;
+        }
+        mRecordingStorage.setPinned(file, true);
+        uploadQueue.enqueue(file, file.getName());
+    }
+
+    /**
+     * Rewrites a finished recording once, see {@link RecordingFinisher}, then uploads it.
+     *
+     * @param metrics gets how the recording was written, null for a recovered one.
+     */
+    @WorkerThread
+    private void postProcess(@NonNull File file, @Nullable CaptureMetrics metrics) {
+        try {
+            long start = SystemClock.elapsedRealtime();
+            RecordingFinisher.Staged staged = AppContext.get(this).getRecordingFinisher().finish(file);
+            if (staged.replace(file)) {
+                mRecordingStorage.onRecordingFinished(file);
+                Timber.d("%s is finished in %d ms, moov %s: %s", file.getName(), SystemClock.elapsedRealtime() - start,
+                        staged.isMoved() ? "is moved to the front" : "stays", staged.getMetrics());
+                if (metrics != null) {
+                    metrics.onRecordingWritten(staged.getMetrics());
+                }
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "%s can't be finished.", file);
+        }
+        upload(file);
+    }
+
+    /**
+     * Takes a snapshot of the recording, named after it and the time into it, then schedules the next one.
+     */
+    private void takeSnapshot() {
+        File recording = mCapturingFile;
+        if (recording == null || mCapturingStartedAt == 0 || mCamera2Helper == null) {
+            return;
+        }
+        String name = recording.getName();
+        name = name.substring(0, name.lastIndexOf('.') > 0 ? name.lastIndexOf('.') : name.length())
+                + "-" + (SystemClock.elapsedRealtime() - mCapturingStartedAt);
+        mCamera2Helper.takeSnapshot(name).whenComplete((snapshot, throwable) -> {
+            if (throwable != null) {
+                Timber.w(throwable, "snapshot of %s failed.", recording.getName());
+            } else {
+                Timber.d("%s, %d dropped so far.", snapshot, mSnapshotWriter.getDroppedCount());
+            }
         });
+        mMainHandler.postDelayed(mTakeSnapshot, mSnapshotIntervalMs);
     }
 
     private void doStopCapturing(String sessionId) {
         Timber.d("doStopCapturing is called");
-        if (mMediaRecorderProvider.stop()) {
-            mCapturer.notifyCapturerEvent(sessionId, CapturerEvent.STOPPED);
-            mSessionId = null;
+        if (!TextUtils.equals(sessionId, mSessionId) || !mMediaRecorderProvider.isRecording()) {
+            return;
+        }
+        mMainHandler.removeCallbacks(mTakeSnapshot);
+        File recorded = mCapturingFile;
+        boolean stopped = mMediaRecorderProvider.stop();
+        CaptureMetrics metrics = mCamera2Helper.getCaptureMetrics();
+        Timber.d("capture metrics of the session: %s", metrics.snapshot());
+        mRecordingStorage.onRecordingFinished(recorded);
+        if (stopped) {
+            mPostProcessExecutor.execute(() -> postProcess(recorded, metrics));
+        } else {
+            // the recorder didn't write moov, what it did write may still be recovered.
+            mPostProcessExecutor.execute(() -> recoverRecording(recorded));
         }
+        mSessionId = null;
+        mCapturingStartedAt = 0;
+        mCapturingFile = null;
+        mCapturer.notifyCapturerEvent(sessionId, stopped ? CapturerEvent.STOPPED : CapturerEvent.ERROR);
+        updateExtraOutput();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package me.ztiany.capturer;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Hands other apps the {@link FrameExporter} of the process, see {@link SharedFrameClient}. It is exported on its own,
+ * under {@code READ_FRAMES}, so a client that reads the frames can't control the capture through
+ * {@link FloatingCameraService}. The frames come while that service streams them.
+ */
+public class FrameExportService extends Service {
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return null;
+        }
+        return AppContext.get(this).getFrameExporter().onBind();
+    }
+
+}
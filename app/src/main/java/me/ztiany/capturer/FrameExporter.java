@@ -0,0 +1,307 @@
+package me.ztiany.capturer;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import timber.log.Timber;
+
+/**
+ * Shares the frames of a {@link FrameReader} with other processes. The frames are copied once, from the camera's image
+ * into a {@link SharedFrameRing} of {@link SharedMemory} slots, and only the slot, the sequence and the timestamp of a
+ * frame go over Binder. The clients map the slots read-only, see {@link SharedFrameClient}.
+ *
+ * <p>
+ * A client binds {@link FrameExportService} and registers its {@link Messenger}, then gets {@link #MSG_FRAME_RING}
+ * with the slots, again whenever the frame size changes or a capture session starts, and {@link #MSG_FRAME} for every
+ * frame. The exporter lives as long as the process, see {@link AppContext#getFrameExporter()}.
+ * </p>
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+public final class FrameExporter implements FrameReader.ImageListener {
+
+    /**
+     * What {@link SharedFrameClient} binds with, the action is not needed to reach {@link FrameExportService}.
+     */
+    public static final String ACTION_BIND_FRAMES = "me.ztiany.capturer.action.BIND_FRAMES";
+
+    /**
+     * From a client, with its messenger in {@code replyTo}.
+     */
+    static final int MSG_REGISTER_CLIENT = 1;
+    static final int MSG_UNREGISTER_CLIENT = 2;
+
+    /**
+     * To the clients, the slots in {@link #KEY_FOR_SLOTS}.
+     */
+    static final int MSG_FRAME_RING = 3;
+
+    /**
+     * To the clients, the slot in {@code arg1}, {@link #KEY_FOR_SEQUENCE} and {@link #KEY_FOR_TIMESTAMP}.
+     */
+    static final int MSG_FRAME = 4;
+
+    static final String KEY_FOR_SLOTS = "KEY_FOR_SLOTS";
+    static final String KEY_FOR_SEQUENCE = "KEY_FOR_SEQUENCE";
+    static final String KEY_FOR_TIMESTAMP = "KEY_FOR_TIMESTAMP";
+
+    /**
+     * Enough for a client to copy a frame while the next ones are written.
+     */
+    static final int DEFAULT_SLOTS = 4;
+
+    public interface ClientListener {
+
+        /**
+         * Called on the main thread when a client comes or goes.
+         */
+        void onClientCountChanged(int count);
+
+    }
+
+    private final int mSlotCount;
+
+    private final Messenger mMessenger = new Messenger(new Handler(Looper.getMainLooper(), this::dealWithClientMessage));
+
+    private final List<Messenger> mClients = new CopyOnWriteArrayList<>();
+
+    @Nullable
+    private ClientListener mClientListener;
+
+    /**
+     * Guards the slots, they are allocated and written on the camera's worker thread, but sent to a client that
+     * registers and freed on the main thread. The fields below are only accessed with it.
+     */
+    private final Object mLock = new Object();
+
+    @Nullable
+    private SharedMemory[] mMemories;
+
+    @Nullable
+    private ByteBuffer[] mMappings;
+
+    @Nullable
+    private SharedFrameRing mRing;
+
+    /**
+     * Once released, a late frame doesn't allocate the slots again.
+     */
+    private boolean mReleased;
+
+    private final SharedFrameRing.Frame mFrame = new SharedFrameRing.Frame();
+
+    public FrameExporter() {
+        this(DEFAULT_SLOTS);
+    }
+
+    public FrameExporter(int slotCount) {
+        mSlotCount = slotCount;
+    }
+
+    /**
+     * Called from {@link FrameExportService#onBind}.
+     */
+    @NonNull
+    public IBinder onBind() {
+        return mMessenger.getBinder();
+    }
+
+    public void setClientListener(@Nullable ClientListener clientListener) {
+        mClientListener = clientListener;
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    @WorkerThread
+    @Override
+    public void onImage(Image image) {
+        if (mClients.isEmpty() || image.getFormat() != ImageFormat.YUV_420_888) {
+            return;
+        }
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer y = planes[0].getBuffer();
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+
+        SharedFrameRing.Frame frame = mFrame;
+        frame.timestamp = image.getTimestamp();
+        frame.width = image.getWidth();
+        frame.height = image.getHeight();
+        frame.format = image.getFormat();
+        frame.yRowStride = planes[0].getRowStride();
+        frame.uvRowStride = planes[1].getRowStride();
+        frame.uvPixelStride = planes[1].getPixelStride();
+
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            SharedFrameRing ring = mRing;
+            int slotSize = SharedFrameRing.slotSize(y.remaining(), u.remaining(), v.remaining());
+            if (ring == null || ring.getPayloadCapacity() < slotSize - SharedFrameRing.HEADER_SIZE) {
+                ring = allocate(slotSize);
+                if (ring == null) {
+                    return;
+                }
+                for (Messenger client : mClients) {
+                    sendRing(client);
+                }
+            }
+            if (!ring.write(frame, y, u, v)) {
+                return;
+            }
+        }
+
+        for (Messenger client : mClients) {
+            Message message = Message.obtain(null, MSG_FRAME, frame.slot, 0);
+            Bundle data = message.getData();
+            data.putLong(KEY_FOR_SEQUENCE, frame.sequence);
+            data.putLong(KEY_FOR_TIMESTAMP, frame.timestamp);
+            send(client, message);
+        }
+    }
+
+    /**
+     * Lets the frames of a capture session be shared after {@link #release()}.
+     */
+    public void reopen() {
+        synchronized (mLock) {
+            mReleased = false;
+        }
+    }
+
+    /**
+     * Unmaps the slots once the frames have stopped coming, the clients keep their own mappings until they unmap them.
+     * The clients stay registered, they get new slots with the frames of the next session.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            freeSlots();
+        }
+    }
+
+    @Nullable
+    private SharedFrameRing allocate(int slotSize) {
+        freeSlots();
+        SharedMemory[] memories = new SharedMemory[mSlotCount];
+        ByteBuffer[] mappings = new ByteBuffer[mSlotCount];
+        try {
+            for (int i = 0; i < mSlotCount; i++) {
+                memories[i] = SharedMemory.create("frame-" + i, slotSize);
+                mappings[i] = memories[i].mapReadWrite();
+                // only the mapping above may write, the clients can map it for reading only.
+                memories[i].setProtect(OsConstants.PROT_READ);
+            }
+        } catch (ErrnoException | RuntimeException exception) {
+            Timber.e(exception, "FrameExporter.allocate()");
+            mMemories = memories;
+            mMappings = mappings;
+            freeSlots();
+            return null;
+        }
+        mMemories = memories;
+        mMappings = mappings;
+        mRing = new SharedFrameRing(mappings);
+        Timber.d("frame ring of %d x %d bytes is allocated.", mSlotCount, slotSize);
+        return mRing;
+    }
+
+    private void freeSlots() {
+        mRing = null;
+        if (mMappings != null) {
+            for (ByteBuffer mapping : mMappings) {
+                if (mapping != null) {
+                    SharedMemory.unmap(mapping);
+                }
+            }
+            mMappings = null;
+        }
+        if (mMemories != null) {
+            for (SharedMemory memory : mMemories) {
+                if (memory != null) {
+                    memory.close();
+                }
+            }
+            mMemories = null;
+        }
+    }
+
+    private void sendRing(Messenger client) {
+        // the slots can't be closed while they are parceled.
+        synchronized (mLock) {
+            SharedMemory[] memories = mMemories;
+            if (memories == null) {
+                return;
+            }
+            Message message = Message.obtain(null, MSG_FRAME_RING);
+            message.getData().putParcelableArray(KEY_FOR_SLOTS, memories);
+            send(client, message);
+        }
+    }
+
+    private void send(Messenger client, Message message) {
+        try {
+            client.send(message);
+        } catch (RemoteException exception) {
+            Timber.w(exception, "frame client %s is gone.", client);
+            if (mClients.remove(client)) {
+                new Handler(Looper.getMainLooper()).post(this::notifyClientCountChanged);
+            }
+        }
+    }
+
+    @MainThread
+    private boolean dealWithClientMessage(Message message) {
+        Messenger client = message.replyTo;
+        if (client == null) {
+            return false;
+        }
+        if (message.what == MSG_REGISTER_CLIENT) {
+            if (!mClients.contains(client)) {
+                mClients.add(client);
+                // the ring may be replaced on the worker thread right after, the client then gets that one as well.
+                sendRing(client);
+                notifyClientCountChanged();
+            }
+            return true;
+        }
+        if (message.what == MSG_UNREGISTER_CLIENT) {
+            if (mClients.remove(client)) {
+                notifyClientCountChanged();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @MainThread
+    private void notifyClientCountChanged() {
+        if (mClientListener != null) {
+            mClientListener.onClientCountChanged(mClients.size());
+        }
+    }
+
+}
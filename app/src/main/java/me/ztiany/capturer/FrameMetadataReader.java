@@ -0,0 +1,110 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a sidecar written by {@link FrameMetadataWriter} through a read-only memory mapping, any frame is found by its
+ * index without reading the frames before it.
+ *
+ * <p>
+ * The file is a header (magic, version, batch size) followed by blocks of one batch each. A block is the frame count
+ * and then one column after another: sensor timestamps, wall clocks, exposure times (longs), sensitivities (ints) and
+ * focus distances (floats), little-endian. Every block but the last holds a full batch, so the block of a frame is
+ * {@code index / batchSize}.
+ * </p>
+ */
+public final class FrameMetadataReader implements Closeable {
+
+    private final FileChannel mChannel;
+
+    private final MappedByteBuffer mBuffer;
+
+    private final int mBatchFrames;
+
+    private final int mFrameCount;
+
+    public FrameMetadataReader(@NonNull File file) throws IOException {
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+            mBuffer.order(FrameMetadataWriter.BYTE_ORDER);
+            if (mBuffer.limit() < FrameMetadataWriter.HEADER_SIZE
+                    || mBuffer.getInt(0) != FrameMetadataWriter.MAGIC
+                    || mBuffer.getInt(4) != FrameMetadataWriter.VERSION) {
+                throw new IOException("not a frame metadata file: " + file);
+            }
+            mBatchFrames = mBuffer.getInt(8);
+
+            int frameCount = 0;
+            long position = FrameMetadataWriter.HEADER_SIZE;
+            // a block cut off by a crash is ignored.
+            while (position + 4 <= mBuffer.limit()) {
+                int count = mBuffer.getInt((int) position);
+                long blockSize = 4 + (long) count * FrameMetadataWriter.FRAME_SIZE;
+                if (count <= 0 || count > mBatchFrames || position + blockSize > mBuffer.limit()) {
+                    break;
+                }
+                frameCount += count;
+                position += blockSize;
+                if (count < mBatchFrames) {
+                    break;
+                }
+            }
+            mFrameCount = frameCount;
+        } catch (IOException | RuntimeException exception) {
+            mChannel.close();
+            throw exception;
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getSensorTimestamp(int index) {
+        return mBuffer.getLong(columnOffset(index, 0, 8));
+    }
+
+    public long getWallClock(int index) {
+        return mBuffer.getLong(columnOffset(index, 8, 8));
+    }
+
+    public long getExposureTime(int index) {
+        return mBuffer.getLong(columnOffset(index, 16, 8));
+    }
+
+    public int getSensitivity(int index) {
+        return mBuffer.getInt(columnOffset(index, 24, 4));
+    }
+
+    public float getFocusDistance(int index) {
+        return mBuffer.getFloat(columnOffset(index, 28, 4));
+    }
+
+    /**
+     * @param columnStart the bytes per frame of the columns before this one.
+     * @param valueSize   the bytes of one value of this column.
+     */
+    private int columnOffset(int index, int columnStart, int valueSize) {
+        if (index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", frame count " + mFrameCount);
+        }
+        int block = index / mBatchFrames;
+        long blockStart = FrameMetadataWriter.HEADER_SIZE + (long) block * (4 + (long) mBatchFrames * FrameMetadataWriter.FRAME_SIZE);
+        int count = mBuffer.getInt((int) blockStart);
+        return (int) (blockStart + 4 + (long) count * columnStart + (long) (index % mBatchFrames) * valueSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+}
@@ -0,0 +1,206 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Writes the capture metadata of every recorded frame to a sidecar file next to the recording, see
+ * {@link FrameMetadataReader} for the format.
+ *
+ * <p>
+ * The values are collected into preallocated primitive columns, a full batch is handed to a dedicated I/O thread
+ * while the other batch takes the next frames, so {@link #append} never allocates or touches the disk. If the I/O
+ * thread falls behind by a whole batch, frames are dropped and counted instead of blocking the camera thread.
+ * </p>
+ */
+public final class FrameMetadataWriter implements Closeable {
+
+    public static final String SUFFIX = ".meta";
+
+    static final int MAGIC = 0x464D4431; // "FMD1"
+
+    static final int VERSION = 1;
+
+    /**
+     * magic, version and batch size.
+     */
+    static final int HEADER_SIZE = 12;
+
+    /**
+     * sensor timestamp, wall clock, exposure time, sensitivity and focus distance.
+     */
+    static final int FRAME_SIZE = 8 + 8 + 8 + 4 + 4;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * About a minute at 30 fps, 64KB per batch.
+     */
+    static final int DEFAULT_BATCH_FRAMES = 2048;
+
+    private final FileChannel mChannel;
+
+    private final ExecutorService mExecutor;
+
+    private final Batch[] mBatches;
+
+    private final ByteBuffer mBuffer;
+
+    private Batch mActive;
+
+    private boolean mClosed;
+
+    private long mDroppedFrames;
+
+    public FrameMetadataWriter(@NonNull File file) throws IOException {
+        this(file, DEFAULT_BATCH_FRAMES, Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "FrameMetadataWriter")));
+    }
+
+    FrameMetadataWriter(@NonNull File file, int batchFrames, @NonNull ExecutorService executor) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        mChannel = randomAccessFile.getChannel();
+        mExecutor = executor;
+        mBatches = new Batch[]{new Batch(batchFrames), new Batch(batchFrames)};
+        mActive = mBatches[0];
+        mBuffer = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, 4 + batchFrames * FRAME_SIZE)).order(BYTE_ORDER);
+
+        mBuffer.putInt(MAGIC).putInt(VERSION).putInt(batchFrames).flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+    }
+
+    /**
+     * Called on the camera thread for every recorded frame.
+     *
+     * @param sensorTimestamp {@code SENSOR_TIMESTAMP} in nanoseconds.
+     * @param wallClock       {@code System.currentTimeMillis()} of the frame.
+     * @param exposureTime    {@code SENSOR_EXPOSURE_TIME} in nanoseconds.
+     * @param sensitivity     {@code SENSOR_SENSITIVITY}.
+     * @param focusDistance   {@code LENS_FOCUS_DISTANCE} in diopters.
+     * @return false if the frame is dropped.
+     */
+    public synchronized boolean append(long sensorTimestamp, long wallClock, long exposureTime, int sensitivity, float focusDistance) {
+        if (mClosed) {
+            return false;
+        }
+        Batch batch = mActive;
+        if (batch.mWriting) {
+            mDroppedFrames++;
+            return false;
+        }
+        int index = batch.mCount++;
+        batch.mSensorTimestamps[index] = sensorTimestamp;
+        batch.mWallClocks[index] = wallClock;
+        batch.mExposureTimes[index] = exposureTime;
+        batch.mSensitivities[index] = sensitivity;
+        batch.mFocusDistances[index] = focusDistance;
+        if (batch.mCount == batch.mSensorTimestamps.length) {
+            flush(batch);
+            mActive = batch == mBatches[0] ? mBatches[1] : mBatches[0];
+        }
+        return true;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Writes the partial batch and closes the file on the I/O thread, never blocks.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mActive.mCount > 0 && !mActive.mWriting) {
+            flush(mActive);
+        }
+        mExecutor.execute(() -> {
+            try {
+                mChannel.close();
+            } catch (IOException exception) {
+                Timber.e(exception, "FrameMetadataWriter.close()");
+            }
+            long droppedFrames = getDroppedFrames();
+            if (droppedFrames > 0) {
+                Timber.w("%d frames are dropped from the metadata.", droppedFrames);
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void flush(@NonNull Batch batch) {
+        batch.mWriting = true;
+        mExecutor.execute(() -> {
+            try {
+                write(batch);
+            } catch (IOException exception) {
+                Timber.e(exception, "FrameMetadataWriter.write()");
+            }
+            synchronized (FrameMetadataWriter.this) {
+                batch.mCount = 0;
+                batch.mWriting = false;
+            }
+        });
+    }
+
+    /**
+     * Runs on the I/O thread, the batch is not touched by {@link #append} while {@link Batch#mWriting} is set.
+     */
+    private void write(@NonNull Batch batch) throws IOException {
+        int count = batch.mCount;
+        ByteBuffer buffer = mBuffer;
+        buffer.clear();
+        buffer.putInt(count);
+        buffer.asLongBuffer().put(batch.mSensorTimestamps, 0, count);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asLongBuffer().put(batch.mWallClocks, 0, count);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asLongBuffer().put(batch.mExposureTimes, 0, count);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asIntBuffer().put(batch.mSensitivities, 0, count);
+        buffer.position(buffer.position() + count * 4);
+        buffer.asFloatBuffer().put(batch.mFocusDistances, 0, count);
+        buffer.position(buffer.position() + count * 4);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static final class Batch {
+
+        final long[] mSensorTimestamps;
+        final long[] mWallClocks;
+        final long[] mExposureTimes;
+        final int[] mSensitivities;
+        final float[] mFocusDistances;
+        int mCount;
+        boolean mWriting;
+
+        Batch(int frames) {
+            mSensorTimestamps = new long[frames];
+            mWallClocks = new long[frames];
+            mExposureTimes = new long[frames];
+            mSensitivities = new int[frames];
+            mFocusDistances = new float[frames];
+        }
+
+    }
+
+}
@@ -22,6 +22,9 @@ public class FrameReader implements OutputProvider {
     @Nullable
     private FrameListener mFrameListener;
 
+    @Nullable
+    private volatile ImageListener mImageListener;
+
     private Camera2Handle mCamera2Handle;
 
     @Override
@@ -43,6 +46,30 @@ public class FrameReader implements OutputProvider {
     @Override
     public void onDetach() {
         release();
+        mImageReader = null;
+    }
+
+    /**
+     * 将帧输出加入相机会话，替换其他输出（例如正在进行的录制）。
+     *
+     * @return 相机未打开时返回 false。
+     */
+    public boolean start() {
+        ImageReader imageReader = mImageReader;
+        if (imageReader == null || mCamera2Handle == null) {
+            return false;
+        }
+        mCamera2Handle.startCapturingCameraSession(imageReader.getSurface(), null);
+        return true;
+    }
+
+    /**
+     * 从相机会话中移除帧输出，恢复为仅预览。
+     */
+    public void stop() {
+        if (mImageReader != null && mCamera2Handle != null) {
+            mCamera2Handle.stopCapturingCameraSession();
+        }
     }
 
     private class OnImageAvailableListenerImpl implements ImageReader.OnImageAvailableListener {
@@ -54,6 +81,13 @@ public class FrameReader implements OutputProvider {
         @Override
         public void onImageAvailable(ImageReader reader) {
             Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            ImageListener imageListener = mImageListener;
+            if (imageListener != null) {
+                imageListener.onImage(image);
+            }
             // Y:U:V == 4:2:2
             if (mFrameListener != null && image.getFormat() == ImageFormat.YUV_420_888) {
                 Image.Plane[] planes = image.getPlanes();
@@ -100,6 +134,19 @@ public class FrameReader implements OutputProvider {
 
     }
 
+    public interface ImageListener {
+
+        /**
+         * 原始帧回调，在工作线程中调用，在转换为 {@link FrameListener} 的数据之前。回调返回后 image 即被关闭。
+         */
+        void onImage(Image image);
+
+    }
+
+    public void setImageListener(@Nullable ImageListener imageListener) {
+        mImageListener = imageListener;
+    }
+
     public void setFrameListener(@Nullable FrameListener frameListener) {
         mFrameListener = frameListener;
     }
@@ -0,0 +1,52 @@
+package me.ztiany.capturer;
+
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A constrained high-speed video configuration: the size shared by all outputs of the session and the AE target fps
+ * range of its requests.
+ */
+public final class HighSpeedConfig {
+
+    public final int width;
+
+    public final int height;
+
+    public final int fpsLower;
+
+    public final int fpsUpper;
+
+    public HighSpeedConfig(int width, int height, int fpsLower, int fpsUpper) {
+        this.width = width;
+        this.height = height;
+        this.fpsLower = fpsLower;
+        this.fpsUpper = fpsUpper;
+    }
+
+    /**
+     * @param index an index of {@link CameraCapabilities#getHighSpeedConfigurationCount()}.
+     */
+    @NonNull
+    public static HighSpeedConfig of(@NonNull CameraCapabilities capabilities, int index) {
+        return new HighSpeedConfig(
+                capabilities.getHighSpeedWidth(index),
+                capabilities.getHighSpeedHeight(index),
+                capabilities.getHighSpeedFpsLower(index),
+                capabilities.getHighSpeedFpsUpper(index)
+        );
+    }
+
+    @NonNull
+    public Size getSize() {
+        return new Size(width, height);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "HighSpeedConfig{" + width + "x" + height + "@[" + fpsLower + ", " + fpsUpper + "]}";
+    }
+
+}
@@ -0,0 +1,217 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Uploads over HTTP/1.1 the way tus does: {@code HEAD} asks the server for the {@code Upload-Offset} of an upload, and
+ * {@code PATCH} appends a chunk at that offset. The body goes from the file to the socket with
+ * {@link FileChannel#transferTo}, a grant of the limiter at a time, so it never passes through the heap.
+ *
+ * <p>
+ * Only plain {@code http} is spoken, a TLS socket can't be the target of {@code transferTo}. The service only hands it
+ * recordings {@link RecordingFinisher} has encrypted with {@link RecordingCipher}.
+ * </p>
+ */
+public final class HttpUploadTransport implements UploadTransport {
+
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    /**
+     * The most sent per grant of the limiter, so it paces at a fine grain even without a limit.
+     */
+    private static final long MAX_GRANT_BYTES = 256 * 1024;
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_TIMEOUT = 408;
+    private static final int HTTP_CONFLICT = 409;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String mHost;
+
+    private final int mPort;
+
+    private final String mPath;
+
+    /**
+     * @param base where the uploads go, {@code http://host:port/path/}, the name of an upload is appended.
+     */
+    public HttpUploadTransport(@NonNull URI base) {
+        if (!"http".equals(base.getScheme()) || base.getHost() == null) {
+            throw new IllegalArgumentException("not an http URI: " + base);
+        }
+        mHost = base.getHost();
+        mPort = base.getPort() < 0 ? 80 : base.getPort();
+        String path = base.getRawPath() == null || base.getRawPath().isEmpty() ? "/" : base.getRawPath();
+        mPath = path.endsWith("/") ? path : path + "/";
+    }
+
+    @Override
+    public long getOffset(@NonNull String name, long length) throws IOException {
+        try (SocketChannel channel = connect()) {
+            writeHead(channel, "HEAD", name, "Upload-Length: " + length + "\r\n");
+            Response response = readResponse(channel);
+            if (response.status == HTTP_NOT_FOUND) {
+                return 0;
+            }
+            return check(response, name);
+        }
+    }
+
+    @Override
+    public long send(@NonNull String name, @NonNull FileChannel file, long position, long count, long length,
+                     @NonNull BandwidthLimiter limiter) throws IOException, InterruptedException {
+        try (SocketChannel channel = connect()) {
+            writeHead(channel, "PATCH", name,
+                    "Upload-Offset: " + position + "\r\n" +
+                            "Upload-Length: " + length + "\r\n" +
+                            "Content-Type: application/offset+octet-stream\r\n" +
+                            "Content-Length: " + count + "\r\n");
+            long sent = 0;
+            while (sent < count) {
+                long granted = limiter.acquire(Math.min(count - sent, MAX_GRANT_BYTES));
+                long transferred = 0;
+                while (transferred < granted) {
+                    long written = file.transferTo(position + sent + transferred, granted - transferred, channel);
+                    if (written <= 0) {
+                        // the file got shorter.
+                        throw new IOException("transfer stalled at " + (position + sent + transferred));
+                    }
+                    transferred += written;
+                }
+                sent += granted;
+            }
+            return check(readResponse(channel), name);
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setSoTimeout(READ_TIMEOUT_MS);
+            channel.socket().connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        } catch (IOException exception) {
+            channel.close();
+            throw exception;
+        }
+        return channel;
+    }
+
+    private void writeHead(SocketChannel channel, String method, String name, String headers) throws IOException {
+        String head = method + " " + mPath + URLEncoder.encode(name, "UTF-8") + " HTTP/1.1\r\n" +
+                "Host: " + mHost + ":" + mPort + "\r\n" +
+                "Tus-Resumable: 1.0.0\r\n" +
+                headers +
+                "Connection: close\r\n" +
+                "\r\n";
+        ByteBuffer buffer = ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static final class Response {
+
+        final int status;
+
+        final long offset;
+
+        Response(int status, long offset) {
+            this.status = status;
+            this.offset = offset;
+        }
+
+    }
+
+    /**
+     * Reads the status and the headers, the body is not needed.
+     */
+    private static Response readResponse(SocketChannel channel) throws IOException {
+        // the socket's stream, unlike the channel, keeps to the read timeout.
+        InputStream input = channel.socket().getInputStream();
+        String statusLine = readLine(input);
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException exception) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        long offset = -1;
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("headers too long");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("upload-offset")) {
+                try {
+                    offset = Long.parseLong(line.substring(colon + 1).trim());
+                } catch (NumberFormatException exception) {
+                    throw new IOException("bad Upload-Offset: " + line);
+                }
+            }
+        }
+        return new Response(status, offset);
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("connection closed in the response head");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > MAX_HEADER_BYTES) {
+                throw new IOException("line too long");
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the offset the server is at.
+     */
+    private static long check(Response response, String name) throws IOException {
+        if (response.status >= 200 && response.status < 300) {
+            if (response.offset < 0) {
+                throw new IOException("no Upload-Offset for " + name);
+            }
+            return response.offset;
+        }
+        if (response.status == HTTP_CONFLICT) {
+            // the server is at another offset, it is asked again on the next attempt.
+            throw new IOException("offset conflict for " + name);
+        }
+        if (response.status == HTTP_TIMEOUT || response.status == HTTP_TOO_MANY_REQUESTS) {
+            throw new IOException("HTTP " + response.status + " for " + name);
+        }
+        if (response.status >= 400 && response.status < 500) {
+            throw new RejectedException("HTTP " + response.status + " for " + name);
+        }
+        throw new IOException("HTTP " + response.status + " for " + name);
+    }
+
+}
@@ -0,0 +1,59 @@
+package me.ztiany.capturer;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The key the {@link RecordingManifest}s are signed with. It is made in the Android Keystore and never leaves it,
+ * only its public half is exported to verify the recordings elsewhere.
+ */
+public final class IntegrityKeys {
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+
+    private static final String ALIAS = "recording-integrity";
+
+    private IntegrityKeys() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Makes the key the first time.
+     */
+    @NonNull
+    public static KeyPair getOrCreate() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        Certificate certificate = keyStore.getCertificate(ALIAS);
+        if (certificate != null && keyStore.getKey(ALIAS, null) instanceof PrivateKey) {
+            return new KeyPair(certificate.getPublicKey(), (PrivateKey) keyStore.getKey(ALIAS, null));
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, KEYSTORE);
+        generator.initialize(new KeyGenParameterSpec.Builder(ALIAS, KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .build());
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @return the public key in X.509 form, for {@code KeyFactory.getInstance("EC")} with an
+     * {@code X509EncodedKeySpec} on the verifying side.
+     */
+    @NonNull
+    public static byte[] exportPublicKey() throws GeneralSecurityException, IOException {
+        return getOrCreate().getPublic().getEncoded();
+    }
+
+}
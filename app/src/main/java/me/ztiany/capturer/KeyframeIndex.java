@@ -0,0 +1,363 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * The keyframes of a recording in a sidecar, sorted by presentation time, so a player seeks to a time with a binary
+ * search over a mapping of the sidecar instead of parsing the sample tables of the MP4.
+ *
+ * <p>
+ * The sidecar is a header of {@code magic | entry size} and entries of {@code time in us | offset in the MP4}, 64-bit
+ * big-endian each. It is written by {@link KeyframeIndexWriter}, as the keyframes are written or, for the recorder's
+ * files, from the sample tables of {@code moov} once the file is finished, see {@link #build}. A partial entry at the
+ * end is ignored.
+ * </p>
+ */
+public final class KeyframeIndex {
+
+    public static final String SUFFIX = ".keyframes";
+
+    static final int MAGIC = 0x4B464931; // "KFI1"
+
+    static final int HEADER_SIZE = 8;
+
+    static final int ENTRY_SIZE = 16;
+
+    private static final int TYPE_TRAK = Mp4Faststart.fourCc("trak");
+    private static final int TYPE_MDIA = Mp4Faststart.fourCc("mdia");
+    private static final int TYPE_MDHD = Mp4Faststart.fourCc("mdhd");
+    private static final int TYPE_HDLR = Mp4Faststart.fourCc("hdlr");
+    private static final int TYPE_MINF = Mp4Faststart.fourCc("minf");
+    private static final int TYPE_STBL = Mp4Faststart.fourCc("stbl");
+    private static final int TYPE_STTS = Mp4Faststart.fourCc("stts");
+    private static final int TYPE_CTTS = Mp4Faststart.fourCc("ctts");
+    private static final int TYPE_STSS = Mp4Faststart.fourCc("stss");
+    private static final int TYPE_STSC = Mp4Faststart.fourCc("stsc");
+    private static final int TYPE_STSZ = Mp4Faststart.fourCc("stsz");
+    private static final int TYPE_VIDE = Mp4Faststart.fourCc("vide");
+
+    private final ByteBuffer mEntries;
+
+    private final int mCount;
+
+    private KeyframeIndex(ByteBuffer entries) {
+        mEntries = entries;
+        mCount = entries.remaining() / ENTRY_SIZE;
+    }
+
+    @NonNull
+    public static File indexFile(@NonNull File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * Maps the index of a recording, the mapping stays valid once the file is closed.
+     *
+     * @return null if there is none or it is not an index.
+     */
+    @Nullable
+    public static KeyframeIndex open(@NonNull File recording) throws IOException {
+        File file = indexFile(recording);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != ENTRY_SIZE) {
+                return null;
+            }
+            mapped.position(HEADER_SIZE);
+            return new KeyframeIndex(mapped.slice());
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public long getTimeUs(int index) {
+        return mEntries.getLong(index * ENTRY_SIZE);
+    }
+
+    public long getOffset(int index) {
+        return mEntries.getLong(index * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * @return the last keyframe at or before the time, the first one if the time is before all of them, -1 if there
+     * are none.
+     */
+    public int find(long timeUs) {
+        int low = 0;
+        int high = mCount - 1;
+        int found = mCount > 0 ? 0 : -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getTimeUs(middle) <= timeUs) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes the index of a finished recording from the sample tables of its video track, called once its boxes no
+     * longer move.
+     *
+     * @return false if the file has no video track that can be read.
+     */
+    @WorkerThread
+    public static boolean build(@NonNull File recording) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(recording, "r").getChannel()) {
+            List<Mp4Faststart.Box> boxes = Mp4Faststart.readBoxes(channel);
+            if (boxes == null) {
+                return false;
+            }
+            Mp4Faststart.Box moov = null;
+            for (Mp4Faststart.Box box : boxes) {
+                if (box.type == Mp4Faststart.TYPE_MOOV) {
+                    moov = box;
+                }
+            }
+            if (moov == null || moov.size > Integer.MAX_VALUE) {
+                return false;
+            }
+            return build(recording, channel.map(FileChannel.MapMode.READ_ONLY, moov.offset, moov.size));
+        }
+    }
+
+    /**
+     * Writes the index of a recording from its {@code moov}, e.g. the one {@link RecordingFinisher} has at hand as it
+     * copies the recording, so the recording is not read for it.
+     *
+     * @param moov the whole box, as it is in the recording, from its position to its limit.
+     * @return false if there is no video track that can be read.
+     */
+    @WorkerThread
+    public static boolean build(@NonNull File recording, @NonNull ByteBuffer moov) throws IOException {
+        ByteBuffer mdia = findVideoMdia(moov.slice());
+        if (mdia == null) {
+            return false;
+        }
+        ByteBuffer mdhd = child(mdia, TYPE_MDHD);
+        ByteBuffer minf = child(mdia, TYPE_MINF);
+        ByteBuffer stbl = minf == null ? null : child(minf, TYPE_STBL);
+        if (mdhd == null || stbl == null || mdhd.remaining() < 24) {
+            return false;
+        }
+        // version 1 has 64-bit times before the timescale.
+        long timescale = mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12) & 0xFFFFFFFFL;
+        if (timescale == 0) {
+            return false;
+        }
+        boolean written;
+        try (KeyframeIndexWriter writer = new KeyframeIndexWriter(recording)) {
+            written = writeKeyframes(stbl, timescale, writer);
+        }
+        if (!written) {
+            deleteIndex(recording);
+        }
+        return written;
+    }
+
+    public static void deleteIndex(@NonNull File recording) {
+        File file = indexFile(recording);
+        if (file.exists() && !file.delete()) {
+            Timber.w("%s can't be deleted.", file);
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer findVideoMdia(ByteBuffer moov) {
+        ByteBuffer traks = moov.duplicate();
+        traks.position(8);
+        for (ByteBuffer trak = next(traks, TYPE_TRAK); trak != null; trak = next(traks, TYPE_TRAK)) {
+            ByteBuffer mdia = child(trak, TYPE_MDIA);
+            ByteBuffer hdlr = mdia == null ? null : child(mdia, TYPE_HDLR);
+            // version and flags, pre_defined, then the handler type.
+            if (hdlr != null && hdlr.remaining() >= 12 && hdlr.getInt(8) == TYPE_VIDE) {
+                return mdia;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the content of the first child box of the type, null if there is none.
+     */
+    @Nullable
+    private static ByteBuffer child(ByteBuffer parent, int type) {
+        return next(parent.duplicate(), type);
+    }
+
+    /**
+     * @return the content of the next box of the type from the position, which is moved past it.
+     */
+    @Nullable
+    private static ByteBuffer next(ByteBuffer boxes, int type) {
+        while (boxes.remaining() >= 8) {
+            Mp4Faststart.Box box = Mp4Faststart.readBox(boxes, boxes.position());
+            if (box == null || !box.fitsIn(boxes.limit())) {
+                return null;
+            }
+            boxes.position((int) box.end());
+            if (box.type == type) {
+                ByteBuffer content = boxes.duplicate();
+                content.limit((int) box.end()).position((int) box.offset + box.headerSize);
+                return content.slice();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walks the samples: {@code stts} and {@code ctts} give their times, {@code stsc}, {@code stco} and {@code stsz}
+     * their offsets, {@code stss} which are sync samples, all of them without it.
+     */
+    private static boolean writeKeyframes(ByteBuffer stbl, long timescale, KeyframeIndexWriter writer) throws IOException {
+        ByteBuffer stts = child(stbl, TYPE_STTS);
+        ByteBuffer ctts = child(stbl, TYPE_CTTS);
+        ByteBuffer stss = child(stbl, TYPE_STSS);
+        ByteBuffer stsc = child(stbl, TYPE_STSC);
+        ByteBuffer stsz = child(stbl, TYPE_STSZ);
+        ByteBuffer stco = child(stbl, Mp4Faststart.TYPE_STCO);
+        boolean co64 = false;
+        if (stco == null) {
+            stco = child(stbl, Mp4Faststart.TYPE_CO64);
+            co64 = true;
+        }
+        if (stts == null || stsc == null || stsz == null || stco == null || stsz.remaining() < 12) {
+            return false;
+        }
+        int fixedSize = stsz.getInt(4);
+        long sampleCount = stsz.getInt(8) & 0xFFFFFFFFL;
+        Table times = new Table(stts, 8);
+        Table compositions = ctts == null ? null : new Table(ctts, 8);
+        Table syncs = stss == null ? null : new Table(stss, 4);
+        Table chunksRuns = new Table(stsc, 12);
+        Table chunks = new Table(stco, co64 ? 8 : 4);
+        if (!times.valid() || (compositions != null && !compositions.valid()) || (syncs != null && !syncs.valid())
+                || !chunksRuns.valid() || !chunks.valid() || (fixedSize == 0 && stsz.remaining() < 12 + sampleCount * 4)) {
+            return false;
+        }
+        boolean compositionSigned = ctts != null && ctts.get(0) == 1;
+
+        long decodeTime = 0;
+        int timeRun = 0;
+        long timeLeft = times.count > 0 ? times.getInt(0, 0) : 0;
+        int compositionRun = 0;
+        long compositionLeft = compositions != null && compositions.count > 0 ? compositions.getInt(0, 0) : 0;
+        int nextSync = 0;
+
+        int chunkRun = 0;
+        long chunk = 0;
+        long samplesLeftInChunk = 0;
+        long offset = 0;
+        for (long sample = 0; sample < sampleCount; sample++) {
+            if (samplesLeftInChunk == 0) {
+                if (chunk >= chunks.count) {
+                    return false;
+                }
+                while (chunkRun + 1 < chunksRuns.count && chunksRuns.getInt(chunkRun + 1, 0) - 1 <= chunk) {
+                    chunkRun++;
+                }
+                samplesLeftInChunk = chunksRuns.getInt(chunkRun, 4);
+                offset = co64 ? chunks.getLong(chunk, 0) : chunks.getInt(chunk, 0);
+                chunk++;
+                if (samplesLeftInChunk == 0) {
+                    return false;
+                }
+            }
+            long size = fixedSize != 0 ? fixedSize & 0xFFFFFFFFL : stsz.getInt(12 + (int) sample * 4) & 0xFFFFFFFFL;
+
+            while (timeLeft == 0 && timeRun + 1 < times.count) {
+                timeRun++;
+                timeLeft = times.getInt(timeRun, 0);
+            }
+            long compositionOffset = 0;
+            if (compositions != null) {
+                while (compositionLeft == 0 && compositionRun + 1 < compositions.count) {
+                    compositionRun++;
+                    compositionLeft = compositions.getInt(compositionRun, 0);
+                }
+                int raw = compositions.rawInt(compositionRun, 4);
+                compositionOffset = compositionSigned ? raw : raw & 0xFFFFFFFFL;
+                compositionLeft--;
+            }
+
+            boolean sync;
+            if (syncs == null) {
+                sync = true;
+            } else {
+                sync = nextSync < syncs.count && syncs.getInt(nextSync, 0) == sample + 1;
+                if (sync) {
+                    nextSync++;
+                }
+            }
+            if (sync) {
+                writer.add((decodeTime + compositionOffset) * 1_000_000 / timescale, offset);
+            }
+
+            decodeTime += times.count > 0 ? times.getInt(timeRun, 4) : 0;
+            timeLeft--;
+            offset += size;
+            samplesLeftInChunk--;
+        }
+        return true;
+    }
+
+    /**
+     * A full box of a count and fixed-size entries, from the start of its content.
+     */
+    private static final class Table {
+
+        private final ByteBuffer mBox;
+
+        private final int mEntrySize;
+
+        final long count;
+
+        Table(ByteBuffer box, int entrySize) {
+            mBox = box;
+            mEntrySize = entrySize;
+            count = box.remaining() >= 8 ? box.getInt(4) & 0xFFFFFFFFL : -1;
+        }
+
+        boolean valid() {
+            return count >= 0 && mBox.remaining() >= 8 + count * mEntrySize;
+        }
+
+        int rawInt(long entry, int field) {
+            return mBox.getInt(8 + (int) entry * mEntrySize + field);
+        }
+
+        long getInt(long entry, int field) {
+            return rawInt(entry, field) & 0xFFFFFFFFL;
+        }
+
+        long getLong(long entry, int field) {
+            return mBox.getLong(8 + (int) entry * mEntrySize + field);
+        }
+
+    }
+
+}
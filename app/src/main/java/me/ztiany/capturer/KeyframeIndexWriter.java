@@ -0,0 +1,111 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import timber.log.Timber;
+
+/**
+ * Writes the {@link KeyframeIndex} of a recording as the keyframes are written: the presentation time and the byte
+ * offset in the MP4 of each sync frame. The entries are gathered in a small buffer and appended whole, so a crash
+ * loses at most the last few, and the file is always a valid index of the ones before.
+ */
+public final class KeyframeIndexWriter implements Closeable {
+
+    /**
+     * The entries written at once.
+     */
+    private static final int BUFFERED_ENTRIES = 256;
+
+    private final File mFile;
+
+    private final FileChannel mChannel;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFERED_ENTRIES * KeyframeIndex.ENTRY_SIZE);
+
+    private long mLastTimeUs = Long.MIN_VALUE;
+
+    private long mLastOffset = -1;
+
+    private int mCount;
+
+    private boolean mClosed;
+
+    /**
+     * Creates or replaces the index of a recording.
+     */
+    public KeyframeIndexWriter(@NonNull File recording) throws IOException {
+        mFile = KeyframeIndex.indexFile(recording);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            mChannel = randomAccessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(KeyframeIndex.HEADER_SIZE);
+            header.putInt(KeyframeIndex.MAGIC).putInt(KeyframeIndex.ENTRY_SIZE).flip();
+            while (header.hasRemaining()) {
+                mChannel.write(header);
+            }
+        } catch (IOException exception) {
+            randomAccessFile.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Adds a sync frame. The index is sorted by time, so a frame earlier than the last one is dropped.
+     *
+     * @param offset where the frame starts in the MP4.
+     */
+    public void add(long presentationTimeUs, long offset) throws IOException {
+        if (mClosed) {
+            throw new IOException("closed");
+        }
+        if (presentationTimeUs < mLastTimeUs || (presentationTimeUs == mLastTimeUs && offset == mLastOffset)) {
+            Timber.w("keyframe at %d us is out of order, the last is at %d us.", presentationTimeUs, mLastTimeUs);
+            return;
+        }
+        mLastTimeUs = presentationTimeUs;
+        mLastOffset = offset;
+        mBuffer.putLong(presentationTimeUs).putLong(offset);
+        mCount++;
+        if (!mBuffer.hasRemaining()) {
+            flush();
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Appends the buffered entries.
+     */
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+        Timber.d("%d keyframes in %s.", mCount, mFile.getName());
+    }
+
+}
@@ -0,0 +1,77 @@
+package me.ztiany.capturer;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Wraps the data keys of {@link RecordingCipher} with AES-GCM under a key made in the Android Keystore, which never
+ * leaves it. Only the few bytes of a data key go through the key store, once per recording.
+ */
+public final class KeystoreKeyWrapper implements RecordingCipher.KeyWrapper {
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+
+    private static final String ALIAS = "recording-encryption";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final int IV_SIZE = 12;
+
+    private static final int TAG_BITS = 128;
+
+    @NonNull
+    @Override
+    public byte[] wrap(@NonNull SecretKey key) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        // the key store picks the IV.
+        cipher.init(Cipher.ENCRYPT_MODE, getOrCreateKey());
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(key.getEncoded());
+        return ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+    }
+
+    @NonNull
+    @Override
+    public SecretKey unwrap(@NonNull byte[] wrappedKey) throws GeneralSecurityException {
+        if (wrappedKey.length <= IV_SIZE) {
+            throw new GeneralSecurityException("wrapped key too short");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getOrCreateKey(), new GCMParameterSpec(TAG_BITS, wrappedKey, 0, IV_SIZE));
+        byte[] key = cipher.doFinal(wrappedKey, IV_SIZE, wrappedKey.length - IV_SIZE);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static SecretKey getOrCreateKey() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        try {
+            keyStore.load(null);
+        } catch (IOException exception) {
+            throw new GeneralSecurityException(exception);
+        }
+        if (keyStore.getKey(ALIAS, null) instanceof SecretKey) {
+            return (SecretKey) keyStore.getKey(ALIAS, null);
+        }
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+
+}
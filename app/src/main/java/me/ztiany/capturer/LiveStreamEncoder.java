@@ -0,0 +1,187 @@
+package me.ztiany.capturer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import timber.log.Timber;
+
+/**
+ * Encodes the camera's frames to H.264 for a {@link StreamingServer}. Like {@link FrameReader}, it takes the camera's
+ * extra output between {@link #start()} and {@link #stop()}, so it can't run while recording.
+ */
+public class LiveStreamEncoder implements OutputProvider {
+
+    private static final int BIT_RATE = 4_000_000;
+
+    private static final int FRAME_RATE = 30;
+
+    private static final int KEY_FRAME_INTERVAL_SECONDS = 2;
+
+    private final StreamingServer mStreamingServer;
+
+    private Camera2Handle mCamera2Handle;
+
+    private Size mFrameSize;
+
+    private volatile Handler mWorkerHandler;
+
+    /**
+     * Started and stopped on the main thread, drained on the worker thread.
+     */
+    @Nullable
+    private volatile MediaCodec mEncoder;
+
+    @Nullable
+    private Surface mInputSurface;
+
+    public LiveStreamEncoder(@NonNull StreamingServer streamingServer) {
+        mStreamingServer = streamingServer;
+    }
+
+    @Override
+    public void onAttach(@NonNull Camera2Handle camera2Handle, @NonNull Components components) {
+        mCamera2Handle = camera2Handle;
+        mFrameSize = components.require(PREVIEW_SIZE);
+        mWorkerHandler = components.require(WORKER);
+    }
+
+    @Override
+    public void onDetach() {
+        // the camera's session is gone with the camera.
+        releaseEncoder();
+        mCamera2Handle = null;
+    }
+
+    /**
+     * Starts encoding into the camera's extra output, replacing any other output.
+     *
+     * @return false if the camera is not opened or the encoder can't be created.
+     */
+    public boolean start() {
+        if (mCamera2Handle == null || mEncoder != null) {
+            return mEncoder != null;
+        }
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, mFrameSize.getWidth(), mFrameSize.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_SECONDS);
+        try {
+            MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            mEncoder = encoder;
+            encoder.setCallback(new EncoderCallback(), mWorkerHandler);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = encoder.createInputSurface();
+            encoder.start();
+        } catch (IOException | RuntimeException exception) {
+            Timber.e(exception, "LiveStreamEncoder.start()");
+            releaseEncoder();
+            return false;
+        }
+        mCamera2Handle.startCapturingCameraSession(mInputSurface, null);
+        Timber.d("live stream encoder is started at %s.", mFrameSize);
+        return true;
+    }
+
+    /**
+     * Removes the encoder from the camera's session and releases it.
+     */
+    public void stop() {
+        if (mEncoder == null) {
+            return;
+        }
+        if (mCamera2Handle != null) {
+            mCamera2Handle.stopCapturingCameraSession();
+        }
+        releaseEncoder();
+    }
+
+    /**
+     * Asks for a key frame now, for a client that just connected.
+     */
+    public void requestKeyFrame() {
+        Handler workerHandler = mWorkerHandler;
+        if (workerHandler == null) {
+            return;
+        }
+        workerHandler.post(() -> {
+            MediaCodec encoder = mEncoder;
+            if (encoder == null) {
+                return;
+            }
+            Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                encoder.setParameters(parameters);
+            } catch (IllegalStateException exception) {
+                Timber.w(exception, "LiveStreamEncoder.requestKeyFrame()");
+            }
+        });
+    }
+
+    private void releaseEncoder() {
+        MediaCodec encoder = mEncoder;
+        mEncoder = null;
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (IllegalStateException exception) {
+                Timber.w(exception, "LiveStreamEncoder.releaseEncoder()");
+            }
+            encoder.release();
+        }
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+    }
+
+    private class EncoderCallback extends MediaCodec.Callback {
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // the input comes from the surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (codec != mEncoder) {
+                return;
+            }
+            try {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null && info.size > 0) {
+                    buffer.limit(info.offset + info.size).position(info.offset);
+                    mStreamingServer.offer(buffer, info.flags);
+                }
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException exception) {
+                // stopped on the main thread meanwhile.
+                Timber.w(exception, "LiveStreamEncoder.onOutputBufferAvailable()");
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException exception) {
+            Timber.e(exception, "the live stream encoder fails.");
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Timber.d("live stream format: %s", format);
+        }
+
+    }
+
+}
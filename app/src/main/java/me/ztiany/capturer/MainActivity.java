@@ -7,6 +7,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Size;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -14,12 +15,16 @@ import android.widget.Toast;
 import androidx.activity.EdgeToEdge;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
+import java.util.List;
+import java.util.Locale;
+
 import timber.log.Timber;
 
 public class MainActivity extends AppCompatActivity {
@@ -75,6 +80,7 @@ public class MainActivity extends AppCompatActivity {
     @SuppressLint("SetTextI18n")
     private void initCommander() {
         mCommander.init();
+        mCommander.bind();
         mCommander.setCapturingStateListener(new FloatingCameraConnection.CapturingStateListener() {
             @Override
             public void onCapturingStarted(String sessionId) {
@@ -92,6 +98,19 @@ public class MainActivity extends AppCompatActivity {
                     mCapturingBtn.setText("Start Capturing");
                 }
                 mCapturing = false;
+                if (TextUtils.equals(sessionId, mSessionId)) {
+                    mSessionId = "";
+                }
+            }
+
+            @Override
+            public void onCapturingStateSynced(@CapturingState int state, @Nullable String sessionId) {
+                Timber.d("onCapturingStateSynced is called with state: %d, sessionId: %s", state, sessionId);
+                mCapturing = state == CapturingState.CAPTURING;
+                mSessionId = state == CapturingState.STARTING || state == CapturingState.CAPTURING ? sessionId : "";
+                if (mCapturingBtn != null) {
+                    mCapturingBtn.setText(mCapturing ? "Stop Capturing" : "Start Capturing");
+                }
             }
         });
     }
@@ -131,11 +150,13 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(this, "悬浮相机服务还没有启动", Toast.LENGTH_LONG).show();
             return;
         }
-        if (mCapturing) {
+        // a session that is still starting is stopped as well, the capturer carries the commands out in order.
+        if (!TextUtils.isEmpty(mSessionId)) {
             mCommander.stopCapturing(mSessionId);
             mSessionId = "";
         } else {
             mSessionId = String.valueOf(System.currentTimeMillis());
+            mCommander.subscribeProgress(mSessionId, 1000, this::showProgress);
             mCommander.startCapturing(mSessionId, new VideoSpec.Builder()
                     .setFrameRate(30)
                     .setVideoSize(new Size(1920, 1080))
@@ -145,6 +166,16 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @SuppressLint("SetTextI18n")
+    private void showProgress(String sessionId, List<CapturingProgress> batch) {
+        if (mCapturingBtn == null || !mCapturing || !TextUtils.equals(sessionId, mSessionId)) {
+            return;
+        }
+        CapturingProgress progress = batch.get(batch.size() - 1);
+        mCapturingBtn.setText(String.format(Locale.US, "Stop Capturing (%ds, %.1fMB, %.0ffps)",
+                progress.elapsedMs / 1000, progress.bytesWritten / 1048576f, progress.effectiveFps));
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -152,7 +183,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private String generateStorePath() {
-        return getExternalFilesDir(null) + "/" + System.currentTimeMillis() + "-video.mp4";
+        return getExternalFilesDir(null) + "/" + System.currentTimeMillis() + RecordingStorage.SUFFIX;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+package me.ztiany.capturer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import timber.log.Timber;
+
+/**
+ * Re-encodes the H.264 video of a recording at a lower bit rate with the hardware codecs: the decoder renders into the
+ * encoder's input surface, so the frames never leave the GPU memory. The size stays the same, the surface between
+ * the codecs doesn't scale.
+ *
+ * <p>
+ * A recording encrypted by {@link RecordingFinisher} is decrypted as the extractor reads it, through an
+ * {@link EncryptedRecordingReader}. The output is plaintext, it is encrypted again when it is finished.
+ * </p>
+ */
+public final class MediaCodecTranscoder implements Transcoder {
+
+    private static final long TIMEOUT_US = 10_000;
+
+    private static final int DEFAULT_FRAME_RATE = 30;
+
+    private static final int KEY_FRAME_INTERVAL_SECONDS = 1;
+
+    private final double mBitsPerPixel;
+
+    @Nullable
+    private final RecordingCipher.KeyWrapper mKeyWrapper;
+
+    /**
+     * @param bitsPerPixel per frame, {@link RecordingStorage} assumes 0.15 for the recorder's output.
+     */
+    public MediaCodecTranscoder(double bitsPerPixel) {
+        this(bitsPerPixel, null);
+    }
+
+    /**
+     * @param keyWrapper unwraps the keys of the encrypted recordings, the ones without can't be transcoded.
+     */
+    public MediaCodecTranscoder(double bitsPerPixel, @Nullable RecordingCipher.KeyWrapper keyWrapper) {
+        mBitsPerPixel = bitsPerPixel;
+        mKeyWrapper = keyWrapper;
+    }
+
+    @Override
+    public boolean transcode(@NonNull File input, @NonNull File output, @NonNull Cancellation cancellation) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        Surface surface = null;
+        MediaMuxer muxer = null;
+        EncryptedRecordingReader reader = null;
+        try {
+            if (RecordingCipher.isEncrypted(input)) {
+                if (mKeyWrapper == null) {
+                    throw new IOException(input + " is encrypted");
+                }
+                reader = EncryptedRecordingReader.open(input, mKeyWrapper);
+                extractor.setDataSource(new ReaderDataSource(reader));
+            } else {
+                extractor.setDataSource(input.getPath());
+            }
+            int track = findVideoTrack(extractor);
+            if (track < 0) {
+                throw new IOException("no video in " + input);
+            }
+            extractor.selectTrack(track);
+            MediaFormat inputFormat = extractor.getTrackFormat(track);
+            int width = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            int height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            int frameRate = inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE) ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : DEFAULT_FRAME_RATE;
+
+            MediaFormat outputFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, getBitRate(input, inputFormat, width, height, frameRate));
+            outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+            outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_SECONDS);
+            encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = encoder.createInputSurface();
+            encoder.start();
+
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(inputFormat, surface, null, 0);
+            decoder.start();
+
+            muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (inputFormat.containsKey(MediaFormat.KEY_ROTATION)) {
+                muxer.setOrientationHint(inputFormat.getInteger(MediaFormat.KEY_ROTATION));
+            }
+            return pump(extractor, decoder, encoder, muxer, cancellation);
+        } catch (IllegalStateException | IllegalArgumentException exception) {
+            // what MediaCodec and MediaMuxer throw.
+            throw new IOException(input + " can't be transcoded", exception);
+        } finally {
+            release(decoder);
+            release(encoder);
+            if (surface != null) {
+                surface.release();
+            }
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (IllegalStateException exception) {
+                    // not started, or stopped without samples.
+                    Timber.w(exception, "MediaCodecTranscoder.transcode()");
+                }
+            }
+            extractor.release();
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Feeds the decoder, moves its frames to the encoder and writes what the encoder makes, until the end.
+     */
+    private static boolean pump(MediaExtractor extractor, MediaCodec decoder, MediaCodec encoder, MediaMuxer muxer,
+                                Cancellation cancellation) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        boolean decoderDone = false;
+        int muxerTrack = -1;
+        while (true) {
+            if (cancellation.isCancelled()) {
+                return false;
+            }
+            if (!inputDone) {
+                int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    ByteBuffer buffer = decoder.getInputBuffer(index);
+                    int size = buffer == null ? -1 : extractor.readSampleData(buffer, 0);
+                    if (size < 0) {
+                        decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+            if (!decoderDone) {
+                int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index >= 0) {
+                    boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    // rendering hands the frame to the encoder with its timestamp.
+                    decoder.releaseOutputBuffer(index, info.size > 0);
+                    if (endOfStream) {
+                        encoder.signalEndOfInputStream();
+                        decoderDone = true;
+                    }
+                }
+            }
+            int index = encoder.dequeueOutputBuffer(info, decoderDone ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                muxerTrack = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+            } else if (index >= 0) {
+                ByteBuffer buffer = encoder.getOutputBuffer(index);
+                boolean codecConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (buffer != null && info.size > 0 && !codecConfig && muxerTrack >= 0) {
+                    buffer.position(info.offset).limit(info.offset + info.size);
+                    muxer.writeSampleData(muxerTrack, buffer, info);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    muxer.stop();
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The target of the bits per pixel, and at most half of what the input has, or it is not worth it.
+     */
+    private int getBitRate(File input, MediaFormat format, int width, int height, int frameRate) {
+        long bitRate = (long) ((double) width * height * frameRate * mBitsPerPixel);
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+            long durationUs = format.getLong(MediaFormat.KEY_DURATION);
+            if (durationUs > 0) {
+                bitRate = Math.min(bitRate, input.length() * 8 * 1_000_000 / durationUs / 2);
+            }
+        }
+        return (int) Math.max(100_000, Math.min(Integer.MAX_VALUE, bitRate));
+    }
+
+    private static int findVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hands the extractor the plaintext of an encrypted recording.
+     */
+    private static final class ReaderDataSource extends MediaDataSource {
+
+        private final EncryptedRecordingReader mReader;
+
+        ReaderDataSource(EncryptedRecordingReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (size == 0) {
+                return 0;
+            }
+            return mReader.read(ByteBuffer.wrap(buffer, offset, size), position);
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            return mReader.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+
+    }
+
+    private static void release(@Nullable MediaCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException exception) {
+            // not started.
+        }
+        codec.release();
+    }
+
+}
@@ -1,15 +1,20 @@
 package me.ztiany.capturer;
 
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Size;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -26,7 +31,35 @@ public class MediaRecorderProvider implements OutputProvider {
 
     private Camera2Handle mCamera2Handle;
 
-    private final List<Size> mSupportedSize = new ArrayList<>();
+    private CameraCapabilities mCapabilities;
+
+    private Size mPreviewSize;
+
+    /**
+     * The metadata sidecar of the current recording, null if it can't be created.
+     */
+    @Nullable
+    private FrameMetadataWriter mFrameMetadataWriter;
+
+    /**
+     * The output of the current recording, preallocated and cut to size on stop, read for the progress on another
+     * thread.
+     */
+    @Nullable
+    private volatile RecordingFile mRecordingFile;
+
+    /**
+     * The session callback of the current recording, a callback that is no longer current belongs to a recording that
+     * has been stopped meanwhile and must not touch the recorder.
+     */
+    @Nullable
+    private volatile CameraCaptureSession.StateCallback mSessionCallback;
+
+    /**
+     * Limits of the H.264 encoder, looked up once.
+     */
+    @Nullable
+    private static SizeScorer.EncoderLimit sEncoderLimit;
 
     public MediaRecorderProvider() {
         mMediaRecorder = new MediaRecorder();
@@ -35,23 +68,21 @@ public class MediaRecorderProvider implements OutputProvider {
     @Override
     public void onAttach(@NonNull Camera2Handle camera2Handle, @NonNull Components components) {
         Timber.d("onAttach is called. mOrientationHint = %s", components.require(ORIENTATION).toString());
-        StreamConfigurationMap streamConfigurationMap = components.require(STREAM_CONFIGURATION);
-        Size[] outputSizes = streamConfigurationMap.getOutputSizes(MediaRecorder.class);
-        Timber.d("output sizes for MediaRecorder:");
-        for (Size outputSize : outputSizes) {
-            Timber.d(outputSize.toString());
-        }
+        CameraCapabilities capabilities = components.require(CAMERA_CAPABILITIES);
+        List<Size> outputSizes = capabilities.getOutputSizes(CameraCapabilities.OUTPUT_RECORDER);
+        Timber.d("output sizes for MediaRecorder: %s", outputSizes);
 
         mCamera2Handle = camera2Handle;
         mOrientationHint = components.require(ORIENTATION);
-        mSupportedSize.clear();
-        mSupportedSize.addAll(Arrays.asList(outputSizes));
+        mCapabilities = capabilities;
+        mPreviewSize = components.require(PREVIEW_SIZE);
     }
 
     @Override
     public void onDetach() {
         Timber.d("onDetach is called.");
-        release();
+        // the camera is gone, so the recording is stopped, but the recorder is kept for the next attaching.
+        stop(false);
     }
 
     public void release() {
@@ -64,6 +95,14 @@ public class MediaRecorderProvider implements OutputProvider {
     }
 
     public void start(@NonNull VideoSpec videoSpec, @Nullable StartCallback startCallback) {
+        start(videoSpec, 0, startCallback);
+    }
+
+    /**
+     * @param expectedBytes the space allocated for the recording up front, see {@link RecordingFile}; 0 lets the file
+     *                      grow as it is written.
+     */
+    public void start(@NonNull VideoSpec videoSpec, long expectedBytes, @Nullable StartCallback startCallback) {
         if (!mIsRecording.compareAndSet(false, true)) {
             Timber.w("MediaRecorderProvider is already started!");
             if (startCallback != null) {
@@ -74,11 +113,15 @@ public class MediaRecorderProvider implements OutputProvider {
 
         Timber.d("MediaRecorderProvider.start()");
 
-        Size realSize = mSupportedSize.stream()
-                .filter(size ->
-                        size.getWidth() == videoSpec.videoWidth
-                                && size.getHeight() == videoSpec.videoHeight).findFirst()
-                .orElse(null);
+        HighSpeedConfig highSpeedConfig = null;
+        Size realSize;
+        boolean timelapse = videoSpec.timelapseIntervalMs > 0;
+        if (!timelapse && needsHighSpeed(videoSpec)) {
+            highSpeedConfig = negotiateHighSpeedConfig(videoSpec);
+            realSize = highSpeedConfig == null ? null : highSpeedConfig.getSize();
+        } else {
+            realSize = negotiateVideoSize(videoSpec);
+        }
 
         if (realSize == null) {
             mIsRecording.set(false);
@@ -94,60 +137,276 @@ public class MediaRecorderProvider implements OutputProvider {
         mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
         mMediaRecorder.setVideoSize(realSize.getWidth(), realSize.getHeight());
         mMediaRecorder.setVideoFrameRate(videoSpec.frameRate);
+        if (highSpeedConfig != null) {
+            mMediaRecorder.setCaptureRate(videoSpec.frameRate);
+        } else if (timelapse) {
+            // the recorder stamps the frames at the playback rate, so the video plays at normal speed.
+            mMediaRecorder.setCaptureRate(1000.0 / videoSpec.timelapseIntervalMs);
+        }
         mMediaRecorder.setOrientationHint(mOrientationHint);
-        mMediaRecorder.setOutputFile(videoSpec.storePath);
 
         try {
+            mRecordingFile = RecordingFile.open(new File(videoSpec.storePath), expectedBytes, MediaRecorderProvider::fallocate);
+            mMediaRecorder.setOutputFile(mRecordingFile.getFileDescriptor());
             mMediaRecorder.prepare();
         } catch (IOException ioException) {
+            mMediaRecorder.reset();
+            closeRecordingFile();
             mIsRecording.set(false);
             Timber.e(ioException, "MediaRecorderProvider.start()");
             if (startCallback != null) {
                 startCallback.onResult(false);
             }
+            return;
         }
 
-        mCamera2Handle.startCapturingCameraSession(mMediaRecorder.getSurface(), new CameraCaptureSession.StateCallback() {
+        try {
+            RecordingRecovery.writeInfo(new File(videoSpec.storePath), new RecordingRecovery.Info(
+                    realSize.getWidth(), realSize.getHeight(), videoSpec.frameRate, mOrientationHint));
+        } catch (IOException ioException) {
+            Timber.w(ioException, "recording without the recovery info.");
+        }
+
+        FrameMetadataWriter frameMetadataWriter = null;
+        try {
+            frameMetadataWriter = new FrameMetadataWriter(new File(videoSpec.storePath + FrameMetadataWriter.SUFFIX));
+        } catch (IOException ioException) {
+            Timber.w(ioException, "recording without the metadata sidecar.");
+        }
+        mFrameMetadataWriter = frameMetadataWriter;
+
+        CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
             @Override
             public void onConfigured(@NonNull CameraCaptureSession session) {
+                if (mSessionCallback != this) {
+                    if (startCallback != null) {
+                        startCallback.onResult(false);
+                    }
+                    return;
+                }
                 mMediaRecorder.start();
+                mCamera2Handle.setFrameMetadataWriter(mFrameMetadataWriter);
                 if (startCallback != null) {
                     startCallback.onResult(true);
                 }
             }
 
             @Override
-            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            public void onConfigureFailed(@Nullable CameraCaptureSession session) {
+                if (mSessionCallback != this) {
+                    if (startCallback != null) {
+                        startCallback.onResult(false);
+                    }
+                    return;
+                }
+                mSessionCallback = null;
+                closeFrameMetadataWriter();
+                mMediaRecorder.reset();
+                closeRecordingFile();
                 mIsRecording.set(false);
                 if (startCallback != null) {
                     startCallback.onResult(false);
                 }
             }
-        });
+        };
+
+        mSessionCallback = sessionCallback;
+        mCamera2Handle.setRegionOfInterest(videoSpec.regionOfInterest);
+        if (highSpeedConfig != null) {
+            mCamera2Handle.startHighSpeedCapturingCameraSession(mMediaRecorder.getSurface(), highSpeedConfig, sessionCallback);
+        } else {
+            // Set before the session is recreated, so the first recorded frame already uses the record profile.
+            mCamera2Handle.setCaptureProfile(timelapse
+                    ? CaptureProfile.timelapse(videoSpec.timelapseIntervalMs)
+                    : CaptureProfile.record(videoSpec.frameRate));
+            mCamera2Handle.startCapturingCameraSession(mMediaRecorder.getSurface(), sessionCallback);
+        }
+    }
+
+    /**
+     * A regular session can't go above the AE fps ranges of the camera, usually 30 or 60 fps.
+     */
+    private boolean needsHighSpeed(@NonNull VideoSpec videoSpec) {
+        return mCapabilities != null
+                && videoSpec.frameRate > 0
+                && CaptureProfile.selectFpsRange(mCapabilities, videoSpec.frameRate) < 0
+                && mCapabilities.isHighSpeedVideoSupported();
+    }
+
+    @Nullable
+    private HighSpeedConfig negotiateHighSpeedConfig(@NonNull VideoSpec videoSpec) {
+        SizeScorer.Constraints constraints = SizeScorer.Constraints.newBuilder()
+                .targetSize(videoSpec.videoWidth, videoSpec.videoHeight)
+                .frameRate(videoSpec.frameRate)
+                .encoderLimit(getEncoderLimit())
+                .build();
+        int index = SizeScorer.selectHighSpeed(mCapabilities, constraints);
+        if (index < 0) {
+            Timber.w("no high-speed configuration for %d fps.", videoSpec.frameRate);
+            return null;
+        }
+        HighSpeedConfig config = HighSpeedConfig.of(mCapabilities, index);
+        Timber.d("recording with %s", config);
+        return config;
+    }
+
+    /**
+     * Picks the recording size closest to the requested one that sustains the frame rate together with the preview and
+     * that the encoder supports, instead of requiring an exact match.
+     */
+    @Nullable
+    private Size negotiateVideoSize(@NonNull VideoSpec videoSpec) {
+        if (mCapabilities == null) {
+            return null;
+        }
+
+        int targetWidth = videoSpec.videoWidth;
+        int targetHeight = videoSpec.videoHeight;
+        if (videoSpec.regionOfInterest != null) {
+            // the crop keeps the pixels on target, so record at the crop's size and aspect ratio, not the full frame's.
+            int[] crop = videoSpec.regionOfInterest.toCropRegion(mCapabilities);
+            int[] target = RegionOfInterest.fitRecordingSize(crop[2] - crop[0], crop[3] - crop[1], targetWidth, targetHeight);
+            targetWidth = target[0];
+            targetHeight = target[1];
+            Timber.d("crop region %s, recording target %dx%d", Arrays.toString(crop), targetWidth, targetHeight);
+        }
+
+        SizeScorer.Constraints.Builder constraints = SizeScorer.Constraints.newBuilder()
+                .targetSize(targetWidth, targetHeight)
+                // a timelapse camera runs far below the playback rate.
+                .frameRate(videoSpec.timelapseIntervalMs > 0 ? 0 : videoSpec.frameRate)
+                .encoderLimit(getEncoderLimit());
+
+        CameraCapabilities.StreamConfigurations previewConfigurations = mCapabilities.getStreamConfigurations(CameraCapabilities.OUTPUT_PREVIEW);
+        int previewIndex = previewConfigurations.indexOf(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        if (previewIndex >= 0) {
+            constraints.concurrentOutput(previewConfigurations.getMinFrameDuration(previewIndex), previewConfigurations.getStallDuration(previewIndex));
+        }
+
+        int index = SizeScorer.selectBest(mCapabilities.getStreamConfigurations(CameraCapabilities.OUTPUT_RECORDER), constraints.build());
+        if (index < 0) {
+            return null;
+        }
+        Size size = mCapabilities.getOutputSizes(CameraCapabilities.OUTPUT_RECORDER).get(index);
+        if (size.getWidth() != targetWidth || size.getHeight() != targetHeight) {
+            Timber.w("%dx%d@%d is not viable, recording at %s instead.", targetWidth, targetHeight, videoSpec.frameRate, size);
+        }
+        return size;
+    }
+
+    @Nullable
+    private static synchronized SizeScorer.EncoderLimit getEncoderLimit() {
+        if (sEncoderLimit != null) {
+            return sEncoderLimit;
+        }
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (MediaFormat.MIMETYPE_VIDEO_AVC.equalsIgnoreCase(type)) {
+                    MediaCodecInfo.VideoCapabilities videoCapabilities = codecInfo.getCapabilitiesForType(type).getVideoCapabilities();
+                    Timber.d("encoder limit is from %s", codecInfo.getName());
+                    sEncoderLimit = videoCapabilities::areSizeAndRateSupported;
+                    return sEncoderLimit;
+                }
+            }
+        }
+        return null;
     }
 
     public boolean stop() {
         return stop(true);
     }
 
+    /**
+     * @return false if nothing was recording or the recorder failed to stop, the recording has no {@code moov} then
+     * and is left to {@link RecordingRecovery}. The recorder and the camera are reset either way.
+     */
     public boolean stop(boolean recoverPreview) {
         if (!mIsRecording.compareAndSet(true, false)) {
             return false;
         }
 
         Timber.d("MediaRecorderProvider.stop()");
+        mSessionCallback = null;
 
+        closeFrameMetadataWriter();
+        boolean stopped = false;
         try {
             mMediaRecorder.stop();
-            mMediaRecorder.reset();
+            stopped = true;
+        } catch (RuntimeException exception) {
+            // e.g. no frame has been recorded yet.
+            Timber.e(exception, "MediaRecorderProvider.stop()");
+        } finally {
+            try {
+                mMediaRecorder.reset();
+            } catch (RuntimeException exception) {
+                Timber.e(exception, "MediaRecorderProvider.stop(): reset");
+            }
+            if (stopped && mRecordingFile != null) {
+                // moov is written, nothing to recover.
+                RecordingRecovery.deleteInfo(mRecordingFile.getFile());
+            }
+            closeRecordingFile();
+            restoreCamera(recoverPreview);
+        }
+        return stopped;
+    }
+
+    public boolean isRecording() {
+        return mIsRecording.get();
+    }
+
+    /**
+     * @return what the current recording has written so far, 0 without one.
+     */
+    public long getRecordedBytes() {
+        RecordingFile recordingFile = mRecordingFile;
+        return recordingFile == null ? 0 : recordingFile.getWrittenBytes();
+    }
+
+    private void restoreCamera(boolean recoverPreview) {
+        try {
             if (recoverPreview) {
-                mCamera2Handle.stopCapturingCameraSession();
+                mCamera2Handle.stopCapturingCameraSession(true);
+            } else {
+                // the camera is gone, no repeating request is left.
+                mCamera2Handle.setCaptureProfile(null);
+                mCamera2Handle.setRegionOfInterest(null);
             }
-        } catch (Exception exception) {
-            Timber.e(exception, "MediaRecorderProvider.stop()");
-            return false;
+        } catch (RuntimeException exception) {
+            Timber.e(exception, "MediaRecorderProvider.restoreCamera()");
+        }
+    }
+
+    private void closeRecordingFile() {
+        if (mRecordingFile != null) {
+            try {
+                mRecordingFile.close();
+            } catch (IOException ioException) {
+                Timber.e(ioException, "MediaRecorderProvider.closeRecordingFile()");
+            }
+            mRecordingFile = null;
+        }
+    }
+
+    private static void fallocate(@NonNull FileDescriptor fd, long length) throws IOException {
+        try {
+            Os.posix_fallocate(fd, 0, length);
+        } catch (ErrnoException errnoException) {
+            throw new IOException(errnoException);
+        }
+    }
+
+    private void closeFrameMetadataWriter() {
+        if (mFrameMetadataWriter != null) {
+            mCamera2Handle.setFrameMetadataWriter(null);
+            mFrameMetadataWriter.close();
+            mFrameMetadataWriter = null;
         }
-        return true;
     }
 
     public interface StartCallback {
@@ -0,0 +1,414 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Moves the {@code moov} box of an MP4 in front of the media data, so a player can start before it has the end of the
+ * file. The chunk offsets in {@code stco} are moved by the size of {@code moov}, and turned into {@code co64} if they
+ * don't fit in 32 bits anymore.
+ *
+ * <p>
+ * Only {@code moov} is read here, through a mapping of the file, see {@link #plan}. The copy itself is made by
+ * {@link RecordingFinisher}, which rewrites every finished recording once anyway.
+ * </p>
+ */
+public final class Mp4Faststart {
+
+    static final int TYPE_MOOV = fourCc("moov");
+    static final int TYPE_MDAT = fourCc("mdat");
+    static final int TYPE_STCO = fourCc("stco");
+    static final int TYPE_CO64 = fourCc("co64");
+
+    /**
+     * The boxes on the way from {@code moov} to the chunk offsets.
+     */
+    private static final int[] CONTAINERS = {
+            TYPE_MOOV, fourCc("trak"), fourCc("mdia"), fourCc("minf"), fourCc("stbl")
+    };
+
+    /**
+     * More than anything a recording's {@code moov} takes, larger ones are refused.
+     */
+    private static final long MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private Mp4Faststart() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * A box as its header tells, in a file or in a buffer.
+     */
+    static final class Box {
+
+        final int type;
+        final long offset;
+        /**
+         * With the header, a size of 0 is already turned into the rest of the boxes.
+         */
+        final long size;
+        /**
+         * 16 with a 64-bit size, else 8.
+         */
+        final int headerSize;
+
+        Box(int type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        long end() {
+            return offset + size;
+        }
+
+        /**
+         * @return whether the size is one a box can have and the box ends by the limit.
+         */
+        boolean fitsIn(long limit) {
+            return size >= headerSize && end() <= limit;
+        }
+
+    }
+
+    /**
+     * Reads the header of the box at a position of a file. Nothing is checked of the size, the recorder leaves a
+     * placeholder in the header of {@code mdat} until it stops, see {@link Box#fitsIn}.
+     *
+     * @param limit where the boxes end, a box of size 0 runs to it.
+     * @return null if the header is cut off.
+     */
+    @Nullable
+    static Box readBox(@NonNull FileChannel channel, long position, long limit) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        if (limit - position < 16) {
+            header.limit((int) Math.max(0, limit - position));
+        }
+        int read = 0;
+        while (header.hasRemaining()) {
+            int count = channel.read(header, position + read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        header.flip();
+        return readBox(header, 0, position, limit);
+    }
+
+    /**
+     * Reads the header of the box at a position of a buffer, the boxes end at its limit. Nothing is checked of the size,
+     * see {@link Box#fitsIn}.
+     *
+     * @return null if the header is cut off.
+     */
+    @Nullable
+    static Box readBox(@NonNull ByteBuffer boxes, int position) {
+        return readBox(boxes, position, position, boxes.limit());
+    }
+
+    /**
+     * @param index  where the header is in the buffer.
+     * @param offset where the box is in the boxes.
+     */
+    @Nullable
+    private static Box readBox(ByteBuffer buffer, int index, long offset, long limit) {
+        if (buffer.limit() - index < 8) {
+            return null;
+        }
+        long size = buffer.getInt(index) & 0xFFFFFFFFL;
+        int type = buffer.getInt(index + 4);
+        int headerSize = 8;
+        if (size == 1) {
+            if (buffer.limit() - index < 16) {
+                return null;
+            }
+            size = buffer.getLong(index + 8);
+            headerSize = 16;
+        } else if (size == 0) {
+            size = limit - offset;
+        }
+        return new Box(type, offset, size, headerSize);
+    }
+
+    /**
+     * How a file is copied with {@code moov} in front of the media data: the bytes before the first moved box, the new
+     * {@code moov}, the moved boxes, then the bytes after the old {@code moov}. A file that is not moved is copied as
+     * it is.
+     */
+    static final class Layout {
+
+        final long size;
+
+        /**
+         * {@code moov} as it is in the copy, null if the file has none that can be read.
+         */
+        @Nullable
+        final ByteBuffer moov;
+
+        /**
+         * Where {@code moov} goes, -1 if it stays where it is.
+         */
+        final long firstMoved;
+
+        final long moovStart;
+
+        final long moovEnd;
+
+        Layout(long size, @Nullable ByteBuffer moov, long firstMoved, long moovStart, long moovEnd) {
+            this.size = size;
+            this.moov = moov;
+            this.firstMoved = firstMoved;
+            this.moovStart = moovStart;
+            this.moovEnd = moovEnd;
+        }
+
+        boolean isMoved() {
+            return firstMoved >= 0;
+        }
+
+    }
+
+    /**
+     * Lays out the copy of a file, only {@code moov} is read, through a mapping of the file.
+     *
+     * @return not {@link Layout#isMoved()} if the file already starts with {@code moov} or is not an MP4 this can
+     * rewrite.
+     */
+    @WorkerThread
+    @NonNull
+    static Layout plan(@NonNull FileChannel input) throws IOException {
+        long size = input.size();
+        List<Box> boxes = readBoxes(input);
+        if (boxes == null) {
+            Timber.w("not a complete MP4, %d bytes.", size);
+            return new Layout(size, null, -1, -1, -1);
+        }
+        int moovIndex = indexOf(boxes, TYPE_MOOV);
+        int mdatIndex = indexOf(boxes, TYPE_MDAT);
+        if (moovIndex < 0) {
+            return new Layout(size, null, -1, -1, -1);
+        }
+        Box moov = boxes.get(moovIndex);
+        if (moov.size > MAX_MOOV_SIZE) {
+            Timber.w("moov is %d bytes.", moov.size);
+            return new Layout(size, null, -1, -1, -1);
+        }
+        MappedByteBuffer mapped = input.map(FileChannel.MapMode.READ_ONLY, moov.offset, moov.size);
+        if (mdatIndex < 0 || moovIndex < mdatIndex) {
+            return new Layout(size, mapped, -1, -1, -1);
+        }
+
+        long firstMoved = boxes.get(mdatIndex).offset;
+        ByteBuffer newMoov = relocate(mapped, firstMoved, moov.offset, false);
+        if (newMoov == null) {
+            // the offsets outgrow 32 bits once moved.
+            newMoov = relocate(mapped, firstMoved, moov.offset, true);
+        }
+        if (newMoov == null) {
+            Timber.w("moov can't be relocated.");
+            return new Layout(size, mapped, -1, -1, -1);
+        }
+        return new Layout(size, newMoov, firstMoved, moov.offset, moov.end());
+    }
+
+    /**
+     * @return the top-level boxes, null if they don't cover the file exactly.
+     */
+    @Nullable
+    static List<Box> readBoxes(@NonNull FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Box> boxes = new ArrayList<>();
+        long position = 0;
+        while (position < size) {
+            Box box = readBox(channel, position, size);
+            if (box == null || !box.fitsIn(size)) {
+                return null;
+            }
+            boxes.add(box);
+            position = box.end();
+        }
+        return boxes;
+    }
+
+    /**
+     * Copies {@code moov} with its chunk offsets moved to where the data is once {@code moov} is in front of it.
+     *
+     * @param moov       the whole box, its position is not changed.
+     * @param firstMoved where {@code moov} goes, the data from there to {@code moov} moves up by its new size.
+     * @param moovOffset where {@code moov} was, the data after it moves by how much it grows.
+     * @param co64       whether to turn {@code stco} into {@code co64}.
+     * @return null if an offset doesn't fit in {@code stco}.
+     */
+    @Nullable
+    static ByteBuffer relocate(@NonNull ByteBuffer moov, long firstMoved, long moovOffset, boolean co64) {
+        ByteBuffer source = moov.duplicate();
+        long oldSize = source.remaining();
+        long newSize = oldSize + (co64 ? growth(source, 0) : 0);
+        if (newSize > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer target = ByteBuffer.allocate((int) newSize);
+        Relocation relocation = new Relocation(firstMoved, moovOffset, moovOffset + oldSize, newSize, co64);
+        if (!copy(source, target, 0, relocation)) {
+            return null;
+        }
+        target.flip();
+        return target;
+    }
+
+    private static final class Relocation {
+
+        final long firstMoved;
+        final long moovStart;
+        final long moovEnd;
+        final long newMoovSize;
+        final boolean co64;
+
+        Relocation(long firstMoved, long moovStart, long moovEnd, long newMoovSize, boolean co64) {
+            this.firstMoved = firstMoved;
+            this.moovStart = moovStart;
+            this.moovEnd = moovEnd;
+            this.newMoovSize = newMoovSize;
+            this.co64 = co64;
+        }
+
+        long move(long offset) {
+            if (offset >= firstMoved && offset < moovStart) {
+                return offset + newMoovSize;
+            }
+            if (offset >= moovEnd) {
+                return offset + newMoovSize - (moovEnd - moovStart);
+            }
+            return offset;
+        }
+
+    }
+
+    /**
+     * Copies the boxes of {@code source} at the given depth of {@link #CONTAINERS}, from its position to its limit.
+     */
+    private static boolean copy(ByteBuffer source, ByteBuffer target, int depth, Relocation relocation) {
+        while (source.remaining() >= 8) {
+            Box box = readBox(source, source.position());
+            if (box == null || !box.fitsIn(source.limit())) {
+                return false;
+            }
+            int start = (int) box.offset;
+            int end = (int) box.end();
+            int type = box.type;
+            int headerSize = box.headerSize;
+
+            if (depth < CONTAINERS.length && type == CONTAINERS[depth]) {
+                int targetStart = target.position();
+                // the size is written once the children are, they may grow.
+                target.putInt(0).putInt(type);
+                ByteBuffer children = source.duplicate();
+                children.limit(end).position(start + headerSize);
+                if (headerSize == 16) {
+                    target.putInt(targetStart, 1);
+                    target.putLong(0);
+                }
+                if (!copy(children, target, depth + 1, relocation)) {
+                    return false;
+                }
+                long newSize = target.position() - targetStart;
+                if (headerSize == 16) {
+                    target.putLong(targetStart + 8, newSize);
+                } else {
+                    target.putInt(targetStart, (int) newSize);
+                }
+            } else if (type == TYPE_STCO || type == TYPE_CO64) {
+                if (!copyChunkOffsets(source, start, headerSize, end, type, target, relocation)) {
+                    return false;
+                }
+            } else {
+                ByteBuffer whole = source.duplicate();
+                whole.limit(end).position(start);
+                target.put(whole);
+            }
+            source.position(end);
+        }
+        return !source.hasRemaining();
+    }
+
+    private static boolean copyChunkOffsets(ByteBuffer source, int start, int headerSize, int end, int type,
+                                            ByteBuffer target, Relocation relocation) {
+        int fields = start + headerSize;
+        if (end - fields < 8) {
+            return false;
+        }
+        int versionAndFlags = source.getInt(fields);
+        long count = source.getInt(fields + 4) & 0xFFFFFFFFL;
+        int entrySize = type == TYPE_CO64 ? 8 : 4;
+        if (fields + 8 + count * entrySize > end) {
+            return false;
+        }
+        boolean wide = type == TYPE_CO64 || relocation.co64;
+        long size = 8 + 8 + count * (wide ? 8 : 4);
+        target.putInt((int) size).putInt(wide ? TYPE_CO64 : TYPE_STCO);
+        target.putInt(versionAndFlags).putInt((int) count);
+        for (int i = 0; i < count; i++) {
+            int entry = fields + 8 + i * entrySize;
+            long offset = entrySize == 8 ? source.getLong(entry) : source.getInt(entry) & 0xFFFFFFFFL;
+            long moved = relocation.move(offset);
+            if (wide) {
+                target.putLong(moved);
+            } else if (moved > 0xFFFFFFFFL) {
+                return false;
+            } else {
+                target.putInt((int) moved);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how much the boxes grow when every {@code stco} becomes {@code co64}.
+     */
+    private static long growth(ByteBuffer source, int depth) {
+        long growth = 0;
+        ByteBuffer boxes = source.duplicate();
+        while (boxes.remaining() >= 8) {
+            Box box = readBox(boxes, boxes.position());
+            if (box == null || !box.fitsIn(boxes.limit())) {
+                break;
+            }
+            int start = (int) box.offset;
+            if (depth < CONTAINERS.length && box.type == CONTAINERS[depth]) {
+                ByteBuffer children = boxes.duplicate();
+                children.limit((int) box.end()).position(start + box.headerSize);
+                growth += growth(children, depth + 1);
+            } else if (box.type == TYPE_STCO && box.size >= box.headerSize + 8) {
+                growth += 4 * (boxes.getInt(start + box.headerSize + 4) & 0xFFFFFFFFL);
+            }
+            boxes.position((int) box.end());
+        }
+        return growth;
+    }
+
+    private static int indexOf(List<Box> boxes, int type) {
+        for (int i = 0; i < boxes.size(); i++) {
+            if (boxes.get(i).type == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int fourCc(@NonNull String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+}
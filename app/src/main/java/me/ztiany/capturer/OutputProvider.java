@@ -9,7 +9,10 @@ public interface OutputProvider {
     String ORIENTATION = "ORIENTATION";
     String WORKER = "WORKER";
     String PREVIEW_SIZE = "PREVIEW_SIZE";
-    String STREAM_CONFIGURATION = "STREAM_CONFIGURATION";
+    /**
+     * {@link CameraCapabilities} of the opened camera.
+     */
+    String CAMERA_CAPABILITIES = "CAMERA_CAPABILITIES";
 
     class Components extends HashMap<String, Object> {
 
@@ -23,8 +26,15 @@ public interface OutputProvider {
         }
     }
 
+    /**
+     * Called when a camera is opened, the components describe that camera.
+     */
     void onAttach(@NonNull Camera2Handle camera2Handle, @NonNull Components components);
 
+    /**
+     * Called when the camera is closed. The provider may be attached again later (e.g. after the camera is switched),
+     * so it should keep the resources that don't depend on the camera.
+     */
     void onDetach();
 
 }
@@ -0,0 +1,121 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands the progress samples of the sessions to their subscribers, in batches that each subscriber asks for. A session's
+ * subscriptions end with the session.
+ */
+@MainThread
+final class ProgressStream {
+
+    /**
+     * The progress is sampled once a second, which is also the shortest batch interval.
+     */
+    static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private final Map<String, List<Subscription>> mSubscriptions = new HashMap<>();
+
+    /**
+     * Replaces the subscription of the listener to the session if there is one.
+     *
+     * @param batchIntervalMs how often the listener gets the samples, never more often than {@link #SAMPLE_INTERVAL_MS}.
+     */
+    void subscribe(@NonNull String sessionId, @NonNull FloatingCameraConnection.ProgressListener listener, long batchIntervalMs) {
+        unsubscribe(sessionId, listener);
+        List<Subscription> subscriptions = mSubscriptions.get(sessionId);
+        if (subscriptions == null) {
+            subscriptions = new ArrayList<>(1);
+            mSubscriptions.put(sessionId, subscriptions);
+        }
+        subscriptions.add(new Subscription(listener, Math.max(SAMPLE_INTERVAL_MS, batchIntervalMs)));
+    }
+
+    void unsubscribe(@NonNull String sessionId, @NonNull FloatingCameraConnection.ProgressListener listener) {
+        List<Subscription> subscriptions = mSubscriptions.get(sessionId);
+        if (subscriptions == null) {
+            return;
+        }
+        for (int i = subscriptions.size() - 1; i >= 0; i--) {
+            if (subscriptions.get(i).mListener.equals(listener)) {
+                subscriptions.remove(i);
+            }
+        }
+        if (subscriptions.isEmpty()) {
+            mSubscriptions.remove(sessionId);
+        }
+    }
+
+    /**
+     * Removes the listener from every session.
+     */
+    void unsubscribeAll(@NonNull FloatingCameraConnection.ProgressListener listener) {
+        for (String sessionId : new ArrayList<>(mSubscriptions.keySet())) {
+            unsubscribe(sessionId, listener);
+        }
+    }
+
+    boolean hasSubscribers(@NonNull String sessionId) {
+        return mSubscriptions.containsKey(sessionId);
+    }
+
+    /**
+     * @param now in milliseconds, of any monotonic clock.
+     */
+    void onSample(@NonNull String sessionId, @NonNull CapturingProgress progress, long now) {
+        List<Subscription> subscriptions = mSubscriptions.get(sessionId);
+        if (subscriptions == null) {
+            return;
+        }
+        for (Subscription subscription : new ArrayList<>(subscriptions)) {
+            subscription.mPending.add(progress);
+            if (subscription.mLastDelivery == Long.MIN_VALUE || now - subscription.mLastDelivery >= subscription.mBatchIntervalMs) {
+                subscription.mLastDelivery = now;
+                subscription.deliver(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Delivers what is still pending and ends the subscriptions of the session.
+     */
+    void endSession(@NonNull String sessionId) {
+        List<Subscription> subscriptions = mSubscriptions.remove(sessionId);
+        if (subscriptions == null) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.deliver(sessionId);
+        }
+    }
+
+    private static final class Subscription {
+
+        final FloatingCameraConnection.ProgressListener mListener;
+        final long mBatchIntervalMs;
+        final List<CapturingProgress> mPending = new ArrayList<>();
+        long mLastDelivery = Long.MIN_VALUE;
+
+        Subscription(FloatingCameraConnection.ProgressListener listener, long batchIntervalMs) {
+            mListener = listener;
+            mBatchIntervalMs = batchIntervalMs;
+        }
+
+        void deliver(String sessionId) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            List<CapturingProgress> batch = new ArrayList<>(mPending);
+            mPending.clear();
+            mListener.onCapturingProgress(sessionId, batch);
+        }
+
+    }
+
+}
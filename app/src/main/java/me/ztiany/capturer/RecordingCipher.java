@@ -0,0 +1,242 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encrypts a recording with AES-CTR as {@link AsyncFileWriter} writes it, in place in its buffers on its stage thread,
+ * so no plaintext reaches the disk and the file is written once. CTR keeps the length and lets any byte be decrypted
+ * on its own, which {@link EncryptedRecordingReader} uses to seek.
+ *
+ * <p>
+ * Every recording has its own random data key, kept in the header of the file wrapped by a {@link KeyWrapper}, e.g.
+ * {@link KeystoreKeyWrapper}, so the bulk of the work never goes through the key store. MediaRecorder writes its
+ * file itself, it is encrypted by {@link RecordingFinisher} when it is rewritten once finished. The header is
+ * {@code magic | nonce | wrapped key size | wrapped key}, followed by the encrypted data. CTR doesn't detect changes,
+ * a {@link RecordingManifest} over the encrypted file does.
+ * </p>
+ */
+public final class RecordingCipher implements AsyncFileWriter.Transformer {
+
+    private static final int MAGIC = 0x52454E31; // "REN1"
+
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+    private static final int KEY_BITS = 256;
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final int MAX_WRAPPED_KEY_SIZE = 1024;
+
+    /**
+     * Protects the data keys.
+     */
+    public interface KeyWrapper {
+
+        @NonNull
+        byte[] wrap(@NonNull SecretKey key) throws GeneralSecurityException;
+
+        @NonNull
+        SecretKey unwrap(@NonNull byte[] wrappedKey) throws GeneralSecurityException;
+
+    }
+
+    private final SecretKey mKey;
+
+    private final byte[] mNonce;
+
+    private final int mHeaderSize;
+
+    private final Cipher mCipher;
+
+    private final byte[] mSkip = new byte[BLOCK_SIZE];
+
+    /**
+     * The data offset the cipher goes on from, -1 before it is set.
+     */
+    private long mOffset = -1;
+
+    private ByteBuffer mHeader;
+
+    private RecordingCipher(SecretKey key, byte[] nonce, int headerSize) throws GeneralSecurityException {
+        mKey = key;
+        mNonce = nonce;
+        mHeaderSize = headerSize;
+        mCipher = Cipher.getInstance(TRANSFORMATION);
+    }
+
+    /**
+     * Makes a data key and a nonce for a new recording.
+     */
+    @NonNull
+    public static RecordingCipher newEncryptor(@NonNull KeyWrapper wrapper) throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(KEY_BITS);
+        SecretKey key = generator.generateKey();
+        byte[] nonce = new byte[BLOCK_SIZE];
+        new SecureRandom().nextBytes(nonce);
+        byte[] wrappedKey = wrapper.wrap(key);
+
+        ByteBuffer header = ByteBuffer.allocate(4 + BLOCK_SIZE + 4 + wrappedKey.length);
+        header.putInt(MAGIC).put(nonce).putInt(wrappedKey.length).put(wrappedKey).flip();
+        RecordingCipher cipher = new RecordingCipher(key, nonce, header.remaining());
+        cipher.mHeader = header;
+        return cipher;
+    }
+
+    /**
+     * Builds a writer that encrypts, and writes the header.
+     */
+    @NonNull
+    public static AsyncFileWriter open(@NonNull AsyncFileWriter.Builder builder, @NonNull KeyWrapper wrapper) throws IOException {
+        RecordingCipher cipher;
+        try {
+            cipher = newEncryptor(wrapper);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("no data key", exception);
+        }
+        AsyncFileWriter writer = builder.transformer(cipher).build();
+        try {
+            writer.write(cipher.mHeader.duplicate());
+        } catch (IOException exception) {
+            writer.close();
+            throw exception;
+        }
+        return writer;
+    }
+
+    /**
+     * @return whether the file starts with the header, e.g. a recording {@link RecordingFinisher} has encrypted.
+     */
+    public static boolean isEncrypted(@NonNull FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, magic.position()) < 0) {
+                return false;
+            }
+        }
+        return magic.getInt(0) == MAGIC;
+    }
+
+    public static boolean isEncrypted(@NonNull File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            return isEncrypted(channel);
+        }
+    }
+
+    /**
+     * Reads the header of an encrypted file and unwraps its key.
+     *
+     * @throws IOException if the file is not encrypted by this or the key can't be unwrapped.
+     */
+    @NonNull
+    static RecordingCipher readHeader(@NonNull FileChannel channel, @NonNull KeyWrapper wrapper) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(4 + BLOCK_SIZE + 4);
+        readFully(channel, fixed, 0);
+        if (fixed.getInt(0) != MAGIC) {
+            throw new IOException("not an encrypted recording");
+        }
+        byte[] nonce = new byte[BLOCK_SIZE];
+        fixed.position(4);
+        fixed.get(nonce);
+        int wrappedKeySize = fixed.getInt();
+        if (wrappedKeySize <= 0 || wrappedKeySize > MAX_WRAPPED_KEY_SIZE) {
+            throw new IOException("bad key size " + wrappedKeySize);
+        }
+        ByteBuffer wrappedKey = ByteBuffer.allocate(wrappedKeySize);
+        readFully(channel, wrappedKey, fixed.capacity());
+        try {
+            SecretKey key = wrapper.unwrap(wrappedKey.array());
+            return new RecordingCipher(key, nonce, fixed.capacity() + wrappedKeySize);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("the key can't be unwrapped", exception);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("the header is cut");
+            }
+        }
+    }
+
+    /**
+     * Where the encrypted data starts in the file.
+     */
+    public int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    @Override
+    public void transform(@NonNull ByteBuffer buffer, long position) throws IOException {
+        ByteBuffer data = buffer.duplicate();
+        if (position < mHeaderSize) {
+            // the header, or the start of it, stays as it is.
+            int skipped = (int) Math.min(mHeaderSize - position, data.remaining());
+            data.position(data.position() + skipped);
+            position += skipped;
+        }
+        if (data.hasRemaining()) {
+            crypt(data, position - mHeaderSize);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts in place, they are the same in CTR.
+     *
+     * @param data   from its position to its limit, consumed.
+     * @param offset of the data after the header.
+     */
+    void crypt(@NonNull ByteBuffer data, long offset) throws IOException {
+        try {
+            if (offset != mOffset) {
+                seek(offset);
+            }
+            // update() is copy-safe, the same buffer can be the input and the output.
+            int length = mCipher.update(data, data.duplicate());
+            mOffset += length;
+        } catch (GeneralSecurityException exception) {
+            mOffset = -1;
+            throw new IOException("AES-CTR failed at " + offset, exception);
+        }
+    }
+
+    private void seek(long offset) throws GeneralSecurityException {
+        mCipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(counter(mNonce, offset / BLOCK_SIZE)));
+        int skip = (int) (offset % BLOCK_SIZE);
+        if (skip > 0) {
+            mCipher.update(mSkip, 0, skip, mSkip, 0);
+        }
+        mOffset = offset;
+    }
+
+    /**
+     * @return the counter block of a block, the nonce plus its index as 128-bit big-endian numbers.
+     */
+    @NonNull
+    static byte[] counter(@NonNull byte[] nonce, long block) {
+        byte[] counter = nonce.clone();
+        long carry = block;
+        for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
+}
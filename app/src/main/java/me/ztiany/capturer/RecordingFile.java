@@ -0,0 +1,161 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import timber.log.Timber;
+
+/**
+ * The output file of a recording, with the space it is expected to take allocated up front, so the file is laid out
+ * in few extents and the recorder doesn't wait for the file system to grow it. The recorder writes through
+ * {@link #getFileDescriptor()}, and the file is cut back to what the recorder wrote on {@link #close()}.
+ *
+ * <p>
+ * While recording, the file's length is the preallocated space, what has been written is told by the file offset
+ * instead: the recorder writes through a duplicate of the descriptor, which shares the offset with it. Where the
+ * recorder stopped writing is found from the MP4 boxes: they follow one another from the start of the file,
+ * and the preallocated space after the last one reads as zeros.
+ * </p>
+ */
+public final class RecordingFile implements Closeable {
+
+    /**
+     * Allocates the blocks of a file, {@code posix_fallocate} on Android.
+     */
+    public interface Allocator {
+
+        void allocate(@NonNull FileDescriptor fd, long length) throws IOException;
+
+    }
+
+    private final File mFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final long mPreallocatedBytes;
+
+    private boolean mClosed;
+
+    private long mWrittenBytes;
+
+    private RecordingFile(File file, RandomAccessFile randomAccessFile, long preallocatedBytes) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mPreallocatedBytes = preallocatedBytes;
+    }
+
+    /**
+     * Creates or replaces the file. A failed allocation is not an error, the file then grows as it is written.
+     *
+     * @param expectedBytes what the recording is expected to write, nothing is allocated for 0.
+     */
+    @NonNull
+    public static RecordingFile open(@NonNull File file, long expectedBytes, @NonNull Allocator allocator) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        long preallocatedBytes = 0;
+        try {
+            randomAccessFile.setLength(0);
+            if (expectedBytes > 0) {
+                try {
+                    allocator.allocate(randomAccessFile.getFD(), expectedBytes);
+                    preallocatedBytes = expectedBytes;
+                } catch (IOException exception) {
+                    Timber.w(exception, "%d bytes can't be allocated for %s.", expectedBytes, file);
+                    randomAccessFile.setLength(0);
+                }
+            }
+        } catch (IOException exception) {
+            randomAccessFile.close();
+            throw exception;
+        }
+        return new RecordingFile(file, randomAccessFile, preallocatedBytes);
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    @NonNull
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return mRandomAccessFile.getFD();
+    }
+
+    public long getPreallocatedBytes() {
+        return mPreallocatedBytes;
+    }
+
+    /**
+     * @return how far the recorder has written so far, the most it has reached as it seeks back to fill in headers.
+     */
+    public synchronized long getWrittenBytes() {
+        if (!mClosed) {
+            try {
+                mWrittenBytes = Math.max(mWrittenBytes, mRandomAccessFile.getFilePointer());
+            } catch (IOException exception) {
+                Timber.w(exception, "RecordingFile.getWrittenBytes()");
+            }
+        }
+        return mWrittenBytes;
+    }
+
+    /**
+     * Cuts the preallocated space the recorder didn't use and closes the file, called once the recorder is stopped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            FileChannel channel = mRandomAccessFile.getChannel();
+            if (mPreallocatedBytes > 0) {
+                long end = findEndOfBoxes(channel);
+                if (end < channel.size()) {
+                    channel.truncate(end);
+                }
+                mWrittenBytes = end;
+                Timber.d("%s is %d bytes, %d were allocated.", mFile.getName(), end, mPreallocatedBytes);
+            }
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    /**
+     * @return the end of the last complete top-level box, 0 if the file doesn't start with one.
+     */
+    static long findEndOfBoxes(@NonNull FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        while (position + 8 <= size) {
+            Mp4Faststart.Box box = Mp4Faststart.readBox(channel, position, size);
+            if (box == null || !isBoxType(box.type) || !box.fitsIn(size)) {
+                break;
+            }
+            position = box.end();
+        }
+        return position;
+    }
+
+    /**
+     * Box types are four printable characters, zeros are the preallocated space.
+     */
+    private static boolean isBoxType(int type) {
+        for (int i = 0; i < 4; i++) {
+            int c = (type >>> (i * 8)) & 0xFF;
+            if (c < 0x20 || c > 0x7E) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
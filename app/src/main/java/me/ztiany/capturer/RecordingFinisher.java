@@ -0,0 +1,287 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.PrivateKey;
+
+import timber.log.Timber;
+
+/**
+ * Rewrites a finished recording once, through an {@link AsyncFileWriter}, with {@code moov} moved in front of the
+ * media data as {@link Mp4Faststart} lays it out. MediaRecorder writes its file itself, through a descriptor it seeks
+ * in, so this copy is where the bytes of a recording pass through the app: the writer's {@link AsyncFileWriter.Metrics}
+ * tell how the disk kept up, the {@link KeyframeIndex} is built from the new {@code moov} and a {@link RecordingHasher}
+ * hashes the buffers before they are written, so the signed manifest is of the final bytes without reading them again.
+ *
+ * <p>
+ * With a key wrapper the copy is encrypted by a {@link RecordingCipher} as it is written, so the plaintext is only on
+ * disk while the recording is in progress. The manifest is of the encrypted file, the offsets in the keyframe index
+ * are of the plaintext, as {@link EncryptedRecordingReader} reads it.
+ * </p>
+ *
+ * <p>
+ * The copy is written next to the input and then moved over the recording with its sidecars, see {@link Staged}.
+ * </p>
+ */
+public final class RecordingFinisher {
+
+    static final String TEMP_SUFFIX = ".finishing";
+
+    /**
+     * The sidecars made with the copy, moved with it.
+     */
+    private static final String[] SIDECAR_SUFFIXES = {KeyframeIndex.SUFFIX, RecordingManifest.SUFFIX};
+
+    private final int mBufferSize;
+
+    private final int mBufferCount;
+
+    @AsyncFileWriter.FsyncPolicy
+    private final int mFsyncPolicy;
+
+    @Nullable
+    private final PrivateKey mSigningKey;
+
+    @Nullable
+    private final RecordingCipher.KeyWrapper mKeyWrapper;
+
+    private RecordingFinisher(Builder builder) {
+        mBufferSize = builder.bufferSize;
+        mBufferCount = builder.bufferCount;
+        mFsyncPolicy = builder.fsyncPolicy;
+        mSigningKey = builder.signingKey;
+        mKeyWrapper = builder.keyWrapper;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * A finished copy that has not replaced the recording yet.
+     */
+    public static final class Staged {
+
+        private final File mFile;
+
+        private final boolean mMoved;
+
+        private final AsyncFileWriter.Metrics mMetrics;
+
+        Staged(@NonNull File file, boolean moved, @NonNull AsyncFileWriter.Metrics metrics) {
+            mFile = file;
+            mMoved = moved;
+            mMetrics = metrics;
+        }
+
+        /**
+         * @return whether {@code moov} was moved to the front, else the recording is copied as it is.
+         */
+        public boolean isMoved() {
+            return mMoved;
+        }
+
+        @NonNull
+        public AsyncFileWriter.Metrics getMetrics() {
+            return mMetrics;
+        }
+
+        /**
+         * Moves the copy and its sidecars over a recording, the sidecars the copy has none of are deleted.
+         *
+         * @return false if the recording is gone meanwhile, e.g. evicted for room, the copy is deleted then.
+         */
+        @WorkerThread
+        public boolean replace(@NonNull File recording) throws IOException {
+            if (!recording.exists()) {
+                discard();
+                return false;
+            }
+            if (!mFile.renameTo(recording)) {
+                discard();
+                throw new IOException(mFile + " can't replace " + recording);
+            }
+            for (String suffix : SIDECAR_SUFFIXES) {
+                File sidecar = new File(mFile.getPath() + suffix);
+                File target = new File(recording.getPath() + suffix);
+                if (sidecar.exists()) {
+                    if (!sidecar.renameTo(target)) {
+                        deleteIfExists(sidecar);
+                        deleteIfExists(target);
+                        Timber.w("%s can't replace %s.", sidecar, target);
+                    }
+                } else {
+                    deleteIfExists(target);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Deletes the copy and its sidecars.
+         */
+        public void discard() {
+            deleteWithSidecars(mFile);
+        }
+
+    }
+
+    /**
+     * Copies a finished recording, its bytes no longer change.
+     *
+     * @return the copy, next to the input.
+     */
+    @WorkerThread
+    @NonNull
+    public Staged finish(@NonNull File input) throws IOException {
+        File temp = new File(input.getPath() + TEMP_SUFFIX);
+        try (FileChannel channel = new RandomAccessFile(input, "r").getChannel()) {
+            if (RecordingCipher.isEncrypted(channel)) {
+                throw new IOException(input + " is finished already");
+            }
+            Mp4Faststart.Layout layout = Mp4Faststart.plan(channel);
+            AsyncFileWriter.Builder builder = AsyncFileWriter.newBuilder()
+                    .file(temp)
+                    .bufferSize(mBufferSize)
+                    .bufferCount(mBufferCount)
+                    .fsyncPolicy(mFsyncPolicy)
+                    .observer(mSigningKey == null ? null : new RecordingHasher(temp, RecordingHasher.DEFAULT_SEGMENT_SIZE, mSigningKey));
+            AsyncFileWriter writer = mKeyWrapper == null ? builder.build() : RecordingCipher.open(builder, mKeyWrapper);
+            try {
+                if (layout.isMoved()) {
+                    transfer(channel, 0, layout.firstMoved, writer);
+                    writer.write(layout.moov.duplicate());
+                    transfer(channel, layout.firstMoved, layout.moovStart - layout.firstMoved, writer);
+                    transfer(channel, layout.moovEnd, layout.size - layout.moovEnd, writer);
+                } else {
+                    transfer(channel, 0, layout.size, writer);
+                }
+            } finally {
+                writer.close();
+            }
+            if (layout.moov != null) {
+                buildKeyframeIndex(temp, layout);
+            }
+            return new Staged(temp, layout.isMoved(), writer.getMetrics());
+        } catch (IOException | RuntimeException exception) {
+            deleteWithSidecars(temp);
+            throw exception;
+        }
+    }
+
+    private static void buildKeyframeIndex(File temp, Mp4Faststart.Layout layout) {
+        try {
+            if (!KeyframeIndex.build(temp, layout.moov.duplicate())) {
+                Timber.w("keyframes of %s can't be indexed.", temp);
+            }
+        } catch (IOException exception) {
+            Timber.w(exception, "keyframes of %s can't be indexed.", temp);
+            KeyframeIndex.deleteIndex(temp);
+        }
+    }
+
+    private static void transfer(FileChannel input, long position, long count, AsyncFileWriter writer) throws IOException {
+        if (writer.transferFrom(input, position, count) != count) {
+            throw new IOException("cut at " + position + " while copied");
+        }
+    }
+
+    /**
+     * Deletes the copies cut short by the death of the process.
+     *
+     * @param inputSuffix the end of the names of the inputs, so the copies of others are left alone.
+     */
+    @WorkerThread
+    public static void deleteLeftovers(@NonNull File directory, @NonNull String inputSuffix) {
+        File[] leftovers = directory.listFiles((dir, name) -> name.contains(inputSuffix + TEMP_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                deleteIfExists(leftover);
+            }
+        }
+    }
+
+    private static void deleteWithSidecars(@NonNull File file) {
+        deleteIfExists(file);
+        for (String suffix : SIDECAR_SUFFIXES) {
+            deleteIfExists(new File(file.getPath() + suffix));
+        }
+    }
+
+    private static void deleteIfExists(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("%s can't be deleted.", file);
+        }
+    }
+
+    public static class Builder {
+
+        /**
+         * 复制时每个写缓冲区的大小，见 {@link AsyncFileWriter.Builder#bufferSize}。
+         */
+        private int bufferSize = 1024 * 1024;
+
+        /**
+         * 写缓冲区的个数，读盘与写盘借此并行。
+         */
+        private int bufferCount = 4;
+
+        /**
+         * 副本的同步策略，默认在关闭时同步一次，之后才替换原录像。
+         */
+        @AsyncFileWriter.FsyncPolicy
+        private int fsyncPolicy = AsyncFileWriter.FSYNC_ON_CLOSE;
+
+        /**
+         * 签署录像清单的密钥，写副本时顺带计算哈希，为空则录像没有清单。
+         */
+        @Nullable
+        private PrivateKey signingKey;
+
+        /**
+         * 保护录像数据密钥的包装器，写副本时顺带加密，为空则录像以明文保存。
+         */
+        @Nullable
+        private RecordingCipher.KeyWrapper keyWrapper;
+
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        public Builder bufferCount(int bufferCount) {
+            this.bufferCount = bufferCount;
+            return this;
+        }
+
+        public Builder fsyncPolicy(@AsyncFileWriter.FsyncPolicy int fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        public Builder signingKey(@Nullable PrivateKey signingKey) {
+            this.signingKey = signingKey;
+            return this;
+        }
+
+        public Builder keyWrapper(@Nullable RecordingCipher.KeyWrapper keyWrapper) {
+            this.keyWrapper = keyWrapper;
+            return this;
+        }
+
+        public RecordingFinisher build() {
+            if (bufferSize <= 0 || bufferCount <= 0) {
+                throw new IllegalArgumentException("bufferSize and bufferCount must be positive");
+            }
+            return new RecordingFinisher(this);
+        }
+
+    }
+
+}
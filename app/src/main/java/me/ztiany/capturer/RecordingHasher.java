@@ -0,0 +1,102 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashes a recording as {@link AsyncFileWriter} writes it, on its stage thread from the buffers it is about to write,
+ * so the file is never read back. When the writer is closed, the signed {@link RecordingManifest} is written next to
+ * the recording. A recording whose writing failed gets no manifest.
+ *
+ * <p>
+ * The recorder writes its files itself, they are hashed while {@link RecordingFinisher} rewrites them once they are
+ * finished.
+ * </p>
+ */
+public final class RecordingHasher implements AsyncFileWriter.Observer {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File mRecording;
+
+    private final int mSegmentSize;
+
+    private final PrivateKey mKey;
+
+    private final MessageDigest mSegmentDigest = RecordingManifest.newDigest();
+
+    private final MessageDigest mChainDigest = RecordingManifest.newDigest();
+
+    private final List<byte[]> mSegmentHashes = new ArrayList<>();
+
+    private byte[] mChain = new byte[RecordingManifest.HASH_SIZE];
+
+    private long mHashedBytes;
+
+    private int mSegmentBytes;
+
+    /**
+     * @param segmentSize the bytes hashed on their own, what a verifier can tell is modified and hashes at once.
+     * @param key         signs the manifest, e.g. one from {@link IntegrityKeys}.
+     */
+    public RecordingHasher(@NonNull File recording, int segmentSize, @NonNull PrivateKey key) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        mRecording = recording;
+        mSegmentSize = segmentSize;
+        mKey = key;
+    }
+
+    @Override
+    public void onWrite(@NonNull ByteBuffer buffer, long position) throws IOException {
+        if (position != mHashedBytes) {
+            throw new IOException("written out of order at " + position + ", " + mHashedBytes + " bytes are hashed");
+        }
+        ByteBuffer data = buffer.duplicate();
+        while (data.hasRemaining()) {
+            int length = Math.min(mSegmentSize - mSegmentBytes, data.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + length);
+            mSegmentDigest.update(data);
+            data.limit(limit);
+            mSegmentBytes += length;
+            mHashedBytes += length;
+            if (mSegmentBytes == mSegmentSize) {
+                finishSegment();
+            }
+        }
+    }
+
+    @Override
+    public void onClose(long length) throws IOException {
+        if (length != mHashedBytes) {
+            throw new IOException(length + " bytes are written, " + mHashedBytes + " are hashed");
+        }
+        if (mSegmentBytes > 0) {
+            finishSegment();
+        }
+        RecordingManifest manifest = new RecordingManifest(mSegmentSize, length, mSegmentHashes, mChain, null);
+        try {
+            manifest.write(mRecording, mKey);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("the manifest of " + mRecording + " can't be signed", exception);
+        }
+    }
+
+    private void finishSegment() {
+        byte[] segmentHash = mSegmentDigest.digest();
+        mSegmentHashes.add(segmentHash);
+        mChain = RecordingManifest.link(mChainDigest, mChain, segmentHash);
+        mSegmentBytes = 0;
+    }
+
+}
@@ -0,0 +1,359 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * The SHA-256 of every segment of a recording, chained and signed, kept next to the recording. The chain is
+ * {@code c[0] = 0...0, c[i + 1] = SHA-256(c[i] || h[i])}, so the last link commits to every segment in order, and the
+ * signature covers the segment hashes, the chain and the length of the file.
+ *
+ * <p>
+ * The manifest is written by {@link RecordingHasher}, as the recording is written or once it is finished. {@link #verify} checks the signature
+ * and the chain first, which takes no reading of the recording, and then hashes the segments on several threads with
+ * positional reads, stopping at the first one that doesn't match.
+ * </p>
+ */
+public final class RecordingManifest {
+
+    public static final String SUFFIX = ".manifest";
+
+    public static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    static final int HASH_SIZE = 32;
+
+    private static final int MAGIC = 0x524D4631; // "RMF1"
+
+    private static final int MAX_SIGNATURE_SIZE = 1024;
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    public static final int VERIFIED = 0;
+    /**
+     * There is no manifest, or it can't be read.
+     */
+    public static final int BAD_MANIFEST = 1;
+    public static final int BAD_SIGNATURE = 2;
+    /**
+     * The chain doesn't follow from the segment hashes, the manifest was signed that way.
+     */
+    public static final int BAD_CHAIN = 3;
+    public static final int LENGTH_MISMATCH = 4;
+    /**
+     * See {@link Result#segment}.
+     */
+    public static final int MODIFIED_SEGMENT = 5;
+
+    @IntDef({VERIFIED, BAD_MANIFEST, BAD_SIGNATURE, BAD_CHAIN, LENGTH_MISMATCH, MODIFIED_SEGMENT})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Status {
+    }
+
+    public static final class Result {
+
+        @Status
+        public final int status;
+
+        /**
+         * The first segment that doesn't match for {@link #MODIFIED_SEGMENT}, -1 otherwise. It covers the bytes from
+         * {@code segment * segmentSize}.
+         */
+        public final int segment;
+
+        Result(@Status int status, int segment) {
+            this.status = status;
+            this.segment = segment;
+        }
+
+        public boolean isVerified() {
+            return status == VERIFIED;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "status=" + status +
+                    ", segment=" + segment +
+                    '}';
+        }
+
+    }
+
+    final int segmentSize;
+
+    final long length;
+
+    @NonNull
+    final List<byte[]> segmentHashes;
+
+    @NonNull
+    final byte[] chain;
+
+    @Nullable
+    private final byte[] mSignature;
+
+    RecordingManifest(int segmentSize, long length, @NonNull List<byte[]> segmentHashes, @NonNull byte[] chain, @Nullable byte[] signature) {
+        this.segmentSize = segmentSize;
+        this.length = length;
+        this.segmentHashes = segmentHashes;
+        this.chain = chain;
+        mSignature = signature;
+    }
+
+    @NonNull
+    public static File manifestFile(@NonNull File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    @NonNull
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * @return the next link of the chain.
+     */
+    @NonNull
+    static byte[] link(@NonNull MessageDigest digest, @NonNull byte[] previous, @NonNull byte[] segmentHash) {
+        digest.reset();
+        digest.update(previous);
+        digest.update(segmentHash);
+        return digest.digest();
+    }
+
+    @NonNull
+    static byte[] chain(@NonNull List<byte[]> segmentHashes) {
+        MessageDigest digest = newDigest();
+        byte[] chain = new byte[HASH_SIZE];
+        for (byte[] segmentHash : segmentHashes) {
+            chain = link(digest, chain, segmentHash);
+        }
+        return chain;
+    }
+
+    /**
+     * Signs the manifest and writes it next to the recording, replacing the old one at once.
+     */
+    void write(@NonNull File recording, @NonNull PrivateKey key) throws IOException, GeneralSecurityException {
+        byte[] body = body();
+        Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signer.initSign(key);
+        signer.update(body);
+        byte[] signature = signer.sign();
+
+        File file = manifestFile(recording);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            DataOutputStream output = new DataOutputStream(stream);
+            output.write(body);
+            output.writeInt(signature.length);
+            output.write(signature);
+            output.flush();
+            stream.getFD().sync();
+        } catch (IOException exception) {
+            temp.delete();
+            throw exception;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException(temp + " can't replace " + file);
+        }
+    }
+
+    /**
+     * @return what the signature covers.
+     */
+    @NonNull
+    private byte[] body() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24 + (segmentHashes.size() + 1) * HASH_SIZE);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(segmentSize);
+        output.writeLong(length);
+        output.writeInt(segmentHashes.size());
+        for (byte[] segmentHash : segmentHashes) {
+            output.write(segmentHash);
+        }
+        output.write(chain);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    @Nullable
+    static RecordingManifest read(@NonNull File recording) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(manifestFile(recording)))) {
+            if (input.readInt() != MAGIC) {
+                return null;
+            }
+            int segmentSize = input.readInt();
+            long length = input.readLong();
+            int count = input.readInt();
+            if (segmentSize <= 0 || length < 0 || count != (length + segmentSize - 1) / segmentSize) {
+                return null;
+            }
+            List<byte[]> segmentHashes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] segmentHash = new byte[HASH_SIZE];
+                input.readFully(segmentHash);
+                segmentHashes.add(segmentHash);
+            }
+            byte[] chain = new byte[HASH_SIZE];
+            input.readFully(chain);
+            int signatureSize = input.readInt();
+            if (signatureSize <= 0 || signatureSize > MAX_SIGNATURE_SIZE) {
+                return null;
+            }
+            byte[] signature = new byte[signatureSize];
+            input.readFully(signature);
+            if (input.read() >= 0) {
+                return null;
+            }
+            return new RecordingManifest(segmentSize, length, segmentHashes, chain, signature);
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks a recording against its manifest.
+     *
+     * @param key     the public half of the key the manifest was signed with.
+     * @param threads the segments hashed at once.
+     * @throws IOException if the recording can't be read.
+     */
+    @WorkerThread
+    @NonNull
+    public static Result verify(@NonNull File recording, @NonNull PublicKey key, int threads) throws IOException {
+        RecordingManifest manifest = read(recording);
+        if (manifest == null || manifest.mSignature == null) {
+            return new Result(BAD_MANIFEST, -1);
+        }
+        try {
+            Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+            verifier.initVerify(key);
+            verifier.update(manifest.body());
+            if (!verifier.verify(manifest.mSignature)) {
+                return new Result(BAD_SIGNATURE, -1);
+            }
+        } catch (GeneralSecurityException exception) {
+            Timber.w(exception, "the manifest of %s can't be verified.", recording);
+            return new Result(BAD_SIGNATURE, -1);
+        }
+        if (!Arrays.equals(manifest.chain, chain(manifest.segmentHashes))) {
+            return new Result(BAD_CHAIN, -1);
+        }
+        if (recording.length() != manifest.length) {
+            return new Result(LENGTH_MISMATCH, -1);
+        }
+        int segment = manifest.findModifiedSegment(recording, Math.max(1, threads));
+        return segment < 0 ? new Result(VERIFIED, -1) : new Result(MODIFIED_SEGMENT, segment);
+    }
+
+    /**
+     * @return the first segment whose hash doesn't match, -1 if none.
+     */
+    private int findModifiedSegment(@NonNull File recording, int threads) throws IOException {
+        int count = segmentHashes.size();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger firstModified = new AtomicInteger(Integer.MAX_VALUE);
+        try (FileChannel channel = new RandomAccessFile(recording, "r").getChannel()) {
+            Callable<Void> worker = () -> {
+                MessageDigest digest = newDigest();
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                int segment;
+                // the segments after a modified one don't matter.
+                while ((segment = next.getAndIncrement()) < count && segment < firstModified.get()) {
+                    if (!Arrays.equals(segmentHashes.get(segment), hashSegment(channel, segment, digest, buffer))) {
+                        firstModified.accumulateAndGet(segment, Math::min);
+                    }
+                }
+                return null;
+            };
+            threads = Math.min(threads, count);
+            if (threads <= 1) {
+                worker.call();
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    for (Future<Void> future : executor.invokeAll(Collections.nCopies(threads, worker))) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", exception);
+        } catch (IOException | RuntimeException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new IOException(exception);
+        }
+        int segment = firstModified.get();
+        return segment == Integer.MAX_VALUE ? -1 : segment;
+    }
+
+    @NonNull
+    private byte[] hashSegment(FileChannel channel, int segment, MessageDigest digest, ByteBuffer buffer) throws IOException {
+        long position = (long) segment * segmentSize;
+        long end = Math.min(position + segmentSize, length);
+        digest.reset();
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                // cut meanwhile.
+                break;
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+}
@@ -0,0 +1,717 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Makes the MP4 of a recording that never stopped playable again. The recorder writes {@code moov}, which describes
+ * the samples, only when it stops, so if the process dies the samples are there but can't be found. They are found
+ * again from the H.264 NAL units in {@code mdat}, and a {@code moov} with one chunk of all the samples is appended.
+ *
+ * <p>
+ * What the NAL units don't tell is recorded in a sidecar, see {@link #writeInfo}, when the recording starts. The codec
+ * config (SPS and PPS) comes from the stream if it carries them, otherwise from the sample description of a finished
+ * recording of the same size in the directory, which the same encoder produced.
+ * </p>
+ *
+ * <p>
+ * The samples are length-prefixed as the recorder writes them. A stream in Annex-B with 4-byte start codes is turned
+ * into that in place. The file is read through mappings of {@link #WINDOW_SIZE}, only the sample sizes are kept.
+ * </p>
+ */
+public final class RecordingRecovery {
+
+    public static final String SUFFIX = ".recovery";
+
+    private static final int MAGIC = 0x52435631; // "RCV1"
+
+    /**
+     * The recordings looked at for a sample description.
+     */
+    private static final int MAX_TEMPLATES = 10;
+
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private static final int TIMESCALE = 90000;
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    private RecordingRecovery() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * What a recording needs to be recovered, known when it starts.
+     */
+    public static final class Info {
+
+        public final int width;
+        public final int height;
+        /**
+         * The playback rate, the samples are given equal durations.
+         */
+        public final int frameRate;
+        /**
+         * Clockwise, 0, 90, 180 or 270.
+         */
+        public final int rotation;
+
+        public Info(int width, int height, int frameRate, int rotation) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.rotation = rotation;
+        }
+
+    }
+
+    /**
+     * Written when the recording starts, deleted when it stops.
+     */
+    public static void writeInfo(@NonNull File recording, @NonNull Info info) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(infoFile(recording)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(info.width);
+            output.writeInt(info.height);
+            output.writeInt(info.frameRate);
+            output.writeInt(info.rotation);
+        }
+    }
+
+    public static void deleteInfo(@NonNull File recording) {
+        File file = infoFile(recording);
+        if (file.exists() && !file.delete()) {
+            Timber.w("%s can't be deleted.", file);
+        }
+    }
+
+    @Nullable
+    static Info readInfo(@NonNull File recording) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(infoFile(recording)))) {
+            if (input.readInt() != MAGIC) {
+                return null;
+            }
+            return new Info(input.readInt(), input.readInt(), input.readInt(), input.readInt());
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    @NonNull
+    private static File infoFile(@NonNull File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return the recordings in the directory that were left with a sidecar before the given time, the ones that may
+     * need to be recovered.
+     */
+    @NonNull
+    public static File[] findOrphans(@NonNull File directory, long before) {
+        File[] infos = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (infos == null) {
+            return new File[0];
+        }
+        int count = 0;
+        File[] orphans = new File[infos.length];
+        for (File info : infos) {
+            if (info.lastModified() < before) {
+                String path = info.getPath();
+                orphans[count++] = new File(path.substring(0, path.length() - SUFFIX.length()));
+            }
+        }
+        return Arrays.copyOf(orphans, count);
+    }
+
+    /**
+     * Recovers the recording if it has no {@code moov}, and deletes its sidecar unless it can't be recovered yet.
+     *
+     * @return true if the recording is playable.
+     */
+    @WorkerThread
+    public static boolean recover(@NonNull File recording) throws IOException {
+        if (!recording.exists()) {
+            deleteInfo(recording);
+            return false;
+        }
+        Info info = readInfo(recording);
+        if (info == null) {
+            Timber.w("%s has no recovery info.", recording);
+            deleteInfo(recording);
+            return false;
+        }
+        if (hasMoov(recording)) {
+            deleteInfo(recording);
+            return true;
+        }
+        boolean recovered = repair(recording, info, findSampleDescription(recording, info));
+        if (recovered) {
+            deleteInfo(recording);
+        }
+        return recovered;
+    }
+
+    /**
+     * @param sampleDescription the {@code stsd} box to use if the stream has no SPS and PPS.
+     */
+    static boolean repair(@NonNull File file, @NonNull Info info, @Nullable byte[] sampleDescription) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            long mdatHeader = findMdat(channel);
+            if (mdatHeader < 0) {
+                Timber.w("%s has no mdat.", file);
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(16);
+            channel.read(header, mdatHeader);
+            int headerSize = header.getInt(0) == 1 ? 16 : 8;
+            long payload = mdatHeader + headerSize;
+
+            Samples samples = new Samples();
+            Window window = new Window(channel);
+            if (payload + 4 <= channel.size() && window.getInt(payload) == 1) {
+                scanAnnexB(window, payload, channel.size(), samples);
+            } else {
+                scanLengthPrefixed(window, payload, channel.size(), samples);
+            }
+            window.release();
+            if (samples.count == 0) {
+                Timber.w("%s has no complete sample.", file);
+                return false;
+            }
+
+            byte[] stsd = samples.sps != null && samples.pps != null
+                    ? buildSampleDescription(info, samples.sps, samples.pps)
+                    : sampleDescription;
+            if (stsd == null) {
+                Timber.w("%s has no codec config.", file);
+                return false;
+            }
+
+            long end = samples.end;
+            long mdatSize = end - mdatHeader;
+            if (headerSize == 16) {
+                channel.write(ByteBuffer.allocate(8).putLong(mdatSize).flip(), mdatHeader + 8);
+            } else {
+                if (mdatSize > 0xFFFFFFFFL) {
+                    return false;
+                }
+                channel.write(ByteBuffer.allocate(4).putInt((int) mdatSize).flip(), mdatHeader);
+            }
+            channel.truncate(end);
+            ByteBuffer moov = ByteBuffer.wrap(buildMoov(info, stsd, samples, samples.start));
+            long position = end;
+            while (moov.hasRemaining()) {
+                position += channel.write(moov, position);
+            }
+            channel.force(false);
+            Timber.d("%s is recovered with %d samples.", file.getName(), samples.count);
+            return true;
+        }
+    }
+
+    static boolean hasMoov(@NonNull File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            List<Mp4Faststart.Box> boxes = Mp4Faststart.readBoxes(channel);
+            if (boxes == null) {
+                return false;
+            }
+            for (Mp4Faststart.Box box : boxes) {
+                if (box.type == Mp4Faststart.TYPE_MOOV) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The recorder writes {@code mdat} with a placeholder size, so the boxes before it are walked instead.
+     */
+    private static long findMdat(FileChannel channel) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        while (position + 8 <= size) {
+            Mp4Faststart.Box box = Mp4Faststart.readBox(channel, position, size);
+            if (box == null) {
+                return -1;
+            }
+            if (box.type == Mp4Faststart.TYPE_MDAT) {
+                return position;
+            }
+            if (!box.fitsIn(size)) {
+                return -1;
+            }
+            position = box.end();
+        }
+        return -1;
+    }
+
+    /**
+     * The sizes of the samples found, and the codec config if the stream carries it.
+     */
+    static final class Samples {
+
+        long start = -1;
+        long end;
+        int count;
+        int[] sizes = new int[1024];
+        int[] syncSamples = new int[64];
+        int syncCount;
+        @Nullable
+        byte[] sps;
+        @Nullable
+        byte[] pps;
+
+        /**
+         * The access unit being collected.
+         */
+        private long mUnitStart = -1;
+        private boolean mUnitHasSlice;
+        private boolean mUnitIsSync;
+        private long mLastNalEnd;
+
+        /**
+         * @param offset   where the NAL unit starts, with its length or start code.
+         * @param end      where it ends.
+         * @param nalStart where its header is.
+         */
+        void onNal(Window window, long offset, long end, long nalStart) throws IOException {
+            int header = window.get(nalStart) & 0xFF;
+            int type = header & 0x1F;
+            boolean slice = type == NAL_SLICE || type == NAL_IDR;
+            boolean newUnit;
+            if (slice) {
+                // first_mb_in_slice is ue(v), 0 is the single bit 1.
+                newUnit = mUnitHasSlice && nalStart + 1 < end && (window.get(nalStart + 1) & 0x80) != 0;
+            } else {
+                newUnit = mUnitHasSlice && (type == NAL_AUD || type == NAL_SPS || type == NAL_PPS || type == NAL_SEI);
+            }
+            if (newUnit) {
+                closeUnit(offset);
+            }
+            if (mUnitStart < 0) {
+                mUnitStart = offset;
+                if (start < 0) {
+                    start = offset;
+                }
+            }
+            if (slice) {
+                mUnitHasSlice = true;
+                mUnitIsSync |= type == NAL_IDR;
+            }
+            if (type == NAL_SPS && sps == null) {
+                sps = window.copy(nalStart, end);
+            } else if (type == NAL_PPS && pps == null) {
+                pps = window.copy(nalStart, end);
+            }
+            mLastNalEnd = end;
+        }
+
+        /**
+         * Ends the last access unit after the last complete NAL unit, it may still be missing slices.
+         */
+        void finish() {
+            closeUnit(mLastNalEnd);
+        }
+
+        /**
+         * The access unit ends where the next one starts or the valid data ends.
+         */
+        void closeUnit(long unitEnd) {
+            if (mUnitStart < 0 || !mUnitHasSlice) {
+                return;
+            }
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            sizes[count++] = (int) (unitEnd - mUnitStart);
+            if (mUnitIsSync) {
+                if (syncCount == syncSamples.length) {
+                    syncSamples = Arrays.copyOf(syncSamples, syncCount * 2);
+                }
+                syncSamples[syncCount++] = count;
+            }
+            end = unitEnd;
+            mUnitStart = unitEnd;
+            mUnitHasSlice = false;
+            mUnitIsSync = false;
+        }
+
+    }
+
+    private static boolean isValidNalHeader(int header) {
+        int type = header & 0x1F;
+        // forbidden_zero_bit, and the types H.264 leaves unspecified are what garbage looks like.
+        return (header & 0x80) == 0 && type != 0 && type < 24;
+    }
+
+    /**
+     * NAL units each preceded by their 4-byte length, up to the first that is not complete or not valid.
+     */
+    static void scanLengthPrefixed(Window window, long position, long limit, Samples samples) throws IOException {
+        while (position + 5 <= limit) {
+            long length = window.getInt(position) & 0xFFFFFFFFL;
+            long nalStart = position + 4;
+            if (length == 0 || nalStart + length > limit || !isValidNalHeader(window.get(nalStart) & 0xFF)) {
+                break;
+            }
+            // the RBSP ends with a stop bit, so a NAL unit cut short into the preallocated zeros ends with 0.
+            if (window.get(nalStart + length - 1) == 0) {
+                break;
+            }
+            samples.onNal(window, position, nalStart + length, nalStart);
+            position = nalStart + length;
+        }
+        samples.finish();
+    }
+
+    /**
+     * NAL units each preceded by a 4-byte start code, which is replaced with the length. A NAL unit is taken only when
+     * the next start code is found, as the last one can't be told complete.
+     */
+    static void scanAnnexB(Window window, long position, long limit, Samples samples) throws IOException {
+        long nalStart = -1;
+        long codeStart = -1;
+        long zeros = 0;
+        for (long i = position; i < limit; i++) {
+            int b = window.get(i) & 0xFF;
+            if (b == 1 && zeros >= 2) {
+                long nextCode = i - Math.min(zeros, 3);
+                if (zeros < 3) {
+                    // a 3-byte start code has no room for the length.
+                    break;
+                }
+                if (nalStart >= 0) {
+                    long nalEnd = nextCode;
+                    if (!isValidNalHeader(window.get(nalStart) & 0xFF)) {
+                        break;
+                    }
+                    window.putInt(codeStart, (int) (nalEnd - nalStart));
+                    samples.onNal(window, codeStart, nalEnd, nalStart);
+                }
+                codeStart = nextCode;
+                nalStart = i + 1;
+                zeros = 0;
+            } else if (b == 0) {
+                zeros++;
+            } else {
+                zeros = 0;
+            }
+        }
+        samples.finish();
+    }
+
+    /**
+     * The sample description of a finished recording of the same size in the directory, newest first.
+     */
+    @Nullable
+    static byte[] findSampleDescription(@NonNull File recording, @NonNull Info info) {
+        File directory = recording.getParentFile();
+        File[] files = directory == null ? null : directory.listFiles((dir, name) -> name.endsWith(RecordingStorage.SUFFIX));
+        if (files == null) {
+            return null;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        int tried = 0;
+        for (File file : files) {
+            if (file.equals(recording) || new File(file.getPath() + SUFFIX).exists()) {
+                continue;
+            }
+            if (tried++ == MAX_TEMPLATES) {
+                break;
+            }
+            try {
+                byte[] stsd = readSampleDescription(file, info.width, info.height);
+                if (stsd != null) {
+                    Timber.d("the codec config of %s is from %s.", recording.getName(), file.getName());
+                    return stsd;
+                }
+            } catch (IOException exception) {
+                Timber.w(exception, "RecordingRecovery.findSampleDescription()");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the {@code stsd} of the video track if its sample entry is of that size.
+     */
+    @Nullable
+    static byte[] readSampleDescription(@NonNull File file, int width, int height) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            List<Mp4Faststart.Box> boxes = Mp4Faststart.readBoxes(channel);
+            if (boxes == null) {
+                return null;
+            }
+            for (Mp4Faststart.Box box : boxes) {
+                if (box.type != Mp4Faststart.TYPE_MOOV || box.size > Integer.MAX_VALUE) {
+                    continue;
+                }
+                MappedByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, box.offset, box.size);
+                return findStsd(moov, 8, (int) box.size, width, height, 0);
+            }
+            return null;
+        }
+    }
+
+    private static final int[] PATH_TO_STSD = {
+            Mp4Faststart.fourCc("trak"), Mp4Faststart.fourCc("mdia"), Mp4Faststart.fourCc("minf"), Mp4Faststart.fourCc("stbl")
+    };
+
+    @Nullable
+    private static byte[] findStsd(ByteBuffer moov, int position, int end, int width, int height, int depth) {
+        while (position + 8 <= end) {
+            int size = moov.getInt(position);
+            int type = moov.getInt(position + 4);
+            if (size < 8 || position + size > end) {
+                return null;
+            }
+            if (depth < PATH_TO_STSD.length && type == PATH_TO_STSD[depth]) {
+                byte[] stsd = findStsd(moov, position + 8, position + size, width, height, depth + 1);
+                if (stsd != null) {
+                    return stsd;
+                }
+            } else if (depth == PATH_TO_STSD.length && type == Mp4Faststart.fourCc("stsd") && size >= 16 + 8 + 28) {
+                // the visual sample entry: 8 bytes of box, 24 of fields, then the width and the height.
+                int entry = position + 16;
+                int entryWidth = moov.getShort(entry + 8 + 24) & 0xFFFF;
+                int entryHeight = moov.getShort(entry + 8 + 26) & 0xFFFF;
+                if (entryWidth == width && entryHeight == height) {
+                    byte[] stsd = new byte[size];
+                    ByteBuffer box = moov.duplicate();
+                    box.position(position);
+                    box.get(stsd);
+                    return stsd;
+                }
+                return null;
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    /**
+     * An {@code stsd} with one {@code avc1} entry built from the SPS and the PPS.
+     */
+    @NonNull
+    static byte[] buildSampleDescription(@NonNull Info info, @NonNull byte[] sps, @NonNull byte[] pps) {
+        BoxWriter avcC = new BoxWriter("avcC");
+        avcC.u8(1).u8(sps.length > 1 ? sps[1] : 0).u8(sps.length > 2 ? sps[2] : 0).u8(sps.length > 3 ? sps[3] : 0);
+        // 4-byte lengths, one SPS and one PPS.
+        avcC.u8(0xFF).u8(0xE1).u16(sps.length).bytes(sps).u8(1).u16(pps.length).bytes(pps);
+
+        BoxWriter avc1 = new BoxWriter("avc1");
+        avc1.zeros(6).u16(1).zeros(16).u16(info.width).u16(info.height)
+                .u32(0x00480000).u32(0x00480000).u32(0).u16(1).zeros(32).u16(0x18).u16(0xFFFF)
+                .bytes(avcC.toByteArray());
+
+        return new BoxWriter("stsd").u32(0).u32(1).bytes(avc1.toByteArray()).toByteArray();
+    }
+
+    @NonNull
+    static byte[] buildMoov(@NonNull Info info, @NonNull byte[] stsd, @NonNull Samples samples, long chunkOffset) {
+        int frameRate = Math.max(1, info.frameRate);
+        int delta = TIMESCALE / frameRate;
+        long mediaDuration = (long) samples.count * delta;
+        long movieDuration = mediaDuration * 1000 / TIMESCALE;
+        int[] matrix = matrix(info.rotation);
+
+        BoxWriter mvhd = new BoxWriter("mvhd").u32(0).u32(0).u32(0).u32(1000).u32(movieDuration)
+                .u32(0x00010000).u16(0x0100).zeros(10).ints(matrix).zeros(24).u32(2);
+        BoxWriter tkhd = new BoxWriter("tkhd").u32(7).u32(0).u32(0).u32(1).u32(0).u32(movieDuration)
+                .zeros(8).u16(0).u16(0).u16(0).u16(0).ints(matrix).u32((long) info.width << 16).u32((long) info.height << 16);
+        BoxWriter mdhd = new BoxWriter("mdhd").u32(0).u32(0).u32(0).u32(TIMESCALE).u32(mediaDuration).u16(0x55C4).u16(0);
+        BoxWriter hdlr = new BoxWriter("hdlr").u32(0).u32(0).bytes("vide".getBytes(StandardCharsets.US_ASCII))
+                .zeros(12).bytes("VideoHandle\0".getBytes(StandardCharsets.US_ASCII));
+        BoxWriter vmhd = new BoxWriter("vmhd").u32(1).zeros(8);
+        BoxWriter dinf = new BoxWriter("dinf").bytes(new BoxWriter("dref").u32(0).u32(1)
+                .bytes(new BoxWriter("url ").u32(1).toByteArray()).toByteArray());
+
+        BoxWriter stts = new BoxWriter("stts").u32(0).u32(1).u32(samples.count).u32(delta);
+        BoxWriter stss = new BoxWriter("stss").u32(0).u32(samples.syncCount);
+        for (int i = 0; i < samples.syncCount; i++) {
+            stss.u32(samples.syncSamples[i]);
+        }
+        // all the samples are in one chunk.
+        BoxWriter stsc = new BoxWriter("stsc").u32(0).u32(1).u32(1).u32(samples.count).u32(1);
+        BoxWriter stsz = new BoxWriter("stsz").u32(0).u32(0).u32(samples.count);
+        for (int i = 0; i < samples.count; i++) {
+            stsz.u32(samples.sizes[i]);
+        }
+        BoxWriter co64 = new BoxWriter("co64").u32(0).u32(1).u64(chunkOffset);
+
+        byte[] stbl = new BoxWriter("stbl").bytes(stsd).bytes(stts.toByteArray()).bytes(stss.toByteArray())
+                .bytes(stsc.toByteArray()).bytes(stsz.toByteArray()).bytes(co64.toByteArray()).toByteArray();
+        byte[] minf = new BoxWriter("minf").bytes(vmhd.toByteArray()).bytes(dinf.toByteArray()).bytes(stbl).toByteArray();
+        byte[] mdia = new BoxWriter("mdia").bytes(mdhd.toByteArray()).bytes(hdlr.toByteArray()).bytes(minf).toByteArray();
+        byte[] trak = new BoxWriter("trak").bytes(tkhd.toByteArray()).bytes(mdia).toByteArray();
+        return new BoxWriter("moov").bytes(mvhd.toByteArray()).bytes(trak).toByteArray();
+    }
+
+    /**
+     * The transformation matrix of {@code tkhd} and {@code mvhd} for a clockwise rotation, in 16.16 and 2.30.
+     */
+    private static int[] matrix(int rotation) {
+        int one = 0x00010000;
+        int w = 0x40000000;
+        switch (rotation) {
+            case 90:
+                return new int[]{0, one, 0, -one, 0, 0, 0, 0, w};
+            case 180:
+                return new int[]{-one, 0, 0, 0, -one, 0, 0, 0, w};
+            case 270:
+                return new int[]{0, -one, 0, one, 0, 0, 0, 0, w};
+            default:
+                return new int[]{one, 0, 0, 0, one, 0, 0, 0, w};
+        }
+    }
+
+    /**
+     * Reads and writes a file through a moving mapping, so a recording of any size takes a bounded address space.
+     */
+    static final class Window {
+
+        private final FileChannel mChannel;
+
+        @Nullable
+        private MappedByteBuffer mBuffer;
+
+        private long mStart;
+
+        private boolean mDirty;
+
+        Window(@NonNull FileChannel channel) {
+            mChannel = channel;
+        }
+
+        byte get(long position) throws IOException {
+            return map(position, 1).get((int) (position - mStart));
+        }
+
+        int getInt(long position) throws IOException {
+            return map(position, 4).getInt((int) (position - mStart));
+        }
+
+        void putInt(long position, int value) throws IOException {
+            map(position, 4).putInt((int) (position - mStart), value);
+            mDirty = true;
+        }
+
+        @NonNull
+        byte[] copy(long from, long to) throws IOException {
+            byte[] bytes = new byte[(int) (to - from)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = get(from + i);
+            }
+            return bytes;
+        }
+
+        private MappedByteBuffer map(long position, int length) throws IOException {
+            MappedByteBuffer buffer = mBuffer;
+            if (buffer != null && position >= mStart && position + length <= mStart + buffer.capacity()) {
+                return buffer;
+            }
+            release();
+            long size = Math.min(WINDOW_SIZE, mChannel.size() - position);
+            if (size < length) {
+                throw new IOException("reading past the end at " + position);
+            }
+            mStart = position;
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            return mBuffer;
+        }
+
+        void release() {
+            if (mBuffer != null && mDirty) {
+                mBuffer.force();
+            }
+            mBuffer = null;
+            mDirty = false;
+        }
+
+    }
+
+    /**
+     * Builds a box in memory, for the small boxes of {@code moov}.
+     */
+    private static final class BoxWriter {
+
+        private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream();
+
+        private final String mType;
+
+        BoxWriter(String type) {
+            mType = type;
+        }
+
+        BoxWriter u8(int value) {
+            mPayload.write(value);
+            return this;
+        }
+
+        BoxWriter u16(int value) {
+            return u8(value >>> 8).u8(value);
+        }
+
+        BoxWriter u32(long value) {
+            return u16((int) (value >>> 16) & 0xFFFF).u16((int) value & 0xFFFF);
+        }
+
+        BoxWriter u64(long value) {
+            return u32(value >>> 32).u32(value & 0xFFFFFFFFL);
+        }
+
+        BoxWriter ints(int[] values) {
+            for (int value : values) {
+                u32(value & 0xFFFFFFFFL);
+            }
+            return this;
+        }
+
+        BoxWriter zeros(int count) {
+            for (int i = 0; i < count; i++) {
+                mPayload.write(0);
+            }
+            return this;
+        }
+
+        BoxWriter bytes(byte[] bytes) {
+            mPayload.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            byte[] payload = mPayload.toByteArray();
+            return ByteBuffer.allocate(8 + payload.length)
+                    .putInt(8 + payload.length)
+                    .put(mType.getBytes(StandardCharsets.US_ASCII))
+                    .put(payload)
+                    .array();
+        }
+
+    }
+
+}
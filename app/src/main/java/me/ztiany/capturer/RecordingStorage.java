@@ -0,0 +1,383 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the recordings in a directory within a byte and a count budget. The directory is scanned once, after that the
+ * index is kept up to date by {@link #prepare} and {@link #onRecordingFinished}, so no new recording has to list or
+ * stat the directory.
+ *
+ * <p>
+ * Before each recording, the oldest recordings that are not pinned are deleted (with their {@link FrameMetadataWriter}
+ * sidecars) until the new one fits in the budget, and the free space of the disk is checked against what the
+ * recording is expected to write, so the recorder doesn't fail halfway or make the disk full.
+ * </p>
+ */
+public final class RecordingStorage {
+
+    public static final String SUFFIX = "-video.mp4";
+
+    /**
+     * An empty file next to a pinned recording, so the pin survives restarts.
+     */
+    static final String PIN_SUFFIX = ".pinned";
+
+    /**
+     * Roughly what the H.264 encoders produce for camera footage, in bits per pixel per frame.
+     */
+    private static final double BITS_PER_PIXEL = 0.15;
+
+    interface FreeSpace {
+
+        long getUsableSpace(@NonNull File directory);
+
+    }
+
+    public static final class Recording {
+
+        @NonNull
+        public final File file;
+
+        /**
+         * {@code System.currentTimeMillis()} when the recording started.
+         */
+        public final long startTime;
+
+        long mSize;
+
+        boolean mPinned;
+
+        /**
+         * Being recorded, it is never deleted.
+         */
+        boolean mActive;
+
+        Recording(@NonNull File file, long startTime, long size, boolean pinned) {
+            this.file = file;
+            this.startTime = startTime;
+            mSize = size;
+            mPinned = pinned;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public boolean isPinned() {
+            return mPinned;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Recording{" +
+                    "file=" + file.getName() +
+                    ", size=" + mSize +
+                    ", pinned=" + mPinned +
+                    '}';
+        }
+
+    }
+
+    private final File mDirectory;
+
+    private final long mMaxBytes;
+
+    private final int mMaxCount;
+
+    private final long mMinFreeBytes;
+
+    private final FreeSpace mFreeSpace;
+
+    /**
+     * By path, oldest first.
+     */
+    private final Map<String, Recording> mRecordings = new LinkedHashMap<>();
+
+    private long mTotalBytes;
+
+    private boolean mScanned;
+
+    private RecordingStorage(Builder builder) {
+        mDirectory = builder.directory;
+        mMaxBytes = builder.maxBytes;
+        mMaxCount = builder.maxCount;
+        mMinFreeBytes = builder.minFreeBytes;
+        mFreeSpace = builder.freeSpace;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the bytes a recording is expected to write, from its size, frame rate and duration.
+     */
+    public static long estimateBytes(int width, int height, int frameRate, long durationMs) {
+        double bitRate = (double) width * height * frameRate * BITS_PER_PIXEL;
+        return (long) (bitRate / 8 * durationMs / 1000);
+    }
+
+    /**
+     * Builds the index from the directory, only the first call does, so it can be called ahead on a worker thread.
+     */
+    public synchronized void scan() {
+        scanIfNeeded();
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Makes room for a recording, evicting the oldest unpinned recordings if needed. A file outside of the directory
+     * is only checked against the free space.
+     *
+     * @param expectedBytes what the recording is expected to write, see {@link #estimateBytes}.
+     * @return false if there is not enough room even after the evictions, the recording should not be started.
+     */
+    public synchronized boolean prepare(@NonNull File file, long expectedBytes) {
+        scanIfNeeded();
+        boolean managed = isManaged(file);
+        if (managed) {
+            // a file that is recorded again is replaced.
+            remove(mRecordings.get(file.getPath()), false);
+            while (mRecordings.size() + 1 > mMaxCount || mTotalBytes + expectedBytes > mMaxBytes) {
+                if (!evictOldest()) {
+                    break;
+                }
+            }
+        }
+        while (mFreeSpace.getUsableSpace(mDirectory) - expectedBytes < mMinFreeBytes) {
+            if (!evictOldest()) {
+                Timber.w("no room for %s: %d bytes expected, %d bytes free.", file, expectedBytes, mFreeSpace.getUsableSpace(mDirectory));
+                return false;
+            }
+        }
+        if (managed) {
+            if (mRecordings.size() + 1 > mMaxCount || mTotalBytes + expectedBytes > mMaxBytes) {
+                Timber.w("no room for %s in the budget, %d recordings are kept.", file, mRecordings.size());
+                return false;
+            }
+            Recording recording = new Recording(file, parseStartTime(file), expectedBytes, false);
+            recording.mActive = true;
+            mRecordings.put(file.getPath(), recording);
+            mTotalBytes += expectedBytes;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the expected size of a recording with its real one, once it is recorded or rewritten.
+     */
+    public synchronized void onRecordingFinished(@NonNull File file) {
+        Recording recording = mRecordings.get(file.getPath());
+        if (recording == null) {
+            return;
+        }
+        recording.mActive = false;
+        if (!file.exists()) {
+            remove(recording, false);
+            return;
+        }
+        long size = file.length() + new File(file.getPath() + FrameMetadataWriter.SUFFIX).length();
+        mTotalBytes += size - recording.mSize;
+        recording.mSize = size;
+    }
+
+    /**
+     * @return whether a recording in the directory is being recorded.
+     */
+    public synchronized boolean isRecording() {
+        for (Recording recording : mRecordings.values()) {
+            if (recording.mActive) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A pinned recording is never evicted.
+     *
+     * @return false if the recording is not in the directory.
+     */
+    public synchronized boolean setPinned(@NonNull File file, boolean pinned) {
+        scanIfNeeded();
+        Recording recording = mRecordings.get(file.getPath());
+        if (recording == null) {
+            return false;
+        }
+        File marker = new File(file.getPath() + PIN_SUFFIX);
+        try {
+            if (pinned && !marker.exists() && !marker.createNewFile()) {
+                return false;
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "RecordingStorage.setPinned()");
+            return false;
+        }
+        if (!pinned && marker.exists() && !marker.delete()) {
+            return false;
+        }
+        recording.mPinned = pinned;
+        return true;
+    }
+
+    /**
+     * @return the recordings, oldest first.
+     */
+    @NonNull
+    public synchronized List<Recording> getRecordings() {
+        scanIfNeeded();
+        return new ArrayList<>(mRecordings.values());
+    }
+
+    public synchronized long getTotalBytes() {
+        scanIfNeeded();
+        return mTotalBytes;
+    }
+
+    private boolean isManaged(@NonNull File file) {
+        return mDirectory.equals(file.getParentFile()) && file.getName().endsWith(SUFFIX);
+    }
+
+    private void scanIfNeeded() {
+        if (mScanned) {
+            return;
+        }
+        mScanned = true;
+        File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        List<Recording> recordings = new ArrayList<>(files.length);
+        for (File file : files) {
+            long size = file.length() + new File(file.getPath() + FrameMetadataWriter.SUFFIX).length();
+            boolean pinned = new File(file.getPath() + PIN_SUFFIX).exists();
+            recordings.add(new Recording(file, parseStartTime(file), size, pinned));
+        }
+        recordings.sort(Comparator.comparingLong(recording -> recording.startTime));
+        for (Recording recording : recordings) {
+            mRecordings.put(recording.file.getPath(), recording);
+            mTotalBytes += recording.mSize;
+        }
+        Timber.d("%d recordings of %d bytes in %s.", mRecordings.size(), mTotalBytes, mDirectory);
+    }
+
+    /**
+     * The files are named after the time they are started, {@code <millis>-video.mp4}.
+     */
+    private static long parseStartTime(@NonNull File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException exception) {
+            return file.lastModified();
+        }
+    }
+
+    private boolean evictOldest() {
+        for (Recording recording : mRecordings.values()) {
+            if (!recording.mPinned && !recording.mActive) {
+                Timber.d("evicting %s.", recording);
+                remove(recording, true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(@Nullable Recording recording, boolean delete) {
+        if (recording == null) {
+            return;
+        }
+        mRecordings.remove(recording.file.getPath());
+        mTotalBytes -= recording.mSize;
+        if (delete) {
+            deleteIfExists(recording.file);
+            deleteIfExists(new File(recording.file.getPath() + FrameMetadataWriter.SUFFIX));
+            deleteIfExists(new File(recording.file.getPath() + PIN_SUFFIX));
+            deleteIfExists(new File(recording.file.getPath() + RecordingRecovery.SUFFIX));
+            deleteIfExists(RecordingManifest.manifestFile(recording.file));
+            deleteIfExists(KeyframeIndex.indexFile(recording.file));
+        }
+    }
+
+    private static void deleteIfExists(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("%s can't be deleted.", file);
+        }
+    }
+
+    public static class Builder {
+
+        /**
+         * 录像所在的目录。
+         */
+        private File directory;
+
+        /**
+         * 录像总大小的上限。
+         */
+        private long maxBytes = Long.MAX_VALUE;
+
+        /**
+         * 录像数量的上限。
+         */
+        private int maxCount = Integer.MAX_VALUE;
+
+        /**
+         * 开始录像前，磁盘至少要保留的剩余空间。
+         */
+        private long minFreeBytes;
+
+        private FreeSpace freeSpace = File::getUsableSpace;
+
+        public Builder directory(@NonNull File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder maxCount(int maxCount) {
+            this.maxCount = maxCount;
+            return this;
+        }
+
+        public Builder minFreeBytes(long minFreeBytes) {
+            this.minFreeBytes = minFreeBytes;
+            return this;
+        }
+
+        Builder freeSpace(@NonNull FreeSpace freeSpace) {
+            this.freeSpace = freeSpace;
+            return this;
+        }
+
+        public RecordingStorage build() {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory is required");
+            }
+            return new RecordingStorage(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package me.ztiany.capturer;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A part of the scene to record, normalized to [0, 1] of the sensor's active array in the sensor's own orientation.
+ * The ISP crops to it through {@code SCALER_CROP_REGION} before scaling, so the pixels on target are kept at a lower
+ * output resolution.
+ */
+public final class RegionOfInterest implements Parcelable {
+
+    public final float left;
+    public final float top;
+    public final float right;
+    public final float bottom;
+
+    public RegionOfInterest(float left, float top, float right, float bottom) {
+        if (!(0 <= left && left < right && right <= 1 && 0 <= top && top < bottom && bottom <= 1)) {
+            throw new IllegalArgumentException("invalid region: [" + left + ", " + top + ", " + right + ", " + bottom + "]");
+        }
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    protected RegionOfInterest(Parcel in) {
+        this(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+    }
+
+    /**
+     * Computes the crop region in active array coordinates. The crop is grown around the region's center to the
+     * largest digital zoom the camera allows and kept inside the array; a camera that only crops around the center gets
+     * the centered crop that covers the region.
+     *
+     * @return left, top, right and bottom, the whole array if the camera can't crop.
+     */
+    @NonNull
+    public int[] toCropRegion(@NonNull CameraCapabilities capabilities) {
+        int arrayWidth = capabilities.activeArrayWidth;
+        int arrayHeight = capabilities.activeArrayHeight;
+        if (arrayWidth <= 0 || arrayHeight <= 0 || capabilities.maxDigitalZoom <= 1) {
+            return new int[]{0, 0, arrayWidth, arrayHeight};
+        }
+
+        float centerX = (left + right) / 2 * arrayWidth;
+        float centerY = (top + bottom) / 2 * arrayHeight;
+        float width = (right - left) * arrayWidth;
+        float height = (bottom - top) * arrayHeight;
+        if (capabilities.centerOnlyCropping) {
+            width = 2 * Math.max(arrayWidth / 2f - left * arrayWidth, right * arrayWidth - arrayWidth / 2f);
+            height = 2 * Math.max(arrayHeight / 2f - top * arrayHeight, bottom * arrayHeight - arrayHeight / 2f);
+            centerX = arrayWidth / 2f;
+            centerY = arrayHeight / 2f;
+        }
+
+        int cropWidth = Math.round(clamp(width, arrayWidth / capabilities.maxDigitalZoom, arrayWidth));
+        int cropHeight = Math.round(clamp(height, arrayHeight / capabilities.maxDigitalZoom, arrayHeight));
+        int cropLeft = Math.round(clamp(centerX - cropWidth / 2f, 0, arrayWidth - cropWidth));
+        int cropTop = Math.round(clamp(centerY - cropHeight / 2f, 0, arrayHeight - cropHeight));
+        return new int[]{cropLeft, cropTop, cropLeft + cropWidth, cropTop + cropHeight};
+    }
+
+    /**
+     * Scales the crop down to fit in the requested recording area, never up, keeping the crop's aspect ratio so the
+     * ISP has nothing more to crop.
+     *
+     * @return width and height.
+     */
+    @NonNull
+    static int[] fitRecordingSize(int cropWidth, int cropHeight, int maxWidth, int maxHeight) {
+        double scale = Math.min(1, Math.sqrt((double) maxWidth * maxHeight / ((double) cropWidth * cropHeight)));
+        return new int[]{(int) Math.round(cropWidth * scale), (int) Math.round(cropHeight * scale)};
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public static final Creator<RegionOfInterest> CREATOR = new Creator<>() {
+        @Override
+        public RegionOfInterest createFromParcel(Parcel in) {
+            return new RegionOfInterest(in);
+        }
+
+        @Override
+        public RegionOfInterest[] newArray(int size) {
+            return new RegionOfInterest[size];
+        }
+    };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeFloat(left);
+        dest.writeFloat(top);
+        dest.writeFloat(right);
+        dest.writeFloat(bottom);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "RegionOfInterest{[" + left + ", " + top + ", " + right + ", " + bottom + "]}";
+    }
+
+}
@@ -0,0 +1,242 @@
+package me.ztiany.capturer;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.core.os.BundleCompat;
+
+import java.nio.ByteBuffer;
+
+import timber.log.Timber;
+
+/**
+ * Receives the frames of a {@link FrameExporter} in another process. The slots are mapped read-only and every published
+ * frame is copied out of its slot on a thread of the client's own, a frame whose slot has been reused before it is
+ * copied is dropped and counted.
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+public final class SharedFrameClient {
+
+    public interface FrameCallback {
+
+        /**
+         * Called on the client's thread.
+         *
+         * @param frame   reused for the next frame.
+         * @param payload the Y, U and V planes back to back, only valid during the call.
+         */
+        void onFrame(@NonNull SharedFrameRing.Frame frame, @NonNull ByteBuffer payload);
+
+    }
+
+    private final Context mContext;
+
+    private final ComponentName mService;
+
+    private final FrameCallback mFrameCallback;
+
+    private final HandlerThread mThread = new HandlerThread("SharedFrameClient");
+
+    private Messenger mMessenger;
+
+    @Nullable
+    private Messenger mExporter;
+
+    private boolean mBound;
+
+    /**
+     * The fields below are only accessed on {@link #mThread}.
+     */
+    @Nullable
+    private SharedMemory[] mMemories;
+
+    @Nullable
+    private ByteBuffer[] mMappings;
+
+    @Nullable
+    private SharedFrameRing mRing;
+
+    @Nullable
+    private ByteBuffer mPayload;
+
+    private final SharedFrameRing.Frame mFrame = new SharedFrameRing.Frame();
+
+    private volatile long mReceivedFrames;
+
+    private volatile long mDroppedFrames;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mExporter = new Messenger(service);
+            sendToExporter(FrameExporter.MSG_REGISTER_CLIENT);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mExporter = null;
+        }
+
+    };
+
+    /**
+     * @param service the service that exports the frames, {@link FrameExportService} of the capturer app.
+     */
+    public SharedFrameClient(@NonNull Context context, @NonNull ComponentName service, @NonNull FrameCallback frameCallback) {
+        mContext = context;
+        mService = service;
+        mFrameCallback = frameCallback;
+    }
+
+    /**
+     * Binds to the exporter, the frames come once the camera streams them.
+     */
+    public boolean connect() {
+        if (mBound) {
+            return true;
+        }
+        if (mMessenger == null) {
+            mThread.start();
+            mMessenger = new Messenger(new Handler(mThread.getLooper(), this::dealWithMessage));
+        }
+        mBound = mContext.bindService(
+                new Intent(FrameExporter.ACTION_BIND_FRAMES).setComponent(mService),
+                mServiceConnection,
+                Context.BIND_AUTO_CREATE
+        );
+        return mBound;
+    }
+
+    /**
+     * Unbinds and unmaps the slots, the client can't be connected again.
+     */
+    public void disconnect() {
+        if (mBound) {
+            sendToExporter(FrameExporter.MSG_UNREGISTER_CLIENT);
+            mContext.unbindService(mServiceConnection);
+            mBound = false;
+            mExporter = null;
+        }
+        if (mMessenger != null) {
+            new Handler(mThread.getLooper()).post(() -> {
+                unmap();
+                mThread.quit();
+            });
+        }
+    }
+
+    public long getReceivedFrames() {
+        return mReceivedFrames;
+    }
+
+    /**
+     * The frames that were overwritten before they could be copied.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void sendToExporter(int what) {
+        Messenger exporter = mExporter;
+        if (exporter == null) {
+            return;
+        }
+        Message message = Message.obtain(null, what);
+        message.replyTo = mMessenger;
+        try {
+            exporter.send(message);
+        } catch (RemoteException exception) {
+            Timber.w(exception, "the frame exporter is gone.");
+        }
+    }
+
+    private boolean dealWithMessage(Message message) {
+        if (message.what == FrameExporter.MSG_FRAME_RING) {
+            Bundle data = message.getData();
+            data.setClassLoader(SharedMemory.class.getClassLoader());
+            Parcelable[] slots = BundleCompat.getParcelableArray(data, FrameExporter.KEY_FOR_SLOTS, SharedMemory.class);
+            if (slots != null) {
+                map(slots);
+            }
+            return true;
+        }
+        if (message.what == FrameExporter.MSG_FRAME) {
+            SharedFrameRing ring = mRing;
+            ByteBuffer payload = mPayload;
+            if (ring == null || payload == null) {
+                return true;
+            }
+            long sequence = message.getData().getLong(FrameExporter.KEY_FOR_SEQUENCE);
+            payload.clear();
+            if (ring.read(message.arg1, sequence, mFrame, payload)) {
+                mReceivedFrames++;
+                mFrameCallback.onFrame(mFrame, payload);
+            } else {
+                mDroppedFrames++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void map(Parcelable[] slots) {
+        unmap();
+        SharedMemory[] memories = new SharedMemory[slots.length];
+        ByteBuffer[] mappings = new ByteBuffer[slots.length];
+        try {
+            for (int i = 0; i < slots.length; i++) {
+                memories[i] = (SharedMemory) slots[i];
+                mappings[i] = memories[i].mapReadOnly();
+            }
+        } catch (ErrnoException | RuntimeException exception) {
+            Timber.e(exception, "SharedFrameClient.map()");
+            mMemories = memories;
+            mMappings = mappings;
+            unmap();
+            return;
+        }
+        mMemories = memories;
+        mMappings = mappings;
+        mRing = new SharedFrameRing(mappings);
+        mPayload = ByteBuffer.allocateDirect(mRing.getPayloadCapacity());
+    }
+
+    private void unmap() {
+        mRing = null;
+        mPayload = null;
+        if (mMappings != null) {
+            for (ByteBuffer mapping : mMappings) {
+                if (mapping != null) {
+                    SharedMemory.unmap(mapping);
+                }
+            }
+            mMappings = null;
+        }
+        if (mMemories != null) {
+            for (SharedMemory memory : mMemories) {
+                if (memory != null) {
+                    memory.close();
+                }
+            }
+            mMemories = null;
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A ring of frame slots in memory shared between a writer and readers in other processes. The writer never waits for
+ * the readers: the slots are reused in turn, and every slot starts with a sequence word that is odd while the slot is
+ * being written, so a reader checks it before and after copying a frame and drops the frame if the slot was reused in
+ * between.
+ *
+ * <p>
+ * A slot is a {@link #HEADER_SIZE} byte header followed by the Y, U and V planes as the camera delivers them, see
+ * {@link Frame} for the fields. Frame {@code n} (from 1) goes to slot {@code (n - 1) % slots}, whose sequence word is
+ * {@code 2n - 1} while it is written and {@code 2n} once it is published.
+ * </p>
+ */
+public final class SharedFrameRing {
+
+    static final int HEADER_SIZE = 64;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_TIMESTAMP = 8;
+    private static final int OFFSET_WIDTH = 16;
+    private static final int OFFSET_HEIGHT = 20;
+    private static final int OFFSET_FORMAT = 24;
+    private static final int OFFSET_Y_ROW_STRIDE = 28;
+    private static final int OFFSET_UV_ROW_STRIDE = 32;
+    private static final int OFFSET_UV_PIXEL_STRIDE = 36;
+    private static final int OFFSET_Y_LENGTH = 40;
+    private static final int OFFSET_U_LENGTH = 44;
+    private static final int OFFSET_V_LENGTH = 48;
+
+    /**
+     * Written and read around every access to a sequence word, see {@link #fullFence()}.
+     */
+    private static volatile int sFence;
+
+    private final ByteBuffer[] mSlots;
+
+    private final int mSlotSize;
+
+    private long mLastSequence;
+
+    /**
+     * @param slots the mappings of the slots, all of the same size; this ring's own views of them are used, so the
+     *              positions of the buffers are not touched.
+     */
+    public SharedFrameRing(@NonNull ByteBuffer[] slots) {
+        if (slots.length == 0) {
+            throw new IllegalArgumentException("no slots");
+        }
+        mSlots = new ByteBuffer[slots.length];
+        mSlotSize = slots[0].capacity();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i].capacity() != mSlotSize || mSlotSize <= HEADER_SIZE) {
+                throw new IllegalArgumentException("slot " + i + " has " + slots[i].capacity() + " bytes");
+            }
+            mSlots[i] = slots[i].duplicate().order(BYTE_ORDER);
+        }
+    }
+
+    /**
+     * @return the size of a slot that holds a frame with the planes.
+     */
+    public static int slotSize(int yLength, int uLength, int vLength) {
+        return HEADER_SIZE + yLength + uLength + vLength;
+    }
+
+    public int getSlotCount() {
+        return mSlots.length;
+    }
+
+    public int getPayloadCapacity() {
+        return mSlotSize - HEADER_SIZE;
+    }
+
+    /**
+     * Writes the next frame, called by the only writer.
+     *
+     * @param frame the description of the frame; its {@link Frame#sequence}, {@link Frame#slot} and plane lengths are
+     *              set here.
+     * @return false if the planes don't fit in a slot.
+     */
+    public boolean write(@NonNull Frame frame, @NonNull ByteBuffer y, @NonNull ByteBuffer u, @NonNull ByteBuffer v) {
+        int yLength = y.remaining();
+        int uLength = u.remaining();
+        int vLength = v.remaining();
+        if (HEADER_SIZE + (long) yLength + uLength + vLength > mSlotSize) {
+            return false;
+        }
+
+        long sequence = mLastSequence + 1;
+        int slot = (int) ((sequence - 1) % mSlots.length);
+        ByteBuffer buffer = mSlots[slot];
+
+        buffer.putLong(OFFSET_SEQUENCE, 2 * sequence - 1);
+        fullFence();
+
+        buffer.putLong(OFFSET_TIMESTAMP, frame.timestamp);
+        buffer.putInt(OFFSET_WIDTH, frame.width);
+        buffer.putInt(OFFSET_HEIGHT, frame.height);
+        buffer.putInt(OFFSET_FORMAT, frame.format);
+        buffer.putInt(OFFSET_Y_ROW_STRIDE, frame.yRowStride);
+        buffer.putInt(OFFSET_UV_ROW_STRIDE, frame.uvRowStride);
+        buffer.putInt(OFFSET_UV_PIXEL_STRIDE, frame.uvPixelStride);
+        buffer.putInt(OFFSET_Y_LENGTH, yLength);
+        buffer.putInt(OFFSET_U_LENGTH, uLength);
+        buffer.putInt(OFFSET_V_LENGTH, vLength);
+        buffer.position(HEADER_SIZE);
+        buffer.put(y.duplicate()).put(u.duplicate()).put(v.duplicate());
+
+        fullFence();
+        buffer.putLong(OFFSET_SEQUENCE, 2 * sequence);
+
+        mLastSequence = sequence;
+        frame.sequence = sequence;
+        frame.slot = slot;
+        frame.yLength = yLength;
+        frame.uLength = uLength;
+        frame.vLength = vLength;
+        return true;
+    }
+
+    /**
+     * Copies a published frame, lock-free, from any thread or process.
+     *
+     * @param slot     the slot the frame was published in.
+     * @param sequence the sequence the frame was published with.
+     * @param frame    takes the description of the frame.
+     * @param payload  takes the planes, from its position on; flipped on success.
+     * @return false if the slot has been reused since, the frame is then lost.
+     */
+    public boolean read(int slot, long sequence, @NonNull Frame frame, @NonNull ByteBuffer payload) {
+        if (slot < 0 || slot >= mSlots.length) {
+            return false;
+        }
+        // a view of its own, readers may copy on several threads.
+        ByteBuffer buffer = mSlots[slot].duplicate().order(BYTE_ORDER);
+        long expected = 2 * sequence;
+        if (buffer.getLong(OFFSET_SEQUENCE) != expected) {
+            return false;
+        }
+        fullFence();
+
+        frame.sequence = sequence;
+        frame.slot = slot;
+        frame.timestamp = buffer.getLong(OFFSET_TIMESTAMP);
+        frame.width = buffer.getInt(OFFSET_WIDTH);
+        frame.height = buffer.getInt(OFFSET_HEIGHT);
+        frame.format = buffer.getInt(OFFSET_FORMAT);
+        frame.yRowStride = buffer.getInt(OFFSET_Y_ROW_STRIDE);
+        frame.uvRowStride = buffer.getInt(OFFSET_UV_ROW_STRIDE);
+        frame.uvPixelStride = buffer.getInt(OFFSET_UV_PIXEL_STRIDE);
+        frame.yLength = buffer.getInt(OFFSET_Y_LENGTH);
+        frame.uLength = buffer.getInt(OFFSET_U_LENGTH);
+        frame.vLength = buffer.getInt(OFFSET_V_LENGTH);
+        long length = (long) frame.yLength + frame.uLength + frame.vLength;
+        if (frame.yLength < 0 || frame.uLength < 0 || frame.vLength < 0
+                || length > mSlotSize - HEADER_SIZE || length > payload.remaining()) {
+            // torn lengths, or the caller's buffer is too small.
+            return false;
+        }
+        int start = payload.position();
+        buffer.limit(HEADER_SIZE + (int) length).position(HEADER_SIZE);
+        payload.put(buffer);
+
+        fullFence();
+        if (buffer.getLong(OFFSET_SEQUENCE) != expected) {
+            payload.position(start);
+            return false;
+        }
+        payload.limit(payload.position()).position(start);
+        return true;
+    }
+
+    /**
+     * Keeps the accesses to a sequence word and to the frame in order, on both sides. A volatile store followed by a
+     * volatile load is a full barrier on ART and on the JVM; {@code VarHandle.fullFence()} needs API 33.
+     */
+    @SuppressWarnings("UnusedReturnValue")
+    private static int fullFence() {
+        sFence = 0;
+        return sFence;
+    }
+
+    /**
+     * The description of a frame in a slot. The U and V planes are laid out as {@code YUV_420_888} delivers them, with
+     * their own strides.
+     */
+    public static final class Frame {
+
+        public long sequence;
+        public int slot;
+        /**
+         * The sensor timestamp in nanoseconds.
+         */
+        public long timestamp;
+        public int width;
+        public int height;
+        /**
+         * {@code ImageFormat}.
+         */
+        public int format;
+        public int yRowStride;
+        public int uvRowStride;
+        public int uvPixelStride;
+        public int yLength;
+        public int uLength;
+        public int vLength;
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Frame{" +
+                    "sequence=" + sequence +
+                    ", slot=" + slot +
+                    ", timestamp=" + timestamp +
+                    ", " + width + "x" + height +
+                    ", format=" + format +
+                    '}';
+        }
+
+    }
+
+}
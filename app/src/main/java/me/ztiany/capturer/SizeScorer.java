@@ -0,0 +1,246 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Scores output sizes by how well they fit a target, rejecting the ones that can't sustain the frame rate. Pure
+ * functions over primitive values, so it is cheap enough to run on every open and can be tested on the JVM.
+ *
+ * <p>
+ * A request's frame duration is the largest minimum frame duration of all its outputs plus the largest stall duration,
+ * so the candidate is checked together with the outputs configured alongside it.
+ * </p>
+ */
+public final class SizeScorer {
+
+    /**
+     * The score of a size that can't be used.
+     */
+    public static final double REJECTED = Double.NEGATIVE_INFINITY;
+
+    /**
+     * HALs report 33333333ns for 30fps while 1s / 30 is 33333333.3ns, allow a little rounding.
+     */
+    private static final long FRAME_DURATION_TOLERANCE = 100_000L;
+
+    /**
+     * An aspect ratio mismatch costs more than a size mismatch, a stretched picture is worse than a smaller one.
+     */
+    private static final double ASPECT_RATIO_WEIGHT = 4;
+
+    private static final double AREA_WEIGHT = 1;
+
+    private SizeScorer() {
+    }
+
+    /**
+     * Limits of the video encoder.
+     */
+    public interface EncoderLimit {
+
+        boolean isSupported(int width, int height, int frameRate);
+
+    }
+
+    /**
+     * @return the score of the size, higher is better, {@link #REJECTED} if the size can't be used.
+     */
+    public static double score(int width, int height, long minFrameDuration, long stallDuration, @NonNull Constraints constraints) {
+        if (width <= 0 || height <= 0) {
+            return REJECTED;
+        }
+        if (constraints.maxWidth > 0 && constraints.maxHeight > 0
+                && (Math.max(width, height) > Math.max(constraints.maxWidth, constraints.maxHeight)
+                || Math.min(width, height) > Math.min(constraints.maxWidth, constraints.maxHeight))) {
+            return REJECTED;
+        }
+        if (constraints.frameRate > 0) {
+            long frameDuration = Math.max(minFrameDuration, constraints.concurrentMinFrameDuration)
+                    + Math.max(stallDuration, constraints.concurrentStallDuration);
+            if (frameDuration > 1_000_000_000L / constraints.frameRate + FRAME_DURATION_TOLERANCE) {
+                return REJECTED;
+            }
+        }
+        if (constraints.encoderLimit != null && !constraints.encoderLimit.isSupported(width, height, Math.max(constraints.frameRate, 1))) {
+            return REJECTED;
+        }
+
+        double penalty = 0;
+        if (constraints.aspectRatio > 0) {
+            penalty += ASPECT_RATIO_WEIGHT * Math.abs(Math.log(normalizedRatio(width, height) / constraints.aspectRatio));
+        }
+        if (constraints.targetArea > 0) {
+            penalty += AREA_WEIGHT * Math.abs(Math.log((double) width * height / constraints.targetArea));
+        }
+        return -penalty;
+    }
+
+    /**
+     * @return the index of the best size in the configurations, -1 if every size is rejected. On a tie the larger size
+     * wins.
+     */
+    public static int selectBest(@NonNull CameraCapabilities.StreamConfigurations configurations, @NonNull Constraints constraints) {
+        int best = -1;
+        double bestScore = REJECTED;
+        // configurations are sorted by area in descending order, so ">" keeps the larger one on a tie.
+        for (int i = 0; i < configurations.size(); i++) {
+            double score = score(
+                    configurations.getWidth(i),
+                    configurations.getHeight(i),
+                    configurations.getMinFrameDuration(i),
+                    configurations.getStallDuration(i),
+                    constraints
+            );
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Selects a constrained high-speed configuration. Recording requires a fixed fps range, so only [fps, fps] ranges
+     * of the constraint's frame rate are candidates, the sizes are scored as {@link #score} does.
+     *
+     * @return the index of the best high-speed configuration in the capabilities, -1 if none fits. On a tie the larger
+     * size wins.
+     */
+    public static int selectHighSpeed(@NonNull CameraCapabilities capabilities, @NonNull Constraints constraints) {
+        int best = -1;
+        double bestScore = REJECTED;
+        long bestArea = 0;
+        for (int i = 0; i < capabilities.getHighSpeedConfigurationCount(); i++) {
+            if (capabilities.getHighSpeedFpsLower(i) != constraints.frameRate
+                    || capabilities.getHighSpeedFpsUpper(i) != constraints.frameRate) {
+                continue;
+            }
+            int width = capabilities.getHighSpeedWidth(i);
+            int height = capabilities.getHighSpeedHeight(i);
+            // the high-speed sizes sustain their fps ranges by definition, no duration to check.
+            double score = score(width, height, 0, 0, constraints);
+            long area = (long) width * height;
+            if (score > bestScore || (score == bestScore && score != REJECTED && area > bestArea)) {
+                bestScore = score;
+                bestArea = area;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return long side / short side, so portrait and landscape sizes compare equally.
+     */
+    private static double normalizedRatio(int width, int height) {
+        return (double) Math.max(width, height) / Math.min(width, height);
+    }
+
+    public static final class Constraints {
+
+        private final double aspectRatio;
+        private final double targetArea;
+        private final int frameRate;
+        private final long concurrentMinFrameDuration;
+        private final long concurrentStallDuration;
+        private final int maxWidth;
+        private final int maxHeight;
+        @Nullable
+        private final EncoderLimit encoderLimit;
+
+        private Constraints(Builder builder) {
+            if (builder.aspectWidth > 0 && builder.aspectHeight > 0) {
+                aspectRatio = normalizedRatio(builder.aspectWidth, builder.aspectHeight);
+            } else if (builder.targetWidth > 0 && builder.targetHeight > 0) {
+                aspectRatio = normalizedRatio(builder.targetWidth, builder.targetHeight);
+            } else {
+                aspectRatio = 0;
+            }
+            targetArea = (double) builder.targetWidth * builder.targetHeight;
+            frameRate = builder.frameRate;
+            concurrentMinFrameDuration = builder.concurrentMinFrameDuration;
+            concurrentStallDuration = builder.concurrentStallDuration;
+            maxWidth = builder.maxWidth;
+            maxHeight = builder.maxHeight;
+            encoderLimit = builder.encoderLimit;
+        }
+
+        public static Builder newBuilder() {
+            return new Builder();
+        }
+
+        public static class Builder {
+
+            private int targetWidth;
+            private int targetHeight;
+            private int aspectWidth;
+            private int aspectHeight;
+            private int frameRate;
+            private long concurrentMinFrameDuration;
+            private long concurrentStallDuration;
+            private int maxWidth;
+            private int maxHeight;
+            private EncoderLimit encoderLimit;
+
+            private Builder() {
+            }
+
+            /**
+             * The size to get close to, also the aspect ratio if {@link #aspectRatio(int, int)} is not set.
+             */
+            public Builder targetSize(int width, int height) {
+                this.targetWidth = width;
+                this.targetHeight = height;
+                return this;
+            }
+
+            public Builder aspectRatio(int width, int height) {
+                this.aspectWidth = width;
+                this.aspectHeight = height;
+                return this;
+            }
+
+            /**
+             * The frame rate that must be sustained, 0 means no requirement.
+             */
+            public Builder frameRate(int frameRate) {
+                this.frameRate = frameRate;
+                return this;
+            }
+
+            /**
+             * Adds an output that is configured in the same request as the candidate.
+             */
+            public Builder concurrentOutput(long minFrameDuration, long stallDuration) {
+                this.concurrentMinFrameDuration = Math.max(this.concurrentMinFrameDuration, minFrameDuration);
+                this.concurrentStallDuration = Math.max(this.concurrentStallDuration, stallDuration);
+                return this;
+            }
+
+            /**
+             * The largest size allowed, compared regardless of orientation.
+             */
+            public Builder maxSize(int width, int height) {
+                this.maxWidth = width;
+                this.maxHeight = height;
+                return this;
+            }
+
+            public Builder encoderLimit(EncoderLimit encoderLimit) {
+                this.encoderLimit = encoderLimit;
+                return this;
+            }
+
+            public Constraints build() {
+                if (frameRate < 0) {
+                    throw new IllegalArgumentException("frameRate must not be negative.");
+                }
+                return new Constraints(this);
+            }
+
+        }
+
+    }
+
+}
@@ -10,4 +10,16 @@ public interface SizeSelector {
 
     @NonNull
     Size getBestSupportedSize(@NonNull List<Size> sizes);
+
+    /**
+     * Selects a size of the output with the capabilities of the camera, selectors that need frame durations override
+     * this.
+     *
+     * @param output one of {@code CameraCapabilities.OUTPUT_XXX}.
+     */
+    @NonNull
+    default Size getBestSupportedSize(@NonNull CameraCapabilities capabilities, int output) {
+        return getBestSupportedSize(capabilities.getOutputSizes(output));
+    }
+
 }
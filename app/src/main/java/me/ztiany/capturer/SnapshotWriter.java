@@ -0,0 +1,312 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Writes JPEG snapshots to a directory on a few I/O threads. The bytes are copied out of the camera's image into one of
+ * a fixed set of buffers on the caller's thread, so the image goes back to the camera at once, and a snapshot that
+ * finds no free buffer is dropped rather than making the camera wait for the disk.
+ *
+ * <p>
+ * A snapshot is written to a temporary file, synced, then renamed, so a snapshot in the directory is always complete.
+ * Only the newest {@link Builder#maxCount} snapshots are kept, the directory is listed once and the index is kept up
+ * to date after that.
+ * </p>
+ */
+public final class SnapshotWriter implements Closeable {
+
+    public static final String SUFFIX = ".jpg";
+
+    private static final String TEMP_SUFFIX = ".writing";
+
+    /**
+     * A written snapshot.
+     */
+    public static final class Snapshot {
+
+        @NonNull
+        public final File file;
+
+        public final int bytes;
+
+        /**
+         * From the shot, as given to {@link #write}, to the bytes being on disk.
+         */
+        public final long latencyNs;
+
+        Snapshot(@NonNull File file, int bytes, long latencyNs) {
+            this.file = file;
+            this.bytes = bytes;
+            this.latencyNs = latencyNs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "file=" + file.getName() +
+                    ", bytes=" + bytes +
+                    ", latencyMs=" + latencyNs / 1_000_000f +
+                    '}';
+        }
+
+    }
+
+    private final File mDirectory;
+
+    private final int mMaxCount;
+
+    private final BlockingQueue<ByteBuffer> mFree;
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * Oldest first, only accessed with the lock of this.
+     */
+    private final Deque<File> mSnapshots = new ArrayDeque<>();
+
+    private boolean mScanned;
+
+    private final AtomicInteger mDropped = new AtomicInteger();
+
+    private SnapshotWriter(Builder builder) {
+        mDirectory = builder.directory;
+        mMaxCount = builder.maxCount;
+        mFree = new ArrayBlockingQueue<>(builder.bufferCount);
+        for (int i = 0; i < builder.bufferCount; i++) {
+            mFree.add(ByteBuffer.allocateDirect(builder.bufferSize));
+        }
+        if (builder.executor != null) {
+            mExecutor = builder.executor;
+        } else {
+            // never more tasks than buffers, the queue can't overflow.
+            AtomicInteger threadCount = new AtomicInteger();
+            mExecutor = new ThreadPoolExecutor(builder.threads, builder.threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(builder.bufferCount),
+                    runnable -> new Thread(runnable, "SnapshotWriter-" + threadCount.incrementAndGet()));
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the snapshots dropped because all the buffers were waiting for the disk.
+     */
+    public int getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Copies the JPEG and writes it on an I/O thread, never waits for the disk.
+     *
+     * @param jpeg      from its position to its limit, which are left as they are, it can be released once this
+     *                  returns.
+     * @param shotNanos {@code System.nanoTime()} when the snapshot was taken, the latency is counted from it.
+     * @param name      the file name, without {@link #SUFFIX}.
+     * @return completes once the snapshot is on disk, exceptionally with a {@link RejectedExecutionException} if it
+     * is dropped.
+     */
+    @NonNull
+    public CompletableFuture<Snapshot> write(@NonNull ByteBuffer jpeg, long shotNanos, @NonNull String name) {
+        CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        ByteBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            mDropped.incrementAndGet();
+            Timber.w("snapshot %s is dropped, all the buffers are waiting for the disk.", name);
+            future.completeExceptionally(new RejectedExecutionException("no free buffer for " + name));
+            return future;
+        }
+        if (buffer.capacity() < jpeg.remaining()) {
+            // kept for the following snapshots, they are about the same size.
+            buffer = ByteBuffer.allocateDirect(jpeg.remaining());
+        }
+        buffer.clear();
+        buffer.put(jpeg.duplicate());
+        buffer.flip();
+        ByteBuffer data = buffer;
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    future.complete(writeToDisk(data, shotNanos, name));
+                } catch (IOException | RuntimeException exception) {
+                    Timber.e(exception, "snapshot %s can't be written.", name);
+                    future.completeExceptionally(exception);
+                } finally {
+                    mFree.add(data);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            // closed.
+            mFree.add(data);
+            future.completeExceptionally(exception);
+        }
+        return future;
+    }
+
+    private Snapshot writeToDisk(ByteBuffer data, long shotNanos, String name) throws IOException {
+        File file = new File(mDirectory, name + SUFFIX);
+        File temp = new File(mDirectory, name + SUFFIX + TEMP_SUFFIX);
+        int bytes = data.remaining();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(temp, "rw")) {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        } catch (IOException exception) {
+            deleteIfExists(temp);
+            throw exception;
+        }
+        if (!temp.renameTo(file)) {
+            deleteIfExists(temp);
+            throw new IOException(temp + " can't be renamed to " + file);
+        }
+        Snapshot snapshot = new Snapshot(file, bytes, System.nanoTime() - shotNanos);
+        Timber.d("snapshot %s is on disk %.1f ms after the shot.", file.getName(), snapshot.latencyNs / 1e6);
+        onWritten(file);
+        return snapshot;
+    }
+
+    private synchronized void onWritten(File file) {
+        if (!mScanned) {
+            mScanned = true;
+            File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (files != null) {
+                Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+                for (File existing : files) {
+                    if (!existing.equals(file)) {
+                        mSnapshots.add(existing);
+                    }
+                }
+            }
+        }
+        // a snapshot taken again under the same name replaces the old one.
+        mSnapshots.remove(file);
+        mSnapshots.add(file);
+        while (mSnapshots.size() > mMaxCount) {
+            deleteIfExists(mSnapshots.removeFirst());
+        }
+    }
+
+    private static void deleteIfExists(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("%s can't be deleted.", file);
+        }
+    }
+
+    /**
+     * Waits for the snapshots that are being written.
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                Timber.w("snapshots are still being written.");
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class Builder {
+
+        /**
+         * 快照所在的目录。
+         */
+        private File directory;
+
+        /**
+         * 最多保留的快照数量，超出时删除最旧的。
+         */
+        private int maxCount = Integer.MAX_VALUE;
+
+        /**
+         * 写入磁盘的线程数。
+         */
+        private int threads = 1;
+
+        /**
+         * 缓冲区数量，也是同时等待写入的快照数量的上限。
+         */
+        private int bufferCount = 4;
+
+        /**
+         * 缓冲区的初始大小，放不下的快照会换用更大的缓冲区。
+         */
+        private int bufferSize = 2 * 1024 * 1024;
+
+        private ExecutorService executor;
+
+        public Builder directory(@NonNull File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder maxCount(int maxCount) {
+            this.maxCount = maxCount;
+            return this;
+        }
+
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder bufferCount(int bufferCount) {
+            this.bufferCount = bufferCount;
+            return this;
+        }
+
+        public Builder bufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        Builder executor(@NonNull ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public SnapshotWriter build() {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory is required");
+            }
+            if (maxCount <= 0 || threads <= 0 || bufferCount <= 0 || bufferSize <= 0) {
+                throw new IllegalArgumentException("maxCount, threads, bufferCount and bufferSize must be positive");
+            }
+            return new SnapshotWriter(this);
+        }
+
+    }
+
+}
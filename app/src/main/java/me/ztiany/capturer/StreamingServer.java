@@ -0,0 +1,564 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Serves the encoder's output as an Annex-B elementary stream (H.264 or HEVC, as the encoder produces it) to TCP
+ * clients on the loopback interface, for a companion process or for desktop tools over {@code adb forward}, e.g.
+ * {@code adb forward tcp:27184 tcp:27184 && (echo <token>; cat) | nc 127.0.0.1 27184 | ffplay -f h264 -}.
+ *
+ * <p>
+ * Any app on the device can connect to the loopback interface, so a client has to send the server's
+ * {@link #getToken() token} and a newline first, within {@link #AUTH_TIMEOUT_MS}. The token is random for every
+ * server and is only logged, which the other apps can't read. A client with a wrong token is disconnected, and a client
+ * is not counted nor sent anything before it is authenticated.
+ * </p>
+ *
+ * <p>
+ * An encoded frame is copied once, into a pooled buffer, and that buffer is shared by all the clients. One thread
+ * runs a selector over non-blocking channels and sends every client's pending frames with a gathering write. A new
+ * client gets the codec config first and then starts at the next key frame. Every client has a bounded queue, a client
+ * that can't keep up with it is disconnected rather than slowing the others down or holding the memory.
+ * </p>
+ */
+public final class StreamingServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 27184;
+
+    /**
+     * The same values as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME} and {@code MediaCodec.BUFFER_FLAG_CODEC_CONFIG}, so
+     * the flags of the encoder's output can be passed through.
+     */
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+
+    /**
+     * About two seconds at 30 fps.
+     */
+    static final int DEFAULT_MAX_QUEUED_FRAMES = 60;
+
+    /**
+     * Enough for a P-frame at 1080p, key frames get a larger buffer that is then pooled as well.
+     */
+    static final int POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 32;
+
+    /**
+     * The most frames sent by one gathering write.
+     */
+    private static final int MAX_GATHERED_FRAMES = 16;
+
+    static final long AUTH_TIMEOUT_MS = 5000;
+
+    private static final int TOKEN_BYTES = 16;
+
+    public interface Listener {
+
+        /**
+         * Called on the server's thread when a client connects or is disconnected.
+         */
+        void onClientCountChanged(int count);
+
+        /**
+         * Called on the server's thread when a client waits for a key frame, the encoder may request one instead of
+         * letting the client wait for the next scheduled one.
+         */
+        void onKeyFrameNeeded();
+
+    }
+
+    private final InetSocketAddress mAddress;
+
+    private final int mMaxQueuedFrames;
+
+    private final byte[] mToken;
+
+    private final Queue<Packet> mIncoming = new ConcurrentLinkedQueue<>();
+
+    private final Queue<ByteBuffer> mPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The fields below are only accessed on {@link #mThread}.
+     */
+    private final List<Client> mClients = new ArrayList<>();
+
+    /**
+     * The clients that have not sent the token yet.
+     */
+    private final List<Client> mUnauthenticated = new ArrayList<>();
+
+    @Nullable
+    private Packet mCodecConfig;
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(1024);
+
+    @Nullable
+    private volatile Listener mListener;
+
+    private Selector mSelector;
+
+    private ServerSocketChannel mServerChannel;
+
+    private Thread mThread;
+
+    private volatile boolean mRunning;
+
+    private volatile int mClientCount;
+
+    private volatile long mEvictedClients;
+
+    public StreamingServer() {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT), DEFAULT_MAX_QUEUED_FRAMES, newToken());
+    }
+
+    /**
+     * @param address         the port 0 picks a free one, see {@link #start()}.
+     * @param maxQueuedFrames a client is disconnected when it has that many frames not sent yet.
+     * @param token           what a client has to send first, printable ASCII without a newline.
+     */
+    StreamingServer(@NonNull InetSocketAddress address, int maxQueuedFrames, @NonNull String token) {
+        mAddress = address;
+        mMaxQueuedFrames = maxQueuedFrames;
+        mToken = token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @NonNull
+    private static String newToken() {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : random) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * What a client has to send, followed by a newline, before it is streamed to.
+     */
+    @NonNull
+    public String getToken() {
+        return new String(mToken, StandardCharsets.US_ASCII);
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public synchronized int start() throws IOException {
+        if (mRunning) {
+            return mServerChannel.socket().getLocalPort();
+        }
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        try {
+            mServerChannel.configureBlocking(false);
+            mServerChannel.socket().setReuseAddress(true);
+            mServerChannel.bind(mAddress);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException exception) {
+            mServerChannel.close();
+            mSelector.close();
+            throw exception;
+        }
+        mRunning = true;
+        mThread = new Thread(this::loop, "StreamingServer");
+        mThread.start();
+        int port = mServerChannel.socket().getLocalPort();
+        Timber.i("streaming server listens on %d, token %s.", port, getToken());
+        return port;
+    }
+
+    /**
+     * Queues an encoded frame for all the clients, called on the encoder's thread. The data is copied, so the
+     * encoder's buffer can be released on return.
+     *
+     * @param data  from its position to its limit, which are not changed.
+     * @param flags {@link #FLAG_KEY_FRAME} and {@link #FLAG_CODEC_CONFIG}.
+     * @return false if the frame is not needed, because the server is not running or has no clients.
+     */
+    public boolean offer(@NonNull ByteBuffer data, int flags) {
+        // the codec config is kept for the clients to come.
+        if (!mRunning || (mClientCount == 0 && (flags & FLAG_CODEC_CONFIG) == 0)) {
+            return false;
+        }
+        ByteBuffer buffer = obtainBuffer(data.remaining());
+        buffer.put(data.duplicate()).flip();
+        mIncoming.offer(new Packet(buffer, flags));
+        mSelector.wakeup();
+        return true;
+    }
+
+    public int getClientCount() {
+        return mClientCount;
+    }
+
+    /**
+     * The clients that were disconnected because they fell behind.
+     */
+    public long getEvictedClients() {
+        return mEvictedClients;
+    }
+
+    /**
+     * Disconnects all the clients and waits for the server's thread to end.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            mSelector.wakeup();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        ByteBuffer buffer = mPool.poll();
+        if (buffer == null || buffer.capacity() < size) {
+            // a too small buffer is dropped, so the pool grows towards the size of the key frames.
+            buffer = ByteBuffer.allocateDirect(Math.max(size, POOLED_BUFFER_SIZE));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void recycle(@NonNull Packet packet) {
+        if (--packet.mReferences == 0 && mPool.size() < MAX_POOLED_BUFFERS) {
+            mPool.offer(packet.mBuffer);
+        }
+    }
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select(mUnauthenticated.isEmpty() ? 0 : AUTH_TIMEOUT_MS);
+                dispatchIncoming();
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            if (client.mToken != null) {
+                                authenticate(client);
+                            } else {
+                                read(client);
+                            }
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                    }
+                }
+                disconnectUnauthenticated(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(AUTH_TIMEOUT_MS));
+            }
+        } catch (IOException | RuntimeException exception) {
+            Timber.e(exception, "StreamingServer.loop()");
+            mRunning = false;
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel, mToken.length + 1);
+        client.mKey = channel.register(mSelector, SelectionKey.OP_READ, client);
+        mUnauthenticated.add(client);
+        Timber.d("streaming client %s is connected.", client);
+    }
+
+    private void authenticate(@NonNull Client client) {
+        ByteBuffer received = client.mToken;
+        try {
+            if (client.mChannel.read(received) < 0) {
+                disconnect(client);
+                return;
+            }
+        } catch (IOException exception) {
+            disconnect(client);
+            return;
+        }
+        int end = -1;
+        for (int i = 0; i < received.position(); i++) {
+            if (received.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (!received.hasRemaining()) {
+                Timber.w("streaming client %s sent no token.", client);
+                disconnect(client);
+            }
+            return;
+        }
+        if (!MessageDigest.isEqual(Arrays.copyOf(received.array(), end), mToken)) {
+            Timber.w("streaming client %s sent a wrong token.", client);
+            disconnect(client);
+            return;
+        }
+        client.mToken = null;
+        mUnauthenticated.remove(client);
+        mClients.add(client);
+        Timber.d("streaming client %s is authenticated.", client);
+        notifyClientCountChanged();
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onKeyFrameNeeded();
+        }
+    }
+
+    /**
+     * @param connectedBefore the clients that connected before it, in {@code System.nanoTime()}, are disconnected.
+     */
+    private void disconnectUnauthenticated(long connectedBefore) {
+        for (int i = mUnauthenticated.size() - 1; i >= 0; i--) {
+            Client client = mUnauthenticated.get(i);
+            if (client.mConnectedAt - connectedBefore < 0) {
+                Timber.w("streaming client %s sent no token in time.", client);
+                disconnect(client);
+            }
+        }
+    }
+
+    private void dispatchIncoming() {
+        Packet packet;
+        while ((packet = mIncoming.poll()) != null) {
+            if ((packet.mFlags & FLAG_CODEC_CONFIG) != 0) {
+                if (mCodecConfig != null) {
+                    recycle(mCodecConfig);
+                }
+                // held by the server until the next config.
+                mCodecConfig = packet;
+                packet.mReferences++;
+            }
+            for (int i = mClients.size() - 1; i >= 0; i--) {
+                enqueue(mClients.get(i), packet);
+            }
+            recycle(packet);
+        }
+    }
+
+    private void enqueue(@NonNull Client client, @NonNull Packet packet) {
+        if (!client.mSynced) {
+            if ((packet.mFlags & FLAG_KEY_FRAME) == 0) {
+                return;
+            }
+            client.mSynced = true;
+            if (mCodecConfig != null && mCodecConfig != packet) {
+                client.add(mCodecConfig);
+            }
+        }
+        if (client.mPackets.size() >= mMaxQueuedFrames) {
+            Timber.w("streaming client %s is evicted with %d frames queued.", client, client.mPackets.size());
+            mEvictedClients++;
+            disconnect(client);
+            return;
+        }
+        client.add(packet);
+        flush(client);
+    }
+
+    private void read(@NonNull Client client) {
+        // nothing is expected from the clients, the reads only tell when they are gone.
+        try {
+            mReadBuffer.clear();
+            if (client.mChannel.read(mReadBuffer) < 0) {
+                disconnect(client);
+            }
+        } catch (IOException exception) {
+            disconnect(client);
+        }
+    }
+
+    private void flush(@NonNull Client client) {
+        if (!client.mKey.isValid()) {
+            return;
+        }
+        try {
+            while (!client.mViews.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer view : client.mViews) {
+                    client.mGather[count++] = view;
+                    if (count == MAX_GATHERED_FRAMES) {
+                        break;
+                    }
+                }
+                long written = client.mChannel.write(client.mGather, 0, count);
+                while (!client.mViews.isEmpty() && !client.mViews.peek().hasRemaining()) {
+                    client.mViews.poll();
+                    recycle(client.mPackets.poll());
+                }
+                if (written == 0) {
+                    break;
+                }
+            }
+            client.mKey.interestOps(client.mViews.isEmpty()
+                    ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException exception) {
+            disconnect(client);
+        }
+    }
+
+    private void disconnect(@NonNull Client client) {
+        boolean authenticated = mClients.remove(client);
+        if (!authenticated && !mUnauthenticated.remove(client)) {
+            return;
+        }
+        client.mKey.cancel();
+        try {
+            client.mChannel.close();
+        } catch (IOException exception) {
+            Timber.w(exception, "StreamingServer.disconnect()");
+        }
+        Packet packet;
+        while ((packet = client.mPackets.poll()) != null) {
+            recycle(packet);
+        }
+        client.mViews.clear();
+        Timber.d("streaming client %s is disconnected.", client);
+        if (authenticated) {
+            notifyClientCountChanged();
+        }
+    }
+
+    private void shutdown() {
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            disconnect(mClients.get(i));
+        }
+        for (int i = mUnauthenticated.size() - 1; i >= 0; i--) {
+            disconnect(mUnauthenticated.get(i));
+        }
+        Packet packet;
+        while ((packet = mIncoming.poll()) != null) {
+            recycle(packet);
+        }
+        if (mCodecConfig != null) {
+            recycle(mCodecConfig);
+            mCodecConfig = null;
+        }
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException exception) {
+            Timber.w(exception, "StreamingServer.shutdown()");
+        }
+        Timber.d("streaming server is closed.");
+    }
+
+    private void notifyClientCountChanged() {
+        mClientCount = mClients.size();
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onClientCountChanged(mClientCount);
+        }
+    }
+
+    /**
+     * An encoded frame shared by the clients, counted by the server's thread only.
+     */
+    private static final class Packet {
+
+        final ByteBuffer mBuffer;
+        final int mFlags;
+        /**
+         * The one of the dispatching, one per queue it is in, and one while it is the codec config.
+         */
+        int mReferences = 1;
+
+        Packet(ByteBuffer buffer, int flags) {
+            mBuffer = buffer;
+            mFlags = flags;
+        }
+
+    }
+
+    private static final class Client {
+
+        final SocketChannel mChannel;
+        SelectionKey mKey;
+        /**
+         * The frames not fully sent yet, and each client's own view of them.
+         */
+        final ArrayDeque<Packet> mPackets = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> mViews = new ArrayDeque<>();
+        final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHERED_FRAMES];
+        boolean mSynced;
+        final long mConnectedAt = System.nanoTime();
+        /**
+         * What the client has sent of the token and the newline, null once it is authenticated.
+         */
+        @Nullable
+        ByteBuffer mToken;
+
+        Client(SocketChannel channel, int tokenLength) {
+            mChannel = channel;
+            mToken = ByteBuffer.allocate(tokenLength);
+        }
+
+        void add(@NonNull Packet packet) {
+            packet.mReferences++;
+            mPackets.offer(packet);
+            mViews.offer(packet.mBuffer.duplicate());
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mChannel.socket().getRemoteSocketAddress() + "";
+        }
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package me.ztiany.capturer;
+
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Selects the size closest to the target that can sustain the frame rate, see {@link SizeScorer}.
+ */
+public class ThroughputSizeSelector implements SizeSelector {
+
+    private final Size targetSize;
+
+    private final Size aspectRatio;
+
+    private final Size maxSize;
+
+    private final int frameRate;
+
+    private ThroughputSizeSelector(Builder builder) {
+        Timber.d("ThroughputSizeSelector is constructed with: %s", builder);
+        targetSize = builder.targetSize;
+        aspectRatio = builder.aspectRatio;
+        maxSize = builder.maxSize;
+        frameRate = builder.frameRate;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Without frame durations only the size and the aspect ratio are scored.
+     */
+    @NonNull
+    @Override
+    public Size getBestSupportedSize(@NonNull List<Size> sizes) {
+        SizeScorer.Constraints constraints = newConstraints().frameRate(0).build();
+        Size bestSize = sizes.get(0);
+        double bestScore = SizeScorer.REJECTED;
+        for (Size size : sizes) {
+            double score = SizeScorer.score(size.getWidth(), size.getHeight(), 0, 0, constraints);
+            if (score > bestScore) {
+                bestScore = score;
+                bestSize = size;
+            }
+        }
+        Timber.d("getBestSupportedSize: returning %s", bestSize);
+        return bestSize;
+    }
+
+    @NonNull
+    @Override
+    public Size getBestSupportedSize(@NonNull CameraCapabilities capabilities, int output) {
+        CameraCapabilities.StreamConfigurations configurations = capabilities.getStreamConfigurations(output);
+        int index = SizeScorer.selectBest(configurations, newConstraints().build());
+        if (index < 0) {
+            Timber.w("no size of camera %s sustains %d fps, ignoring the frame rate.", capabilities.cameraId, frameRate);
+            return getBestSupportedSize(capabilities.getOutputSizes(output));
+        }
+        Size bestSize = capabilities.getOutputSizes(output).get(index);
+        Timber.d("getBestSupportedSize: returning %s for camera %s", bestSize, capabilities.cameraId);
+        return bestSize;
+    }
+
+    @NonNull
+    private SizeScorer.Constraints.Builder newConstraints() {
+        SizeScorer.Constraints.Builder builder = SizeScorer.Constraints.newBuilder().frameRate(frameRate);
+        if (targetSize != null) {
+            builder.targetSize(targetSize.getWidth(), targetSize.getHeight());
+        }
+        if (aspectRatio != null) {
+            builder.aspectRatio(aspectRatio.getWidth(), aspectRatio.getHeight());
+        }
+        if (maxSize != null) {
+            builder.maxSize(maxSize.getWidth(), maxSize.getHeight());
+        }
+        return builder;
+    }
+
+    public static class Builder {
+
+        /**
+         * 期望的尺寸，选择最接近的尺寸。
+         */
+        private Size targetSize;
+
+        /**
+         * 期望的宽高比，不设置时使用 targetSize 的宽高比。
+         */
+        private Size aspectRatio;
+
+        /**
+         * 最大分辨率。
+         */
+        private Size maxSize;
+
+        /**
+         * 必须能够维持的帧率。
+         */
+        private int frameRate;
+
+        private Builder() {
+        }
+
+        public Builder targetSize(Size size) {
+            this.targetSize = size;
+            return this;
+        }
+
+        public Builder aspectRatio(Size size) {
+            this.aspectRatio = size;
+            return this;
+        }
+
+        public Builder maxSize(Size size) {
+            this.maxSize = size;
+            return this;
+        }
+
+        public Builder frameRate(int frameRate) {
+            this.frameRate = frameRate;
+            return this;
+        }
+
+        public SizeSelector build() {
+            if (frameRate < 0) {
+                throw new IllegalArgumentException("frameRate must not be negative.");
+            }
+            return new ThroughputSizeSelector(this);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Builder{" +
+                    "targetSize=" + targetSize +
+                    ", aspectRatio=" + aspectRatio +
+                    ", maxSize=" + maxSize +
+                    ", frameRate=" + frameRate +
+                    '}';
+        }
+    }
+
+}
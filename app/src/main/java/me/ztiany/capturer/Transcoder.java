@@ -0,0 +1,27 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Rewrites a recording, e.g. at a lower bit rate, used by {@link CompactionJob}.
+ */
+public interface Transcoder {
+
+    interface Cancellation {
+
+        boolean isCancelled();
+
+    }
+
+    /**
+     * @param output created or replaced, it is left incomplete if the transcoding is cancelled or fails.
+     * @return false if cancelled, checked at least once per frame.
+     */
+    @WorkerThread
+    boolean transcode(@NonNull File input, @NonNull File output, @NonNull Cancellation cancellation) throws IOException;
+
+}
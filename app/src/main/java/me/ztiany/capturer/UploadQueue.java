@@ -0,0 +1,464 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import timber.log.Timber;
+
+/**
+ * Uploads finished files one at a time on its own thread, through an {@link UploadTransport} and a
+ * {@link BandwidthLimiter} shared with anything else that uploads.
+ *
+ * <p>
+ * The queue is kept in a state file, rewritten at once on every change, so it survives the process. A file is sent in
+ * chunks, and every attempt starts from the offset the server reports, so a dropped connection or a restart loses at
+ * most one chunk. A failed attempt is retried after an exponential backoff with jitter, a refused one, a missing file
+ * or too many failures drop the file, see {@link Listener#onFailed}.
+ * </p>
+ */
+public final class UploadQueue {
+
+    private static final int MAGIC = 0x55504C31; // "UPL1"
+
+    public interface Listener {
+
+        @WorkerThread
+        void onUploaded(@NonNull File file, @NonNull String name);
+
+        /**
+         * The file is dropped from the queue.
+         */
+        @WorkerThread
+        void onFailed(@NonNull File file, @NonNull String name, @NonNull IOException exception);
+
+    }
+
+    public static final class Upload {
+
+        @NonNull
+        public final File file;
+
+        /**
+         * What the server knows the upload by.
+         */
+        @NonNull
+        public final String name;
+
+        /**
+         * The bytes the server has confirmed.
+         */
+        long mOffset;
+
+        /**
+         * The failed attempts since the last progress.
+         */
+        int mAttempts;
+
+        /**
+         * {@code System.nanoTime()} before which the upload is not tried again.
+         */
+        long mNotBefore;
+
+        Upload(@NonNull File file, @NonNull String name, long offset, int attempts) {
+            this.file = file;
+            this.name = name;
+            mOffset = offset;
+            mAttempts = attempts;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Upload{" +
+                    "name=" + name +
+                    ", offset=" + mOffset +
+                    ", attempts=" + mAttempts +
+                    '}';
+        }
+
+    }
+
+    private final File mStateFile;
+
+    private final UploadTransport mTransport;
+
+    private final BandwidthLimiter mLimiter;
+
+    private final long mChunkBytes;
+
+    private final long mMinBackoffMs;
+
+    private final long mMaxBackoffMs;
+
+    private final int mMaxAttempts;
+
+    @Nullable
+    private final Listener mListener;
+
+    /**
+     * In the order they are queued, guarded by this.
+     */
+    private final List<Upload> mUploads = new ArrayList<>();
+
+    @Nullable
+    private Thread mThread;
+
+    private volatile boolean mStopped;
+
+    private UploadQueue(Builder builder) {
+        mStateFile = builder.stateFile;
+        mTransport = builder.transport;
+        mLimiter = builder.limiter;
+        mChunkBytes = builder.chunkBytes;
+        mMinBackoffMs = builder.minBackoffMs;
+        mMaxBackoffMs = builder.maxBackoffMs;
+        mMaxAttempts = builder.maxAttempts;
+        mListener = builder.listener;
+        load();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Queues a finished file, a file already queued under the name is left where it is.
+     */
+    public synchronized void enqueue(@NonNull File file, @NonNull String name) {
+        for (Upload upload : mUploads) {
+            if (upload.name.equals(name)) {
+                return;
+            }
+        }
+        mUploads.add(new Upload(file, name, 0, 0));
+        save();
+        notifyAll();
+    }
+
+    /**
+     * @return the uploads not done yet, in the order they are sent.
+     */
+    @NonNull
+    public synchronized List<Upload> getPending() {
+        return new ArrayList<>(mUploads);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mStopped = false;
+        mThread = new Thread(this::loop, "UploadQueue");
+        mThread.start();
+    }
+
+    /**
+     * Stops after the chunk in progress, the queue is picked up where it is by the next {@link #start()}.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mStopped = true;
+            notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        while (!mStopped) {
+            Upload upload;
+            try {
+                upload = takeDue();
+            } catch (InterruptedException exception) {
+                break;
+            }
+            try {
+                send(upload);
+                finish(upload);
+                Timber.d("%s is uploaded.", upload);
+                if (mListener != null) {
+                    mListener.onUploaded(upload.file, upload.name);
+                }
+            } catch (UploadTransport.RejectedException | FileNotFoundException exception) {
+                drop(upload, exception);
+            } catch (IOException exception) {
+                if (mStopped) {
+                    break;
+                }
+                retryLater(upload, exception);
+            } catch (InterruptedException exception) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Waits for the first upload whose backoff is over.
+     */
+    private synchronized Upload takeDue() throws InterruptedException {
+        while (true) {
+            if (mStopped) {
+                throw new InterruptedException();
+            }
+            long now = System.nanoTime();
+            long waitNs = Long.MAX_VALUE;
+            for (Upload upload : mUploads) {
+                long left = upload.mNotBefore - now;
+                if (left <= 0) {
+                    return upload;
+                }
+                waitNs = Math.min(waitNs, left);
+            }
+            if (waitNs == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(waitNs / 1_000_000, (int) (waitNs % 1_000_000));
+            }
+        }
+    }
+
+    private void send(Upload upload) throws IOException, InterruptedException {
+        try (FileChannel channel = new RandomAccessFile(upload.file, "r").getChannel()) {
+            long length = channel.size();
+            long offset = mTransport.getOffset(upload.name, length);
+            if (offset > length) {
+                throw new UploadTransport.RejectedException("the server has " + offset + " of " + length + " bytes");
+            }
+            progress(upload, offset);
+            while (offset < length) {
+                if (mStopped) {
+                    throw new InterruptedException();
+                }
+                long count = Math.min(mChunkBytes, length - offset);
+                long next = mTransport.send(upload.name, channel, offset, count, length, mLimiter);
+                if (next <= offset || next > length) {
+                    throw new IOException("the server went from " + offset + " to " + next);
+                }
+                offset = next;
+                progress(upload, offset);
+            }
+        }
+    }
+
+    private synchronized void progress(Upload upload, long offset) {
+        if (offset > upload.mOffset) {
+            upload.mAttempts = 0;
+        }
+        upload.mOffset = offset;
+        save();
+    }
+
+    private synchronized void finish(Upload upload) {
+        mUploads.remove(upload);
+        save();
+    }
+
+    private void drop(Upload upload, IOException exception) {
+        Timber.w(exception, "%s is dropped.", upload);
+        finish(upload);
+        if (mListener != null) {
+            mListener.onFailed(upload.file, upload.name, exception);
+        }
+    }
+
+    private void retryLater(Upload upload, IOException exception) {
+        long backoffMs;
+        synchronized (this) {
+            upload.mAttempts++;
+            if (upload.mAttempts < mMaxAttempts) {
+                backoffMs = backoffMs(upload.mAttempts);
+                upload.mNotBefore = System.nanoTime() + backoffMs * 1_000_000;
+                save();
+            } else {
+                backoffMs = -1;
+            }
+        }
+        if (backoffMs < 0) {
+            drop(upload, exception);
+        } else {
+            Timber.w(exception, "%s is tried again in %d ms.", upload, backoffMs);
+        }
+    }
+
+    /**
+     * Doubles from the minimum up to the maximum, the second half is random so the clients don't retry in step.
+     */
+    long backoffMs(int attempts) {
+        long backoffMs = mMinBackoffMs << Math.min(attempts - 1, 30);
+        if (backoffMs <= 0 || backoffMs > mMaxBackoffMs) {
+            backoffMs = mMaxBackoffMs;
+        }
+        return backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+    }
+
+    private void load() {
+        if (!mStateFile.exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(mStateFile))) {
+            if (input.readInt() != MAGIC) {
+                Timber.w("%s is not an upload queue.", mStateFile);
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(input.readUTF());
+                String name = input.readUTF();
+                long offset = input.readLong();
+                int attempts = input.readInt();
+                mUploads.add(new Upload(file, name, offset, attempts));
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "UploadQueue.load()");
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void save() {
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                DataOutputStream output = new DataOutputStream(stream);
+                output.writeInt(MAGIC);
+                output.writeInt(mUploads.size());
+                for (Upload upload : mUploads) {
+                    output.writeUTF(upload.file.getPath());
+                    output.writeUTF(upload.name);
+                    output.writeLong(upload.mOffset);
+                    output.writeInt(upload.mAttempts);
+                }
+                output.flush();
+                stream.getFD().sync();
+            }
+            if (!temp.renameTo(mStateFile)) {
+                throw new IOException(temp + " can't replace " + mStateFile);
+            }
+        } catch (IOException exception) {
+            Timber.e(exception, "UploadQueue.save()");
+        }
+    }
+
+    public static class Builder {
+
+        /**
+         * 保存队列的文件。
+         */
+        private File stateFile;
+
+        private UploadTransport transport;
+
+        /**
+         * 全局限速，与其他上传共用同一个实例。
+         */
+        private BandwidthLimiter limiter = new BandwidthLimiter(0);
+
+        /**
+         * 每次请求发送的字节数，失败时最多重传这么多。
+         */
+        private long chunkBytes = 8 * 1024 * 1024;
+
+        /**
+         * 第一次重试前的等待时长，之后每次翻倍。
+         */
+        private long minBackoffMs = 1000;
+
+        /**
+         * 重试等待时长的上限。
+         */
+        private long maxBackoffMs = 5 * 60 * 1000;
+
+        /**
+         * 没有任何进展时连续失败多少次后放弃。
+         */
+        private int maxAttempts = 10;
+
+        @Nullable
+        private Listener listener;
+
+        public Builder stateFile(@NonNull File stateFile) {
+            this.stateFile = stateFile;
+            return this;
+        }
+
+        public Builder transport(@NonNull UploadTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder limiter(@NonNull BandwidthLimiter limiter) {
+            this.limiter = limiter;
+            return this;
+        }
+
+        public Builder chunkBytes(long chunkBytes) {
+            this.chunkBytes = chunkBytes;
+            return this;
+        }
+
+        public Builder minBackoffMs(long minBackoffMs) {
+            this.minBackoffMs = minBackoffMs;
+            return this;
+        }
+
+        public Builder maxBackoffMs(long maxBackoffMs) {
+            this.maxBackoffMs = maxBackoffMs;
+            return this;
+        }
+
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder listener(@Nullable Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public UploadQueue build() {
+            if (stateFile == null || transport == null) {
+                throw new IllegalArgumentException("stateFile and transport are required");
+            }
+            if (chunkBytes <= 0 || minBackoffMs <= 0 || maxBackoffMs < minBackoffMs || maxAttempts <= 0) {
+                throw new IllegalArgumentException("bad chunk or retry settings");
+            }
+            return new UploadQueue(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,43 @@
+package me.ztiany.capturer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves the bytes of an upload to a server that can resume it, used by {@link UploadQueue}. The server keeps what it
+ * got of every upload by name, and a chunk is appended only at the offset the server is at.
+ */
+public interface UploadTransport {
+
+    /**
+     * The server refused the upload for good, e.g. it is too large or not allowed, trying again won't help.
+     */
+    final class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(@NonNull String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * @param length the size of the whole upload.
+     * @return the bytes of the upload the server has, 0 for a new one.
+     */
+    long getOffset(@NonNull String name, long length) throws IOException;
+
+    /**
+     * Sends a chunk of the file from where it is, without copying it into the heap, at the pace of the limiter.
+     *
+     * @param position where the chunk starts, the offset the server is at.
+     * @param length   the size of the whole upload.
+     * @return the offset the server is at afterwards.
+     */
+    long send(@NonNull String name, @NonNull FileChannel file, long position, long count, long length,
+              @NonNull BandwidthLimiter limiter) throws IOException, InterruptedException;
+
+}
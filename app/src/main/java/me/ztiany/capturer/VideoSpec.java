@@ -5,6 +5,7 @@ import android.os.Parcelable;
 import android.util.Size;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 
 public class VideoSpec implements Parcelable {
@@ -14,11 +15,31 @@ public class VideoSpec implements Parcelable {
     public final int frameRate;
     public final String storePath;
 
+    /**
+     * Captures one frame every interval for timelapse, played back at {@link #frameRate}. 0 means a normal recording.
+     */
+    public final long timelapseIntervalMs;
+
+    /**
+     * Records only this part of the scene, the recording size is then chosen to match the crop and never exceeds
+     * {@link #videoWidth} x {@link #videoHeight}. Null records the full field of view.
+     */
+    @Nullable
+    public final RegionOfInterest regionOfInterest;
+
+    /**
+     * Takes a JPEG snapshot every interval while recording, without interrupting the recording. 0 means none.
+     */
+    public final long snapshotIntervalMs;
+
     public VideoSpec(Builder builder) {
         videoWidth = builder.videoWidth;
         videoHeight = builder.videoHeight;
         frameRate = builder.frameRate;
         storePath = builder.storePath;
+        timelapseIntervalMs = builder.timelapseIntervalMs;
+        regionOfInterest = builder.regionOfInterest;
+        snapshotIntervalMs = builder.snapshotIntervalMs;
     }
 
     protected VideoSpec(Parcel in) {
@@ -26,6 +47,9 @@ public class VideoSpec implements Parcelable {
         videoHeight = in.readInt();
         frameRate = in.readInt();
         storePath = in.readString();
+        timelapseIntervalMs = in.readLong();
+        regionOfInterest = in.readTypedObject(RegionOfInterest.CREATOR);
+        snapshotIntervalMs = in.readLong();
     }
 
     public static final Creator<VideoSpec> CREATOR = new Creator<>() {
@@ -51,6 +75,9 @@ public class VideoSpec implements Parcelable {
         dest.writeInt(videoHeight);
         dest.writeInt(frameRate);
         dest.writeString(storePath);
+        dest.writeLong(timelapseIntervalMs);
+        dest.writeTypedObject(regionOfInterest, flags);
+        dest.writeLong(snapshotIntervalMs);
     }
 
     public static class Builder {
@@ -58,6 +85,9 @@ public class VideoSpec implements Parcelable {
         private int videoHeight;
         private int frameRate;
         private String storePath;
+        private long timelapseIntervalMs;
+        private RegionOfInterest regionOfInterest;
+        private long snapshotIntervalMs;
 
         public Builder setVideoSize(Size size) {
             this.videoWidth = size.getWidth();
@@ -75,6 +105,21 @@ public class VideoSpec implements Parcelable {
             return this;
         }
 
+        public Builder setTimelapseInterval(long intervalMs) {
+            this.timelapseIntervalMs = intervalMs;
+            return this;
+        }
+
+        public Builder setRegionOfInterest(@Nullable RegionOfInterest regionOfInterest) {
+            this.regionOfInterest = regionOfInterest;
+            return this;
+        }
+
+        public Builder setSnapshotInterval(long intervalMs) {
+            this.snapshotIntervalMs = intervalMs;
+            return this;
+        }
+
         public VideoSpec build() {
             return new VideoSpec(this);
         }
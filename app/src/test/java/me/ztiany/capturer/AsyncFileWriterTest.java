@@ -0,0 +1,135 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncFileWriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    @Test
+    public void writesEverythingInOrder() throws IOException {
+        File file = mFolder.newFile();
+        byte[] data = data(100_000);
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder()
+                .file(file)
+                .bufferSize(5000)
+                .bufferCount(2)
+                .build();
+        // odd chunks, so they straddle the buffers.
+        for (int offset = 0; offset < data.length; offset += 777) {
+            writer.write(ByteBuffer.wrap(data, offset, Math.min(777, data.length - offset)));
+        }
+        writer.close();
+
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        AsyncFileWriter.Metrics metrics = writer.getMetrics();
+        assertEquals(data.length, metrics.bytesWritten);
+        // 5000 is rounded up to 8192, the last write is partial.
+        assertEquals((data.length + 8191) / 8192, metrics.writes);
+        assertEquals(1, metrics.fsyncs);
+    }
+
+    @Test
+    public void transfersFromAChannel() throws IOException {
+        File source = mFolder.newFile();
+        byte[] data = data(50_000);
+        Files.write(source.toPath(), data);
+        File file = mFolder.newFile();
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder()
+                .file(file)
+                .bufferSize(AsyncFileWriter.BLOCK_SIZE)
+                .bufferCount(2)
+                .build();
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            assertEquals(30_000, writer.transferFrom(channel, 20_000, 30_000));
+            writer.write(ByteBuffer.wrap(data, 0, 20_000));
+            // cut at the end of the channel.
+            assertEquals(1000, writer.transferFrom(channel, 49_000, 5000));
+        }
+        writer.close();
+
+        byte[] expected = new byte[51_000];
+        System.arraycopy(data, 20_000, expected, 0, 30_000);
+        System.arraycopy(data, 0, expected, 30_000, 20_000);
+        System.arraycopy(data, 49_000, expected, 50_000, 1000);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+        assertEquals(expected.length, writer.getMetrics().bytesWritten);
+    }
+
+    @Test
+    public void syncsPeriodically() throws IOException {
+        File file = mFolder.newFile();
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder()
+                .file(file)
+                .bufferSize(AsyncFileWriter.BLOCK_SIZE)
+                .fsyncPolicy(AsyncFileWriter.FSYNC_PERIODIC)
+                .fsyncIntervalBytes(4 * AsyncFileWriter.BLOCK_SIZE)
+                .build();
+        writer.write(ByteBuffer.wrap(data(10 * AsyncFileWriter.BLOCK_SIZE)));
+        writer.close();
+        // after 4 and 8 blocks, and the last 2 on close.
+        assertEquals(3, writer.getMetrics().fsyncs);
+    }
+
+    @Test
+    public void neverSyncs() throws IOException {
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder()
+                .file(mFolder.newFile())
+                .fsyncPolicy(AsyncFileWriter.FSYNC_NEVER)
+                .build();
+        writer.write(ByteBuffer.wrap(data(1000)));
+        writer.close();
+        assertEquals(0, writer.getMetrics().fsyncs);
+    }
+
+    @Test
+    public void countsSlowWritesAsStalls() throws IOException {
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder()
+                .file(mFolder.newFile())
+                .bufferSize(AsyncFileWriter.BLOCK_SIZE)
+                .stallThresholdMs(0)
+                .build();
+        writer.write(ByteBuffer.wrap(data(3 * AsyncFileWriter.BLOCK_SIZE)));
+        writer.close();
+        AsyncFileWriter.Metrics metrics = writer.getMetrics();
+        assertEquals(3, metrics.stalls);
+        assertTrue(metrics.getThroughput() > 0);
+    }
+
+    @Test
+    public void rejectsWritesAfterClose() throws IOException {
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder().file(mFolder.newFile()).build();
+        writer.close();
+        try {
+            writer.write(ByteBuffer.wrap(data(1)));
+            fail();
+        } catch (IOException expected) {
+            assertFalse(expected.getMessage().isEmpty());
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package me.ztiany.capturer;
+
+import android.hardware.camera2.CameraCharacteristics;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CameraCapabilityIndexTest {
+
+    private static final String FINGERPRINT = "vendor/device/1:15/AP3A/1:user/release-keys";
+
+    private static CameraCapabilityIndex newIndex() {
+        CameraCapabilities.StreamConfigurations preview = new CameraCapabilities.StreamConfigurations(
+                new int[]{640, 480, 1920, 1080, 1280, 720},
+                new long[]{16_666_666L, 33_333_333L, 16_666_666L},
+                new long[]{0, 0, 0}
+        );
+        CameraCapabilities back = new CameraCapabilities.Builder("0")
+                .facing(CameraCharacteristics.LENS_FACING_BACK)
+                .sensorOrientation(90)
+                .hardwareLevel(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL)
+                .minFocalLength(4.7f)
+                .addPhysicalCameraId("2")
+                .addPhysicalCameraId("3")
+                .fpsRanges(new int[]{15, 30, 30, 30, 60, 60})
+                .highSpeedConfigurations(new int[]{1280, 720, 30, 120, 1280, 720, 120, 120})
+                .streamConfigurations(CameraCapabilities.OUTPUT_PREVIEW, preview)
+                .build();
+        CameraCapabilities wide = new CameraCapabilities.Builder("2")
+                .facing(CameraCharacteristics.LENS_FACING_BACK)
+                .minFocalLength(4.7f)
+                .logicalCameraId("0")
+                .build();
+        CameraCapabilities ultraWide = new CameraCapabilities.Builder("3")
+                .facing(CameraCharacteristics.LENS_FACING_BACK)
+                .minFocalLength(2.2f)
+                .logicalCameraId("0")
+                .build();
+        CameraCapabilities front = new CameraCapabilities.Builder("1")
+                .facing(CameraCharacteristics.LENS_FACING_FRONT)
+                .sensorOrientation(270)
+                .build();
+        return new CameraCapabilityIndex(FINGERPRINT, List.of(back, wide, ultraWide, front));
+    }
+
+    private static byte[] toBytes(CameraCapabilityIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void streamConfigurations_areSortedByAreaDescending() {
+        CameraCapabilities.StreamConfigurations configurations = newIndex().get("0")
+                .getStreamConfigurations(CameraCapabilities.OUTPUT_PREVIEW);
+
+        assertEquals(3, configurations.size());
+        assertEquals(1920, configurations.getWidth(0));
+        assertEquals(33_333_333L, configurations.getMinFrameDuration(0));
+        assertEquals(1280, configurations.getWidth(1));
+        assertEquals(640, configurations.getWidth(2));
+        assertEquals(16_666_666L, configurations.getMinFrameDuration(2));
+        assertEquals(2, configurations.indexOf(640, 480));
+        assertEquals(-1, configurations.indexOf(800, 600));
+    }
+
+    @Test
+    public void lookups() {
+        CameraCapabilityIndex index = newIndex();
+
+        assertEquals(List.of("0", "1"), index.getOpenableCameraIds());
+        assertEquals("1", index.findByFacing(CameraCharacteristics.LENS_FACING_FRONT).cameraId);
+        assertEquals("3", index.findUltraWide(CameraCharacteristics.LENS_FACING_BACK).cameraId);
+        assertNull(index.findUltraWide(CameraCharacteristics.LENS_FACING_FRONT));
+        assertTrue(index.get("0").isLogicalMultiCamera());
+        assertTrue(index.get("3").isPhysicalCamera());
+    }
+
+    @Test
+    public void persistedIndex_roundTrips() throws IOException {
+        byte[] bytes = toBytes(newIndex());
+        CameraCapabilityIndex index = CameraCapabilityIndex.read(new DataInputStream(new ByteArrayInputStream(bytes)), FINGERPRINT);
+
+        assertNotNull(index);
+        CameraCapabilities back = index.get("0");
+        assertEquals(90, back.sensorOrientation);
+        assertEquals(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL, back.hardwareLevel);
+        assertEquals(List.of("2", "3"), back.physicalCameraIds);
+        assertEquals(3, back.getFpsRangeCount());
+        assertEquals(60, back.getFpsRangeUpper(2));
+        assertTrue(back.isHighSpeedVideoSupported());
+        assertEquals(2, back.getHighSpeedConfigurationCount());
+        assertEquals(120, back.getHighSpeedFpsLower(1));
+        assertEquals(3, back.getStreamConfigurations(CameraCapabilities.OUTPUT_PREVIEW).size());
+        assertEquals(0, back.getStreamConfigurations(CameraCapabilities.OUTPUT_JPEG).size());
+        assertEquals("0", index.get("3").logicalCameraId);
+        // written again, the bytes are the same.
+        assertArrayEquals(bytes, toBytes(index));
+    }
+
+    @Test
+    public void persistedIndex_isDroppedOnAnotherBuild() throws IOException {
+        byte[] bytes = toBytes(newIndex());
+        assertNull(CameraCapabilityIndex.read(new DataInputStream(new ByteArrayInputStream(bytes)), "another/build"));
+    }
+
+}
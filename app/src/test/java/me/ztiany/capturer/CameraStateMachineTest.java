@@ -0,0 +1,247 @@
+package me.ztiany.capturer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CameraStateMachineTest {
+
+    /**
+     * Records the operations, the test decides when the device reports back.
+     */
+    private static class FakeDevice implements CameraStateMachine.Device {
+
+        final List<String> operations = new ArrayList<>();
+
+        boolean concurrent;
+
+        @Override
+        public void openDevice(String cameraId) {
+            operations.add("open " + cameraId);
+        }
+
+        @Override
+        public void createSession() {
+            operations.add("session");
+        }
+
+        @Override
+        public void startStreaming() {
+            operations.add("stream");
+        }
+
+        @Override
+        public void closeDevice() {
+            operations.add("close");
+        }
+
+        @Override
+        public void releaseDevice() {
+            operations.add("release");
+        }
+
+        @Override
+        public boolean canOpenConcurrently(String openedCameraId, String cameraId) {
+            return concurrent;
+        }
+    }
+
+    private FakeDevice mDevice;
+
+    private CameraStateMachine mStateMachine;
+
+    @Before
+    public void setUp() {
+        mDevice = new FakeDevice();
+        // Runnable::run makes every command and event run on the test thread in order.
+        mStateMachine = new CameraStateMachine(Runnable::run, mDevice);
+    }
+
+    private void openToStreaming(String cameraId) {
+        mStateMachine.open(cameraId);
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+    }
+
+    @Test
+    public void open_walksThroughAllStates() {
+        CompletableFuture<Void> open = mStateMachine.open(CameraId.BACK);
+        assertEquals(CameraState.OPENING, mStateMachine.getState());
+        mStateMachine.onDeviceOpened();
+        assertEquals(CameraState.CONFIGURING, mStateMachine.getState());
+        assertFalse(open.isDone());
+        mStateMachine.onSessionConfigured();
+        assertEquals(CameraState.STREAMING, mStateMachine.getState());
+        assertTrue(open.isDone());
+
+        CompletableFuture<Void> close = mStateMachine.close();
+        assertEquals(CameraState.CLOSING, mStateMachine.getState());
+        mStateMachine.onDeviceClosed();
+        assertEquals(CameraState.CLOSED, mStateMachine.getState());
+        assertTrue(close.isDone());
+
+        assertEquals(List.of("open 0", "session", "stream", "close"), mDevice.operations);
+    }
+
+    @Test
+    public void duplicateOpen_isCoalesced() {
+        CompletableFuture<Void> first = mStateMachine.open(CameraId.BACK);
+        CompletableFuture<Void> second = mStateMachine.open(CameraId.BACK);
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertTrue(second.isDone() && !second.isCompletedExceptionally());
+        assertEquals(List.of("open 0", "session", "stream"), mDevice.operations);
+
+        assertTrue(mStateMachine.open(CameraId.BACK).isDone());
+    }
+
+    @Test
+    public void closeWhileOpening_cancelsOpenAndClosesAfterOpened() {
+        CompletableFuture<Void> open = mStateMachine.open(CameraId.BACK);
+        CompletableFuture<Void> close = mStateMachine.close();
+
+        assertCancelled(open);
+        assertEquals(CameraState.OPENING, mStateMachine.getState());
+
+        mStateMachine.onDeviceOpened();
+        assertEquals(CameraState.CLOSING, mStateMachine.getState());
+        mStateMachine.onDeviceClosed();
+
+        assertTrue(close.isDone() && !close.isCompletedExceptionally());
+        assertEquals(List.of("open 0", "close"), mDevice.operations);
+    }
+
+    @Test
+    public void startStopStart_isCoalescedIntoOneOpen() {
+        mStateMachine.open(CameraId.BACK);
+        CompletableFuture<Void> close = mStateMachine.close();
+        CompletableFuture<Void> reopen = mStateMachine.open(CameraId.BACK);
+
+        assertCancelled(close);
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+
+        assertTrue(reopen.isDone() && !reopen.isCompletedExceptionally());
+        assertEquals(List.of("open 0", "session", "stream"), mDevice.operations);
+    }
+
+    @Test
+    public void openAnotherCamera_closesThenOpens() {
+        openToStreaming(CameraId.BACK);
+        CompletableFuture<Void> close = mStateMachine.close();
+        CompletableFuture<Void> front = mStateMachine.open(CameraId.FRONT);
+
+        assertEquals(CameraState.CLOSING, mStateMachine.getState());
+        mStateMachine.onDeviceClosed();
+        assertTrue(close.isDone() && !close.isCompletedExceptionally());
+        assertEquals(CameraState.OPENING, mStateMachine.getState());
+
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+        assertTrue(front.isDone() && !front.isCompletedExceptionally());
+        assertEquals(List.of("open 0", "session", "stream", "close", "open 1", "session", "stream"), mDevice.operations);
+    }
+
+    @Test
+    public void switchCamera_waitsForCloseWithoutConcurrentSupport() {
+        openToStreaming(CameraId.BACK);
+        CompletableFuture<Void> front = mStateMachine.open(CameraId.FRONT);
+
+        assertEquals(CameraState.CLOSING, mStateMachine.getState());
+        mStateMachine.onDeviceClosed();
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+
+        assertTrue(front.isDone() && !front.isCompletedExceptionally());
+        assertEquals(List.of("open 0", "session", "stream", "close", "open 1", "session", "stream"), mDevice.operations);
+    }
+
+    @Test
+    public void switchCamera_overlapsCloseAndOpenWithConcurrentSupport() {
+        mDevice.concurrent = true;
+        openToStreaming(CameraId.BACK);
+        CompletableFuture<Void> front = mStateMachine.open(CameraId.FRONT);
+
+        // the new camera is opening without waiting for the old one.
+        assertEquals(CameraState.OPENING, mStateMachine.getState());
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+
+        assertTrue(front.isDone() && !front.isCompletedExceptionally());
+        assertEquals(List.of("open 0", "session", "stream", "release", "open 1", "session", "stream"), mDevice.operations);
+    }
+
+    @Test
+    public void closeWithConcurrentSupport_stillWaitsForClose() {
+        mDevice.concurrent = true;
+        openToStreaming(CameraId.BACK);
+        CompletableFuture<Void> close = mStateMachine.close();
+
+        assertEquals(CameraState.CLOSING, mStateMachine.getState());
+        assertFalse(close.isDone());
+        mStateMachine.onDeviceClosed();
+        assertTrue(close.isDone());
+    }
+
+    @Test
+    public void reconfigure_recreatesSessionOnce() {
+        openToStreaming(CameraId.BACK);
+        List<String> mutations = new ArrayList<>();
+
+        CompletableFuture<Void> first = mStateMachine.reconfigure(() -> mutations.add("first"));
+        CompletableFuture<Void> second = mStateMachine.reconfigure(() -> mutations.add("second"));
+        assertEquals(CameraState.CONFIGURING, mStateMachine.getState());
+
+        mStateMachine.onSessionConfigured();
+        // the second request arrived while configuring, so one more session is created with both mutations applied.
+        assertEquals(CameraState.CONFIGURING, mStateMachine.getState());
+        mStateMachine.onSessionConfigured();
+
+        assertTrue(first.isDone() && second.isDone());
+        assertEquals(List.of("first", "second"), mutations);
+        assertEquals(List.of("open 0", "session", "stream", "session", "session", "stream"), mDevice.operations);
+    }
+
+    @Test
+    public void reconfigureWhenClosed_fails() {
+        CompletableFuture<Void> future = mStateMachine.reconfigure(null);
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void deviceError_failsOpenAndCloses() {
+        CompletableFuture<Void> open = mStateMachine.open(CameraId.BACK);
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigureFailed(new Exception("configureFailed"));
+
+        assertTrue(open.isCompletedExceptionally());
+        assertEquals(CameraState.CLOSING, mStateMachine.getState());
+        mStateMachine.onDeviceClosed();
+        assertEquals(CameraState.CLOSED, mStateMachine.getState());
+        // nothing is retried after an error
+        assertEquals(List.of("open 0", "session", "close"), mDevice.operations);
+    }
+
+    @Test
+    public void lateEvents_areIgnored() {
+        openToStreaming(CameraId.BACK);
+        mStateMachine.onDeviceOpened();
+        mStateMachine.onSessionConfigured();
+        assertEquals(CameraState.STREAMING, mStateMachine.getState());
+        assertEquals(List.of("open 0", "session", "stream"), mDevice.operations);
+    }
+
+    private static void assertCancelled(CompletableFuture<Void> future) {
+        assertTrue(future.isCancelled());
+    }
+
+}
@@ -0,0 +1,125 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CaptureMetricsTest {
+
+    private static final long FRAME = 33_333_333L;
+
+    @Test
+    public void gapsAndDroppedFrames() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        metrics.setExpectation(FRAME, 30);
+        long timestamp = 1_000_000_000L;
+        metrics.onCaptureStarted(timestamp);
+        for (int i = 0; i < 10; i++) {
+            timestamp += FRAME;
+            metrics.onCaptureStarted(timestamp);
+        }
+        // two frames are missing.
+        timestamp += 3 * FRAME;
+        metrics.onCaptureStarted(timestamp);
+
+        CaptureMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(12, snapshot.startedFrames);
+        assertEquals(2, snapshot.droppedFrames);
+        assertEquals(10, snapshot.getGapCount(4));
+        assertEquals(1, snapshot.getGapCount(12));
+        assertEquals(2 * FRAME, snapshot.maxJitter);
+        assertEquals(10, snapshot.getJitterCount(0));
+    }
+
+    @Test
+    public void aeSlowingDownIsNotADrop() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        // AE may run anywhere from 15 to 30 fps.
+        metrics.setExpectation(FRAME, 2 * FRAME, 15);
+        long timestamp = 1_000_000_000L;
+        metrics.onCaptureStarted(timestamp);
+        for (int i = 0; i < 10; i++) {
+            timestamp += 2 * FRAME;
+            metrics.onCaptureStarted(timestamp);
+        }
+        assertEquals(0, metrics.snapshot().droppedFrames);
+
+        // one frame is missing even at 15 fps.
+        timestamp += 4 * FRAME;
+        metrics.onCaptureStarted(timestamp);
+        assertEquals(1, metrics.snapshot().droppedFrames);
+    }
+
+    @Test
+    public void failuresAndBufferLoss() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        metrics.onCaptureFailed(0, false);
+        metrics.onCaptureFailed(1, true);
+        metrics.onCaptureFailed(7, true);
+        metrics.onCaptureBufferLost(1);
+        metrics.onCaptureBufferLost(-1);
+        metrics.onCaptureBufferLost(9);
+
+        CaptureMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getFailures(0));
+        assertEquals(1, snapshot.getFailures(1));
+        assertEquals(1, snapshot.failuresWithoutImage);
+        assertEquals(1, snapshot.getBufferLost(1));
+        assertEquals(2, snapshot.getBufferLost(CaptureMetrics.MAX_SURFACES - 1));
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().getFailures(0));
+    }
+
+    @Test
+    public void recordingWritesOutliveTheSession() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        assertNull(metrics.snapshot().recordingWrites);
+        AsyncFileWriter.Metrics writes = new AsyncFileWriter.Metrics(1000, 1, 10, 10, 0, 0, 1, 0);
+        metrics.onRecordingWritten(writes);
+        metrics.reset();
+        assertSame(writes, metrics.snapshot().recordingWrites);
+    }
+
+    @Test
+    public void lowFrameRateAlertsAreRateLimited() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        List<Float> alerts = new ArrayList<>();
+        metrics.setAlertListener((effectiveFps, minFps) -> alerts.add(effectiveFps));
+        metrics.setExpectation(FRAME, 30);
+
+        // 15 fps for 30 seconds.
+        long timestamp = 1_000_000_000L;
+        for (int i = 0; i < 15 * 30; i++) {
+            metrics.onCaptureStarted(timestamp);
+            timestamp += 2 * FRAME;
+        }
+
+        assertEquals(3, alerts.size());
+        assertEquals(15, alerts.get(0), 0.1);
+        assertEquals(15, metrics.snapshot().effectiveFps, 0.1);
+    }
+
+    @Test
+    public void noAlertAtTargetFrameRate() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        List<Float> alerts = new ArrayList<>();
+        metrics.setAlertListener((effectiveFps, minFps) -> alerts.add(effectiveFps));
+        metrics.setExpectation(FRAME, 30);
+
+        long timestamp = 1_000_000_000L;
+        for (int i = 0; i < 30 * 5; i++) {
+            metrics.onCaptureStarted(timestamp);
+            timestamp += FRAME;
+        }
+
+        assertEquals(0, alerts.size());
+        assertEquals(30, metrics.snapshot().effectiveFps, 0.1);
+    }
+
+}
@@ -0,0 +1,71 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureProfileTest {
+
+    private static CameraCapabilities withFpsRanges(int... fpsRanges) {
+        return new CameraCapabilities.Builder("0").fpsRanges(fpsRanges).build();
+    }
+
+    @Test
+    public void prefersFixedRange() {
+        CameraCapabilities capabilities = withFpsRanges(15, 30, 30, 30, 7, 30);
+        assertEquals(1, CaptureProfile.selectFpsRange(capabilities, 30));
+    }
+
+    @Test
+    public void prefersRangeEndingAtFrameRate() {
+        CameraCapabilities capabilities = withFpsRanges(10, 60, 7, 30, 15, 30);
+        assertEquals(2, CaptureProfile.selectFpsRange(capabilities, 30));
+    }
+
+    @Test
+    public void fallsBackToNarrowestContainingRange() {
+        CameraCapabilities capabilities = withFpsRanges(7, 60, 15, 30, 20, 30);
+        assertEquals(2, CaptureProfile.selectFpsRange(capabilities, 24));
+    }
+
+    @Test
+    public void noMatchingRange() {
+        CameraCapabilities capabilities = withFpsRanges(15, 30, 30, 30);
+        assertEquals(-1, CaptureProfile.selectFpsRange(capabilities, 60));
+        assertEquals(-1, CaptureProfile.selectFpsRange(capabilities, 0));
+    }
+
+    @Test
+    public void lowPowerCapsFrameRate() {
+        assertEquals(15, CaptureProfile.lowPowerBackground(30).frameRate);
+        assertEquals(10, CaptureProfile.lowPowerBackground(10).frameRate);
+        assertEquals(15, CaptureProfile.lowPowerBackground(0).frameRate);
+    }
+
+    @Test
+    public void slowestFpsRange() {
+        CameraCapabilities capabilities = withFpsRanges(15, 30, 7, 15, 15, 15, 30, 30);
+        assertEquals(2, CaptureProfile.selectSlowestFpsRange(capabilities));
+        assertEquals(-1, CaptureProfile.selectSlowestFpsRange(withFpsRanges()));
+    }
+
+    @Test
+    public void timelapseNeedsManualSensor() {
+        CaptureProfile timelapse = CaptureProfile.timelapse(5_000);
+        assertEquals(5_000_000_000L, timelapse.frameDuration);
+        assertTrue(timelapse.isManualFrameDuration(new CameraCapabilities.Builder("0")
+                .manualSensorSupported(true)
+                .maxFrameDuration(1_000_000_000L)
+                .build()));
+        assertFalse(timelapse.isManualFrameDuration(new CameraCapabilities.Builder("0")
+                .maxFrameDuration(1_000_000_000L)
+                .build()));
+        assertFalse(CaptureProfile.record(30).isManualFrameDuration(new CameraCapabilities.Builder("0")
+                .manualSensorSupported(true)
+                .maxFrameDuration(1_000_000_000L)
+                .build()));
+    }
+
+}
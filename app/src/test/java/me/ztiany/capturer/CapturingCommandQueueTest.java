@@ -0,0 +1,225 @@
+package me.ztiany.capturer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CapturingCommandQueueTest {
+
+    private static final VideoSpec VIDEO_SPEC = new VideoSpec.Builder().setFrameRate(30).storePath("video.mp4").build();
+
+    /**
+     * What the executor is asked to do.
+     */
+    private final List<String> mExecuted = new ArrayList<>();
+
+    /**
+     * What the callbacks are answered with.
+     */
+    private final List<String> mAnswers = new ArrayList<>();
+
+    private String mCapturingSession;
+
+    /**
+     * The timeouts that are scheduled.
+     */
+    private final List<Runnable> mTimeouts = new ArrayList<>();
+
+    private CapturingCommandQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new CapturingCommandQueue(new CapturingCommandQueue.Executor() {
+            @Override
+            public void executeStart(String sessionId, VideoSpec videoSpec) {
+                mExecuted.add("start " + sessionId);
+            }
+
+            @Override
+            public void executeStop(String sessionId) {
+                mExecuted.add("stop " + sessionId);
+                // like the recorder, only a capturing session is stopped, before the call returns.
+                if (sessionId.equals(mCapturingSession)) {
+                    mCapturingSession = null;
+                    mQueue.onEvent(sessionId, CapturerEvent.STOPPED);
+                }
+            }
+        }, new CapturingCommandQueue.Timer() {
+            @Override
+            public void schedule(Runnable runnable, long delayMs) {
+                mTimeouts.add(runnable);
+            }
+
+            @Override
+            public void cancel(Runnable runnable) {
+                mTimeouts.remove(runnable);
+            }
+        });
+    }
+
+    private void started(String sessionId) {
+        mCapturingSession = sessionId;
+        mQueue.onEvent(sessionId, CapturerEvent.STARTED);
+    }
+
+    private FloatingCameraConnection.CommandCallback callback(String name) {
+        return (sessionId, result) -> mAnswers.add(name + ":" + result);
+    }
+
+    @Test
+    public void carriesOutCommandsInOrderWithIncreasingSequences() {
+        long first = mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        long second = mQueue.stop("1", callback("stop1"));
+        long third = mQueue.start("2", VIDEO_SPEC, callback("start2"));
+        assertTrue(first < second && second < third);
+
+        assertEquals(Arrays.asList("start 1"), mExecuted);
+        assertEquals(CapturingState.STARTING, mQueue.getState());
+        assertEquals(3, mQueue.getPendingCount());
+
+        started("1");
+        assertEquals(Arrays.asList("start 1", "stop 1", "start 2"), mExecuted);
+        assertEquals(Arrays.asList("start1:" + CapturerEvent.STARTED, "stop1:" + CapturerEvent.STOPPED), mAnswers);
+        assertEquals(CapturingState.STARTING, mQueue.getState());
+        assertEquals("2", mQueue.getSessionId());
+        assertEquals(second, mQueue.getLastSequence());
+
+        started("2");
+        assertEquals(CapturingState.CAPTURING, mQueue.getState());
+        assertEquals(third, mQueue.getLastSequence());
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+    @Test
+    public void coalescesStartAndStopThatAreBothWaiting() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        mQueue.stop("1", callback("stop1"));
+        mQueue.start("2", VIDEO_SPEC, callback("start2"));
+        mQueue.stop("2", callback("stop2"));
+        assertEquals(Arrays.asList("start2:" + CapturerEvent.REJECTED, "stop2:" + CapturerEvent.STOPPED), mAnswers);
+
+        started("1");
+        assertEquals(Arrays.asList("start 1", "stop 1"), mExecuted);
+        assertEquals(CapturingState.IDLE, mQueue.getState());
+        assertNull(mQueue.getSessionId());
+    }
+
+    @Test
+    public void dropsStopThatIsFollowedByStartOfTheSameSession() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        mQueue.stop("1", callback("stop1"));
+        mQueue.start("1", VIDEO_SPEC, callback("restart1"));
+        assertEquals(Arrays.asList("stop1:" + CapturerEvent.REJECTED), mAnswers);
+
+        started("1");
+        assertEquals(Arrays.asList("start 1"), mExecuted);
+        assertEquals(Arrays.asList(
+                "stop1:" + CapturerEvent.REJECTED,
+                "start1:" + CapturerEvent.STARTED,
+                "restart1:" + CapturerEvent.STARTED
+        ), mAnswers);
+        assertEquals(CapturingState.CAPTURING, mQueue.getState());
+    }
+
+    @Test
+    public void answersRepeatedCommandsWithoutCarryingThemOut() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        started("1");
+        mQueue.start("1", VIDEO_SPEC, callback("again"));
+        mQueue.stop("1", callback("stop1"));
+        mQueue.stop("1", callback("stopAgain"));
+        mQueue.start("1", VIDEO_SPEC, callback("restart"));
+
+        assertEquals(Arrays.asList("start 1", "stop 1"), mExecuted);
+        assertEquals(Arrays.asList(
+                "start1:" + CapturerEvent.STARTED,
+                "again:" + CapturerEvent.STARTED,
+                "stop1:" + CapturerEvent.STOPPED,
+                "stopAgain:" + CapturerEvent.STOPPED,
+                "restart:" + CapturerEvent.REJECTED
+        ), mAnswers);
+    }
+
+    @Test
+    public void rejectsAnotherSessionWhileCapturing() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        mQueue.start("2", VIDEO_SPEC, callback("start2"));
+        mQueue.stop("2", callback("stop2"));
+        started("1");
+
+        assertEquals(Arrays.asList("start 1"), mExecuted);
+        assertEquals(Arrays.asList(
+                "start2:" + CapturerEvent.REJECTED,
+                "stop2:" + CapturerEvent.REJECTED,
+                "start1:" + CapturerEvent.STARTED
+        ), mAnswers);
+        assertEquals("1", mQueue.getSessionId());
+    }
+
+    @Test
+    public void failedStartEndsTheSession() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        mQueue.stop("1", callback("stop1"));
+        mQueue.onEvent("1", CapturerEvent.ERROR);
+
+        // the stop finds nothing capturing.
+        assertEquals(Arrays.asList("start 1", "stop 1"), mExecuted);
+        assertEquals(Arrays.asList("start1:" + CapturerEvent.ERROR, "stop1:" + CapturerEvent.REJECTED), mAnswers);
+        assertEquals(CapturingState.IDLE, mQueue.getState());
+
+        mQueue.start("2", VIDEO_SPEC, callback("start2"));
+        assertEquals("start 2", mExecuted.get(mExecuted.size() - 1));
+    }
+
+    @Test
+    public void unansweredStartTimesOut() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        assertEquals(1, mTimeouts.size());
+        mTimeouts.remove(0).run();
+
+        assertEquals(Arrays.asList("start 1", "stop 1"), mExecuted);
+        assertEquals(Arrays.asList("start1:" + CapturerEvent.ERROR), mAnswers);
+        assertEquals(CapturingState.IDLE, mQueue.getState());
+
+        // the answer comes too late.
+        mQueue.onEvent("1", CapturerEvent.STARTED);
+        assertEquals(CapturingState.IDLE, mQueue.getState());
+
+        mQueue.start("2", VIDEO_SPEC, callback("start2"));
+        started("2");
+        assertEquals("start2:" + CapturerEvent.STARTED, mAnswers.get(mAnswers.size() - 1));
+        assertTrue(mTimeouts.isEmpty());
+    }
+
+    @Test
+    public void followsTheEventsOfTheCapturer() {
+        mQueue.start("1", VIDEO_SPEC, null);
+        started("1");
+        // the service stops by itself when it is destroyed.
+        mCapturingSession = null;
+        mQueue.onEvent("1", CapturerEvent.STOPPED);
+        assertEquals(CapturingState.IDLE, mQueue.getState());
+
+        mQueue.stop("1", callback("stop1"));
+        assertEquals(Arrays.asList("stop1:" + CapturerEvent.STOPPED), mAnswers);
+        assertEquals(Arrays.asList("start 1"), mExecuted);
+    }
+
+    @Test
+    public void clearRejectsEverythingWaiting() {
+        mQueue.start("1", VIDEO_SPEC, callback("start1"));
+        mQueue.stop("1", callback("stop1"));
+        mQueue.clear();
+
+        assertEquals(Arrays.asList("start1:" + CapturerEvent.REJECTED, "stop1:" + CapturerEvent.REJECTED), mAnswers);
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+}
@@ -0,0 +1,317 @@
+package me.ztiany.capturer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactionJobTest {
+
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    private File mCheckpointFile;
+
+    private RecordingStorage mStorage;
+
+    private final long mNow = System.currentTimeMillis();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("recordings");
+        mCheckpointFile = new File(mFolder.getRoot(), "compaction");
+        mStorage = RecordingStorage.newBuilder().directory(mDirectory).build();
+    }
+
+    private File record(long ageMs, int size) throws IOException {
+        File file = new File(mDirectory, (mNow - ageMs) + RecordingStorage.SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[size]);
+        }
+        return file;
+    }
+
+    /**
+     * Writes the input's size divided by the ratio, in 10 steps, checking for cancellation between them.
+     */
+    private static class FakeTranscoder implements Transcoder {
+
+        final double ratio;
+
+        final AtomicInteger running = new AtomicInteger();
+
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        final List<String> transcoded = Collections.synchronizedList(new ArrayList<>());
+
+        FakeTranscoder(double ratio) {
+            this.ratio = ratio;
+        }
+
+        @Override
+        public boolean transcode(File input, File output, Cancellation cancellation) throws IOException {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                byte[] step = new byte[(int) (input.length() / ratio / 10)];
+                Arrays.fill(step, (byte) 1);
+                try (FileOutputStream stream = new FileOutputStream(output)) {
+                    for (int i = 0; i < 10; i++) {
+                        if (cancellation.isCancelled()) {
+                            return false;
+                        }
+                        stream.write(step);
+                        Thread.sleep(2);
+                    }
+                } catch (InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+                transcoded.add(input.getName());
+                return true;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+    }
+
+    private CompactionJob.Builder builder(Transcoder transcoder) {
+        return CompactionJob.newBuilder()
+                .storage(mStorage)
+                .policy(CompactionPolicy.newBuilder().minAgeMs(2 * DAY_MS).build())
+                .transcoder(transcoder)
+                .checkpointFile(mCheckpointFile);
+    }
+
+    private static List<String> names(List<RecordingStorage.Recording> recordings) {
+        List<String> names = new ArrayList<>();
+        for (RecordingStorage.Recording recording : recordings) {
+            names.add(recording.file.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void selectsOldUnpinnedRecordingsOldestFirst() throws IOException {
+        File recent = record(DAY_MS, 1000);
+        File old = record(3 * DAY_MS, 1000);
+        File older = record(4 * DAY_MS, 1000);
+        File pinned = record(5 * DAY_MS, 1000);
+        File compacted = record(6 * DAY_MS, 1000);
+        File oldest = record(7 * DAY_MS, 1000);
+        mStorage.setPinned(pinned, true);
+        CompactionPolicy policy = CompactionPolicy.newBuilder().minAgeMs(2 * DAY_MS).maxPerRun(2).build();
+
+        List<RecordingStorage.Recording> selected = policy.select(mStorage.getRecordings(), mNow, Collections.singleton(compacted.getName()));
+
+        List<String> expected = new ArrayList<>();
+        expected.add(oldest.getName());
+        expected.add(older.getName());
+        assertEquals(expected, names(selected));
+        assertFalse(names(selected).contains(old.getName()) || names(selected).contains(recent.getName()));
+    }
+
+    @Test
+    public void neverSelectsTheRecordingInProgress() throws IOException {
+        File file = new File(mDirectory, (mNow - 3 * DAY_MS) + RecordingStorage.SUFFIX);
+        assertTrue(mStorage.prepare(file, 1000));
+        assertTrue(mStorage.isRecording());
+
+        CompactionPolicy policy = CompactionPolicy.newBuilder().minAgeMs(2 * DAY_MS).build();
+        assertTrue(policy.select(mStorage.getRecordings(), mNow, Collections.emptySet()).isEmpty());
+    }
+
+    @Test
+    public void replacesTheOldRecordingsOnce() throws IOException {
+        File old = record(3 * DAY_MS, 10_000);
+        File recent = record(DAY_MS, 10_000);
+        File manifest = RecordingManifest.manifestFile(old);
+        assertTrue(manifest.createNewFile());
+        FakeTranscoder transcoder = new FakeTranscoder(4);
+
+        CompactionJob.Result result = builder(transcoder).build().run();
+
+        assertEquals(1, result.compacted);
+        assertEquals(7500, result.savedBytes);
+        assertFalse(result.interrupted);
+        assertEquals(2500, old.length());
+        assertEquals(10_000, recent.length());
+        assertEquals(12_500, mStorage.getTotalBytes());
+        assertFalse(manifest.exists());
+        assertFalse(new File(old.getPath() + CompactionJob.TEMP_SUFFIX).exists());
+
+        // the checkpoint keeps it from being compacted again.
+        result = builder(transcoder).build().run();
+        assertEquals(0, result.compacted);
+        assertEquals(1, transcoder.transcoded.size());
+    }
+
+    private static byte[] box(String type, int size) {
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size).put(type.getBytes(StandardCharsets.US_ASCII));
+        return box.array();
+    }
+
+    @Test
+    public void movesMoovOfTheCompactedFileToTheFront() throws IOException {
+        File old = record(3 * DAY_MS, 10_000);
+        // like MediaMuxer, moov at the end.
+        Transcoder transcoder = (input, output, cancellation) -> {
+            try (FileOutputStream stream = new FileOutputStream(output)) {
+                stream.write(box("ftyp", 24));
+                stream.write(box("mdat", 2000));
+                stream.write(box("moov", 200));
+            }
+            return true;
+        };
+
+        assertEquals(1, builder(transcoder).build().run().compacted);
+
+        try (FileChannel channel = new RandomAccessFile(old, "r").getChannel()) {
+            List<Mp4Faststart.Box> boxes = Mp4Faststart.readBoxes(channel);
+            assertEquals(3, boxes.size());
+            assertEquals(Mp4Faststart.TYPE_MOOV, boxes.get(1).type);
+        }
+    }
+
+    @Test
+    public void signsTheCompactedRecordingAgain() throws Exception {
+        File old = record(3 * DAY_MS, 10_000);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+
+        CompactionJob.Result result = builder(new FakeTranscoder(4))
+                .finisher(RecordingFinisher.newBuilder().signingKey(keyPair.getPrivate()).build())
+                .build()
+                .run();
+
+        assertEquals(1, result.compacted);
+        RecordingManifest manifest = RecordingManifest.read(old);
+        assertNotNull(manifest);
+        assertEquals(2500, manifest.length);
+        assertTrue(RecordingManifest.verify(old, keyPair.getPublic(), 1).isVerified());
+    }
+
+    @Test
+    public void boundsTheParallelism() throws IOException {
+        for (int i = 0; i < 6; i++) {
+            record((3 + i) * DAY_MS, 10_000);
+        }
+        FakeTranscoder transcoder = new FakeTranscoder(2);
+
+        CompactionJob.Result result = builder(transcoder).parallelism(2).build().run();
+
+        assertEquals(6, result.compacted);
+        assertEquals(2, transcoder.maxRunning.get());
+    }
+
+    @Test
+    public void stopsWhenTheConditionsEndAndGoesOnLater() throws IOException {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            files.add(record((3 + i) * DAY_MS, 10_000));
+        }
+        AtomicBoolean idle = new AtomicBoolean(true);
+        FakeTranscoder transcoder = new FakeTranscoder(2) {
+            @Override
+            public boolean transcode(File input, File output, Cancellation cancellation) throws IOException {
+                if (transcoded.size() == 1) {
+                    // the user is back in the middle of the second one.
+                    idle.set(false);
+                }
+                return super.transcode(input, output, cancellation);
+            }
+        };
+
+        CompactionJob.Result result = builder(transcoder).conditions(idle::get).build().run();
+
+        assertTrue(result.interrupted);
+        assertEquals(1, result.compacted);
+        int compacted = 0;
+        for (File file : files) {
+            assertFalse(new File(file.getPath() + CompactionJob.TEMP_SUFFIX).exists());
+            if (file.length() == 5000) {
+                compacted++;
+            }
+        }
+        assertEquals(1, compacted);
+
+        idle.set(true);
+        result = builder(new FakeTranscoder(2)).conditions(idle::get).build().run();
+        assertFalse(result.interrupted);
+        assertEquals(3, result.compacted);
+    }
+
+    @Test
+    public void keepsARecordingThatDoesNotGetSmaller() throws IOException {
+        File old = record(3 * DAY_MS, 10_000);
+        FakeTranscoder transcoder = new FakeTranscoder(0.5);
+
+        CompactionJob.Result result = builder(transcoder).build().run();
+
+        assertEquals(1, result.unchanged);
+        assertEquals(10_000, old.length());
+        builder(transcoder).build().run();
+        assertEquals(1, transcoder.transcoded.size());
+    }
+
+    @Test
+    public void keepsTheOriginalWhenTheTranscodingFails() throws IOException {
+        File old = record(3 * DAY_MS, 10_000);
+        byte[] original = Files.readAllBytes(old.toPath());
+        Transcoder failing = (input, output, cancellation) -> {
+            Files.write(output.toPath(), new byte[100]);
+            throw new IOException("codec error");
+        };
+
+        CompactionJob.Result result = builder(failing).build().run();
+
+        assertEquals(1, result.failed);
+        assertArrayEquals(original, Files.readAllBytes(old.toPath()));
+        assertFalse(new File(old.getPath() + CompactionJob.TEMP_SUFFIX).exists());
+        // tried again by the next run.
+        assertEquals(1, builder(new FakeTranscoder(2)).build().run().compacted);
+    }
+
+    @Test
+    public void deletesTheLeftoversOfADeadProcess() throws IOException {
+        File old = record(3 * DAY_MS, 10_000);
+        File leftover = new File(old.getPath() + CompactionJob.TEMP_SUFFIX);
+        Files.write(leftover.toPath(), new byte[100]);
+
+        builder(new FakeTranscoder(2)).conditions(() -> false).build().run();
+
+        assertFalse(leftover.exists());
+        assertEquals(10_000, old.length());
+    }
+
+}
@@ -0,0 +1,134 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameMetadataTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Runs the tasks when {@link #runAll()} is called, so the I/O thread can be held back.
+     */
+    private static final class ManualExecutor extends AbstractExecutorService {
+
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return mTasks;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+    }
+
+    private static void append(FrameMetadataWriter writer, int frame) {
+        writer.append(1_000_000L * frame, 1_700_000_000_000L + frame, 10_000L + frame, 100 + frame, frame / 10f);
+    }
+
+    @Test
+    public void framesAreReadBackByIndex() throws IOException {
+        File file = mFolder.newFile("video.mp4" + FrameMetadataWriter.SUFFIX);
+        ManualExecutor executor = new ManualExecutor();
+        FrameMetadataWriter writer = new FrameMetadataWriter(file, 16, executor);
+        int frames = 16 * 3 + 5;
+        for (int i = 0; i < frames; i++) {
+            append(writer, i);
+            executor.runAll();
+        }
+        writer.close();
+        executor.runAll();
+
+        try (FrameMetadataReader reader = new FrameMetadataReader(file)) {
+            assertEquals(frames, reader.getFrameCount());
+            for (int i = frames - 1; i >= 0; i--) {
+                assertEquals(1_000_000L * i, reader.getSensorTimestamp(i));
+                assertEquals(1_700_000_000_000L + i, reader.getWallClock(i));
+                assertEquals(10_000L + i, reader.getExposureTime(i));
+                assertEquals(100 + i, reader.getSensitivity(i));
+                assertEquals(i / 10f, reader.getFocusDistance(i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void framesAreDroppedWhenTheDiskFallsBehind() throws IOException {
+        File file = mFolder.newFile("video.mp4" + FrameMetadataWriter.SUFFIX);
+        ManualExecutor executor = new ManualExecutor();
+        FrameMetadataWriter writer = new FrameMetadataWriter(file, 4, executor);
+        // both batches are full and none is written yet.
+        for (int i = 0; i < 8; i++) {
+            assertTrue(writer.append(i, i, i, i, i));
+        }
+        assertFalse(writer.append(8, 8, 8, 8, 8));
+        assertEquals(1, writer.getDroppedFrames());
+
+        executor.runAll();
+        assertTrue(writer.append(9, 9, 9, 9, 9));
+        writer.close();
+        executor.runAll();
+        assertFalse(writer.append(10, 10, 10, 10, 10));
+
+        try (FrameMetadataReader reader = new FrameMetadataReader(file)) {
+            assertEquals(9, reader.getFrameCount());
+            assertEquals(7, reader.getSensorTimestamp(7));
+            assertEquals(9, reader.getSensorTimestamp(8));
+        }
+    }
+
+    @Test
+    public void emptyRecording() throws IOException {
+        File file = mFolder.newFile("video.mp4" + FrameMetadataWriter.SUFFIX);
+        ManualExecutor executor = new ManualExecutor();
+        FrameMetadataWriter writer = new FrameMetadataWriter(file, 4, executor);
+        writer.close();
+        executor.runAll();
+
+        try (FrameMetadataReader reader = new FrameMetadataReader(file)) {
+            assertEquals(0, reader.getFrameCount());
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyframeIndexTest {
+
+    private static final int TIMESCALE = 90_000;
+
+    /**
+     * The sync samples of {@link #recording}, 1-based.
+     */
+    private static final int[] SYNC_SAMPLES = {1, 5, 9};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] box(String type, byte[]... children) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            payload.writeBytes(child);
+        }
+        return ByteBuffer.allocate(8 + payload.size())
+                .putInt(8 + payload.size())
+                .put(type.getBytes(StandardCharsets.US_ASCII))
+                .put(payload.toByteArray())
+                .array();
+    }
+
+    private static byte[] fullBox(String type, int... fields) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * fields.length).putInt(0);
+        for (int field : fields) {
+            buffer.putInt(field);
+        }
+        return box(type, buffer.array());
+    }
+
+    private static byte[] trak(String handler, byte[] stbl) {
+        ByteBuffer mdhd = ByteBuffer.allocate(24).putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putInt(0);
+        ByteBuffer hdlr = ByteBuffer.allocate(24).putInt(0).putInt(0).put(handler.getBytes(StandardCharsets.US_ASCII));
+        return box("trak",
+                box("tkhd", new byte[84]),
+                box("mdia", box("mdhd", mdhd.array()), box("hdlr", hdlr.array()), box("minf", stbl)));
+    }
+
+    private static int sampleSize(int sample) {
+        return 100 + sample;
+    }
+
+    private static long presentationTimeUs(int sample) {
+        // two runs of stts, and a composition offset of 3000.
+        long decodeTime = sample < 5 ? 3000L * sample : 15_000 + 6000L * (sample - 5);
+        return (decodeTime + 3000) * 1_000_000 / TIMESCALE;
+    }
+
+    /**
+     * 10 video samples in 3 chunks of 4, 4 and 2, each filled with its number, with an audio chunk after each, and
+     * the moov at the end as the recorder writes it.
+     */
+    private File recording() throws IOException {
+        byte[] ftyp = box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), new byte[4]);
+        ByteArrayOutputStream samples = new ByteArrayOutputStream();
+        long mdatStart = ftyp.length + 8;
+        int[] chunkSizes = {4, 4, 2};
+        int[] videoChunks = new int[3];
+        int[] audioChunks = new int[3];
+        int sample = 0;
+        for (int chunk = 0; chunk < 3; chunk++) {
+            videoChunks[chunk] = (int) (mdatStart + samples.size());
+            for (int i = 0; i < chunkSizes[chunk]; i++, sample++) {
+                byte[] data = new byte[sampleSize(sample)];
+                Arrays.fill(data, (byte) (sample + 1));
+                samples.writeBytes(data);
+            }
+            audioChunks[chunk] = (int) (mdatStart + samples.size());
+            samples.writeBytes(new byte[50]);
+        }
+        byte[] mdat = box("mdat", samples.toByteArray());
+
+        int[] sizes = new int[2 + 10];
+        sizes[1] = 10;
+        for (int i = 0; i < 10; i++) {
+            sizes[2 + i] = sampleSize(i);
+        }
+        byte[] videoStbl = box("stbl",
+                box("stsd", new byte[8]),
+                fullBox("stts", 2, 5, 3000, 5, 6000),
+                fullBox("ctts", 1, 10, 3000),
+                fullBox("stss", 3, SYNC_SAMPLES[0], SYNC_SAMPLES[1], SYNC_SAMPLES[2]),
+                fullBox("stsc", 2, 1, 4, 1, 3, 2, 1),
+                fullBox("stsz", sizes),
+                fullBox("stco", 3, videoChunks[0], videoChunks[1], videoChunks[2]));
+        byte[] audioStbl = box("stbl",
+                box("stsd", new byte[8]),
+                fullBox("stts", 1, 3, 1024),
+                fullBox("stsc", 1, 1, 1, 1),
+                fullBox("stsz", 50, 3),
+                fullBox("stco", 3, audioChunks[0], audioChunks[1], audioChunks[2]));
+        byte[] moov = box("moov", box("mvhd", new byte[100]), trak("soun", audioStbl), trak("vide", videoStbl));
+
+        File file = mFolder.newFile("1-video.mp4");
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.writeBytes(ftyp);
+        content.writeBytes(mdat);
+        content.writeBytes(moov);
+        Files.write(file.toPath(), content.toByteArray());
+        return file;
+    }
+
+    private static void assertIndexesTheSyncSamples(File file) throws IOException {
+        KeyframeIndex index = KeyframeIndex.open(file);
+        assertNotNull(index);
+        assertEquals(SYNC_SAMPLES.length, index.size());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            for (int i = 0; i < SYNC_SAMPLES.length; i++) {
+                int sample = SYNC_SAMPLES[i] - 1;
+                assertEquals(presentationTimeUs(sample), index.getTimeUs(i));
+                randomAccessFile.seek(index.getOffset(i));
+                // the first byte of the sample is its number.
+                assertEquals(sample + 1, randomAccessFile.read());
+                randomAccessFile.seek(index.getOffset(i) + sampleSize(sample) - 1);
+                assertEquals(sample + 1, randomAccessFile.read());
+            }
+        }
+    }
+
+    @Test
+    public void buildsTheIndexFromTheSampleTables() throws IOException {
+        File file = recording();
+
+        assertTrue(KeyframeIndex.build(file));
+
+        assertIndexesTheSyncSamples(file);
+    }
+
+    @Test
+    public void buildsTheIndexWhileFinishing() throws IOException {
+        File file = recording();
+
+        RecordingFinisher.Staged staged = RecordingFinisher.newBuilder().build().finish(file);
+        assertTrue(staged.isMoved());
+        assertTrue(staged.replace(file));
+
+        assertIndexesTheSyncSamples(file);
+    }
+
+    @Test
+    public void refusesAFileWithoutVideo() throws IOException {
+        File file = mFolder.newFile("2-video.mp4");
+        Files.write(file.toPath(), box("ftyp", new byte[8]));
+
+        assertFalse(KeyframeIndex.build(file));
+        assertNull(KeyframeIndex.open(file));
+    }
+
+    @Test
+    public void findsTheKeyframeAtOrBeforeATime() throws IOException {
+        File file = new File(mFolder.getRoot(), "3-video.mp4");
+        try (KeyframeIndexWriter writer = new KeyframeIndexWriter(file)) {
+            // past the buffer of the writer.
+            for (int i = 0; i < 1000; i++) {
+                writer.add(i * 2_000_000L, 1000L + i * 500_000L);
+            }
+        }
+
+        KeyframeIndex index = KeyframeIndex.open(file);
+        assertNotNull(index);
+        assertEquals(1000, index.size());
+        assertEquals(0, index.find(-1));
+        assertEquals(0, index.find(0));
+        assertEquals(0, index.find(1_999_999));
+        assertEquals(1, index.find(2_000_000));
+        assertEquals(500, index.find(1_000_000_001));
+        assertEquals(999, index.find(Long.MAX_VALUE));
+        assertEquals(1000L + 500 * 500_000L, index.getOffset(500));
+    }
+
+    @Test
+    public void dropsKeyframesOutOfOrder() throws IOException {
+        File file = new File(mFolder.getRoot(), "4-video.mp4");
+        try (KeyframeIndexWriter writer = new KeyframeIndexWriter(file)) {
+            writer.add(1000, 10);
+            writer.add(500, 20);
+            writer.add(2000, 30);
+            assertEquals(2, writer.getCount());
+        }
+
+        KeyframeIndex index = KeyframeIndex.open(file);
+        assertNotNull(index);
+        assertEquals(2, index.size());
+        assertEquals(30, index.getOffset(1));
+    }
+
+    @Test
+    public void ignoresAPartialEntryLeftByACrash() throws IOException {
+        File file = new File(mFolder.getRoot(), "5-video.mp4");
+        try (KeyframeIndexWriter writer = new KeyframeIndexWriter(file)) {
+            writer.add(1000, 10);
+            writer.add(2000, 20);
+        }
+        File indexFile = KeyframeIndex.indexFile(file);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "rw")) {
+            randomAccessFile.setLength(indexFile.length() - 5);
+        }
+
+        KeyframeIndex index = KeyframeIndex.open(file);
+        assertNotNull(index);
+        assertEquals(1, index.size());
+        assertNull(KeyframeIndex.open(new File(mFolder.getRoot(), "6-video.mp4")));
+    }
+
+}
@@ -0,0 +1,289 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4FaststartTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] box(String type, byte[]... children) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            payload.writeBytes(child);
+        }
+        return ByteBuffer.allocate(8 + payload.size())
+                .putInt(8 + payload.size())
+                .put(type.getBytes(StandardCharsets.US_ASCII))
+                .put(payload.toByteArray())
+                .array();
+    }
+
+    private static byte[] stco(long... offsets) {
+        ByteBuffer fields = ByteBuffer.allocate(8 + 4 * offsets.length).putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            fields.putInt((int) offset);
+        }
+        return box("stco", fields.array());
+    }
+
+    private static byte[] trak(long... offsets) {
+        return box("trak",
+                box("tkhd", new byte[84]),
+                box("mdia",
+                        box("mdhd", new byte[24]),
+                        box("minf",
+                                box("stbl",
+                                        box("stsd", new byte[8]),
+                                        stco(offsets)))));
+    }
+
+    /**
+     * The layout of the recorder: ftyp, mdat with the samples of two tracks interleaved, then moov.
+     */
+    private File recording(String name, int chunks) throws IOException {
+        byte[] ftyp = box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), new byte[4]);
+        byte[] samples = new byte[chunks * 2 * 100];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (byte) (i / 100 + 1);
+        }
+        byte[] mdat = box("mdat", samples);
+        long first = ftyp.length + 8;
+        long[] video = new long[chunks];
+        long[] audio = new long[chunks];
+        for (int i = 0; i < chunks; i++) {
+            video[i] = first + i * 200L;
+            audio[i] = first + i * 200L + 100;
+        }
+        byte[] moov = box("moov", box("mvhd", new byte[100]), trak(video), trak(audio), box("udta", new byte[12]));
+
+        File file = mFolder.newFile(name);
+        Files.write(file.toPath(), concat(ftyp, mdat, moov));
+        return file;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            output.writeBytes(part);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the offsets of every stco or co64, in order.
+     */
+    private static List<Long> chunkOffsets(ByteBuffer boxes) {
+        List<Long> offsets = new ArrayList<>();
+        while (boxes.remaining() >= 8) {
+            int start = boxes.position();
+            int size = boxes.getInt(start);
+            String type = new String(new byte[]{boxes.get(start + 4), boxes.get(start + 5), boxes.get(start + 6), boxes.get(start + 7)}, StandardCharsets.US_ASCII);
+            if (type.equals("stco") || type.equals("co64")) {
+                int count = boxes.getInt(start + 12);
+                for (int i = 0; i < count; i++) {
+                    offsets.add(type.equals("co64") ? boxes.getLong(start + 16 + 8 * i) : boxes.getInt(start + 16 + 4 * i) & 0xFFFFFFFFL);
+                }
+            } else if (List.of("moov", "trak", "mdia", "minf", "stbl").contains(type)) {
+                ByteBuffer children = boxes.duplicate();
+                children.limit(start + size).position(start + 8);
+                offsets.addAll(chunkOffsets(children));
+            }
+            boxes.position(start + size);
+        }
+        return offsets;
+    }
+
+    private static List<Long> chunkOffsets(File file) throws IOException {
+        return chunkOffsets(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    private static List<Mp4Faststart.Box> boxes(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Mp4Faststart.readBoxes(channel);
+        }
+    }
+
+    /**
+     * Lays the file out as the finisher does, its copy replaces the file.
+     */
+    private static boolean faststart(File file) throws IOException {
+        RecordingFinisher.Staged staged = RecordingFinisher.newBuilder().build().finish(file);
+        assertTrue(staged.replace(file));
+        return staged.isMoved();
+    }
+
+    @Test
+    public void movesMoovInFrontOfTheData() throws IOException {
+        File file = recording("1-video.mp4", 5);
+        byte[] before = Files.readAllBytes(file.toPath());
+        List<Long> oldOffsets = chunkOffsets(file);
+
+        assertTrue(faststart(file));
+
+        byte[] after = Files.readAllBytes(file.toPath());
+        assertEquals(before.length, after.length);
+        List<Mp4Faststart.Box> boxes = boxes(file);
+        assertNotNull(boxes);
+        assertEquals(Mp4Faststart.fourCc("ftyp"), boxes.get(0).type);
+        assertEquals(Mp4Faststart.TYPE_MOOV, boxes.get(1).type);
+        assertEquals(Mp4Faststart.TYPE_MDAT, boxes.get(2).type);
+
+        // every chunk offset still points at the same sample.
+        List<Long> newOffsets = chunkOffsets(file);
+        assertEquals(oldOffsets.size(), newOffsets.size());
+        for (int i = 0; i < oldOffsets.size(); i++) {
+            assertEquals(oldOffsets.get(i) + boxes.get(1).size, (long) newOffsets.get(i));
+            byte[] oldSample = new byte[100];
+            byte[] newSample = new byte[100];
+            System.arraycopy(before, (int) (long) oldOffsets.get(i), oldSample, 0, 100);
+            System.arraycopy(after, (int) (long) newOffsets.get(i), newSample, 0, 100);
+            assertArrayEquals(oldSample, newSample);
+        }
+        assertFalse(new File(file.getPath() + RecordingFinisher.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void leavesAFaststartFileAlone() throws IOException {
+        File file = recording("2-video.mp4", 3);
+        assertTrue(faststart(file));
+        byte[] once = Files.readAllBytes(file.toPath());
+        assertFalse(faststart(file));
+        assertArrayEquals(once, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void leavesATruncatedFileAlone() throws IOException {
+        File file = recording("3-video.mp4", 3);
+        byte[] whole = Files.readAllBytes(file.toPath());
+        byte[] truncated = new byte[whole.length - 50];
+        System.arraycopy(whole, 0, truncated, 0, truncated.length);
+        Files.write(file.toPath(), truncated);
+
+        assertFalse(faststart(file));
+        assertArrayEquals(truncated, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void dropsTheSidecarsOfTheOldBytes() throws IOException {
+        File file = recording("4-video.mp4", 3);
+        File staleIndex = new File(file.getPath() + KeyframeIndex.SUFFIX);
+        Files.write(staleIndex.toPath(), new byte[10]);
+
+        RecordingFinisher.Staged staged = RecordingFinisher.newBuilder().build().finish(file);
+        assertTrue(new File(file.getPath() + RecordingFinisher.TEMP_SUFFIX).exists());
+        assertTrue(staged.replace(file));
+
+        // no video track to index, the old index is of other offsets.
+        assertFalse(staleIndex.exists());
+        assertFalse(new File(file.getPath() + RecordingFinisher.TEMP_SUFFIX).exists());
+        assertEquals(file.length(), staged.getMetrics().bytesWritten);
+    }
+
+    @Test
+    public void discardsTheCopyOfARecordingThatIsGone() throws IOException {
+        File file = recording("5-video.mp4", 3);
+        RecordingFinisher.Staged staged = RecordingFinisher.newBuilder().build().finish(file);
+        assertTrue(file.delete());
+
+        assertFalse(staged.replace(file));
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + RecordingFinisher.TEMP_SUFFIX).exists());
+        assertFalse(new File(file.getPath() + RecordingFinisher.TEMP_SUFFIX + KeyframeIndex.SUFFIX).exists());
+    }
+
+    @Test
+    public void deletesOnlyTheLeftoversOfItsInputs() throws IOException {
+        File leftover = mFolder.newFile("6-video.mp4" + RecordingFinisher.TEMP_SUFFIX);
+        File other = mFolder.newFile("6-video.mp4.compacting" + RecordingFinisher.TEMP_SUFFIX);
+
+        RecordingFinisher.deleteLeftovers(mFolder.getRoot(), RecordingStorage.SUFFIX);
+
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void encryptsWhatItLaysOut() throws Exception {
+        File plain = recording("7-video.mp4", 5);
+        File encrypted = new File(mFolder.getRoot(), "8-video.mp4");
+        Files.copy(plain.toPath(), encrypted.toPath());
+        RecordingCipherTest.TestKeyWrapper wrapper = new RecordingCipherTest.TestKeyWrapper();
+
+        faststart(plain);
+        RecordingFinisher.Staged staged = RecordingFinisher.newBuilder().keyWrapper(wrapper).build().finish(encrypted);
+        assertTrue(staged.isMoved());
+        assertTrue(staged.replace(encrypted));
+
+        byte[] expected = Files.readAllBytes(plain.toPath());
+        try (EncryptedRecordingReader reader = EncryptedRecordingReader.open(encrypted, wrapper)) {
+            ByteBuffer plaintext = ByteBuffer.allocate((int) reader.size());
+            while (reader.read(plaintext) > 0) {
+                // reads on.
+            }
+            assertArrayEquals(expected, plaintext.array());
+        }
+    }
+
+    @Test
+    public void readsEveryKindOfBoxHeader() {
+        ByteBuffer boxes = ByteBuffer.allocate(64);
+        // a 64-bit size, a placeholder of 0 and one cut off.
+        boxes.putInt(1).putInt(Mp4Faststart.TYPE_MDAT).putLong(24).putLong(0);
+        boxes.putInt(0).putInt(Mp4Faststart.TYPE_MOOV);
+        boxes.flip();
+
+        Mp4Faststart.Box mdat = Mp4Faststart.readBox(boxes, 0);
+        assertNotNull(mdat);
+        assertEquals(Mp4Faststart.TYPE_MDAT, mdat.type);
+        assertEquals(24, mdat.size);
+        assertEquals(16, mdat.headerSize);
+        assertTrue(mdat.fitsIn(boxes.limit()));
+
+        Mp4Faststart.Box moov = Mp4Faststart.readBox(boxes, 24);
+        assertNotNull(moov);
+        assertEquals(8, moov.size);
+        assertEquals(boxes.limit(), moov.end());
+
+        boxes.limit(28);
+        assertNull(Mp4Faststart.readBox(boxes, 24));
+        boxes.limit(8);
+        assertNull(Mp4Faststart.readBox(boxes, 0));
+    }
+
+    @Test
+    public void turnsStcoIntoCo64WhenTheOffsetsOutgrowIt() {
+        byte[] moov = box("moov", box("mvhd", new byte[100]), trak(0xFFFFFF00L, 0xFFFFFFF0L));
+        // the data starts at 32, so the moved offsets pass 4GB.
+        ByteBuffer stco = Mp4Faststart.relocate(ByteBuffer.wrap(moov), 32, 0x100000000L + 64, false);
+        assertNull(stco);
+
+        ByteBuffer co64 = Mp4Faststart.relocate(ByteBuffer.wrap(moov), 32, 0x100000000L + 64, true);
+        assertNotNull(co64);
+        // two entries grow by 4 bytes each, and so do all the containers.
+        assertEquals(moov.length + 8, co64.remaining());
+        assertEquals(moov.length + 8, co64.getInt(0));
+        assertEquals(List.of(0xFFFFFF00L + moov.length + 8, 0xFFFFFFF0L + moov.length + 8), chunkOffsets(co64.duplicate()));
+    }
+
+}
@@ -0,0 +1,112 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressStreamTest {
+
+    private static CapturingProgress progress(long elapsedMs) {
+        return new CapturingProgress(elapsedMs, elapsedMs * 1000, 29.5f, elapsedMs / 1000);
+    }
+
+    /**
+     * Records every batch as the elapsed times of its samples.
+     */
+    private static final class Recorder implements FloatingCameraConnection.ProgressListener {
+
+        final List<List<Long>> mBatches = new ArrayList<>();
+
+        @Override
+        public void onCapturingProgress(String sessionId, List<CapturingProgress> batch) {
+            List<Long> elapsed = new ArrayList<>();
+            for (CapturingProgress progress : batch) {
+                elapsed.add(progress.elapsedMs);
+            }
+            mBatches.add(elapsed);
+        }
+
+    }
+
+    @Test
+    public void batchesAtTheSubscribersInterval() {
+        ProgressStream stream = new ProgressStream();
+        Recorder everySecond = new Recorder();
+        Recorder everyThreeSeconds = new Recorder();
+        stream.subscribe("1", everySecond, 0);
+        stream.subscribe("1", everyThreeSeconds, 3000);
+
+        for (long now = 1000; now <= 5000; now += 1000) {
+            stream.onSample("1", progress(now), now);
+        }
+        assertEquals(5, everySecond.mBatches.size());
+        assertEquals(Arrays.asList(
+                Arrays.asList(1000L),
+                Arrays.asList(2000L, 3000L, 4000L)
+        ), everyThreeSeconds.mBatches);
+
+        // the rest comes with the end of the session.
+        stream.endSession("1");
+        assertEquals(Arrays.asList(5000L), everyThreeSeconds.mBatches.get(2));
+        assertEquals(5, everySecond.mBatches.size());
+        assertFalse(stream.hasSubscribers("1"));
+    }
+
+    @Test
+    public void subscriptionsArePerSession() {
+        ProgressStream stream = new ProgressStream();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        stream.subscribe("1", first, 1000);
+        stream.subscribe("2", second, 1000);
+
+        stream.onSample("1", progress(1000), 1000);
+        assertEquals(1, first.mBatches.size());
+        assertEquals(0, second.mBatches.size());
+
+        stream.unsubscribe("1", first);
+        stream.onSample("1", progress(2000), 2000);
+        assertEquals(1, first.mBatches.size());
+        assertFalse(stream.hasSubscribers("1"));
+        assertTrue(stream.hasSubscribers("2"));
+
+        // subscribing again replaces the subscription.
+        stream.subscribe("2", second, 5000);
+        stream.subscribe("2", second, 1000);
+        stream.onSample("2", progress(1000), 1000);
+        stream.onSample("2", progress(2000), 2000);
+        assertEquals(2, second.mBatches.size());
+
+        stream.unsubscribeAll(second);
+        assertFalse(stream.hasSubscribers("2"));
+    }
+
+    @Test
+    public void encodesBatchesCompactly() {
+        List<CapturingProgress> batch = Arrays.asList(progress(1000), new CapturingProgress(2000, Long.MAX_VALUE, 0.25f, 7));
+        byte[] bytes = CapturingProgress.encode(batch);
+        assertEquals(2 * CapturingProgress.RECORD_SIZE, bytes.length);
+
+        List<CapturingProgress> decoded = CapturingProgress.decode(bytes);
+        assertEquals(2, decoded.size());
+        assertEquals(1000, decoded.get(0).elapsedMs);
+        assertEquals(1_000_000, decoded.get(0).bytesWritten);
+        assertEquals(29.5f, decoded.get(0).effectiveFps, 0);
+        assertEquals(1, decoded.get(0).droppedFrames);
+        assertEquals(Long.MAX_VALUE, decoded.get(1).bytesWritten);
+        assertEquals(0.25f, decoded.get(1).effectiveFps, 0);
+        assertEquals(7, decoded.get(1).droppedFrames);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedBatches() {
+        CapturingProgress.decode(new byte[CapturingProgress.RECORD_SIZE + 3]);
+    }
+
+}
@@ -0,0 +1,91 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cost of {@link RecordingCipher} on the write path, prints the throughput of plain and encrypted writes through
+ * {@link AsyncFileWriter}, where AES-CTR runs on the stage thread beside the writes, and what AES-CTR alone sustains.
+ */
+public class RecordingCipherBenchmark {
+
+    private static final int FILE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * About what an encoder hands out per frame at a high bit rate.
+     */
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void plainVersusEncrypted() throws Exception {
+        RecordingCipher.KeyWrapper wrapper = new RecordingCipherTest.TestKeyWrapper();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        for (int i = 0; i < CHUNK_BYTES; i++) {
+            chunk.put(i, (byte) (i * 31));
+        }
+
+        // the first round warms up.
+        long plainNs = 0;
+        long encryptedNs = 0;
+        AsyncFileWriter.Metrics metrics = null;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long plain = writePlain(chunk);
+            long start = System.nanoTime();
+            AsyncFileWriter writer = RecordingCipher.open(builder(), wrapper);
+            fill(writer, chunk);
+            writer.close();
+            long encrypted = System.nanoTime() - start;
+            if (round > 0) {
+                plainNs += plain;
+                encryptedNs += encrypted;
+                metrics = writer.getMetrics();
+            }
+        }
+
+        // with a single CPU the stage can't overlap the writes.
+        System.out.printf("AsyncFileWriter %d MB on %d CPUs: plain %.0f MB/s, AES-CTR %.0f MB/s (%.0f%% slower), AES-CTR alone %.0f MB/s%n",
+                FILE_BYTES >> 20,
+                Runtime.getRuntime().availableProcessors(),
+                mbPerSecond(FILE_BYTES * (long) ROUNDS, plainNs),
+                mbPerSecond(FILE_BYTES * (long) ROUNDS, encryptedNs),
+                100.0 * (encryptedNs - plainNs) / plainNs,
+                mbPerSecond(metrics.bytesWritten, metrics.transformNs));
+        assertTrue(metrics.bytesWritten > FILE_BYTES);
+    }
+
+    private AsyncFileWriter.Builder builder() throws IOException {
+        File file = new File(mFolder.getRoot(), "benchmark-video.mp4");
+        return AsyncFileWriter.newBuilder().file(file).fsyncPolicy(AsyncFileWriter.FSYNC_NEVER);
+    }
+
+    private long writePlain(ByteBuffer chunk) throws IOException {
+        long start = System.nanoTime();
+        AsyncFileWriter writer = builder().build();
+        fill(writer, chunk);
+        writer.close();
+        return System.nanoTime() - start;
+    }
+
+    private static void fill(AsyncFileWriter writer, ByteBuffer chunk) throws IOException {
+        for (int written = 0; written < FILE_BYTES; written += CHUNK_BYTES) {
+            writer.write(chunk.duplicate());
+        }
+    }
+
+    private static double mbPerSecond(long bytes, long ns) {
+        return ns == 0 ? 0 : bytes / 1048576.0 * 1e9 / ns;
+    }
+
+}
@@ -0,0 +1,230 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordingCipherTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * What {@link KeystoreKeyWrapper} does, with a key in memory.
+     */
+    static final class TestKeyWrapper implements RecordingCipher.KeyWrapper {
+
+        private final SecretKey mKey;
+
+        TestKeyWrapper() throws GeneralSecurityException {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256);
+            mKey = generator.generateKey();
+        }
+
+        @Override
+        public byte[] wrap(SecretKey key) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, mKey);
+            byte[] iv = cipher.getIV();
+            byte[] encrypted = cipher.doFinal(key.getEncoded());
+            return ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+        }
+
+        @Override
+        public SecretKey unwrap(byte[] wrappedKey) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(128, wrappedKey, 0, 12));
+            return new SecretKeySpec(cipher.doFinal(wrappedKey, 12, wrappedKey.length - 12), "AES");
+        }
+
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    private File record(byte[] data, RecordingCipher.KeyWrapper wrapper, AsyncFileWriter.Observer observer) throws IOException {
+        File file = new File(mFolder.getRoot(), "1-video.mp4");
+        AsyncFileWriter writer = RecordingCipher.open(AsyncFileWriter.newBuilder()
+                .file(file)
+                .bufferSize(AsyncFileWriter.BLOCK_SIZE)
+                .bufferCount(3)
+                .observer(observer), wrapper);
+        for (int offset = 0; offset < data.length; offset += 777) {
+            writer.write(ByteBuffer.wrap(data, offset, Math.min(777, data.length - offset)));
+        }
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void writesNoPlaintext() throws Exception {
+        byte[] data = data(50_000);
+        File file = record(data, new TestKeyWrapper(), null);
+
+        byte[] written = Files.readAllBytes(file.toPath());
+        int headerSize = written.length - data.length;
+        assertTrue(headerSize > 0);
+        byte[] encrypted = Arrays.copyOfRange(written, headerSize, written.length);
+        int same = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (encrypted[i] == data[i]) {
+                same++;
+            }
+        }
+        // about 1 in 256 by chance.
+        assertTrue(same < data.length / 100);
+    }
+
+    @Test
+    public void encryptsARecordingWhileFinishingIt() throws Exception {
+        // more than a buffer of the finisher.
+        byte[] data = data(1_500_000);
+        File file = mFolder.newFile("2-video.mp4");
+        Files.write(file.toPath(), data);
+        TestKeyWrapper wrapper = new TestKeyWrapper();
+        RecordingFinisher finisher = RecordingFinisher.newBuilder().keyWrapper(wrapper).build();
+
+        assertFalse(RecordingCipher.isEncrypted(file));
+        assertTrue(finisher.finish(file).replace(file));
+
+        assertTrue(RecordingCipher.isEncrypted(file));
+        try (EncryptedRecordingReader reader = EncryptedRecordingReader.open(file, wrapper)) {
+            assertEquals(data.length, reader.size());
+            ByteBuffer plaintext = ByteBuffer.allocate(data.length);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(4096);
+            while (reader.read(chunk) > 0) {
+                chunk.flip();
+                plaintext.put(chunk);
+                chunk.clear();
+            }
+            assertArrayEquals(data, plaintext.array());
+        }
+        try {
+            finisher.finish(file);
+            fail("finished twice");
+        } catch (IOException expected) {
+            assertFalse(new File(file.getPath() + RecordingFinisher.TEMP_SUFFIX).exists());
+        }
+    }
+
+    @Test
+    public void readsBackEverything() throws Exception {
+        byte[] data = data(50_000);
+        TestKeyWrapper wrapper = new TestKeyWrapper();
+        File file = record(data, wrapper, null);
+
+        try (EncryptedRecordingReader reader = EncryptedRecordingReader.open(file, wrapper)) {
+            assertEquals(data.length, reader.size());
+            ByteBuffer plaintext = ByteBuffer.allocate(data.length);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1000);
+            while (reader.read(chunk) > 0) {
+                chunk.flip();
+                plaintext.put(chunk);
+                chunk.clear();
+            }
+            assertArrayEquals(data, plaintext.array());
+            assertEquals(data.length, reader.position());
+            assertEquals(-1, reader.read(chunk));
+        }
+    }
+
+    @Test
+    public void seeksAnywhere() throws Exception {
+        byte[] data = data(50_000);
+        TestKeyWrapper wrapper = new TestKeyWrapper();
+        File file = record(data, wrapper, null);
+
+        try (EncryptedRecordingReader reader = EncryptedRecordingReader.open(file, wrapper)) {
+            // backwards, inside blocks and across them.
+            long[] positions = {40_001, 17, 4095, 0, 12_345, 49_990};
+            for (long position : positions) {
+                ByteBuffer buffer = ByteBuffer.allocate(33);
+                int read = reader.read(buffer, position);
+                assertEquals(Math.min(33, data.length - position), read);
+                assertArrayEquals(Arrays.copyOfRange(data, (int) position, (int) position + read),
+                        Arrays.copyOf(buffer.array(), read));
+            }
+            reader.position(1000);
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            reader.read(buffer);
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, 1010), buffer.array());
+            assertEquals(1010, reader.position());
+        }
+    }
+
+    @Test
+    public void rejectsAnotherKey() throws Exception {
+        File file = record(data(1000), new TestKeyWrapper(), null);
+
+        try {
+            EncryptedRecordingReader.open(file, new TestKeyWrapper()).close();
+            fail();
+        } catch (IOException expected) {
+            // the wrapped key doesn't authenticate.
+        }
+    }
+
+    @Test
+    public void rejectsAPlainFile() throws Exception {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), data(1000));
+
+        try {
+            EncryptedRecordingReader.open(file, new TestKeyWrapper()).close();
+            fail();
+        } catch (IOException expected) {
+            // no magic.
+        }
+    }
+
+    @Test
+    public void theManifestCoversTheEncryptedFile() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyPair keyPair = generator.generateKeyPair();
+        File file = new File(mFolder.getRoot(), "1-video.mp4");
+        record(data(30_000), new TestKeyWrapper(), new RecordingHasher(file, 8192, keyPair.getPrivate()));
+
+        assertTrue(RecordingManifest.verify(file, keyPair.getPublic(), 2).isVerified());
+    }
+
+    @Test
+    public void countsCarriesInTheCounter() {
+        byte[] nonce = new byte[RecordingCipher.BLOCK_SIZE];
+        Arrays.fill(nonce, 8, 16, (byte) 0xFF);
+        byte[] counter = RecordingCipher.counter(nonce, 1);
+
+        byte[] expected = new byte[RecordingCipher.BLOCK_SIZE];
+        expected[7] = 1;
+        assertArrayEquals(expected, counter);
+        assertFalse(Arrays.equals(nonce, RecordingCipher.counter(nonce, 1L << 40)));
+    }
+
+}
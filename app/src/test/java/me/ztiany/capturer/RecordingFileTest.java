@@ -0,0 +1,120 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecordingFileTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Allocates by extending the file, what {@code posix_fallocate} looks like from Java.
+     */
+    private static final RecordingFile.Allocator EXTEND = (fd, length) -> {
+        // not closed, the descriptor belongs to the recording file.
+        FileOutputStream output = new FileOutputStream(fd);
+        output.getChannel().write(ByteBuffer.allocate(1), length - 1);
+    };
+
+    private static byte[] box(String type, int size) {
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size).put(type.getBytes(StandardCharsets.US_ASCII));
+        return box.array();
+    }
+
+    /**
+     * Writes as the recorder does, from the start of the file.
+     */
+    private static long record(RecordingFile recordingFile, byte[]... boxes) throws IOException {
+        long length = 0;
+        try (RandomAccessFile file = new RandomAccessFile(recordingFile.getFile(), "rw")) {
+            for (byte[] box : boxes) {
+                file.write(box);
+                length += box.length;
+            }
+        }
+        return length;
+    }
+
+    @Test
+    public void truncatesToTheRecordedBoxes() throws IOException {
+        File file = mFolder.newFile("1-video.mp4");
+        RecordingFile recordingFile = RecordingFile.open(file, 1 << 20, EXTEND);
+        assertEquals(1 << 20, recordingFile.getPreallocatedBytes());
+        assertEquals(1 << 20, file.length());
+
+        long length = record(recordingFile, box("ftyp", 24), box("mdat", 5000), box("moov", 700));
+        recordingFile.close();
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void tellsWhatIsWrittenWhileRecording() throws IOException {
+        File file = mFolder.newFile("5-video.mp4");
+        RecordingFile recordingFile = RecordingFile.open(file, 1 << 20, EXTEND);
+        // the recorder's descriptor shares the offset with the recording file's.
+        FileOutputStream recorder = new FileOutputStream(recordingFile.getFileDescriptor());
+        recorder.write(box("ftyp", 24));
+        recorder.write(box("mdat", 1000));
+        assertEquals(1 << 20, file.length());
+        assertEquals(1024, recordingFile.getWrittenBytes());
+
+        // filling in the size of mdat doesn't go back.
+        recorder.getChannel().position(24);
+        recorder.write(box("mdat", 1000), 0, 8);
+        assertEquals(1024, recordingFile.getWrittenBytes());
+
+        recordingFile.close();
+        assertEquals(1024, recordingFile.getWrittenBytes());
+    }
+
+    @Test
+    public void keepsTheFileWithoutPreallocation() throws IOException {
+        File file = mFolder.newFile("2-video.mp4");
+        RecordingFile recordingFile = RecordingFile.open(file, 0, (fd, length) -> {
+            throw new AssertionError("nothing to allocate");
+        });
+        record(recordingFile, box("ftyp", 24), box("mdat", 100));
+        recordingFile.close();
+        assertEquals(124, file.length());
+    }
+
+    @Test
+    public void failedAllocationIsNotAnError() throws IOException {
+        File file = mFolder.newFile("3-video.mp4");
+        RecordingFile recordingFile = RecordingFile.open(file, 1 << 20, (fd, length) -> {
+            throw new IOException("EOPNOTSUPP");
+        });
+        assertEquals(0, recordingFile.getPreallocatedBytes());
+        assertEquals(0, file.length());
+        recordingFile.close();
+    }
+
+    @Test
+    public void stopsAtTheFirstBrokenBox() throws IOException {
+        File file = mFolder.newFile("4-video.mp4");
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(box("ftyp", 24));
+            output.write(box("mdat", 100));
+            // a box that runs past the end of the file.
+            output.write(box("moov", 8));
+            output.seek(124);
+            output.writeInt(1000);
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            assertEquals(124, RecordingFile.findEndOfBoxes(input.getChannel()));
+        }
+    }
+
+}
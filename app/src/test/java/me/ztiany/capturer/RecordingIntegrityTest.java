@@ -0,0 +1,196 @@
+package me.ztiany.capturer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordingIntegrityTest {
+
+    private static final int SEGMENT_SIZE = 10_000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private KeyPair mKeyPair;
+
+    @Before
+    public void setUp() throws GeneralSecurityException {
+        mKeyPair = newKeyPair();
+    }
+
+    private static KeyPair newKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    private File record(byte[] data) throws IOException {
+        File file = new File(mFolder.getRoot(), "1-video.mp4");
+        AsyncFileWriter writer = AsyncFileWriter.newBuilder()
+                .file(file)
+                // the buffers don't line up with the segments.
+                .bufferSize(AsyncFileWriter.BLOCK_SIZE)
+                .bufferCount(3)
+                .observer(new RecordingHasher(file, SEGMENT_SIZE, mKeyPair.getPrivate()))
+                .build();
+        for (int offset = 0; offset < data.length; offset += 777) {
+            writer.write(ByteBuffer.wrap(data, offset, Math.min(777, data.length - offset)));
+        }
+        writer.close();
+        return file;
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(position);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(value ^ 0x01);
+        }
+    }
+
+    @Test
+    public void hashesTheSegmentsAsTheyAreWritten() throws Exception {
+        byte[] data = data(45_000);
+        File file = record(data);
+
+        RecordingManifest manifest = RecordingManifest.read(file);
+        assertNotNull(manifest);
+        assertEquals(data.length, manifest.length);
+        assertEquals(5, manifest.segmentHashes.size());
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] chain = new byte[32];
+        for (int i = 0; i < 5; i++) {
+            byte[] expected = digest.digest(Arrays.copyOfRange(data, i * SEGMENT_SIZE, Math.min((i + 1) * SEGMENT_SIZE, data.length)));
+            assertArrayEquals(expected, manifest.segmentHashes.get(i));
+            digest.update(chain);
+            chain = digest.digest(expected);
+        }
+        assertArrayEquals(chain, manifest.chain);
+    }
+
+    @Test
+    public void signsARecordingWhileFinishingIt() throws Exception {
+        byte[] data = data(45_000);
+        // written by someone else, e.g. the recorder.
+        File file = new File(mFolder.getRoot(), "2-video.mp4");
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+        File stale = RecordingManifest.manifestFile(file);
+        try (FileOutputStream output = new FileOutputStream(stale)) {
+            output.write(new byte[10]);
+        }
+
+        RecordingFinisher finisher = RecordingFinisher.newBuilder().signingKey(mKeyPair.getPrivate()).build();
+        assertTrue(finisher.finish(file).replace(file));
+
+        RecordingManifest manifest = RecordingManifest.read(file);
+        assertNotNull(manifest);
+        assertEquals(data.length, manifest.length);
+        assertTrue(RecordingManifest.verify(file, mKeyPair.getPublic(), 2).isVerified());
+    }
+
+    @Test
+    public void verifiesAnUntouchedRecording() throws IOException {
+        File file = record(data(45_000));
+
+        assertTrue(RecordingManifest.verify(file, mKeyPair.getPublic(), 1).isVerified());
+        assertTrue(RecordingManifest.verify(file, mKeyPair.getPublic(), 4).isVerified());
+    }
+
+    @Test
+    public void verifiesAnEmptyRecording() throws IOException {
+        File file = record(new byte[0]);
+
+        assertTrue(RecordingManifest.verify(file, mKeyPair.getPublic(), 2).isVerified());
+    }
+
+    @Test
+    public void findsTheFirstModifiedSegment() throws IOException {
+        File file = record(data(45_000));
+        flipByte(file, 3 * SEGMENT_SIZE + 5);
+        flipByte(file, 4 * SEGMENT_SIZE + 5);
+
+        RecordingManifest.Result result = RecordingManifest.verify(file, mKeyPair.getPublic(), 4);
+        assertEquals(RecordingManifest.MODIFIED_SEGMENT, result.status);
+        assertEquals(3, result.segment);
+    }
+
+    @Test
+    public void rejectsAModifiedManifest() throws IOException {
+        File file = record(data(45_000));
+        // in the hash of the first segment.
+        flipByte(RecordingManifest.manifestFile(file), 20 + 3);
+
+        assertEquals(RecordingManifest.BAD_SIGNATURE, RecordingManifest.verify(file, mKeyPair.getPublic(), 2).status);
+    }
+
+    @Test
+    public void rejectsAnotherKey() throws Exception {
+        File file = record(data(45_000));
+
+        assertEquals(RecordingManifest.BAD_SIGNATURE, RecordingManifest.verify(file, newKeyPair().getPublic(), 2).status);
+    }
+
+    @Test
+    public void rejectsACutRecording() throws IOException {
+        File file = record(data(45_000));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(40_000);
+        }
+
+        assertEquals(RecordingManifest.LENGTH_MISMATCH, RecordingManifest.verify(file, mKeyPair.getPublic(), 2).status);
+    }
+
+    @Test
+    public void rejectsAMissingManifest() throws IOException {
+        File file = record(data(1000));
+        assertTrue(RecordingManifest.manifestFile(file).delete());
+
+        assertEquals(RecordingManifest.BAD_MANIFEST, RecordingManifest.verify(file, mKeyPair.getPublic(), 2).status);
+    }
+
+    @Test
+    public void writesNoManifestForAFailedRecording() throws IOException {
+        File file = new File(mFolder.getRoot(), "2-video.mp4");
+        RecordingHasher hasher = new RecordingHasher(file, SEGMENT_SIZE, mKeyPair.getPrivate());
+        hasher.onWrite(ByteBuffer.wrap(data(100)), 0);
+        try {
+            hasher.onWrite(ByteBuffer.wrap(data(100)), 200);
+            fail();
+        } catch (IOException expected) {
+            // a gap.
+        }
+        assertFalse(RecordingManifest.manifestFile(file).exists());
+    }
+
+}
@@ -0,0 +1,228 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingRecoveryTest {
+
+    private static final RecordingRecovery.Info INFO = new RecordingRecovery.Info(640, 480, 30, 90);
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1E, 0x11};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A slice NAL unit, the first of its picture or not, with a payload of some bytes.
+     */
+    private static byte[] slice(boolean idr, boolean firstOfPicture, int payload) {
+        byte[] nal = new byte[2 + payload];
+        nal[0] = (byte) (idr ? 0x65 : 0x41);
+        nal[1] = (byte) (firstOfPicture ? 0x88 : 0x20);
+        for (int i = 2; i < nal.length; i++) {
+            nal[i] = (byte) (i | 0x10);
+        }
+        return nal;
+    }
+
+    private static byte[] lengthPrefixed(byte[]... nals) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            output.writeBytes(ByteBuffer.allocate(4).putInt(nal.length).array());
+            output.writeBytes(nal);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            output.writeBytes(new byte[]{0, 0, 0, 1});
+            output.writeBytes(nal);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * What the recorder leaves when it is killed: ftyp and an mdat with a placeholder size, then the samples up to
+     * where the writing stopped, then zeros of the preallocated space.
+     */
+    private File truncated(String name, byte[] samples, int cut, int zeros) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.writeBytes(ByteBuffer.allocate(24).putInt(24).put("ftypisom".getBytes(StandardCharsets.US_ASCII)).array());
+        output.writeBytes(ByteBuffer.allocate(16).putInt(1).put("mdat".getBytes(StandardCharsets.US_ASCII)).putLong(0x3F3F3F3F3F3F3F3FL).array());
+        output.write(samples, 0, samples.length - cut);
+        output.writeBytes(new byte[zeros]);
+        File file = new File(mFolder.getRoot(), name + RecordingStorage.SUFFIX);
+        Files.write(file.toPath(), output.toByteArray());
+        RecordingRecovery.writeInfo(file, INFO);
+        return file;
+    }
+
+    /**
+     * Finds a box by its path from the top level.
+     */
+    private static ByteBuffer find(ByteBuffer boxes, String... path) {
+        ByteBuffer level = boxes.duplicate();
+        for (int depth = 0; depth < path.length; depth++) {
+            boolean found = false;
+            while (level.remaining() >= 8) {
+                int start = level.position();
+                long size = level.getInt(start) & 0xFFFFFFFFL;
+                int headerSize = 8;
+                if (size == 1) {
+                    size = level.getLong(start + 8);
+                    headerSize = 16;
+                }
+                if (level.getInt(start + 4) == Mp4Faststart.fourCc(path[depth])) {
+                    ByteBuffer box = level.duplicate();
+                    box.limit((int) (start + size)).position(start + headerSize);
+                    level = box.slice();
+                    found = true;
+                    break;
+                }
+                level.position((int) (start + size));
+            }
+            if (!found) {
+                throw new AssertionError(path[depth] + " is not found");
+            }
+        }
+        return level;
+    }
+
+    private static List<Integer> table(ByteBuffer box, int skip) {
+        int count = box.getInt(4 + skip);
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            values.add(box.getInt(8 + skip + 4 * i));
+        }
+        return values;
+    }
+
+    private static List<Mp4Faststart.Box> boxes(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Mp4Faststart.readBoxes(channel);
+        }
+    }
+
+    /**
+     * A finished recording of the same size, only its sample description matters.
+     */
+    private void finishedRecording() throws IOException {
+        byte[] stsd = RecordingRecovery.buildSampleDescription(INFO, SPS, PPS);
+        RecordingRecovery.Samples samples = new RecordingRecovery.Samples();
+        byte[] moov = RecordingRecovery.buildMoov(INFO, stsd, samples, 0);
+        byte[] ftyp = ByteBuffer.allocate(24).putInt(24).put("ftypisom".getBytes(StandardCharsets.US_ASCII)).array();
+        File file = new File(mFolder.getRoot(), "1000" + RecordingStorage.SUFFIX);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.writeBytes(ftyp);
+        output.writeBytes(moov);
+        Files.write(file.toPath(), output.toByteArray());
+    }
+
+    @Test
+    public void rebuildsTheSamplesFromLengthPrefixedNalUnits() throws IOException {
+        finishedRecording();
+        byte[] samples = lengthPrefixed(
+                slice(true, true, 100), slice(true, false, 50),
+                slice(false, true, 30),
+                slice(false, true, 40),
+                slice(true, true, 200),
+                // cut short by the crash.
+                slice(false, true, 60));
+        File file = truncated("2000", samples, 20, 4096);
+
+        assertTrue(RecordingRecovery.recover(file));
+        assertFalse(new File(file.getPath() + RecordingRecovery.SUFFIX).exists());
+
+        List<Mp4Faststart.Box> boxes = boxes(file);
+        assertNotNull(boxes);
+        assertEquals(3, boxes.size());
+        assertEquals(Mp4Faststart.TYPE_MDAT, boxes.get(1).type);
+        assertEquals(Mp4Faststart.TYPE_MOOV, boxes.get(2).type);
+
+        ByteBuffer all = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        ByteBuffer stbl = find(all, "moov", "trak", "mdia", "minf", "stbl");
+        // the sample size is 0, the sizes follow.
+        assertEquals(List.of(4 + 102 + 4 + 52, 4 + 32, 4 + 42, 4 + 202), table(find(stbl, "stsz"), 4));
+        assertEquals(List.of(1, 4), table(find(stbl, "stss"), 0));
+        assertEquals(40, find(stbl, "co64").getLong(8));
+        assertEquals(640, find(stbl, "stsd").getShort(8 + 8 + 24));
+        assertEquals(30 * 3000, find(all, "moov", "trak", "mdia", "mdhd").getInt(12));
+    }
+
+    @Test
+    public void convertsAnnexBAndTakesTheCodecConfigFromTheStream() throws IOException {
+        byte[] samples = annexB(SPS, PPS, slice(true, true, 80), slice(false, true, 20), slice(false, true, 20));
+        File file = truncated("3000", samples, 0, 0);
+
+        assertTrue(RecordingRecovery.recover(file));
+
+        ByteBuffer all = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        ByteBuffer stbl = find(all, "moov", "trak", "mdia", "minf", "stbl");
+        // the last slice has no start code after it, so it can't be told complete.
+        assertEquals(List.of(4 + 5 + 4 + 4 + 4 + 82, 4 + 22), table(find(stbl, "stsz"), 4));
+        // the start codes are lengths now.
+        ByteBuffer mdat = find(all, "mdat");
+        assertEquals(SPS.length, mdat.getInt(0));
+        assertEquals(PPS.length, mdat.getInt(4 + SPS.length));
+
+        ByteBuffer avcC = find(find(stbl, "stsd").position(8).slice(), "avc1").position(78).slice();
+        avcC = find(avcC, "avcC");
+        byte[] sps = new byte[SPS.length];
+        avcC.position(8).get(sps);
+        assertArrayEquals(SPS, sps);
+    }
+
+    @Test
+    public void keepsTheSidecarWithoutACodecConfig() throws IOException {
+        File file = truncated("4000", lengthPrefixed(slice(true, true, 10), slice(false, true, 10)), 0, 16);
+        byte[] before = Files.readAllBytes(file.toPath());
+
+        assertFalse(RecordingRecovery.recover(file));
+        assertTrue(new File(file.getPath() + RecordingRecovery.SUFFIX).exists());
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void leavesAFinishedRecordingAlone() throws IOException {
+        finishedRecording();
+        File file = new File(mFolder.getRoot(), "1000" + RecordingStorage.SUFFIX);
+        byte[] before = Files.readAllBytes(file.toPath());
+        RecordingRecovery.writeInfo(file, INFO);
+
+        assertTrue(RecordingRecovery.recover(file));
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getPath() + RecordingRecovery.SUFFIX).exists());
+    }
+
+    @Test
+    public void findsOnlyTheOrphansFromBefore() throws IOException {
+        File old = truncated("5000", lengthPrefixed(slice(true, true, 10)), 0, 0);
+        assertTrue(new File(old.getPath() + RecordingRecovery.SUFFIX).setLastModified(1000));
+        truncated("6000", lengthPrefixed(slice(true, true, 10)), 0, 0);
+
+        File[] orphans = RecordingRecovery.findOrphans(mFolder.getRoot(), 2000);
+        assertArrayEquals(new File[]{old}, orphans);
+    }
+
+}
@@ -0,0 +1,173 @@
+package me.ztiany.capturer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingStorageTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    /**
+     * The free space of the fake disk, the recordings in the directory take from it.
+     */
+    private long mDiskBytes = Long.MAX_VALUE / 2;
+
+    @Before
+    public void setUp() {
+        mDirectory = mFolder.getRoot();
+    }
+
+    private File record(long startTime, int size) throws IOException {
+        File file = new File(mDirectory, startTime + RecordingStorage.SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[size]);
+        }
+        return file;
+    }
+
+    private long usedBytes() {
+        long used = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                used += file.length();
+            }
+        }
+        return used;
+    }
+
+    private RecordingStorage.Builder builder() {
+        return RecordingStorage.newBuilder()
+                .directory(mDirectory)
+                .freeSpace(directory -> mDiskBytes - usedBytes());
+    }
+
+    private static List<String> names(RecordingStorage storage) {
+        List<String> names = new ArrayList<>();
+        for (RecordingStorage.Recording recording : storage.getRecordings()) {
+            names.add(recording.file.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void indexesTheDirectoryOldestFirst() throws IOException {
+        record(3000, 30);
+        record(1000, 10);
+        File sidecar = new File(record(2000, 20).getPath() + FrameMetadataWriter.SUFFIX);
+        assertTrue(sidecar.createNewFile());
+        assertTrue(new File(mDirectory, "notes.txt").createNewFile());
+
+        RecordingStorage storage = builder().build();
+        assertEquals(List.of("1000-video.mp4", "2000-video.mp4", "3000-video.mp4"), names(storage));
+        assertEquals(60, storage.getTotalBytes());
+    }
+
+    @Test
+    public void evictsTheOldestToStayInTheCount() throws IOException {
+        record(1000, 10);
+        record(2000, 10);
+        record(3000, 10);
+        RecordingStorage storage = builder().maxCount(3).build();
+
+        File next = new File(mDirectory, 4000 + RecordingStorage.SUFFIX);
+        assertTrue(storage.prepare(next, 10));
+        assertEquals(List.of("2000-video.mp4", "3000-video.mp4", "4000-video.mp4"), names(storage));
+        assertFalse(new File(mDirectory, "1000-video.mp4").exists());
+    }
+
+    @Test
+    public void evictsTheOldestToStayInTheBytes() throws IOException {
+        File oldest = record(1000, 100);
+        File sidecar = new File(oldest.getPath() + FrameMetadataWriter.SUFFIX);
+        assertTrue(sidecar.createNewFile());
+        record(2000, 100);
+        record(3000, 100);
+        RecordingStorage storage = builder().maxBytes(350).build();
+
+        assertTrue(storage.prepare(new File(mDirectory, 4000 + RecordingStorage.SUFFIX), 100));
+        assertEquals(3, storage.getRecordings().size());
+        assertFalse(oldest.exists());
+        assertFalse(sidecar.exists());
+        assertEquals(300, storage.getTotalBytes());
+    }
+
+    @Test
+    public void pinnedRecordingsAreKept() throws IOException {
+        File pinned = record(1000, 10);
+        record(2000, 10);
+        RecordingStorage storage = builder().maxCount(2).build();
+        assertTrue(storage.setPinned(pinned, true));
+
+        assertTrue(storage.prepare(new File(mDirectory, 3000 + RecordingStorage.SUFFIX), 10));
+        assertEquals(List.of("1000-video.mp4", "3000-video.mp4"), names(storage));
+
+        // the pin is found by the next scan, and nothing else can be evicted: 3000 is being recorded.
+        RecordingStorage again = builder().maxCount(1).build();
+        assertTrue(again.getRecordings().get(0).isPinned());
+        assertFalse(again.prepare(new File(mDirectory, 4000 + RecordingStorage.SUFFIX), 10));
+    }
+
+    @Test
+    public void theRecordingInProgressIsNotEvicted() {
+        RecordingStorage storage = builder().maxCount(1).build();
+        assertTrue(storage.prepare(new File(mDirectory, 1000 + RecordingStorage.SUFFIX), 10));
+        assertFalse(storage.prepare(new File(mDirectory, 2000 + RecordingStorage.SUFFIX), 10));
+    }
+
+    @Test
+    public void finishedRecordingTakesItsRealSize() throws IOException {
+        RecordingStorage storage = builder().build();
+        File file = new File(mDirectory, 1000 + RecordingStorage.SUFFIX);
+        assertTrue(storage.prepare(file, 1000));
+        assertEquals(1000, storage.getTotalBytes());
+
+        record(1000, 64);
+        storage.onRecordingFinished(file);
+        assertEquals(64, storage.getTotalBytes());
+
+        // a recording that failed to start leaves nothing behind.
+        File failed = new File(mDirectory, 2000 + RecordingStorage.SUFFIX);
+        assertTrue(storage.prepare(failed, 1000));
+        storage.onRecordingFinished(failed);
+        assertEquals(List.of("1000-video.mp4"), names(storage));
+    }
+
+    @Test
+    public void preflightsTheFreeSpace() throws IOException {
+        record(1000, 100);
+        record(2000, 100);
+        mDiskBytes = 400;
+        RecordingStorage storage = builder().minFreeBytes(50).build();
+
+        // 200 free and 160 expected leave less than 50, so the oldest goes.
+        assertTrue(storage.prepare(new File(mDirectory, 3000 + RecordingStorage.SUFFIX), 160));
+        assertEquals(List.of("2000-video.mp4", "3000-video.mp4"), names(storage));
+
+        // more than the disk can ever hold.
+        assertFalse(storage.prepare(new File(mFolder.newFolder(), "elsewhere.mp4"), 1000));
+    }
+
+    @Test
+    public void estimatesFromTheBitRate() {
+        // 1080p30 at 0.15 bits per pixel is about 9.3 Mbps, 70 MB a minute.
+        long bytes = RecordingStorage.estimateBytes(1920, 1080, 30, 60_000);
+        assertEquals(69_984_000, bytes);
+    }
+
+}
@@ -0,0 +1,61 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class RegionOfInterestTest {
+
+    private static CameraCapabilities newCapabilities(float maxDigitalZoom, boolean centerOnly) {
+        return new CameraCapabilities.Builder("0")
+                .activeArraySize(4000, 3000)
+                .maxDigitalZoom(maxDigitalZoom)
+                .centerOnlyCropping(centerOnly)
+                .build();
+    }
+
+    @Test
+    public void freeformCrop() {
+        RegionOfInterest region = new RegionOfInterest(0.5f, 0.5f, 0.75f, 0.75f);
+        assertArrayEquals(new int[]{2000, 1500, 3000, 2250}, region.toCropRegion(newCapabilities(8, false)));
+    }
+
+    @Test
+    public void cropIsLimitedByMaxZoom() {
+        RegionOfInterest region = new RegionOfInterest(0.45f, 0.45f, 0.55f, 0.55f);
+        // at most 4x, so the crop grows to 1000x750 around the center of the region.
+        assertArrayEquals(new int[]{1500, 1125, 2500, 1875}, region.toCropRegion(newCapabilities(4, false)));
+    }
+
+    @Test
+    public void cropIsKeptInsideTheArray() {
+        RegionOfInterest region = new RegionOfInterest(0.95f, 0f, 1f, 0.05f);
+        assertArrayEquals(new int[]{3000, 0, 4000, 750}, region.toCropRegion(newCapabilities(4, false)));
+    }
+
+    @Test
+    public void centerOnlyCropCoversTheRegion() {
+        RegionOfInterest region = new RegionOfInterest(0.5f, 0.5f, 0.75f, 0.75f);
+        assertArrayEquals(new int[]{1000, 750, 3000, 2250}, region.toCropRegion(newCapabilities(8, true)));
+    }
+
+    @Test
+    public void noCropWithoutDigitalZoom() {
+        RegionOfInterest region = new RegionOfInterest(0.5f, 0.5f, 0.75f, 0.75f);
+        assertArrayEquals(new int[]{0, 0, 4000, 3000}, region.toCropRegion(newCapabilities(1, false)));
+    }
+
+    @Test
+    public void recordingSizeFollowsTheCrop() {
+        // never scaled up.
+        assertArrayEquals(new int[]{1000, 750}, RegionOfInterest.fitRecordingSize(1000, 750, 1920, 1080));
+        // scaled down to the requested area, keeping the crop's aspect ratio.
+        assertArrayEquals(new int[]{1663, 1247}, RegionOfInterest.fitRecordingSize(2000, 1500, 1920, 1080));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRegion() {
+        new RegionOfInterest(0.5f, 0.5f, 0.4f, 0.75f);
+    }
+
+}
@@ -0,0 +1,105 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedFrameRingTest {
+
+    private static final int Y = 16;
+    private static final int UV = 8;
+
+    private static SharedFrameRing ring(int slots) {
+        ByteBuffer[] buffers = new ByteBuffer[slots];
+        for (int i = 0; i < slots; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(SharedFrameRing.slotSize(Y, UV, UV));
+        }
+        return new SharedFrameRing(buffers);
+    }
+
+    private static ByteBuffer plane(int length, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) (value + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static SharedFrameRing.Frame write(SharedFrameRing ring, long timestamp) {
+        SharedFrameRing.Frame frame = new SharedFrameRing.Frame();
+        frame.timestamp = timestamp;
+        frame.width = 4;
+        frame.height = 4;
+        frame.format = 0x23;
+        frame.yRowStride = 4;
+        frame.uvRowStride = 4;
+        frame.uvPixelStride = 2;
+        assertTrue(ring.write(frame, plane(Y, 0), plane(UV, 100), plane(UV, 200)));
+        return frame;
+    }
+
+    @Test
+    public void readsWhatWasWritten() {
+        SharedFrameRing ring = ring(2);
+        SharedFrameRing.Frame written = write(ring, 1234L);
+        assertEquals(1, written.sequence);
+        assertEquals(0, written.slot);
+
+        SharedFrameRing.Frame frame = new SharedFrameRing.Frame();
+        ByteBuffer payload = ByteBuffer.allocate(ring.getPayloadCapacity());
+        assertTrue(ring.read(written.slot, written.sequence, frame, payload));
+        assertEquals(1234L, frame.timestamp);
+        assertEquals(4, frame.width);
+        assertEquals(2, frame.uvPixelStride);
+        assertEquals(Y, frame.yLength);
+        assertEquals(UV, frame.vLength);
+        assertEquals(Y + 2 * UV, payload.remaining());
+        assertEquals(0, payload.get(0));
+        assertEquals(100, payload.get(Y));
+        assertEquals((byte) 200, payload.get(Y + UV));
+    }
+
+    @Test
+    public void framesGoToTheSlotsInTurn() {
+        SharedFrameRing ring = ring(3);
+        for (int i = 0; i < 7; i++) {
+            SharedFrameRing.Frame frame = write(ring, i);
+            assertEquals(i + 1, frame.sequence);
+            assertEquals(i % 3, frame.slot);
+        }
+    }
+
+    @Test
+    public void dropsAFrameWhoseSlotWasReused() {
+        SharedFrameRing ring = ring(2);
+        SharedFrameRing.Frame first = write(ring, 1L);
+        long firstSequence = first.sequence;
+        write(ring, 2L);
+        write(ring, 3L);
+
+        SharedFrameRing.Frame frame = new SharedFrameRing.Frame();
+        ByteBuffer payload = ByteBuffer.allocate(ring.getPayloadCapacity());
+        assertFalse(ring.read(0, firstSequence, frame, payload));
+        assertTrue(ring.read(0, 3, frame, payload));
+        assertEquals(3L, frame.timestamp);
+    }
+
+    @Test
+    public void rejectsWhatDoesNotFit() {
+        SharedFrameRing ring = ring(1);
+        SharedFrameRing.Frame frame = new SharedFrameRing.Frame();
+        assertFalse(ring.write(frame, plane(Y + 1, 0), plane(UV, 0), plane(UV, 0)));
+
+        SharedFrameRing.Frame written = write(ring, 1L);
+        ByteBuffer small = ByteBuffer.allocate(Y);
+        assertFalse(ring.read(written.slot, written.sequence, frame, small));
+        assertEquals(0, small.position());
+        assertFalse(ring.read(5, written.sequence, frame, small));
+    }
+
+}
@@ -0,0 +1,50 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A microbenchmark of {@link SizeScorer#selectBest}, prints the cost of one selection over a realistic size table.
+ */
+public class SizeScorerBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20_000;
+
+    private static final int MEASURED_ITERATIONS = 200_000;
+
+    @Test
+    public void selectBest() {
+        // 40 sizes with mixed aspect ratios and frame durations, about what a flagship reports for one output.
+        int count = 40;
+        int[] sizes = new int[count * 2];
+        long[] minFrameDurations = new long[count];
+        long[] stallDurations = new long[count];
+        for (int i = 0; i < count; i++) {
+            int width = 160 + i * 96;
+            sizes[i * 2] = width;
+            sizes[i * 2 + 1] = i % 2 == 0 ? width * 9 / 16 : width * 3 / 4;
+            minFrameDurations[i] = width > 2000 ? 66_666_666L : 33_333_333L;
+        }
+        CameraCapabilities.StreamConfigurations configurations = new CameraCapabilities.StreamConfigurations(sizes, minFrameDurations, stallDurations);
+        SizeScorer.Constraints constraints = SizeScorer.Constraints.newBuilder()
+                .targetSize(1920, 1080)
+                .frameRate(30)
+                .concurrentOutput(33_333_333L, 0)
+                .build();
+
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += SizeScorer.selectBest(configurations, constraints);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            sink += SizeScorer.selectBest(configurations, constraints);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("SizeScorer.selectBest over %d sizes: %.1f ns/op%n", count, (double) elapsed / MEASURED_ITERATIONS);
+        assertTrue(sink > 0);
+    }
+
+}
@@ -0,0 +1,59 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SizeScorerHighSpeedTest {
+
+    /**
+     * 720p up to 240 fps, 1080p up to 120 fps, each size with a preview range and fixed recording ranges.
+     */
+    private static final CameraCapabilities CAPABILITIES = new CameraCapabilities.Builder("0")
+            .highSpeedConfigurations(new int[]{
+                    1280, 720, 30, 120,
+                    1280, 720, 120, 120,
+                    1280, 720, 30, 240,
+                    1280, 720, 240, 240,
+                    1920, 1080, 30, 120,
+                    1920, 1080, 120, 120,
+            })
+            .build();
+
+    private static String select(SizeScorer.Constraints.Builder constraints) {
+        int index = SizeScorer.selectHighSpeed(CAPABILITIES, constraints.build());
+        return index < 0 ? "none" : HighSpeedConfig.of(CAPABILITIES, index).toString();
+    }
+
+    @Test
+    public void exactSizeWithFixedRange() {
+        assertEquals("HighSpeedConfig{1920x1080@[120, 120]}",
+                select(SizeScorer.Constraints.newBuilder().targetSize(1920, 1080).frameRate(120)));
+    }
+
+    @Test
+    public void closestSizeForFrameRate() {
+        assertEquals("HighSpeedConfig{1280x720@[240, 240]}",
+                select(SizeScorer.Constraints.newBuilder().targetSize(1920, 1080).frameRate(240)));
+    }
+
+    @Test
+    public void largestWithoutTarget() {
+        assertEquals("HighSpeedConfig{1920x1080@[120, 120]}",
+                select(SizeScorer.Constraints.newBuilder().frameRate(120)));
+    }
+
+    @Test
+    public void unsupportedFrameRate() {
+        assertEquals("none", select(SizeScorer.Constraints.newBuilder().targetSize(1280, 720).frameRate(480)));
+    }
+
+    @Test
+    public void encoderLimit() {
+        assertEquals("HighSpeedConfig{1280x720@[120, 120]}", select(SizeScorer.Constraints.newBuilder()
+                .targetSize(1920, 1080)
+                .frameRate(120)
+                .encoderLimit((width, height, frameRate) -> (long) width * height * frameRate <= 1280 * 720 * 120)));
+    }
+
+}
@@ -0,0 +1,75 @@
+package me.ztiany.capturer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(Parameterized.class)
+public class SizeScorerTest {
+
+    private static final long FPS_30 = 33_333_333L;
+
+    private static final long FPS_60 = 16_666_666L;
+
+    private static final long FPS_15 = 66_666_666L;
+
+    /**
+     * A typical back camera: 4K only runs at 15 fps, 1080p and below at 60 fps, 4:3 sizes at 30 fps.
+     */
+    private static final CameraCapabilities.StreamConfigurations RECORDER = new CameraCapabilities.StreamConfigurations(
+            new int[]{
+                    3840, 2160,
+                    1920, 1080,
+                    1440, 1080,
+                    1280, 720,
+                    640, 480,
+                    320, 240,
+            },
+            new long[]{FPS_15, FPS_60, FPS_30, FPS_60, FPS_30, FPS_30},
+            new long[]{0, 0, 0, 0, 0, 0}
+    );
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> cases() {
+        return Arrays.asList(new Object[][]{
+                {"exact size", SizeScorer.Constraints.newBuilder().targetSize(1920, 1080).frameRate(30), "1920x1080"},
+                {"4K can't sustain 30fps", SizeScorer.Constraints.newBuilder().targetSize(3840, 2160).frameRate(30), "1920x1080"},
+                {"4K at 15fps", SizeScorer.Constraints.newBuilder().targetSize(3840, 2160).frameRate(15), "3840x2160"},
+                {"no fps requirement", SizeScorer.Constraints.newBuilder().targetSize(3840, 2160), "3840x2160"},
+                {"unsupported size keeps the aspect ratio", SizeScorer.Constraints.newBuilder().targetSize(1600, 900).frameRate(30), "1920x1080"},
+                {"portrait target", SizeScorer.Constraints.newBuilder().targetSize(720, 1280).frameRate(30), "1280x720"},
+                {"4:3 at 60fps falls back to 16:9", SizeScorer.Constraints.newBuilder().targetSize(640, 480).frameRate(60), "1280x720"},
+                {"4:3 at 30fps", SizeScorer.Constraints.newBuilder().targetSize(640, 480).frameRate(30), "640x480"},
+                {"slow concurrent output", SizeScorer.Constraints.newBuilder().targetSize(1920, 1080).frameRate(60).concurrentOutput(FPS_30, 0), "none"},
+                {"concurrent stall", SizeScorer.Constraints.newBuilder().targetSize(1280, 720).frameRate(30).concurrentOutput(FPS_60, 20_000_000L), "none"},
+                {"small concurrent stall", SizeScorer.Constraints.newBuilder().targetSize(1280, 720).frameRate(30).concurrentOutput(FPS_60, 10_000_000L), "1280x720"},
+                {"max size", SizeScorer.Constraints.newBuilder().targetSize(3840, 2160).maxSize(1280, 720), "1280x720"},
+                {"largest without target", SizeScorer.Constraints.newBuilder().frameRate(30), "1920x1080"},
+                {"aspect ratio without target", SizeScorer.Constraints.newBuilder().aspectRatio(4, 3).frameRate(30), "1440x1080"},
+                {"encoder limit", SizeScorer.Constraints.newBuilder().targetSize(1920, 1080).frameRate(30)
+                        .encoderLimit((width, height, frameRate) -> (long) width * height * frameRate <= 1280 * 720 * 30), "1280x720"},
+        });
+    }
+
+    private final SizeScorer.Constraints.Builder mConstraints;
+
+    private final String mExpected;
+
+    public SizeScorerTest(String name, SizeScorer.Constraints.Builder constraints, String expected) {
+        mConstraints = constraints;
+        mExpected = expected;
+    }
+
+    @Test
+    public void selectBest() {
+        int index = SizeScorer.selectBest(RECORDER, mConstraints.build());
+        String actual = index < 0 ? "none" : RECORDER.getWidth(index) + "x" + RECORDER.getHeight(index);
+        assertEquals(mExpected, actual);
+    }
+
+}
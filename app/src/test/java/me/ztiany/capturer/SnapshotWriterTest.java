@@ -0,0 +1,147 @@
+package me.ztiany.capturer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotWriterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ByteBuffer jpeg(int size, int seed) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) seed);
+        // as the camera's image, a direct buffer.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static void assertContent(File file, int size, int seed) throws IOException {
+        byte[] expected = new byte[size];
+        Arrays.fill(expected, (byte) seed);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void writesTheSnapshotAndItsLatency() throws Exception {
+        SnapshotWriter writer = SnapshotWriter.newBuilder()
+                .directory(mFolder.getRoot())
+                .bufferSize(1024)
+                .build();
+        ByteBuffer jpeg = jpeg(100_000, 7);
+        long shotNanos = System.nanoTime();
+
+        SnapshotWriter.Snapshot snapshot = writer.write(jpeg, shotNanos, "1-video-500").get(5, TimeUnit.SECONDS);
+        writer.close();
+
+        assertEquals(new File(mFolder.getRoot(), "1-video-500.jpg"), snapshot.file);
+        assertEquals(100_000, snapshot.bytes);
+        assertTrue(snapshot.latencyNs > 0);
+        assertTrue(snapshot.latencyNs <= System.nanoTime() - shotNanos);
+        // the buffer of the caller is left as it is.
+        assertEquals(0, jpeg.position());
+        assertEquals(100_000, jpeg.remaining());
+        assertContent(snapshot.file, 100_000, 7);
+        assertEquals(1, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void dropsTheSnapshotsThatFindNoFreeBuffer() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch diskBusy = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                diskBusy.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        SnapshotWriter writer = SnapshotWriter.newBuilder()
+                .directory(mFolder.getRoot())
+                .bufferCount(2)
+                .bufferSize(1024)
+                .executor(executor)
+                .build();
+
+        List<CompletableFuture<SnapshotWriter.Snapshot>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(writer.write(jpeg(1000, i), System.nanoTime(), "snapshot-" + i));
+        }
+        try {
+            futures.get(2).get();
+            fail("the third snapshot has no buffer.");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(1, writer.getDroppedCount());
+        assertFalse(futures.get(0).isDone());
+
+        diskBusy.countDown();
+        assertContent(futures.get(0).get(5, TimeUnit.SECONDS).file, 1000, 0);
+        assertContent(futures.get(1).get(5, TimeUnit.SECONDS).file, 1000, 1);
+        // the buffers are free again.
+        assertContent(writer.write(jpeg(1000, 3), System.nanoTime(), "snapshot-3").get(5, TimeUnit.SECONDS).file, 1000, 3);
+        writer.close();
+    }
+
+    @Test
+    public void keepsTheNewestSnapshots() throws Exception {
+        File old = new File(mFolder.getRoot(), "old.jpg");
+        Files.write(old.toPath(), new byte[10]);
+        assertTrue(old.setLastModified(System.currentTimeMillis() - 60_000));
+        SnapshotWriter writer = SnapshotWriter.newBuilder()
+                .directory(mFolder.getRoot())
+                .maxCount(2)
+                .bufferSize(1024)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            writer.write(jpeg(10, i), System.nanoTime(), "snapshot-" + i).get(5, TimeUnit.SECONDS);
+        }
+        writer.close();
+
+        String[] names = mFolder.getRoot().list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"snapshot-1.jpg", "snapshot-2.jpg"}, names);
+    }
+
+    @Test
+    public void failsOnceClosed() throws Exception {
+        SnapshotWriter writer = SnapshotWriter.newBuilder()
+                .directory(mFolder.getRoot())
+                .build();
+        writer.close();
+
+        try {
+            writer.write(jpeg(10, 0), System.nanoTime(), "late").get(5, TimeUnit.SECONDS);
+            fail("the writer is closed.");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+}
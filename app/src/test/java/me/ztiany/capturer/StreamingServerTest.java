@@ -0,0 +1,193 @@
+package me.ztiany.capturer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingServerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private static final String TOKEN = "secret";
+
+    private static final byte[] CONFIG = {0, 0, 0, 1, 0x67, 1, 2, 0, 0, 0, 1, 0x68, 3};
+
+    private StreamingServer mServer;
+
+    private int mPort;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StreamingServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4, TOKEN);
+        mPort = mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    /**
+     * A fake encoder's output: a start code, the NAL type and the frame's index.
+     */
+    private static byte[] frame(int index, boolean keyFrame) {
+        return new byte[]{0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), (byte) index};
+    }
+
+    private void offer(byte[] data, int flags) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        assertTrue(mServer.offer(buffer, flags));
+        assertEquals(0, buffer.position());
+    }
+
+    private SocketChannel connect(int expectedClients) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort));
+        sendToken(channel, TOKEN);
+        await(() -> mServer.getClientCount() == expectedClients);
+        return channel;
+    }
+
+    private static void sendToken(SocketChannel channel, String token) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((token + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] read(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("closed after " + buffer.position() + " bytes");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out");
+            }
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void newClientStartsWithTheConfigAndAKeyFrame() throws IOException {
+        offer(CONFIG, StreamingServer.FLAG_CODEC_CONFIG);
+        try (SocketChannel client = connect(1)) {
+            // not decodable without the preceding key frame, so it is skipped.
+            offer(frame(1, false), 0);
+            offer(frame(2, true), StreamingServer.FLAG_KEY_FRAME);
+            offer(frame(3, false), 0);
+
+            byte[] expected = concat(CONFIG, frame(2, true), frame(3, false));
+            assertArrayEquals(expected, read(client, expected.length));
+        }
+    }
+
+    @Test
+    public void clientsShareTheStream() throws IOException {
+        offer(CONFIG, StreamingServer.FLAG_CODEC_CONFIG);
+        try (SocketChannel first = connect(1)) {
+            offer(frame(1, true), StreamingServer.FLAG_KEY_FRAME);
+            try (SocketChannel second = connect(2)) {
+                offer(frame(2, false), 0);
+                offer(frame(3, true), StreamingServer.FLAG_KEY_FRAME);
+
+                byte[] all = concat(CONFIG, frame(1, true), frame(2, false), frame(3, true));
+                assertArrayEquals(all, read(first, all.length));
+                byte[] late = concat(CONFIG, frame(3, true));
+                assertArrayEquals(late, read(second, late.length));
+            }
+        }
+    }
+
+    @Test
+    public void slowClientIsEvicted() throws IOException {
+        SocketChannel slow = SocketChannel.open();
+        slow.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        slow.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort));
+        sendToken(slow, TOKEN);
+        await(() -> mServer.getClientCount() == 1);
+        try (SocketChannel fast = connect(2)) {
+            byte[] frame = new byte[256 * 1024];
+            Arrays.fill(frame, (byte) 7);
+            ByteBuffer received = ByteBuffer.allocate(frame.length);
+            for (int i = 0; i < 64 && mServer.getEvictedClients() == 0; i++) {
+                offer(frame, StreamingServer.FLAG_KEY_FRAME);
+                received.clear();
+                while (received.hasRemaining()) {
+                    fast.read(received);
+                }
+            }
+            assertEquals(1, mServer.getEvictedClients());
+            await(() -> mServer.getClientCount() == 1);
+
+            // the other client keeps going.
+            offer(frame(9, false), 0);
+            assertArrayEquals(frame(9, false), read(fast, frame(9, false).length));
+        } finally {
+            slow.close();
+        }
+    }
+
+    @Test
+    public void clientWithoutTheTokenGetsNothing() throws IOException {
+        offer(CONFIG, StreamingServer.FLAG_CODEC_CONFIG);
+        try (SocketChannel wrong = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort));
+             SocketChannel silent = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), mPort))) {
+            sendToken(wrong, "guess");
+            // disconnected without a byte.
+            assertEquals(-1, wrong.read(ByteBuffer.allocate(1)));
+            assertEquals(0, mServer.getClientCount());
+
+            try (SocketChannel client = connect(1)) {
+                offer(frame(1, true), StreamingServer.FLAG_KEY_FRAME);
+                byte[] expected = concat(CONFIG, frame(1, true));
+                assertArrayEquals(expected, read(client, expected.length));
+            }
+            assertEquals(-1, silent.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    public void framesAreDroppedWithoutClients() {
+        ByteBuffer buffer = ByteBuffer.wrap(frame(1, true));
+        assertFalse(mServer.offer(buffer, StreamingServer.FLAG_KEY_FRAME));
+        assertTrue(mServer.offer(ByteBuffer.wrap(CONFIG), StreamingServer.FLAG_CODEC_CONFIG));
+    }
+
+}
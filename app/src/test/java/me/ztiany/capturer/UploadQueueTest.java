@@ -0,0 +1,280 @@
+package me.ztiany.capturer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UploadQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A stand-in for the upload server, tus-like: {@code HEAD} tells the offset, {@code PATCH} appends at it.
+     */
+    private HttpServer mServer;
+
+    private final Map<String, ByteArrayOutputStream> mUploads = new ConcurrentHashMap<>();
+
+    /**
+     * The next {@code PATCH}es fail with this status.
+     */
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    private volatile int mFailureStatus = 503;
+
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+
+    private final AtomicInteger mPatches = new AtomicInteger();
+
+    private HttpUploadTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/uploads/", this::handle);
+        mServer.start();
+        mTransport = new HttpUploadTransport(URI.create("http://127.0.0.1:" + mServer.getAddress().getPort() + "/uploads/"));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring("/uploads/".length());
+        ByteArrayOutputStream upload = mUploads.get(name);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            if (upload == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.size()));
+                exchange.sendResponseHeaders(200, -1);
+            }
+        } else if ("PATCH".equals(exchange.getRequestMethod())) {
+            mPatches.incrementAndGet();
+            byte[] body = readAll(exchange.getRequestBody());
+            mReceivedBytes.addAndGet(body.length);
+            long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+            if (mFailures.getAndUpdate(failures -> Math.max(0, failures - 1)) > 0) {
+                exchange.sendResponseHeaders(mFailureStatus, -1);
+            } else {
+                upload = mUploads.computeIfAbsent(name, key -> new ByteArrayOutputStream());
+                if (offset != upload.size()) {
+                    exchange.sendResponseHeaders(409, -1);
+                } else {
+                    upload.write(body);
+                    exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(upload.size()));
+                    exchange.sendResponseHeaders(204, -1);
+                }
+            }
+        } else {
+            exchange.sendResponseHeaders(405, -1);
+        }
+        exchange.close();
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    private File newRecording(String name, byte[] data) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static final class RecordingListener implements UploadQueue.Listener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        @Override
+        public void onUploaded(File file, String name) {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(File file, String name, IOException exception) {
+            failure.set(exception);
+            done.countDown();
+        }
+
+    }
+
+    private UploadQueue.Builder builder(File stateFile, UploadQueue.Listener listener) {
+        return UploadQueue.newBuilder()
+                .stateFile(stateFile)
+                .transport(mTransport)
+                .chunkBytes(10_000)
+                .minBackoffMs(10)
+                .maxBackoffMs(50)
+                .listener(listener);
+    }
+
+    @Test
+    public void uploadsInChunks() throws Exception {
+        byte[] data = data(45_000);
+        File stateFile = new File(mFolder.getRoot(), "uploads");
+        RecordingListener listener = new RecordingListener();
+        UploadQueue queue = builder(stateFile, listener).build();
+        queue.enqueue(newRecording("1-video.mp4", data), "1-video.mp4");
+        queue.start();
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        queue.stop();
+        assertEquals(null, listener.failure.get());
+        assertArrayEquals(data, mUploads.get("1-video.mp4").toByteArray());
+        assertEquals(5, mPatches.get());
+        assertTrue(queue.getPending().isEmpty());
+        assertTrue(builder(stateFile, null).build().getPending().isEmpty());
+    }
+
+    @Test
+    public void retriesAfterServerErrors() throws Exception {
+        byte[] data = data(45_000);
+        mFailures.set(3);
+        RecordingListener listener = new RecordingListener();
+        UploadQueue queue = builder(new File(mFolder.getRoot(), "uploads"), listener).build();
+        queue.enqueue(newRecording("1-video.mp4", data), "1-video.mp4");
+        queue.start();
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        queue.stop();
+        assertEquals(null, listener.failure.get());
+        assertArrayEquals(data, mUploads.get("1-video.mp4").toByteArray());
+        assertEquals(5 + 3, mPatches.get());
+    }
+
+    @Test
+    public void resumesFromWhatTheServerHas() throws Exception {
+        byte[] data = data(45_000);
+        File stateFile = new File(mFolder.getRoot(), "uploads");
+        // queued by an earlier process that died halfway.
+        builder(stateFile, null).build().enqueue(newRecording("1-video.mp4", data), "1-video.mp4");
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        partial.write(data, 0, 25_000);
+        mUploads.put("1-video.mp4", partial);
+
+        RecordingListener listener = new RecordingListener();
+        UploadQueue queue = builder(stateFile, listener).build();
+        List<UploadQueue.Upload> pending = queue.getPending();
+        assertEquals(1, pending.size());
+        assertEquals("1-video.mp4", pending.get(0).name);
+        queue.start();
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        queue.stop();
+        assertArrayEquals(data, mUploads.get("1-video.mp4").toByteArray());
+        assertEquals(20_000, mReceivedBytes.get());
+    }
+
+    @Test
+    public void dropsARejectedUpload() throws Exception {
+        mFailures.set(1);
+        mFailureStatus = 413;
+        RecordingListener listener = new RecordingListener();
+        UploadQueue queue = builder(new File(mFolder.getRoot(), "uploads"), listener).build();
+        queue.enqueue(newRecording("1-video.mp4", data(1000)), "1-video.mp4");
+        queue.start();
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        queue.stop();
+        assertTrue(listener.failure.get() instanceof UploadTransport.RejectedException);
+        assertEquals(1, mPatches.get());
+        assertTrue(queue.getPending().isEmpty());
+    }
+
+    @Test
+    public void givesUpAfterTooManyFailures() throws Exception {
+        mFailures.set(Integer.MAX_VALUE);
+        RecordingListener listener = new RecordingListener();
+        UploadQueue queue = builder(new File(mFolder.getRoot(), "uploads"), listener).maxAttempts(3).build();
+        queue.enqueue(newRecording("1-video.mp4", data(1000)), "1-video.mp4");
+        queue.start();
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        queue.stop();
+        assertTrue(listener.failure.get() != null);
+        assertEquals(3, mPatches.get());
+    }
+
+    @Test
+    public void backsOffExponentially() {
+        UploadQueue queue = builder(new File(mFolder.getRoot(), "uploads"), null)
+                .minBackoffMs(100)
+                .maxBackoffMs(1000)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            long first = queue.backoffMs(1);
+            assertTrue(first >= 50 && first <= 100);
+            long third = queue.backoffMs(3);
+            assertTrue(third >= 200 && third <= 400);
+            long capped = queue.backoffMs(40);
+            assertTrue(capped >= 500 && capped <= 1000);
+        }
+    }
+
+    @Test
+    public void limitsTheBandwidth() throws Exception {
+        byte[] data = data(300_000);
+        RecordingListener listener = new RecordingListener();
+        UploadQueue queue = builder(new File(mFolder.getRoot(), "uploads"), listener)
+                .chunkBytes(100_000)
+                .limiter(new BandwidthLimiter(1_000_000))
+                .build();
+        queue.enqueue(newRecording("1-video.mp4", data), "1-video.mp4");
+        long start = System.nanoTime();
+        queue.start();
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        queue.stop();
+        assertArrayEquals(data, mUploads.get("1-video.mp4").toByteArray());
+        // 300 KB at 1 MB/s, less the first burst of 100 KB.
+        assertTrue("took " + elapsedMs + " ms", elapsedMs >= 150);
+    }
+
+}